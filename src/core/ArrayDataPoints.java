@@ -0,0 +1,333 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable, materialized sequence of data points held in arrays.
+ * <p>
+ * This is used to keep the result of an aggregation around once it has been
+ * computed (e.g. in the {@link QueryCache}), so it can be read again and
+ * again without having to aggregate the underlying {@link Span}s each time.
+ */
+final class ArrayDataPoints implements DataPoints {
+
+  /** Extra bit we set on the timestamp of floating point values. */
+  private static final long FLAG_FLOAT = 0x8000000000000000L;
+
+  /** Mask to use in order to get rid of the flag above. */
+  private static final long TIME_MASK  = 0x7FFFFFFFFFFFFFFFL;
+
+  private final String metric;
+  private final Map<String, String> tags;
+  private final List<String> aggregated_tags;
+
+  /** Timestamps, possibly with {@code FLAG_FLOAT} set.  Sorted.  */
+  private final long[] timestamps;
+
+  /** Values, floating point values are stored as their raw long bits.  */
+  private final long[] values;
+
+  /** Number of data points that were aggregated to produce this.  */
+  private final int aggregated_size;
+
+  private ArrayDataPoints(final String metric,
+                          final Map<String, String> tags,
+                          final List<String> aggregated_tags,
+                          final long[] timestamps,
+                          final long[] values,
+                          final int aggregated_size) {
+    this.metric = metric;
+    this.tags = Collections.unmodifiableMap(tags);
+    this.aggregated_tags = Collections.unmodifiableList(aggregated_tags);
+    this.timestamps = timestamps;
+    this.values = values;
+    this.aggregated_size = aggregated_size;
+  }
+
+  /**
+   * Materializes some data points.
+   * @param dps The data points to copy.  They're iterated exactly once.
+   */
+  static ArrayDataPoints copyOf(final DataPoints dps) {
+    long[] timestamps = new long[64];
+    long[] values = new long[64];
+    int n = 0;
+    final SeekableView it = dps.iterator();
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      if (n == timestamps.length) {
+        timestamps = grow(timestamps);
+        values = grow(values);
+      }
+      if (dp.isInteger()) {
+        timestamps[n] = dp.timestamp();
+        values[n] = dp.longValue();
+      } else {
+        timestamps[n] = dp.timestamp() | FLAG_FLOAT;
+        values[n] = Double.doubleToRawLongBits(dp.doubleValue());
+      }
+      n++;
+    }
+    return new ArrayDataPoints(dps.metricName(), dps.getTags(),
+                               dps.getAggregatedTags(),
+                               trim(timestamps, 0, n), trim(values, 0, n),
+                               dps.aggregatedSize());
+  }
+
+  /**
+   * Creates a sequence made of a single data point.
+   * @param metric The name of the metric.
+   * @param tags The tags of the time series.
+   * @param timestamp The timestamp of the data point.
+   * @param value The value, or its raw bits for a floating point value.
+   * @param is_float Whether or not the value is a floating point value.
+   */
+  static ArrayDataPoints single(final String metric,
+                                final Map<String, String> tags,
+                                final long timestamp, final long value,
+                                final boolean is_float) {
+    return new ArrayDataPoints(metric, tags, new ArrayList<String>(0),
+      new long[] { is_float ? timestamp | FLAG_FLOAT : timestamp },
+      new long[] { value }, 1);
+  }
+
+  /**
+   * Returns the last data point of a sequence.
+   * @param dps A non-empty sequence of data points.
+   */
+  static ArrayDataPoints lastOf(final DataPoints dps) {
+    final int i = dps.size() - 1;
+    final boolean is_float = !dps.isInteger(i);
+    return single(dps.metricName(), dps.getTags(), dps.timestamp(i),
+                  is_float ? Double.doubleToRawLongBits(dps.doubleValue(i))
+                  : dps.longValue(i), is_float);
+  }
+
+  /**
+   * Returns the data points that fall within the given time range.
+   * @param start_time Points strictly before this timestamp are dropped.
+   * @param end_time Points strictly after this timestamp are dropped.
+   */
+  ArrayDataPoints slice(final long start_time, final long end_time) {
+    final int from = indexOf(start_time);
+    final int to = indexOf(end_time + 1);
+    if (from == 0 && to == timestamps.length) {
+      return this;
+    }
+    return new ArrayDataPoints(metric, tags, aggregated_tags,
+                               trim(timestamps, from, to),
+                               trim(values, from, to),
+                               scaledAggregatedSize(to - from));
+  }
+
+  /**
+   * Concatenates two sequences of data points for the same time series.
+   * @param head The data points to use before {@code boundary}.
+   * Can be {@code null}.
+   * @param tail The data points to use from {@code boundary} onwards.
+   * Can be {@code null}, but not if {@code head} is {@code null} too.
+   * @param boundary Timestamp at which to switch from head to tail.
+   */
+  static ArrayDataPoints concat(final ArrayDataPoints head,
+                                final ArrayDataPoints tail,
+                                final long boundary) {
+    if (head == null) {
+      return tail.slice(boundary, TIME_MASK - 1);
+    } else if (tail == null) {
+      return head.slice(0, boundary - 1);
+    }
+    final int nhead = head.indexOf(boundary);
+    final int from = tail.indexOf(boundary);
+    final int ntail = tail.timestamps.length - from;
+    final long[] timestamps = new long[nhead + ntail];
+    final long[] values = new long[nhead + ntail];
+    System.arraycopy(head.timestamps, 0, timestamps, 0, nhead);
+    System.arraycopy(head.values, 0, values, 0, nhead);
+    System.arraycopy(tail.timestamps, from, timestamps, nhead, ntail);
+    System.arraycopy(tail.values, from, values, nhead, ntail);
+    final HashSet<String> aggregated_tags =
+      new HashSet<String>(head.aggregated_tags);
+    aggregated_tags.addAll(tail.aggregated_tags);
+    return new ArrayDataPoints(tail.metric, tail.tags,
+                               new ArrayList<String>(aggregated_tags),
+                               timestamps, values,
+                               head.scaledAggregatedSize(nhead)
+                               + tail.scaledAggregatedSize(ntail));
+  }
+
+  /** Returns approximately how many bytes of memory this uses.  */
+  long sizeInBytes() {
+    return 64 + timestamps.length * 16L;
+  }
+
+  /**
+   * Returns the index of the first data point at or after the given time.
+   */
+  private int indexOf(final long timestamp) {
+    int lo = 0;
+    int hi = timestamps.length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if ((timestamps[mid] & TIME_MASK) < timestamp) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Estimates how many data points were aggregated to produce {@code n} of
+   * our points, assuming they're evenly distributed.
+   */
+  private int scaledAggregatedSize(final int n) {
+    if (timestamps.length == 0) {
+      return 0;
+    }
+    return (int) ((long) aggregated_size * n / timestamps.length);
+  }
+
+  private static long[] grow(final long[] array) {
+    final long[] bigger = new long[array.length * 2];
+    System.arraycopy(array, 0, bigger, 0, array.length);
+    return bigger;
+  }
+
+  private static long[] trim(final long[] array, final int from,
+                             final int to) {
+    final long[] trimmed = new long[to - from];
+    System.arraycopy(array, from, trimmed, 0, to - from);
+    return trimmed;
+  }
+
+  public String metricName() {
+    return metric;
+  }
+
+  public Map<String, String> getTags() {
+    return tags;
+  }
+
+  public List<String> getAggregatedTags() {
+    return aggregated_tags;
+  }
+
+  public int size() {
+    return timestamps.length;
+  }
+
+  public int aggregatedSize() {
+    return aggregated_size;
+  }
+
+  public SeekableView iterator() {
+    return new Iterator();
+  }
+
+  public long timestamp(final int i) {
+    return timestamps[i] & TIME_MASK;
+  }
+
+  public boolean isInteger(final int i) {
+    return (timestamps[i] & FLAG_FLOAT) == 0;
+  }
+
+  public long longValue(final int i) {
+    if (!isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a long in "
+                                   + this);
+    }
+    return values[i];
+  }
+
+  public double doubleValue(final int i) {
+    if (isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a float in "
+                                   + this);
+    }
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  public String toString() {
+    return "ArrayDataPoints(metric=" + metric + ", tags=" + tags
+      + ", aggregated_tags=" + aggregated_tags + ", size=" + size()
+      + ", aggregated_size=" + aggregated_size + ')';
+  }
+
+  /** Iterator over the data points, which is also its own data point.  */
+  private final class Iterator implements SeekableView, DataPoint {
+
+    /** Index of the next data point to return.  */
+    private int index;
+
+    /** Index of the current data point.  */
+    private int current = -1;
+
+    public boolean hasNext() {
+      return index < timestamps.length;
+    }
+
+    public DataPoint next() {
+      if (index >= timestamps.length) {
+        throw new NoSuchElementException("no more elements in "
+                                         + ArrayDataPoints.this);
+      }
+      current = index++;
+      return this;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void seek(final long timestamp) {
+      index = indexOf(timestamp);
+      current = -1;
+    }
+
+    public long timestamp() {
+      return ArrayDataPoints.this.timestamp(current);
+    }
+
+    public boolean isInteger() {
+      return ArrayDataPoints.this.isInteger(current);
+    }
+
+    public long longValue() {
+      return ArrayDataPoints.this.longValue(current);
+    }
+
+    public double doubleValue() {
+      return ArrayDataPoints.this.doubleValue(current);
+    }
+
+    public double toDouble() {
+      return isInteger() ? values[current] : doubleValue();
+    }
+
+    public String toString() {
+      return "ArrayDataPoints.Iterator(index=" + index + ", current="
+        + current + ')';
+    }
+
+  }
+
+}
@@ -248,6 +248,18 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       } else if (compacted != null) {
         // no need to re-compact rows containing a single value.
         compacted[0] = row.get(0);
+      } else if (tsdb.rollups != null) {
+        // Nothing to compact, but the row is closed so roll it up.
+        final KeyValue kv = row.get(0);
+        final byte[] qual = kv.qualifier();
+        if (qual.length == 2) {
+          final byte[] value = fixFloatingPointValue(qual[1], kv.value());
+          tsdb.rollups.write(tsdb, new KeyValue(kv.key(), kv.family(),
+            new byte[] { qual[0], fixQualifierFlags(qual[1], value.length) },
+            value));
+        } else {
+          tsdb.rollups.write(tsdb, kv);
+        }
       }
       return null;
     }
@@ -375,6 +387,9 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       return null;
     }
 
+    if (tsdb.rollups != null) {
+      tsdb.rollups.write(tsdb, compact);
+    }
     final byte[] key = compact.key();
     //LOG.debug("Compacting row " + Arrays.toString(key));
     deleted_cells.addAndGet(row.size());  // We're going to delete this.
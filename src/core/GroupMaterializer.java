@@ -0,0 +1,187 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Aggregates the groups of a query into {@link ArrayDataPoints}, using
+ * several threads when there are many groups.
+ * <p>
+ * A {@link SpanGroup} aggregates its spans every time it's iterated, and
+ * {@link SpanGroup#size} iterates it too.  Once materialized, each group
+ * is a plain array that can be walked again and again for free.
+ * <p>
+ * This class is thread-safe.
+ */
+final class GroupMaterializer {
+
+  /** Number of groups a query must have before we aggregate in parallel. */
+  private final int min_groups;
+
+  /** The threads aggregating groups, {@code null} to use the caller's.  */
+  private final ThreadPoolExecutor pool;
+
+  /** Number of threads of {@code pool}.  */
+  private final int nthreads;
+
+  private final AtomicLong parallel = new AtomicLong();
+  private final AtomicLong sequential = new AtomicLong();
+  /** Number of groups materialized.  */
+  private final AtomicLong groups_materialized = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param nthreads Number of threads to use, 0 or less to always aggregate
+   * on the caller's thread.
+   * @param min_groups Number of groups from which to aggregate in parallel.
+   */
+  GroupMaterializer(final int nthreads, final int min_groups) {
+    this.nthreads = nthreads;
+    this.min_groups = min_groups;
+    if (nthreads <= 0) {
+      pool = null;
+      return;
+    }
+    pool = new ThreadPoolExecutor(nthreads, nthreads, 60, TimeUnit.SECONDS,
+                                  new LinkedBlockingQueue<Runnable>(),
+                                  new Threads());
+    pool.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns a new instance configured from system properties.
+   * <ul>
+   * <li>{@code tsd.query.aggregation_threads}: number of threads, defaults
+   * to the number of CPUs, 0 disables parallel aggregation.</li>
+   * <li>{@code tsd.query.aggregation_threads.min_groups}: number of groups
+   * from which to aggregate in parallel (64 by default).</li>
+   * </ul>
+   */
+  static GroupMaterializer fromSystemProperties() {
+    return new GroupMaterializer(
+      Integer.getInteger("tsd.query.aggregation_threads",
+                         Runtime.getRuntime().availableProcessors()),
+      Integer.getInteger("tsd.query.aggregation_threads.min_groups", 64));
+  }
+
+  /** Names the threads and makes them daemons.  */
+  private static final class Threads implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(final Runnable r) {
+      final Thread t = new Thread(r, "Aggregation #"
+                                  + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+  /** Aggregates a contiguous range of groups.  */
+  private static final class Slice implements Callable<Object> {
+    private final DataPoints[] groups;
+    private final ArrayDataPoints[] results;
+    private final int from;
+    private final int to;
+
+    Slice(final DataPoints[] groups, final ArrayDataPoints[] results,
+          final int from, final int to) {
+      this.groups = groups;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+    }
+
+    public Object call() {
+      for (int i = from; i < to; i++) {
+        results[i] = ArrayDataPoints.copyOf(groups[i]);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Aggregates the given groups and keeps the results in memory.
+   * @param groups The groups to materialize.
+   * @return The materialized groups, in the same order.
+   * @throws CancellationException if the thread was interrupted while
+   * waiting for the other threads.
+   */
+  ArrayDataPoints[] materialize(final DataPoints[] groups) {
+    final ArrayDataPoints[] results = new ArrayDataPoints[groups.length];
+    groups_materialized.addAndGet(groups.length);
+    if (pool == null || groups.length < Math.max(2, min_groups)
+        || nthreads < 2) {
+      sequential.incrementAndGet();
+      new Slice(groups, results, 0, groups.length).call();
+      return results;
+    }
+    parallel.incrementAndGet();
+    // Several slices per thread, since groups don't all have the same size.
+    final int nslices = Math.min(groups.length, nthreads * 4);
+    final ArrayList<Future<Object>> slices =
+      new ArrayList<Future<Object>>(nslices);
+    for (int i = 1; i < nslices; i++) {
+      slices.add(pool.submit(new Slice(groups, results,
+                                       groups.length * i / nslices,
+                                       groups.length * (i + 1) / nslices)));
+    }
+    try {
+      // Do the first slice ourselves rather than just waiting.
+      new Slice(groups, results, 0, groups.length / nslices).call();
+      for (final Future<Object> slice : slices) {
+        slice.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();  // Preserve the interrupt status.
+      throw new CancellationException("Interrupted while aggregating "
+                                      + groups.length + " groups");
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException("Should never be here", cause);
+    } finally {
+      for (final Future<Object> slice : slices) {
+        slice.cancel(true);  // No-op for the slices that are done.
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("query.aggregations", parallel, "type=parallel");
+    collector.record("query.aggregations", sequential, "type=sequential");
+    collector.record("query.aggregated_groups", groups_materialized);
+  }
+
+}
@@ -0,0 +1,461 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Memory-bounded copy of the data points recently written through this TSD.
+ * <p>
+ * Each time series gets a ring buffer of data points stored in primitive
+ * arrays.  Queries can read the rows of the last few hours from here instead
+ * of scanning HBase, see {@link #rowsCompleteSince}.
+ * <p>
+ * We only know about the data points written through this TSD, so this
+ * must only be enabled when this TSD is the only one writing to the table.
+ * <p>
+ * This class is thread-safe.
+ */
+final class HotTier {
+
+  /** Charset that maps each byte to a char, so we can use keys as strings. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Bytes used by a data point: timestamp, value and flags.  */
+  private static final int POINT_BYTES = 4 + 8 + 2;
+
+  /** Rough overhead of a series: key, arrays and map entry.  */
+  private static final int SERIES_OVERHEAD = 200;
+
+  /** Initial number of data points of each series.  */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** Maximum number of bytes we use.  */
+  private final long max_bytes;
+
+  /** How long (in seconds) we keep data points.  */
+  private final int window;
+
+  /**
+   * Data points of each series, by metric ID, then by row key (with the
+   * timestamp zeroed out).  Both are turned into strings with
+   * {@link #CHARSET}.
+   */
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, Series>>
+    metrics =
+      new ConcurrentHashMap<String, ConcurrentHashMap<String, Series>>();
+
+  /** Number of bytes currently used.  */
+  private final AtomicLong bytes = new AtomicLong();
+
+  /**
+   * All the data points written at or after this time (in seconds) are in
+   * memory.  Only goes forward: it starts when the TSD starts, and moves
+   * whenever we drop a data point because we ran out of memory.
+   */
+  private final AtomicLong complete_since =
+    new AtomicLong(System.currentTimeMillis() / 1000);
+
+  /** Whether or not a thread is currently evicting old data points.  */
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+
+  /** When we last evicted old data points (in seconds).  */
+  private volatile long last_sweep = System.currentTimeMillis() / 1000;
+
+  private final AtomicLong queries = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param max_bytes Maximum number of bytes to use.
+   * @param window How long (in seconds) to keep data points.
+   */
+  HotTier(final long max_bytes, final int window) {
+    if (max_bytes <= 0) {
+      throw new IllegalArgumentException("max_bytes not > 0: " + max_bytes);
+    } else if (window <= 0) {
+      throw new IllegalArgumentException("window not > 0: " + window);
+    }
+    this.max_bytes = max_bytes;
+    this.window = window;
+  }
+
+  /**
+   * Returns a new hot tier configured from system properties, or
+   * {@code null} if it's disabled (which is the default).
+   * <ul>
+   * <li>{@code tsd.core.hot_tier.size}: maximum number of bytes to use.</li>
+   * <li>{@code tsd.core.hot_tier.window}: how long (in seconds) to keep data
+   * points, 6 hours by default.</li>
+   * </ul>
+   */
+  static HotTier fromSystemProperties() {
+    final long max_bytes = Long.getLong("tsd.core.hot_tier.size", 0);
+    if (max_bytes <= 0) {
+      return null;
+    }
+    return new HotTier(max_bytes,
+                       Integer.getInteger("tsd.core.hot_tier.window", 21600));
+  }
+
+  /** The data points of a time series, in a ring buffer.  */
+  private static final class Series {
+
+    /** Row key of the series, with the timestamp zeroed out.  */
+    final byte[] key;
+
+    int[] timestamps = new int[INITIAL_CAPACITY];
+    /** The values, as written to HBase, right-aligned in a long.  */
+    long[] values = new long[INITIAL_CAPACITY];
+    short[] flags = new short[INITIAL_CAPACITY];
+
+    /** Index of the oldest data point.  */
+    int head;
+
+    /** Number of data points.  */
+    int size;
+
+    /** Whether this series was removed from the map by {@link #sweep}.  */
+    boolean removed;
+
+    Series(final byte[] key) {
+      this.key = key;
+    }
+
+    /** Returns the index in the arrays of the ith oldest data point.  */
+    int index(final int i) {
+      return (head + i) % timestamps.length;
+    }
+
+    long timestamp(final int i) {
+      return timestamps[index(i)] & 0xFFFFFFFFL;
+    }
+
+    /** Copies the jth oldest data point over the ith oldest one.  */
+    void move(final int j, final int i) {
+      final int from = index(j);
+      final int to = index(i);
+      timestamps[to] = timestamps[from];
+      values[to] = values[from];
+      flags[to] = flags[from];
+    }
+
+    void set(final int i, final long timestamp, final long value,
+             final short flags) {
+      final int idx = index(i);
+      this.timestamps[idx] = (int) timestamp;
+      this.values[idx] = value;
+      this.flags[idx] = flags;
+    }
+
+    /** Doubles the capacity of the ring buffer.  */
+    void grow() {
+      final int capacity = timestamps.length * 2;
+      final int[] timestamps = new int[capacity];
+      final long[] values = new long[capacity];
+      final short[] flags = new short[capacity];
+      for (int i = 0; i < size; i++) {
+        final int idx = index(i);
+        timestamps[i] = this.timestamps[idx];
+        values[i] = this.values[idx];
+        flags[i] = this.flags[idx];
+      }
+      this.timestamps = timestamps;
+      this.values = values;
+      this.flags = flags;
+      head = 0;
+    }
+
+    /** Drops the data points older than the given time.  */
+    void trim(final long cutoff) {
+      while (size > 0 && timestamp(0) < cutoff) {
+        head = index(1);
+        size--;
+      }
+    }
+
+  }
+
+  /**
+   * Records a data point that was just written.
+   * @param row The row key the data point was written to.  Not modified.
+   * @param metric_width The number of bytes on which metric IDs are stored.
+   * @param timestamp The timestamp of the data point.
+   * @param value The value, as written to HBase.
+   * @param flags The flags of the data point (see {@link Const}).
+   */
+  void add(final byte[] row, final short metric_width,
+           final long timestamp, final byte[] value, final short flags) {
+    final long now = System.currentTimeMillis() / 1000;
+    if (timestamp < now - window) {
+      return;  // Too old to be useful.
+    }
+    long bits = 0;
+    for (final byte b : value) {
+      bits = (bits << 8) | (b & 0xFF);
+    }
+    final byte[] key = row.clone();
+    for (int i = 0; i < Const.TIMESTAMP_BYTES; i++) {
+      key[metric_width + i] = 0;
+    }
+    final String metric = new String(key, 0, metric_width, CHARSET);
+    ConcurrentHashMap<String, Series> all = metrics.get(metric);
+    if (all == null) {
+      all = new ConcurrentHashMap<String, Series>();
+      final ConcurrentHashMap<String, Series> prev =
+        metrics.putIfAbsent(metric, all);
+      if (prev != null) {
+        all = prev;
+      }
+    }
+    final String id = new String(key, CHARSET);
+    while (true) {
+      Series series = all.get(id);
+      if (series == null) {
+        final long size = SERIES_OVERHEAD + key.length
+          + POINT_BYTES * INITIAL_CAPACITY;
+        if (!reserve(size)) {
+          // We won't remember this data point, so we're no longer complete.
+          truncated(timestamp);
+          break;
+        }
+        series = new Series(key);
+        final Series prev = all.putIfAbsent(id, series);
+        if (prev != null) {
+          bytes.addAndGet(-size);
+          series = prev;
+        }
+      }
+      synchronized (series) {
+        if (!series.removed) {
+          addLocked(series, now, timestamp, bits, flags);
+          break;
+        }
+      }
+      // The series was swept right before we locked it, try again.
+    }
+    if (now - last_sweep > window / 4) {
+      sweep(now);
+    }
+  }
+
+  /** Adds a data point to a series.  Must be called with the lock held.  */
+  private void addLocked(final Series series, final long now,
+                         final long timestamp, final long value,
+                         final short flags) {
+    series.trim(now - window);  // Keeps the capacity for the new points.
+    // Find where this data point goes.  It's almost always at the end.
+    int i = series.size;
+    while (i > 0 && series.timestamp(i - 1) > timestamp) {
+      i--;
+    }
+    if (i > 0 && series.timestamp(i - 1) == timestamp) {
+      series.set(i - 1, timestamp, value, flags);  // Overwrite the old value.
+      return;
+    }
+    if (series.size == series.timestamps.length) {
+      if (reserve(POINT_BYTES * series.timestamps.length)) {
+        series.grow();
+      } else if (i == 0) {
+        // Older than everything we have and no room: drop it.
+        truncated(timestamp);
+        return;
+      } else {
+        // No room: drop our oldest data point.
+        truncated(series.timestamp(0));
+        series.head = series.index(1);
+        series.size--;
+        i--;
+      }
+    }
+    for (int j = series.size; j > i; j--) {
+      series.move(j - 1, j);
+    }
+    series.size++;
+    series.set(i, timestamp, value, flags);
+  }
+
+  /**
+   * Tries to account for more memory.
+   * @param size How many bytes we want to use.
+   * @return {@code false} if we'd use more than {@code max_bytes}.
+   */
+  private boolean reserve(final long size) {
+    if (bytes.addAndGet(size) > max_bytes) {
+      bytes.addAndGet(-size);
+      return false;
+    }
+    return true;
+  }
+
+  /** Records that we dropped a data point, which we may need to read.  */
+  private void truncated(final long timestamp) {
+    dropped.incrementAndGet();
+    long since;
+    while ((since = complete_since.get()) <= timestamp
+           && !complete_since.compareAndSet(since, timestamp + 1)) {
+      // Someone else moved it, try again.
+    }
+  }
+
+  /**
+   * Drops the data points that fell out of the window, and the series that
+   * no longer have any.  Only one thread at a time does this, the others
+   * don't wait.
+   * @param now The current time in seconds.
+   */
+  private void sweep(final long now) {
+    if (!sweeping.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      last_sweep = now;
+      for (final ConcurrentHashMap<String, Series> all : metrics.values()) {
+        final Iterator<Series> it = all.values().iterator();
+        while (it.hasNext()) {
+          final Series series = it.next();
+          synchronized (series) {
+            series.trim(now - window);
+            if (series.size == 0) {
+              series.removed = true;
+              it.remove();
+              bytes.addAndGet(-(SERIES_OVERHEAD + series.key.length
+                                + POINT_BYTES * series.timestamps.length));
+            }
+          }
+        }
+      }
+    } finally {
+      sweeping.set(false);
+    }
+  }
+
+  /**
+   * Returns the time (in seconds) from which the rows are entirely in
+   * memory.  This is always on a row boundary.
+   */
+  long rowsCompleteSince() {
+    final long now = System.currentTimeMillis() / 1000;
+    final long since = Math.max(complete_since.get(), now - window);
+    return (since + Const.MAX_TIMESPAN - 1)
+      / Const.MAX_TIMESPAN * Const.MAX_TIMESPAN;
+  }
+
+  /**
+   * Returns the rows of the given metric in the given time range.
+   * @param metric The ID of the metric.
+   * @param key_regexp If not {@code null}, only the series whose row key
+   * (with the timestamp zeroed out) matches it are returned.
+   * @param start Rows whose base time is before this are ignored.
+   * @param end Rows whose base time is at or after this are ignored.
+   * @return Compacted rows, the rows of a given series are in order.
+   */
+  ArrayList<KeyValue> rows(final byte[] metric, final Pattern key_regexp,
+                           final long start, final long end) {
+    queries.incrementAndGet();
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+    final ConcurrentHashMap<String, Series> all =
+      metrics.get(new String(metric, CHARSET));
+    if (all == null) {
+      return rows;
+    }
+    for (final Series series : all.values()) {
+      if (key_regexp != null && !key_regexp.matcher(
+            new String(series.key, CHARSET)).matches()) {
+        continue;
+      }
+      synchronized (series) {
+        addRows(rows, series, metric.length, start, end);
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Turns the data points of a series into compacted rows.
+   * Must be called with the lock held.
+   */
+  private static void addRows(final ArrayList<KeyValue> rows,
+                              final Series series, final int metric_width,
+                              final long start, final long end) {
+    int i = 0;
+    while (i < series.size) {
+      final long ts = series.timestamp(i);
+      final long base_time = ts - (ts % Const.MAX_TIMESPAN);
+      // Find the end of this row.
+      int j = i + 1;
+      int nbytes = length(series.flags[series.index(i)]);
+      while (j < series.size && series.timestamp(j) < base_time
+             + Const.MAX_TIMESPAN) {
+        nbytes += length(series.flags[series.index(j)]);
+        j++;
+      }
+      if (base_time >= end) {
+        break;
+      } else if (base_time >= start) {
+        final int npoints = j - i;
+        final byte[] key = series.key.clone();
+        Bytes.setInt(key, (int) base_time, metric_width);
+        final byte[] qualifiers = new byte[npoints * 2];
+        // Compacted values end with a meta-data byte, single values don't.
+        final byte[] values = new byte[nbytes + (npoints > 1 ? 1 : 0)];
+        int off = 0;
+        for (int k = 0; k < npoints; k++) {
+          final int idx = series.index(i + k);
+          final short flags = series.flags[idx];
+          final long delta = series.timestamp(i + k) - base_time;
+          Bytes.setShort(qualifiers,
+                         (short) (delta << Const.FLAG_BITS | flags), k * 2);
+          final int len = length(flags);
+          long value = series.values[idx];
+          for (int b = len - 1; b >= 0; b--) {
+            values[off + b] = (byte) value;
+            value >>>= 8;
+          }
+          off += len;
+        }
+        rows.add(new KeyValue(key, TSDB.FAMILY, qualifiers, values));
+      }
+      i = j;
+    }
+  }
+
+  /** Returns the number of bytes on which a value is stored.  */
+  private static int length(final short flags) {
+    return (flags & Const.LENGTH_MASK) + 1;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("hot_tier.queries", queries);
+    collector.record("hot_tier.dropped", dropped);
+    collector.record("hot_tier.bytes", bytes.get());
+    collector.record("hot_tier.window",
+      System.currentTimeMillis() / 1000 - rowsCompleteSince());
+  }
+
+}
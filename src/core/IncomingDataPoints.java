@@ -227,6 +227,20 @@ final class IncomingDataPoints implements WritableDataPoints {
                     : Bytes.getInt(value) & 0x00000000FFFFFFFFL);
     size++;
 
+    if (tsdb.last_values != null) {
+      tsdb.last_values.update(row, tsdb.metrics.width(), timestamp, value,
+                              flags);
+    }
+    if (tsdb.hot_tier != null) {
+      tsdb.hot_tier.add(row, tsdb.metrics.width(), timestamp, value, flags);
+    }
+    if (tsdb.series_index != null) {
+      tsdb.series_index.add(tsdb, row);
+    }
+    if (tsdb.cardinality != null && size == 1) {  // Once per row is enough.
+      tsdb.cardinality.add(row, tsdb.metrics.width(), tsdb.tag_names.width(),
+                           tsdb.tag_values.width());
+    }
     final PutRequest point = new PutRequest(tsdb.table, row, TSDB.FAMILY,
                                             Bytes.fromShort(qualifier),
                                             value);
@@ -0,0 +1,291 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Bounded, in-memory cache of the last data point of each time series.
+ * <p>
+ * Every data point written through this TSD updates the entry of its time
+ * series, so "what's the latest value of X" can be answered without
+ * scanning HBase.  Series that haven't been written to for a while are
+ * evicted, and if there are too many series, the ones that have been idle
+ * the longest are evicted first.
+ * <p>
+ * We only know about the data points written through this TSD, so this
+ * must only be enabled when this TSD is the only one writing to the table.
+ * Even then, series whose last data point is older than
+ * {@link #completeSince} may be missing.
+ * <p>
+ * This class is thread-safe.
+ */
+final class LastValueCache {
+
+  /** Charset that maps each byte to a char, so we can use keys as strings. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Maximum number of series we keep track of.  */
+  private final int max_series;
+
+  /** How long (in ms) a series can go without being written to.  */
+  private final long idle_ms;
+
+  /**
+   * Last data point of each series, by metric ID, then by row key (with the
+   * timestamp zeroed out).  Both are turned into strings with
+   * {@link #CHARSET}.
+   */
+  private final ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>>
+    metrics = new ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>>();
+
+  /** Number of series in the cache.  */
+  private final AtomicInteger size = new AtomicInteger();
+
+  /**
+   * Every series with a data point at or after this UNIX timestamp (in
+   * seconds) is in the cache.  Only goes forward: it starts when the TSD
+   * starts, and moves whenever we evict an entry.
+   */
+  private final AtomicLong complete_since =
+    new AtomicLong(System.currentTimeMillis() / 1000);
+
+  /** Whether or not a thread is currently evicting entries.  */
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+
+  /** When we last evicted idle entries (in ms).  */
+  private volatile long last_sweep = System.currentTimeMillis();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param max_series Maximum number of series to keep track of.
+   * @param idle_ms How long (in ms) a series can go without being written to
+   * before it's evicted.
+   */
+  LastValueCache(final int max_series, final long idle_ms) {
+    if (max_series <= 0) {
+      throw new IllegalArgumentException("max_series not > 0: " + max_series);
+    }
+    this.max_series = max_series;
+    this.idle_ms = idle_ms;
+  }
+
+  /** The last data point of a time series.  */
+  static final class Entry {
+
+    /** Row key of the series, with the timestamp zeroed out.  */
+    final byte[] key;
+
+    final long timestamp;
+
+    /** The value, floating point values are stored as their raw bits.  */
+    final long value;
+
+    final boolean is_float;
+
+    /** When this entry was last updated (in ms).  */
+    final long updated;
+
+    Entry(final byte[] key, final long timestamp, final long value,
+          final boolean is_float, final long updated) {
+      this.key = key;
+      this.timestamp = timestamp;
+      this.value = value;
+      this.is_float = is_float;
+      this.updated = updated;
+    }
+
+    /** Returns this data point as a {@link DataPoints}.  */
+    DataPoints toDataPoints(final TSDB tsdb) {
+      final short metric_width = tsdb.metrics.width();
+      final byte[] metric = new byte[metric_width];
+      System.arraycopy(key, 0, metric, 0, metric_width);
+      return ArrayDataPoints.single(tsdb.metrics.getName(metric),
+                                    Tags.getTags(tsdb, key),
+                                    timestamp, value, is_float);
+    }
+
+  }
+
+  /**
+   * Records a data point that was just written.
+   * Data points older than the one we already have are ignored.
+   * @param row The row key the data point was written to.  Not modified.
+   * @param metric_width The number of bytes on which metric IDs are stored.
+   * @param timestamp The timestamp of the data point.
+   * @param value The value, as written to HBase.
+   * @param flags The flags of the data point (see {@link Const}).
+   */
+  void update(final byte[] row, final short metric_width,
+              final long timestamp, final byte[] value, final short flags) {
+    final boolean is_float = (flags & Const.FLAG_FLOAT) != 0;
+    final long bits;
+    if (is_float) {
+      bits = Double.doubleToRawLongBits(
+        RowSeq.extractFloatingPointValue(value, 0, (byte) flags));
+    } else {
+      bits = RowSeq.extractIntegerValue(value, 0, (byte) flags);
+    }
+    final byte[] key = row.clone();
+    for (int i = 0; i < Const.TIMESTAMP_BYTES; i++) {
+      key[metric_width + i] = 0;
+    }
+    final String metric = new String(key, 0, metric_width, CHARSET);
+    ConcurrentHashMap<String, Entry> series = metrics.get(metric);
+    if (series == null) {
+      series = new ConcurrentHashMap<String, Entry>();
+      final ConcurrentHashMap<String, Entry> prev =
+        metrics.putIfAbsent(metric, series);
+      if (prev != null) {
+        series = prev;
+      }
+    }
+    final String id = new String(key, CHARSET);
+    final long now = System.currentTimeMillis();
+    final Entry entry = new Entry(key, timestamp, bits, is_float, now);
+    while (true) {
+      final Entry old = series.putIfAbsent(id, entry);
+      if (old == null) {
+        if (size.incrementAndGet() > max_series
+            || now - last_sweep > idle_ms) {
+          sweep(now);
+        }
+        return;
+      } else if (old.timestamp > timestamp
+                 || series.replace(id, old, entry)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the last data point of all the series of the given metric.
+   * @param metric The ID of the metric.
+   * @return A possibly empty collection, which must not be modified.
+   */
+  Collection<Entry> get(final byte[] metric) {
+    final ConcurrentHashMap<String, Entry> series =
+      metrics.get(new String(metric, CHARSET));
+    if (series == null) {
+      return Collections.emptyList();
+    }
+    return series.values();
+  }
+
+  /**
+   * Returns the UNIX timestamp (in seconds) from which the cache has the
+   * last data point of every series.
+   */
+  long completeSince() {
+    return complete_since.get();
+  }
+
+  /** Records that a query was answered from the cache.  */
+  void hit() {
+    hits.incrementAndGet();
+  }
+
+  /** Records that a query had to scan HBase.  */
+  void miss() {
+    misses.incrementAndGet();
+  }
+
+  /**
+   * Evicts idle entries, and then the least recently updated entries if we
+   * still have too many.  Only one thread at a time does this, the others
+   * don't wait.
+   * @param now The current time in ms.
+   */
+  private void sweep(final long now) {
+    if (!sweeping.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      last_sweep = now;
+      // Leave some room so that we don't have to sweep again right away.
+      final int target = max_series - max_series / 10;
+      long idle = idle_ms;
+      do {
+        evictOlderThan(now - idle);
+        idle /= 2;
+      } while (size.get() > target && idle > 0);
+      if (size.get() > target) {
+        // Everything was updated very recently, evict whatever comes first.
+        evictOlderThan(Long.MAX_VALUE, size.get() - target);
+      }
+    } finally {
+      sweeping.set(false);
+    }
+  }
+
+  /** Evicts the entries that haven't been updated since the given time.  */
+  private void evictOlderThan(final long cutoff) {
+    evictOlderThan(cutoff, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Evicts the entries that haven't been updated since the given time.
+   * @param cutoff Entries updated before this time (in ms) are evicted.
+   * @param max Maximum number of entries to evict.
+   */
+  private void evictOlderThan(final long cutoff, final int max) {
+    int left = max;
+    for (final ConcurrentHashMap<String, Entry> series : metrics.values()) {
+      final Iterator<Entry> it = series.values().iterator();
+      while (it.hasNext() && left > 0) {
+        final Entry entry = it.next();
+        if (entry.updated < cutoff) {
+          left--;
+          it.remove();
+          size.decrementAndGet();
+          evictions.incrementAndGet();
+          evicted(entry.timestamp);
+        }
+      }
+    }
+  }
+
+  /** Records that we evicted a series whose last data point we may need. */
+  private void evicted(final long timestamp) {
+    long since;
+    while ((since = complete_since.get()) <= timestamp
+           && !complete_since.compareAndSet(since, timestamp + 1)) {
+      // Someone else moved it, try again.
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("last_values.requests", hits, "type=hit");
+    collector.record("last_values.requests", misses, "type=miss");
+    collector.record("last_values.evictions", evictions);
+    collector.record("last_values.size", size.get());
+  }
+
+}
@@ -92,6 +92,38 @@ public interface Query {
    */
   void downsample(int interval, Aggregator downsampler);
 
+  /**
+   * Only keeps the groups that rank the highest (or the lowest).
+   * <p>
+   * Each group is ranked by aggregating all its data points in the time
+   * range of the query into a single value, for instance with
+   * {@link Aggregators#MAX} to find the groups with the highest peaks.
+   * The groups returned by {@link #run} are then sorted by rank, best first.
+   * @param limit Number of groups to keep, 0 to keep them all (the default).
+   * @param bottom If {@code true}, keep the groups that rank the lowest
+   * instead of those that rank the highest.
+   * @param ranker Aggregation function used to rank each group, or
+   * {@code null} to rank by the last data point of each group.
+   * @throws IllegalArgumentException if {@code limit} is negative.
+   */
+  void setRankLimit(int limit, boolean bottom, Aggregator ranker);
+
+  /**
+   * Sets the deadline of this query.
+   * Once it expires, the query gives up on HBase, closes its scanner and
+   * throws a {@link QueryLimitException}.
+   * @param deadline UNIX time in milliseconds, 0 means no deadline (the
+   * default).
+   */
+  void setDeadline(long deadline);
+
+  /**
+   * Sets the profile in which to record where the time of this query goes.
+   * @param profile The profile to use, possibly shared with other queries.
+   * Can be {@code null} to disable profiling (the default).
+   */
+  void setProfile(QueryProfile profile);
+
   /**
    * Runs this query.
    * @return The data points matched by this query.
@@ -101,6 +133,10 @@ public interface Query {
    * matched by the query.
    * @throws HBaseException if there was a problem communicating with HBase to
    * perform the search.
+   * @throws QueryLimitException if this query exceeded one of its limits,
+   * including its deadline.
+   * @throws java.util.concurrent.CancellationException if the thread running
+   * this query was interrupted.
    */
   DataPoints[] run() throws HBaseException;
 
@@ -0,0 +1,157 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Size-bounded LRU cache of query results.
+ * <p>
+ * Each entry holds the aggregated results of a query (see
+ * {@link TsdbQuery#cacheKey}) for a time range, up to the point where the
+ * data is considered complete, that is, old enough that no TSD should still
+ * be writing to it.  A query whose time range overlaps with an entry can
+ * then reuse the cached part and only needs to scan HBase for the rest.
+ * <p>
+ * This class is thread-safe.
+ */
+final class QueryCache {
+
+  /** Maximum number of bytes we allow the cache to use.  */
+  private final long max_bytes;
+
+  /** Approximate number of bytes currently used.  Guarded by {@code this}. */
+  private long size;
+
+  /** The entries, in access order.  Guarded by {@code this}.  */
+  private final LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong partial_hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param max_bytes Maximum number of bytes the cache can use.
+   */
+  QueryCache(final long max_bytes) {
+    if (max_bytes <= 0) {
+      throw new IllegalArgumentException("max_bytes not > 0: " + max_bytes);
+    }
+    this.max_bytes = max_bytes;
+  }
+
+  /** A cached query result.  */
+  static final class Entry {
+
+    /** Timestamp of the beginning of the data we have.  */
+    final long start_time;
+
+    /**
+     * Timestamp until which (exclusive) the data we have is complete.
+     * Data points at or after this time need to be re-read from HBase.
+     */
+    final long complete_until;
+
+    /** The results, one per group, sorted in the order of the query.  */
+    final ArrayDataPoints[] results;
+
+    /** Approximate number of bytes used by this entry.  */
+    final long bytes;
+
+    Entry(final long start_time, final long complete_until,
+          final ArrayDataPoints[] results) {
+      this.start_time = start_time;
+      this.complete_until = complete_until;
+      this.results = results;
+      long bytes = 128;
+      for (final ArrayDataPoints dps : results) {
+        bytes += dps.sizeInBytes();
+      }
+      this.bytes = bytes;
+    }
+
+  }
+
+  /**
+   * Returns the entry for the given key, if any.
+   * @param key The key of the query, see {@link TsdbQuery#cacheKey}.
+   */
+  synchronized Entry get(final String key) {
+    return entries.get(key);
+  }
+
+  /**
+   * Stores an entry in the cache, evicting old ones if needed.
+   * Entries larger than a quarter of the cache aren't stored.
+   * @param key The key of the query, see {@link TsdbQuery#cacheKey}.
+   * @param entry The entry to store.
+   */
+  synchronized void put(final String key, final Entry entry) {
+    if (entry.bytes > max_bytes / 4) {
+      return;
+    }
+    final Entry previous = entries.put(key, entry);
+    if (previous != null) {
+      size -= previous.bytes;
+    }
+    size += entry.bytes;
+    final Iterator<Entry> it = entries.values().iterator();
+    while (size > max_bytes && it.hasNext()) {
+      size -= it.next().bytes;
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /** Records that a query was entirely answered from the cache.  */
+  void hit() {
+    hits.incrementAndGet();
+  }
+
+  /** Records that a query was partially answered from the cache.  */
+  void partialHit() {
+    partial_hits.incrementAndGet();
+  }
+
+  /** Records that a query couldn't use the cache.  */
+  void miss() {
+    misses.incrementAndGet();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("query.cache.requests", hits, "type=hit");
+    collector.record("query.cache.requests", partial_hits, "type=partial");
+    collector.record("query.cache.requests", misses, "type=miss");
+    collector.record("query.cache.evictions", evictions);
+    final long bytes;
+    final int nentries;
+    synchronized (this) {
+      bytes = size;
+      nentries = entries.size();
+    }
+    collector.record("query.cache.size", bytes, "unit=bytes");
+    collector.record("query.cache.size", nentries, "unit=entries");
+  }
+
+}
@@ -0,0 +1,34 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2011-2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+/**
+ * A query was aborted because it exceeded one of its resource limits.
+ * <p>
+ * This is the client's fault (e.g. a wildcard over a very long time span),
+ * so the message is meant to be shown to the user as-is.
+ */
+public final class QueryLimitException extends IllegalStateException {
+
+  /**
+   * Constructor.
+   *
+   * @param msg Message describing the limit that was exceeded.
+   */
+  public QueryLimitException(final String msg) {
+    super(msg);
+  }
+
+  static final long serialVersionUID = 1349305132;
+
+}
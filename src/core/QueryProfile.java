@@ -0,0 +1,144 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2011-2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Breakdown of where the time and resources of a query went.
+ * <p>
+ * A single profile is typically shared by all the sub-queries of a graph
+ * request, which may run concurrently, so this class is thread-safe.
+ * Phases are timed in nanoseconds and reported in milliseconds.
+ */
+public final class QueryProfile {
+
+  /** Time spent resolving metric and tag names to UIDs.  */
+  public static final int UID_LOOKUP = 0;
+  /** Time spent waiting on HBase scanners.  */
+  public static final int HBASE_SCAN = 1;
+  /** Time spent compacting rows as they're read.  */
+  public static final int COMPACTION = 2;
+  /** Time spent assigning spans to their groups.  */
+  public static final int GROUP_BY = 3;
+  /** Time spent aggregating (and downsampling) data points.  */
+  public static final int AGGREGATION = 4;
+  /** Time spent running Gnuplot.  */
+  public static final int GNUPLOT = 5;
+  /** Time spent writing and reading files.  */
+  public static final int DISK_IO = 6;
+  /** Time spent reading recent rows from memory.  */
+  public static final int HOT_TIER = 7;
+  /** Time spent rendering graphs in-process, without Gnuplot.  */
+  public static final int RENDER = 8;
+
+  private static final String[] PHASES = {
+    "uid_lookup", "hbase_scan", "compaction", "group_by", "aggregation",
+    "gnuplot", "disk_io", "hot_tier", "render",
+  };
+
+  /** Number of rows returned by HBase.  */
+  public static final int ROWS = 0;
+  /** Number of cells (KeyValues) returned by HBase.  */
+  public static final int CELLS = 1;
+  /** Number of bytes loaded in memory after compaction.  */
+  public static final int BYTES = 2;
+  /** Number of spans (distinct time series) found.  */
+  public static final int SPANS = 3;
+  /** Number of groups (aggregated time series) produced.  */
+  public static final int GROUPS = 4;
+  /** Number of data points emitted after aggregation.  */
+  public static final int POINTS = 5;
+
+  private static final String[] COUNTERS = {
+    "rows", "cells", "bytes", "spans", "groups", "points",
+  };
+
+  /** When this profile was created (from {@link System#nanoTime}).  */
+  private final long start_time = System.nanoTime();
+
+  /** Time spent in each phase, in nanoseconds.  */
+  private final AtomicLongArray times = new AtomicLongArray(PHASES.length);
+
+  /** Value of each counter.  */
+  private final AtomicLongArray counts = new AtomicLongArray(COUNTERS.length);
+
+  /**
+   * Adds some time to a phase.
+   * @param phase One of the phase constants of this class.
+   * @param nanos Number of nanoseconds to add.
+   */
+  public void addTime(final int phase, final long nanos) {
+    times.addAndGet(phase, nanos);
+  }
+
+  /**
+   * Increments a counter.
+   * @param counter One of the counter constants of this class.
+   * @param n By how much to increment the counter.
+   */
+  public void addCount(final int counter, final long n) {
+    counts.addAndGet(counter, n);
+  }
+
+  /**
+   * Returns the time spent in a phase, in milliseconds.
+   * @param phase One of the phase constants of this class.
+   */
+  public long getTime(final int phase) {
+    return times.get(phase) / 1000000;
+  }
+
+  /**
+   * Returns the value of a counter.
+   * @param counter One of the counter constants of this class.
+   */
+  public long getCount(final int counter) {
+    return counts.get(counter);
+  }
+
+  /** Returns the number of milliseconds elapsed since this was created.  */
+  public long elapsedMillis() {
+    return (System.nanoTime() - start_time) / 1000000;
+  }
+
+  /**
+   * Appends this profile to the given buffer as a JSON object.
+   * @param buf The buffer to append to.
+   */
+  public void toJson(final StringBuilder buf) {
+    buf.append("{\"total_ms\":").append(elapsedMillis());
+    for (int i = 0; i < PHASES.length; i++) {
+      buf.append(",\"").append(PHASES[i]).append("_ms\":").append(getTime(i));
+    }
+    for (int i = 0; i < COUNTERS.length; i++) {
+      buf.append(",\"").append(COUNTERS[i]).append("\":").append(getCount(i));
+    }
+    buf.append('}');
+  }
+
+  public String toString() {
+    final StringBuilder buf = new StringBuilder(200);
+    buf.append("QueryProfile(total=").append(elapsedMillis()).append("ms");
+    for (int i = 0; i < PHASES.length; i++) {
+      buf.append(", ").append(PHASES[i]).append('=').append(getTime(i))
+        .append("ms");
+    }
+    for (int i = 0; i < COUNTERS.length; i++) {
+      buf.append(", ").append(COUNTERS[i]).append('=').append(getCount(i));
+    }
+    buf.append(')');
+    return buf.toString();
+  }
+
+}
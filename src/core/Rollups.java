@@ -0,0 +1,426 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Pre-aggregated rollups of the data points, at a few fixed intervals.
+ * <p>
+ * Whenever the {@link CompactionQueue} compacts a row that's old enough to
+ * be closed, we also compute, for each configured interval, the sum, count,
+ * min and max of the data points in each bucket of that interval, and write
+ * them to a separate table per interval, named after the data table (e.g.
+ * {@code tsdb-rollup-60}).  Rollup rows use the same row keys as the data
+ * table, and hold a single cell packing all the buckets of that row.
+ * <p>
+ * Queries that downsample with a compatible interval and function can then
+ * read the rollups instead of every single data point.  Intervals must
+ * evenly divide {@link Const#MAX_TIMESPAN}, so each bucket falls within a
+ * single row.
+ * <p>
+ * The results are the same as when downsampling the raw data points only
+ * if each bucket has at most one data point, at its start, e.g. when data
+ * points are written every minute on the minute and rolled up every
+ * minute.  Otherwise, they differ in two ways.  Downsampling stamps each
+ * interval with the mean timestamp of its data points, whereas a bucket
+ * only knows its start.  And downsampling starts each interval at its
+ * first data point, whereas buckets are aligned on their interval, so
+ * data points can be grouped differently.  Values of the intervals that
+ * end up with the same data points are the same either way.
+ * <p>
+ * Rollups are configured with {@code tsd.rollups.intervals}, a comma
+ * separated list of intervals in seconds.  Since they're produced by
+ * compactions, {@code tsd.feature.compactions} must be enabled too.
+ * Rows written before all the TSDs were producing rollups don't have any,
+ * so they're always read from the data table, see {@link #since}.
+ */
+final class Rollups {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Rollups.class);
+
+  /** Qualifier of the only cell in each rollup row.  */
+  private static final byte[] QUALIFIER = { 'r' };
+
+  /** Bucket flag set when all the data points in it were integers.  */
+  private static final byte INTEGER = 0x1;
+
+  /**
+   * Number of bytes per bucket: time delta on 2 bytes, flags on 1 byte,
+   * then the sum, count, min and max on 8 bytes each.  The sum, min and
+   * max are longs if the bucket only has integers, doubles otherwise.
+   */
+  private static final int BUCKET_SIZE = 2 + 1 + 8 * 4;
+
+  /** Intervals (in seconds) we maintain rollups for, in increasing order. */
+  private final int[] intervals;
+
+  /** Names of the tables in which rollups are stored, one per interval.  */
+  private final byte[][] tables;
+
+  /**
+   * How old (in seconds) data must be before we read it from the rollups.
+   * Rows only get rolled up once the compaction thread gets to them, which
+   * can take a while after they're closed.
+   * Set with {@code tsd.rollups.delay}.
+   */
+  private final long delay;
+
+  /**
+   * Rows whose base time is before this UNIX timestamp may not have been
+   * rolled up, so we never read them from the rollups.
+   * Set with {@code tsd.rollups.since}.  Defaults to when this TSD started,
+   * which is only right when this TSD is the only one writing data: with
+   * several TSDs, it must be set to when they were all producing rollups.
+   */
+  private final long since;
+
+  private final AtomicLong rows_written = new AtomicLong();
+  private final AtomicLong write_errors = new AtomicLong();
+  private final AtomicLong queries_routed = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param table The name of the data table.
+   * @param intervals The intervals to maintain rollups for, in seconds.
+   * @param delay See {@link #delay}.
+   * @param since See {@link #since}.
+   * @throws IllegalArgumentException if an interval doesn't evenly divide
+   * {@link Const#MAX_TIMESPAN}.
+   */
+  Rollups(final String table, final int[] intervals, final long delay,
+          final long since) {
+    this.intervals = intervals.clone();
+    Arrays.sort(this.intervals);
+    tables = new byte[this.intervals.length][];
+    for (int i = 0; i < this.intervals.length; i++) {
+      final int interval = this.intervals[i];
+      if (interval <= 0 || Const.MAX_TIMESPAN % interval != 0) {
+        throw new IllegalArgumentException("Invalid rollup interval: "
+          + interval + ", it must evenly divide " + Const.MAX_TIMESPAN);
+      }
+      tables[i] = (table + "-rollup-" + interval).getBytes();
+    }
+    this.delay = delay;
+    this.since = since;
+  }
+
+  /**
+   * Creates the rollups configured with system properties.
+   * @param table The name of the data table.
+   * @return {@code null} if no rollup is configured.
+   */
+  static Rollups fromSystemProperties(final String table) {
+    final String config = System.getProperty("tsd.rollups.intervals");
+    if (config == null || config.trim().isEmpty()) {
+      return null;
+    }
+    final String[] values = config.split(",");
+    final int[] intervals = new int[values.length];
+    for (int i = 0; i < values.length; i++) {
+      try {
+        intervals[i] = Integer.parseInt(values[i].trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid rollup interval in"
+          + " tsd.rollups.intervals: " + values[i]);
+      }
+    }
+    return new Rollups(table, intervals,
+                       Long.getLong("tsd.rollups.delay",
+                                    Const.MAX_TIMESPAN * 2),
+                       Long.getLong("tsd.rollups.since",
+                                    System.currentTimeMillis() / 1000));
+  }
+
+  // ------------ //
+  // Write path.  //
+  // ------------ //
+
+  /**
+   * Computes and writes all the rollups of a compacted row.
+   * Failures are logged but otherwise ignored, they don't affect the
+   * compaction itself.
+   * @param tsdb The TSDB to write to.
+   * @param row A compacted row, whose floating point values are fixed.
+   */
+  void write(final TSDB tsdb, final KeyValue row) {
+    for (int i = 0; i < intervals.length; i++) {
+      final byte[] value = rollup(row, intervals[i]);
+      tsdb.client.put(new PutRequest(tables[i], row.key(), TSDB.FAMILY,
+                                     QUALIFIER, value))
+        .addErrback(new WriteErrorCB(tables[i], row.key()));
+      rows_written.incrementAndGet();
+    }
+  }
+
+  /** Logs and counts failed writes.  */
+  private final class WriteErrorCB implements Callback<Object, Exception> {
+    private final byte[] table;
+    private final byte[] key;
+
+    WriteErrorCB(final byte[] table, final byte[] key) {
+      this.table = table;
+      this.key = key;
+    }
+
+    public Object call(final Exception e) {
+      write_errors.incrementAndGet();
+      LOG.error("Failed to write rollup in " + Bytes.pretty(table)
+                + " for row " + Arrays.toString(key), e);
+      return e;
+    }
+
+    public String toString() {
+      return "rollup write error for " + Arrays.toString(key);
+    }
+  }
+
+  /**
+   * Computes the rollup of a compacted row for the given interval.
+   * @param row A compacted row, whose floating point values are fixed.
+   * @param interval The rollup interval, in seconds.
+   * @return The value of the rollup cell.
+   */
+  static byte[] rollup(final KeyValue row, final int interval) {
+    final byte[] qualifiers = row.qualifier();
+    final byte[] values = row.value();
+    final int npoints = qualifiers.length / 2;
+    // At most one bucket per data point.
+    final byte[] buf = new byte[Math.min(npoints, Const.MAX_TIMESPAN
+                                         / interval) * BUCKET_SIZE];
+    int nbuckets = 0;
+    Bucket bucket = null;
+    int value_idx = 0;
+    for (int i = 0; i < npoints; i++) {
+      final short qual = Bytes.getShort(qualifiers, i * 2);
+      final int delta = (qual & 0xFFFF) >>> Const.FLAG_BITS;
+      final byte flags = (byte) (qual & Const.FLAGS_MASK);
+      final int this_bucket = delta - delta % interval;
+      if (bucket == null || this_bucket != bucket.delta) {
+        if (bucket != null) {
+          bucket.write(buf, nbuckets++);
+        }
+        bucket = new Bucket(this_bucket);
+      }
+      if ((flags & Const.FLAG_FLOAT) != 0) {
+        bucket.add(RowSeq.extractFloatingPointValue(values, value_idx,
+                                                    flags));
+      } else {
+        bucket.add(RowSeq.extractIntegerValue(values, value_idx, flags));
+      }
+      value_idx += (flags & Const.LENGTH_MASK) + 1;
+    }
+    if (bucket != null) {
+      bucket.write(buf, nbuckets++);
+    }
+    if (nbuckets * BUCKET_SIZE == buf.length) {
+      return buf;
+    }
+    final byte[] trimmed = new byte[nbuckets * BUCKET_SIZE];
+    System.arraycopy(buf, 0, trimmed, 0, trimmed.length);
+    return trimmed;
+  }
+
+  /** Accumulates the data points of a bucket.  */
+  private static final class Bucket {
+
+    /** Time delta of the start of the bucket.  */
+    final int delta;
+
+    /** Whether all the data points so far were integers.  */
+    private boolean integer = true;
+
+    /** Exact sum, min and max, as long as all the values are integers.  */
+    private long lsum;
+    private long lmin = Long.MAX_VALUE;
+    private long lmax = Long.MIN_VALUE;
+
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private long count;
+
+    Bucket(final int delta) {
+      this.delta = delta;
+    }
+
+    void add(final long value) {
+      lsum += value;
+      lmin = Math.min(lmin, value);
+      lmax = Math.max(lmax, value);
+      addDouble(value);
+    }
+
+    void add(final double value) {
+      integer = false;
+      addDouble(value);
+    }
+
+    private void addDouble(final double value) {
+      sum += value;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      count++;
+    }
+
+    /** Writes this bucket at the given index of a rollup cell.  */
+    void write(final byte[] buf, final int index) {
+      final int off = index * BUCKET_SIZE;
+      Bytes.setShort(buf, (short) delta, off);
+      buf[off + 2] = integer ? INTEGER : 0;
+      Bytes.setLong(buf, integer ? lsum : Double.doubleToRawLongBits(sum),
+                    off + 3);
+      Bytes.setLong(buf, count, off + 11);
+      Bytes.setLong(buf, integer ? lmin : Double.doubleToRawLongBits(min),
+                    off + 19);
+      Bytes.setLong(buf, integer ? lmax : Double.doubleToRawLongBits(max),
+                    off + 27);
+    }
+
+  }
+
+  // ----------- //
+  // Read path.  //
+  // ----------- //
+
+  /**
+   * Picks the rollup to use for a downsampled query.
+   * <p>
+   * Sums, minimums and maximums of buckets can be combined, so we can use
+   * any interval that evenly divides the downsampling interval, and we pick
+   * the coarsest one.  Averages of buckets can't be combined without
+   * weighting them, so we only use a rollup with the exact same interval.
+   * @param sample_interval The downsampling interval, in seconds.
+   * @param downsampler The downsampling function.
+   * @return The index of the rollup to use, or -1 if none is suitable.
+   */
+  int pick(final int sample_interval, final Aggregator downsampler) {
+    if (downsampler == Aggregators.AVG) {
+      final int i = Arrays.binarySearch(intervals, sample_interval);
+      return i >= 0 ? i : -1;
+    } else if (downsampler != Aggregators.SUM
+               && downsampler != Aggregators.MIN
+               && downsampler != Aggregators.MAX) {
+      return -1;
+    }
+    for (int i = intervals.length - 1; i >= 0; i--) {
+      if (sample_interval % intervals[i] == 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the name of the table holding the given rollup.  */
+  byte[] table(final int index) {
+    return tables[index];
+  }
+
+  /** Returns the interval of the given rollup, in seconds.  */
+  int interval(final int index) {
+    return intervals[index];
+  }
+
+  /**
+   * Returns the timestamp before which rows can be read from the rollups.
+   * @param now The current time, in seconds.
+   * @return A timestamp aligned on {@link Const#MAX_TIMESPAN}.
+   */
+  long completeUntil(final long now) {
+    final long ts = now - delay;
+    return ts - ts % Const.MAX_TIMESPAN;
+  }
+
+  /** Returns the time from which rows can be read from the rollups.  */
+  long since() {
+    return since;
+  }
+
+  /** Records that a query was answered (in part) from rollups.  */
+  void routed() {
+    queries_routed.incrementAndGet();
+  }
+
+  /**
+   * Turns a rollup cell into a compacted row of data points.
+   * Each data point is stamped with the start of its bucket.  Its value is
+   * an integer if all the data points of the bucket were, and averages of
+   * integers are truncated, as when downsampling the raw data points.
+   * @param cell The rollup cell read from HBase.
+   * @param downsampler The downsampling function, which determines which
+   * value of each bucket we use, see {@link #pick}.
+   * @return A {@link KeyValue} that looks like a compacted row of the data
+   * table, with one data point per bucket.
+   */
+  static KeyValue toDataPoints(final KeyValue cell,
+                               final Aggregator downsampler) {
+    final byte[] buckets = cell.value();
+    final int nbuckets = buckets.length / BUCKET_SIZE;
+    if (nbuckets == 0 || buckets.length % BUCKET_SIZE != 0) {
+      throw new IllegalDataException("Invalid rollup cell: " + cell);
+    }
+    final byte[] qualifiers = new byte[nbuckets * 2];
+    // Compacted cells have an extra byte for meta-data at the end.
+    final byte[] values = new byte[nbuckets * 8 + (nbuckets > 1 ? 1 : 0)];
+    for (int i = 0; i < nbuckets; i++) {
+      final int off = i * BUCKET_SIZE;
+      final int delta = Bytes.getUnsignedShort(buckets, off);
+      final boolean integer = (buckets[off + 2] & INTEGER) != 0;
+      final long value;  // A long if `integer', the bits of a double if not.
+      if (downsampler == Aggregators.SUM) {
+        value = Bytes.getLong(buckets, off + 3);
+      } else if (downsampler == Aggregators.MIN) {
+        value = Bytes.getLong(buckets, off + 19);
+      } else if (downsampler == Aggregators.MAX) {
+        value = Bytes.getLong(buckets, off + 27);
+      } else if (downsampler == Aggregators.AVG) {
+        final long sum = Bytes.getLong(buckets, off + 3);
+        final long count = Bytes.getLong(buckets, off + 11);
+        value = integer ? sum / count : Double.doubleToRawLongBits(
+          Double.longBitsToDouble(sum) / count);
+      } else {
+        throw new IllegalArgumentException("Can't use rollups to downsample"
+                                           + " with " + downsampler);
+      }
+      // Longs or doubles on 8 bytes.
+      final short flags = (short) (integer ? 0x7 : Const.FLAG_FLOAT | 0x7);
+      Bytes.setLong(values, value, i * 8);
+      Bytes.setShort(qualifiers, (short) (delta << Const.FLAG_BITS | flags),
+                     i * 2);
+    }
+    return new KeyValue(cell.key(), cell.family(), qualifiers, values);
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("rollups.writes", rows_written);
+    collector.record("rollups.errors", write_errors, "rpc=put");
+    collector.record("rollups.queries", queries_routed);
+  }
+
+}
@@ -0,0 +1,206 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.hbase.async.Bytes;
+
+import net.opentsdb.stats.HyperLogLog;
+
+/**
+ * Estimates how many time series each metric has, and how many values each
+ * tag has for each metric, using {@link HyperLogLog} sketches.
+ * <p>
+ * The sketches are updated with the series written through this TSD, once
+ * per row rather than once per data point.  Sketches of several TSDs can be
+ * merged to get cluster-wide estimates.  We keep sketches for a bounded
+ * number of metrics, the others aren't counted.
+ * <p>
+ * This class is thread-safe.
+ */
+final class SeriesCardinality {
+
+  /** Charset that maps each byte to a char, so we can use IDs as strings. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Precision of the sketches of the series of each metric.  */
+  private final int precision;
+
+  /**
+   * Precision of the sketches of the values of each tag.  Lower than the
+   * other one as there are many more of these sketches.
+   */
+  private final int tag_precision;
+
+  /** Number of rows we remember having recorded, see {@link #recent}. */
+  private static final int RECENT_ROWS = 1 << 16;
+
+  /** Maximum number of metrics we keep sketches for.  */
+  private final int max_metrics;
+
+  /** The sketches of each metric, by metric ID.  */
+  private final ConcurrentHashMap<String, Sketches> metrics =
+    new ConcurrentHashMap<String, Sketches>();
+
+  /**
+   * Rows recently recorded, so we don't record them again for each of their
+   * data points.  Each slot holds the hash of a series in the upper 32 bits,
+   * and the base time of its last row we recorded in the lower 32 bits.
+   * Collisions only make us record a row more than once, which is harmless.
+   */
+  private final AtomicLongArray recent = new AtomicLongArray(RECENT_ROWS);
+
+  /** Number of rows of metrics we didn't have room for.  */
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param precision Precision of the sketches of the series of each metric,
+   * the sketches of the tag values of each metric use 2 bits less.
+   * @param max_metrics Maximum number of metrics to keep sketches for.
+   */
+  SeriesCardinality(final int precision, final int max_metrics) {
+    this.precision = precision;
+    this.tag_precision = Math.max(4, precision - 2);
+    this.max_metrics = max_metrics;
+    new HyperLogLog(precision);  // Validates the precision.
+  }
+
+  /**
+   * Returns new sketches configured from system properties, or {@code null}
+   * if they're disabled (which is the default).
+   * <ul>
+   * <li>{@code tsd.core.cardinality.precision}: precision of the sketches,
+   * 12 is a good value.  Each metric uses about {@code 2^precision} bytes,
+   * plus a quarter of that per tag name.</li>
+   * <li>{@code tsd.core.cardinality.max_metrics}: maximum number of metrics
+   * to keep sketches for (10000 by default).</li>
+   * </ul>
+   */
+  static SeriesCardinality fromSystemProperties() {
+    final int precision =
+      Integer.getInteger("tsd.core.cardinality.precision", 0);
+    if (precision <= 0) {
+      return null;
+    }
+    return new SeriesCardinality(precision,
+      Integer.getInteger("tsd.core.cardinality.max_metrics", 10000));
+  }
+
+  /** The sketches of a metric.  */
+  static final class Sketches {
+
+    /** Sketch of the tags of each series.  */
+    final HyperLogLog series;
+
+    /** Sketch of the values of each tag, by tag name ID.  */
+    final ConcurrentHashMap<String, HyperLogLog> tag_values =
+      new ConcurrentHashMap<String, HyperLogLog>();
+
+    Sketches(final int precision) {
+      series = new HyperLogLog(precision);
+    }
+
+  }
+
+  /**
+   * Records a series that was written to.
+   * Does nothing if we just recorded the same row.
+   * @param row A row key of the series.
+   * @param metric_width The number of bytes on which metric IDs are stored.
+   * @param name_width The number of bytes on which tag name IDs are stored.
+   * @param value_width The number of bytes on which tag value IDs are stored.
+   */
+  void add(final byte[] row, final short metric_width,
+           final short name_width, final short value_width) {
+    final int tags_offset = metric_width + Const.TIMESTAMP_BYTES;
+    int h = 1;
+    for (int i = 0; i < row.length; i++) {
+      if (i < metric_width || i >= tags_offset) {  // Skip the base time.
+        h = h * 31 + row[i];
+      }
+    }
+    final int slot = h & (RECENT_ROWS - 1);
+    final long marker = (long) h << 32
+      | (Bytes.getInt(row, metric_width) & 0xFFFFFFFFL);
+    if (recent.get(slot) == marker) {
+      return;
+    }
+    recent.set(slot, marker);
+    final String metric = new String(row, 0, metric_width, CHARSET);
+    Sketches sketches = metrics.get(metric);
+    if (sketches == null) {
+      if (metrics.size() >= max_metrics) {
+        dropped.incrementAndGet();
+        return;
+      }
+      sketches = new Sketches(precision);
+      final Sketches prev = metrics.putIfAbsent(metric, sketches);
+      if (prev != null) {
+        sketches = prev;
+      }
+    }
+    sketches.series.add(row, tags_offset, row.length - tags_offset);
+    for (int i = tags_offset; i < row.length; i += name_width + value_width) {
+      final String name = new String(row, i, name_width, CHARSET);
+      HyperLogLog values = sketches.tag_values.get(name);
+      if (values == null) {
+        values = new HyperLogLog(tag_precision);
+        final HyperLogLog prev = sketches.tag_values.putIfAbsent(name, values);
+        if (prev != null) {
+          values = prev;
+        }
+      }
+      values.add(row, i + name_width, value_width);
+    }
+  }
+
+  /**
+   * Returns the sketches of a metric, or {@code null} if we haven't seen
+   * any series for this metric.
+   * @param metric The ID of the metric.
+   */
+  Sketches get(final byte[] metric) {
+    return metrics.get(new String(metric, CHARSET));
+  }
+
+  /**
+   * Returns the estimated number of series of a metric.
+   * @param metric The ID of the metric.
+   */
+  long estimate(final byte[] metric) {
+    final Sketches sketches = get(metric);
+    return sketches == null ? 0 : sketches.series.estimate();
+  }
+
+  /** Returns the number of rows of metrics we didn't have room for.  */
+  long dropped() {
+    return dropped.get();
+  }
+
+  /** Returns the sketches of all the metrics, by metric ID.  */
+  Map<String, Sketches> all() {
+    return metrics;
+  }
+
+  /** Returns the bytes of an ID used as a key in the maps of this class. */
+  static byte[] id(final String key) {
+    return key.getBytes(CHARSET);
+  }
+
+}
@@ -0,0 +1,342 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseException;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Index of the time series of each metric.
+ * <p>
+ * The index is stored in its own table, with one row per metric ID.  Each
+ * time series of the metric is a column whose qualifier is the tags part of
+ * the row key of the series, and whose value is the base time of the last
+ * row the series was written to.  This lets queries find which series match
+ * their tags without scanning every row of the metric, and then fetch only
+ * the rows they need.
+ * <p>
+ * Every TSD writes to the index the first time a series gets a new row.
+ * The index is only complete for the data written after all the TSDs were
+ * doing so, see {@link #since}.
+ * <p>
+ * The index is cached in memory.  Series written through this TSD are seen
+ * right away, those written by other TSDs once the cache is refreshed.
+ * <p>
+ * When several TSDs write data, {@code tsd.core.series_index.since} must be
+ * set explicitly to when they were all writing to the index: each TSD only
+ * knows when itself started.
+ * <p>
+ * This class is thread-safe.
+ */
+class SeriesIndex {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SeriesIndex.class);
+
+  /** Charset that maps each byte to a char, so we can use keys as strings. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** The table where the index is stored.  */
+  private final byte[] table;
+
+  /** The index is complete for rows whose base time is at or after this.  */
+  private final long since;
+
+  /** How long (in ms) we use what we read from the table before re-reading. */
+  private final long ttl_ms;
+
+  /** Maximum number of series we keep in memory.  */
+  private final int max_series;
+
+  /** Series of each metric, by metric ID (turned into a string).  */
+  private final ConcurrentHashMap<String, Metric> metrics =
+    new ConcurrentHashMap<String, Metric>();
+
+  /** Number of series in memory.  */
+  private final AtomicInteger size = new AtomicInteger();
+
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong write_errors = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong queries = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param table The table where the index is stored.
+   * @param since The index is complete for rows whose base time is at or
+   * after this UNIX timestamp.
+   * @param ttl_ms How long (in ms) to use what we read from the table.
+   * @param max_series Maximum number of series to keep in memory.
+   */
+  SeriesIndex(final String table, final long since, final long ttl_ms,
+              final int max_series) {
+    this.table = table.getBytes();
+    this.since = since;
+    this.ttl_ms = ttl_ms;
+    this.max_series = max_series;
+  }
+
+  /**
+   * Returns a new index configured from system properties, or {@code null}
+   * if it's disabled (which is the default).
+   * <ul>
+   * <li>{@code tsd.core.series_index}: set to {@code true} to enable.</li>
+   * <li>{@code tsd.core.series_index.since}: UNIX timestamp from which all
+   * the TSDs write to the index.  Defaults to when this TSD started, which
+   * is only right when this TSD is the only one writing data, so it must be
+   * set explicitly when several TSDs are running.</li>
+   * <li>{@code tsd.core.series_index.ttl}: how long (in seconds) to cache
+   * the index before re-reading it (60 by default).</li>
+   * <li>{@code tsd.core.series_index.size}: maximum number of series to
+   * keep in memory (1000000 by default).</li>
+   * </ul>
+   * @param data_table The name of the data table, the index is stored in
+   * the table by the same name with a "-series" suffix.
+   */
+  static SeriesIndex fromSystemProperties(final String data_table) {
+    if (!Boolean.getBoolean("tsd.core.series_index")) {
+      return null;
+    }
+    return new SeriesIndex(data_table + "-series",
+      Long.getLong("tsd.core.series_index.since",
+                   System.currentTimeMillis() / 1000),
+      Long.getLong("tsd.core.series_index.ttl", 60) * 1000,
+      Integer.getInteger("tsd.core.series_index.size", 1000000));
+  }
+
+  /** The series of a metric.  */
+  private static final class Metric {
+
+    /** Base time of the last row of each series, by tags (as a string). */
+    final ConcurrentHashMap<String, Integer> series =
+      new ConcurrentHashMap<String, Integer>();
+
+    /** When we last read this metric from the table (in ms), 0 if never.  */
+    volatile long loaded;
+
+  }
+
+  /** Returns the time from which the index is complete.  */
+  long since() {
+    return since;
+  }
+
+  /**
+   * Records that a series was written to, and writes it to the index if
+   * it's the first time we see this row.
+   * Failures are logged but otherwise ignored.
+   * @param tsdb The TSDB to write to.
+   * @param row The row key the data point was written to.
+   */
+  void add(final TSDB tsdb, final byte[] row) {
+    final short metric_width = tsdb.metrics.width();
+    final int base_time = Bytes.getInt(row, metric_width);
+    final Metric metric = getMetric(new String(row, 0, metric_width,
+                                               CHARSET));
+    final int tags_offset = metric_width + Const.TIMESTAMP_BYTES;
+    final String tags = new String(row, tags_offset, row.length - tags_offset,
+                                   CHARSET);
+    final Integer last = update(metric, tags, base_time);
+    if (last == null && size.get() > max_series) {
+      clear();
+    } else if (last != null && last >= base_time) {
+      return;  // Already in the index.
+    }
+    final byte[] key = Arrays.copyOf(row, metric_width);
+    final byte[] qualifier = Arrays.copyOfRange(row, tags_offset, row.length);
+    write(tsdb, new PutRequest(table, key, TSDB.FAMILY, qualifier,
+                               Bytes.fromInt(base_time)))
+      .addErrback(new WriteErrorCB(key));
+    writes.incrementAndGet();
+  }
+
+  /** Writes to the table.  Tests override this to not need HBase.  */
+  Deferred<Object> write(final TSDB tsdb, final PutRequest put) {
+    return tsdb.client.put(put);
+  }
+
+  /** Reads a row from the table.  Tests override this to not need HBase. */
+  Deferred<ArrayList<KeyValue>> read(final TSDB tsdb, final byte[] key) {
+    return tsdb.client.get(new GetRequest(table, key));
+  }
+
+  /** Logs and counts failed writes.  */
+  private final class WriteErrorCB implements Callback<Object, Exception> {
+    private final byte[] key;
+
+    WriteErrorCB(final byte[] key) {
+      this.key = key;
+    }
+
+    public Object call(final Exception e) {
+      write_errors.incrementAndGet();
+      LOG.error("Failed to write the series index of metric "
+                + Arrays.toString(key), e);
+      return e;
+    }
+
+    public String toString() {
+      return "series index write error for " + Arrays.toString(key);
+    }
+  }
+
+  /**
+   * Finds the series of a metric that have rows in a time range.
+   * @param tsdb The TSDB to read from.
+   * @param query The query we're doing this for.  If we need to read the
+   * table, we wait for it like for the rest of the query, see
+   * {@link TsdbQuery#join}.
+   * @param metric The ID of the metric.
+   * @param key_regexp If not {@code null}, only the series whose row key
+   * (with the timestamp zeroed out) matches it are returned.
+   * @param start Only the series that have a row at or after this UNIX
+   * timestamp are returned.  Must not be before {@link #since}.
+   * @param data_start The time from which the query actually needs data
+   * points.  If that's within the TTL of when we last read the index, we
+   * read it again: series other TSDs started writing since then could be
+   * all the query is about.
+   * @return The row keys of the series, with the timestamp zeroed out.
+   * @throws HBaseException if there was a problem reading the index.
+   * @throws QueryLimitException if the query's deadline expired.
+   * @throws CancellationException if the thread was interrupted.
+   */
+  ArrayList<byte[]> find(final TSDB tsdb, final TsdbQuery query,
+                         final byte[] metric, final Pattern key_regexp,
+                         final long start, final long data_start) {
+    lookups.incrementAndGet();
+    final Metric m = getMetric(new String(metric, CHARSET));
+    final long loaded = m.loaded;
+    if (System.currentTimeMillis() - loaded > ttl_ms
+        || data_start * 1000 >= loaded - ttl_ms) {
+      load(tsdb, query, metric, m);
+    }
+    final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+    final int tags_offset = metric.length + Const.TIMESTAMP_BYTES;
+    for (final Map.Entry<String, Integer> entry : m.series.entrySet()) {
+      if ((entry.getValue() & 0xFFFFFFFFL) + Const.MAX_TIMESPAN <= start) {
+        continue;  // No row in the time range.
+      }
+      final byte[] tags = entry.getKey().getBytes(CHARSET);
+      final byte[] key = new byte[tags_offset + tags.length];
+      System.arraycopy(metric, 0, key, 0, metric.length);
+      System.arraycopy(tags, 0, key, tags_offset, tags.length);
+      if (key_regexp == null
+          || key_regexp.matcher(new String(key, CHARSET)).matches()) {
+        keys.add(key);
+      }
+    }
+    return keys;
+  }
+
+  /** Records that a query fetched its rows using the index.  */
+  void routed() {
+    queries.incrementAndGet();
+  }
+
+  /** Returns the number of series of a metric we know about.  */
+  int count(final byte[] metric) {
+    final Metric m = metrics.get(new String(metric, CHARSET));
+    return m == null ? 0 : m.series.size();
+  }
+
+  /** Reads the series of a metric from the table.  */
+  private void load(final TSDB tsdb, final TsdbQuery query,
+                    final byte[] metric, final Metric m) {
+    loads.incrementAndGet();
+    final long now = System.currentTimeMillis();
+    final ArrayList<KeyValue> row = query.join(read(tsdb, metric), null);
+    for (final KeyValue kv : row) {
+      final String tags = new String(kv.qualifier(), CHARSET);
+      update(m, tags, Bytes.getInt(kv.value()));
+    }
+    m.loaded = now;
+  }
+
+  /**
+   * Records the base time of the last row of a series, unless we already
+   * know about a more recent row.
+   * @return The base time we previously had for this series, if any.
+   */
+  private Integer update(final Metric m, final String tags,
+                         final int base_time) {
+    Integer last;
+    while ((last = m.series.putIfAbsent(tags, base_time)) != null
+           && last < base_time
+           && !m.series.replace(tags, last, base_time)) {
+      // Raced with another thread, try again.
+    }
+    if (last == null) {
+      size.incrementAndGet();
+    }
+    return last;
+  }
+
+  private Metric getMetric(final String metric) {
+    Metric m = metrics.get(metric);
+    if (m == null) {
+      m = new Metric();
+      final Metric prev = metrics.putIfAbsent(metric, m);
+      if (prev != null) {
+        m = prev;
+      }
+    }
+    return m;
+  }
+
+  /**
+   * Forgets everything to free memory.
+   * The index will be re-read from the table as needed, and series are
+   * written again to the index, which is harmless.
+   */
+  private void clear() {
+    LOG.warn("More than " + max_series + " series in the series index,"
+             + " clearing it from memory");
+    metrics.clear();
+    size.set(0);
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("series_index.writes", writes);
+    collector.record("series_index.errors", write_errors);
+    collector.record("series_index.loads", loads);
+    collector.record("series_index.lookups", lookups);
+    collector.record("series_index.queries", queries);
+    collector.record("series_index.size", size.get());
+  }
+
+}
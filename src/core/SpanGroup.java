@@ -676,7 +676,7 @@ final class SpanGroup implements DataPoints {
     }
 
     public double toDouble() {
-      return isInteger() ? doubleValue() : longValue();
+      return isInteger() ? longValue() : doubleValue();
     }
 
     // -------------------------- //
@@ -14,6 +14,9 @@ package net.opentsdb.core;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -25,11 +28,16 @@ import org.hbase.async.DeleteRequest;
 import org.hbase.async.GetRequest;
 import org.hbase.async.HBaseClient;
 import org.hbase.async.HBaseException;
+import org.hbase.async.HBaseRpc;
 import org.hbase.async.KeyValue;
+import org.hbase.async.PleaseThrottleException;
 import org.hbase.async.PutRequest;
 
+import net.opentsdb.uid.NoSuchUniqueId;
+import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.HyperLogLog;
 import net.opentsdb.stats.StatsCollector;
 
 /**
@@ -76,6 +84,66 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
 
+  /**
+   * Cache of query results, or {@code null} if disabled.
+   * Its size in bytes is set with {@code tsd.query.cache.size}.
+   */
+  final QueryCache query_cache;
+
+  /**
+   * Rollups maintained by compactions, or {@code null} if disabled.
+   * Configured with {@code tsd.rollups.intervals}.
+   */
+  final Rollups rollups;
+
+  /**
+   * Last data point of each time series written through this TSD, or
+   * {@code null} if disabled (which is the default).  Holds up to
+   * {@code tsd.core.last_values.size} series, each evicted after
+   * {@code tsd.core.last_values.idle} seconds without a new data point.
+   * Only enable it when this TSD is the only one writing data.
+   */
+  final LastValueCache last_values;
+
+  /**
+   * Recent data points written through this TSD, or {@code null} if
+   * disabled (the default).  See {@link HotTier#fromSystemProperties}.
+   */
+  final HotTier hot_tier;
+
+  /**
+   * Index of the time series of each metric, or {@code null} if disabled
+   * (the default).  See {@link SeriesIndex#fromSystemProperties}.
+   */
+  final SeriesIndex series_index;
+
+  /**
+   * Estimated number of series of each metric, or {@code null} if disabled
+   * (the default).  See {@link SeriesCardinality#fromSystemProperties}.
+   */
+  final SeriesCardinality cardinality;
+
+  /**
+   * Aggregates the results of queries, in parallel when they have many
+   * groups.  See {@link GroupMaterializer#fromSystemProperties}.
+   */
+  final GroupMaterializer materializer;
+
+  /**
+   * Maximum number of bytes, and of data points, a single query can load
+   * from HBase, 0 for no limit.  Set with {@code tsd.query.limits.bytes}
+   * and {@code tsd.query.limits.datapoints}.
+   */
+  final long query_max_bytes;
+  final long query_max_datapoints;
+
+  /**
+   * Maximum number of bytes all the queries being executed concurrently
+   * can load from HBase, 0 for no limit.  Set with
+   * {@code tsd.query.limits.global_bytes}.
+   */
+  final long query_max_global_bytes;
+
   /**
    * Constructor.
    * @param client The HBase client to use.
@@ -95,7 +163,23 @@ public final class TSDB {
     tag_names = new UniqueId(client, uidtable, TAG_NAME_QUAL, TAG_NAME_WIDTH);
     tag_values = new UniqueId(client, uidtable, TAG_VALUE_QUAL,
                               TAG_VALUE_WIDTH);
+    rollups = Rollups.fromSystemProperties(timeseries_table);
+    final int last_values_size =
+      Integer.getInteger("tsd.core.last_values.size", 0);
+    last_values = last_values_size > 0
+      ? new LastValueCache(last_values_size,
+          Long.getLong("tsd.core.last_values.idle", 3600) * 1000)
+      : null;
+    hot_tier = HotTier.fromSystemProperties();
+    series_index = SeriesIndex.fromSystemProperties(timeseries_table);
+    cardinality = SeriesCardinality.fromSystemProperties();
+    materializer = GroupMaterializer.fromSystemProperties();
     compactionq = new CompactionQueue(this);
+    final long cache_size = Long.getLong("tsd.query.cache.size", 0);
+    query_cache = cache_size > 0 ? new QueryCache(cache_size) : null;
+    query_max_bytes = Long.getLong("tsd.query.limits.bytes", 0);
+    query_max_datapoints = Long.getLong("tsd.query.limits.datapoints", 0);
+    query_max_global_bytes = Long.getLong("tsd.query.limits.global_bytes", 0);
   }
 
   /** Number of cache hits during lookups involving UIDs. */
@@ -141,6 +225,14 @@ public final class TSDB {
     collector.addExtraTag("class", "TsdbQuery");
     try {
       collector.record("hbase.latency", TsdbQuery.scanlatency, "method=scan");
+      collector.record("query.limits", TsdbQuery.queries_rejected,
+                       "type=rejected");
+      collector.record("query.limits", TsdbQuery.queries_aborted,
+                       "type=aborted");
+      collector.record("query.limits", TsdbQuery.queries_timedout,
+                       "type=timeout");
+      collector.record("query.wide", TsdbQuery.queries_wide);
+      collector.record("query.exact_gets", TsdbQuery.queries_exact);
     } finally {
       collector.clearExtraTag("class");
     }
@@ -151,6 +243,49 @@ public final class TSDB {
                      client.contendedMetaLookupCount(), "type=contended");
 
     compactionq.collectStats(collector);
+    materializer.collectStats(collector);
+    if (query_cache != null) {
+      query_cache.collectStats(collector);
+    }
+    if (rollups != null) {
+      rollups.collectStats(collector);
+    }
+    if (last_values != null) {
+      last_values.collectStats(collector);
+    }
+    if (hot_tier != null) {
+      hot_tier.collectStats(collector);
+    }
+    if (series_index != null) {
+      series_index.collectStats(collector);
+    }
+    if (cardinality != null) {
+      collectCardinalityStats(collector);
+    }
+  }
+
+  /**
+   * Records the estimated number of series of the metrics that have the
+   * most series.  There can be too many metrics to record them all.
+   */
+  private void collectCardinalityStats(final StatsCollector collector) {
+    final Map<String, Long> estimates = getSeriesCardinalities();
+    collector.record("cardinality.metrics", estimates.size());
+    collector.record("cardinality.dropped", cardinality.dropped());
+    final ArrayList<Map.Entry<String, Long>> top =
+      new ArrayList<Map.Entry<String, Long>>(estimates.entrySet());
+    Collections.sort(top, new Comparator<Map.Entry<String, Long>>() {
+      public int compare(final Map.Entry<String, Long> a,
+                         final Map.Entry<String, Long> b) {
+        return b.getValue().compareTo(a.getValue());
+      }
+    });
+    final int n = Math.min(top.size(),
+      Integer.getInteger("tsd.core.cardinality.stats", 10));
+    for (int i = 0; i < n; i++) {
+      collector.record("cardinality.series", top.get(i).getValue(),
+                       "metric=" + top.get(i).getKey());
+    }
   }
 
   /** Returns a latency histogram for Put RPCs used to store data points. */
@@ -257,6 +392,23 @@ public final class TSDB {
                             tags, flags);
   }
 
+  /**
+   * Writes again a data point that HBase asked us to throttle.
+   * Nothing that was done in memory for the data point is done again.
+   * @param e The exception the write of the data point failed with.
+   * @return A deferred object that indicates the completion of the request,
+   * or {@code null} if the RPC that failed isn't the write of a data point.
+   * @throws HBaseException (deferred) if there was a problem while persisting
+   * data, possibly another {@link PleaseThrottleException}.
+   */
+  public Deferred<Object> retryPoint(final PleaseThrottleException e) {
+    final HBaseRpc rpc = e.getFailedRpc();
+    if (!(rpc instanceof PutRequest)) {
+      return null;
+    }
+    return client.put((PutRequest) rpc);
+  }
+
   private Deferred<Object> addPointInternal(final String metric,
                                             final long timestamp,
                                             final byte[] value,
@@ -277,6 +429,19 @@ public final class TSDB {
     scheduleForCompaction(row, (int) base_time);
     final short qualifier = (short) ((timestamp - base_time) << Const.FLAG_BITS
                                      | flags);
+    if (last_values != null) {
+      last_values.update(row, metrics.width(), timestamp, value, flags);
+    }
+    if (hot_tier != null) {
+      hot_tier.add(row, metrics.width(), timestamp, value, flags);
+    }
+    if (series_index != null) {
+      series_index.add(this, row);
+    }
+    if (cardinality != null) {
+      cardinality.add(row, metrics.width(), tag_names.width(),
+                      tag_values.width());
+    }
     final PutRequest point = new PutRequest(table, row, FAMILY,
                                             Bytes.fromShort(qualifier), value);
     // TODO(tsuna): Add a callback to time the latency of HBase and store the
@@ -284,6 +449,166 @@ public final class TSDB {
     return client.put(point);
   }
 
+  /**
+   * Returns the last data point of each time series matching the given
+   * metric and tags.
+   * <p>
+   * Series written through this TSD are answered from memory.  We only
+   * scan HBase for the part of the lookback window in which the cache may
+   * be missing series, e.g. before this TSD started.
+   * @param metric The name of the metric.
+   * @param tags The tags the series must have.  A tag whose value is
+   * {@code *} matches any value, and tags not listed match anything.
+   * @param lookback How far back (in seconds) to look.  Series without a
+   * data point in that time aren't returned.
+   * @return One {@link DataPoints} with a single data point per series.
+   * @throws NoSuchUniqueName if the metric or one of the tags doesn't exist.
+   * @throws HBaseException if there was a problem scanning HBase.
+   */
+  public DataPoints[] getLastValues(final String metric,
+                                    final Map<String, String> tags,
+                                    final long lookback)
+    throws NoSuchUniqueName {
+    final byte[] metric_id = metrics.getId(metric);
+    final long now = System.currentTimeMillis() / 1000;
+    final long start = Math.max(now - lookback, 0);
+    // The last data point of each series, by tags.
+    final HashMap<Map<String, String>, DataPoints> results =
+      new HashMap<Map<String, String>, DataPoints>();
+    ArrayList<DataPoints> cached = null;
+    long scan_end = now;
+    if (last_values != null) {
+      final ArrayList<byte[]> filters = new ArrayList<byte[]>(tags.size());
+      for (final Map.Entry<String, String> tag : tags.entrySet()) {
+        final byte[] name = tag_names.getId(tag.getKey());
+        if ("*".equals(tag.getValue())) {
+          filters.add(name);
+        } else {
+          final byte[] value = tag_values.getId(tag.getValue());
+          final byte[] filter = new byte[name.length + value.length];
+          System.arraycopy(name, 0, filter, 0, name.length);
+          System.arraycopy(value, 0, filter, name.length, value.length);
+          filters.add(filter);
+        }
+      }
+      cached = new ArrayList<DataPoints>();
+      for (final LastValueCache.Entry entry : last_values.get(metric_id)) {
+        if (entry.timestamp >= start && matches(entry.key, filters)) {
+          cached.add(entry.toDataPoints(this));
+        }
+      }
+      // Any series with a more recent data point is in memory.
+      scan_end = Math.min(last_values.completeSince(), now);
+      if (scan_end <= start) {
+        last_values.hit();
+        return cached.toArray(new DataPoints[cached.size()]);
+      }
+      last_values.miss();
+    }
+    final TsdbQuery query = new TsdbQuery(this);
+    query.setStartTime(start);
+    query.setEndTime(scan_end);
+    query.setTimeSeries(metric, new HashMap<String, String>(tags),
+                        Aggregators.SUM, false);
+    for (final DataPoints dps : query.lastDataPoints()) {
+      results.put(dps.getTags(), dps);
+    }
+    if (cached != null) {
+      // What's in memory is more recent than what we found in HBase.
+      for (final DataPoints dps : cached) {
+        results.put(dps.getTags(), dps);
+      }
+    }
+    return results.values().toArray(new DataPoints[results.size()]);
+  }
+
+  /**
+   * Returns whether or not a row key has all the given tags.
+   * @param key The row key to check.
+   * @param filters Tag name IDs, optionally followed by a tag value ID.
+   */
+  private boolean matches(final byte[] key, final ArrayList<byte[]> filters) {
+    final short name_width = tag_names.width();
+    for (final byte[] filter : filters) {
+      final byte[] name = Arrays.copyOf(filter, name_width);
+      final byte[] value = Tags.getValueId(this, key, name);
+      if (value == null || (filter.length > name_width
+          && !Arrays.equals(value, Arrays.copyOfRange(filter, name_width,
+                                                      filter.length)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the estimated number of time series of each metric.
+   * Only the series written through this TSD are counted.
+   * @return A map from metric name to estimate, empty if disabled.
+   */
+  public Map<String, Long> getSeriesCardinalities() {
+    final HashMap<String, Long> estimates = new HashMap<String, Long>();
+    if (cardinality == null) {
+      return estimates;
+    }
+    for (final Map.Entry<String, SeriesCardinality.Sketches> entry
+         : cardinality.all().entrySet()) {
+      final String name;
+      try {
+        name = metrics.getName(SeriesCardinality.id(entry.getKey()));
+      } catch (NoSuchUniqueId e) {
+        continue;  // Shouldn't happen, we wrote data for it.
+      }
+      estimates.put(name, entry.getValue().series.estimate());
+    }
+    return estimates;
+  }
+
+  /**
+   * Returns the sketch of the time series of a metric.
+   * Only the series written through this TSD are counted.
+   * @param metric The name of the metric.
+   * @return A copy of the sketch, or {@code null} if we haven't seen any
+   * series for this metric or if disabled.
+   * @throws NoSuchUniqueName if the metric doesn't exist.
+   */
+  public HyperLogLog getSeriesSketch(final String metric) {
+    final SeriesCardinality.Sketches sketches = getSketches(metric);
+    return sketches == null ? null : sketches.series.copy();
+  }
+
+  /**
+   * Returns the sketches of the values of each tag of a metric.
+   * Only the series written through this TSD are counted.
+   * @param metric The name of the metric.
+   * @return A map from tag name to a copy of the sketch of its values,
+   * empty if we haven't seen any series for this metric or if disabled.
+   * @throws NoSuchUniqueName if the metric doesn't exist.
+   */
+  public Map<String, HyperLogLog> getTagValueSketches(final String metric) {
+    final HashMap<String, HyperLogLog> results =
+      new HashMap<String, HyperLogLog>();
+    final SeriesCardinality.Sketches sketches = getSketches(metric);
+    if (sketches == null) {
+      return results;
+    }
+    for (final Map.Entry<String, HyperLogLog> entry
+         : sketches.tag_values.entrySet()) {
+      try {
+        results.put(tag_names.getName(SeriesCardinality.id(entry.getKey())),
+                    entry.getValue().copy());
+      } catch (NoSuchUniqueId e) {
+        // Shouldn't happen, we wrote data for it.
+      }
+    }
+    return results;
+  }
+
+  private SeriesCardinality.Sketches getSketches(final String metric) {
+    final byte[] id = metrics.getId(metric);
+    return cardinality == null ? null : cardinality.get(id);
+  }
+
   /**
    * Forces a flush of any un-committed in memory data.
    * <p>
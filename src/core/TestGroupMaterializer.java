@@ -0,0 +1,63 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public final class TestGroupMaterializer {
+
+  @Test
+  public void sequential() {
+    check(new GroupMaterializer(0, 1), 10);
+  }
+
+  @Test
+  public void parallel() {
+    check(new GroupMaterializer(4, 1), 1000);
+  }
+
+  @Test
+  public void fewerGroupsThanSlices() {
+    check(new GroupMaterializer(4, 1), 3);
+  }
+
+  @Test
+  public void empty() {
+    assertEquals(0, new GroupMaterializer(4, 0)
+                 .materialize(new DataPoints[0]).length);
+  }
+
+  /** Checks that the groups are materialized in order.  */
+  private static void check(final GroupMaterializer materializer,
+                            final int ngroups) {
+    final DataPoints[] groups = new DataPoints[ngroups];
+    for (int i = 0; i < ngroups; i++) {
+      final HashMap<String, String> tags = new HashMap<String, String>(1);
+      tags.put("host", "web" + i);
+      groups[i] = ArrayDataPoints.single("sys.cpu", tags, 1356998400 + i, i,
+                                         false);
+    }
+    final ArrayDataPoints[] results = materializer.materialize(groups);
+    assertEquals(ngroups, results.length);
+    for (int i = 0; i < ngroups; i++) {
+      assertEquals("web" + i, results[i].getTags().get("host"));
+      assertEquals(1, results[i].size());
+      assertEquals(1356998400 + i, results[i].timestamp(0));
+      assertEquals(i, results[i].longValue(0));
+    }
+  }
+
+}
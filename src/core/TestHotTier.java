@@ -0,0 +1,104 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class TestHotTier {
+
+  private static final short METRIC_WIDTH = 3;
+  private static final byte[] METRIC = { 0, 0, 1 };
+  private static final short LONG = 0x7;
+
+  /** Beginning of the previous row, so all our points are in the window. */
+  private static final int BASE_TIME = (int)
+    (System.currentTimeMillis() / 1000 / Const.MAX_TIMESPAN - 1)
+    * Const.MAX_TIMESPAN;
+
+  @Test
+  public void rowsAreCompacted() {
+    final HotTier tier = new HotTier(1 << 20, 86400);
+    tier.add(row(1), METRIC_WIDTH, BASE_TIME + 10, Bytes.fromLong(1), LONG);
+    // Out of order, must be put back in order.
+    tier.add(row(1), METRIC_WIDTH, BASE_TIME + 5, new byte[] { 2 }, (short) 0);
+    tier.add(row(1), METRIC_WIDTH, BASE_TIME + Const.MAX_TIMESPAN,
+             Bytes.fromLong(3), LONG);
+    final ArrayList<KeyValue> rows = tier.rows(METRIC, null, 0,
+                                               Long.MAX_VALUE);
+    assertEquals(2, rows.size());
+    final KeyValue first = rows.get(0);
+    assertEquals(BASE_TIME, Bytes.getInt(first.key(), METRIC_WIDTH));
+    assertArrayEquals(new byte[] { 0, 5 << Const.FLAG_BITS,
+                                   0, (byte) (10 << Const.FLAG_BITS | LONG) },
+                      first.qualifier());
+    // One byte, 8 bytes, then the meta-data byte of compacted rows.
+    assertEquals(1 + 8 + 1, first.value().length);
+    assertEquals(2, first.value()[0]);
+    assertEquals(1, Bytes.getLong(first.value(), 1));
+    final KeyValue second = rows.get(1);
+    assertEquals(BASE_TIME + Const.MAX_TIMESPAN,
+                 Bytes.getInt(second.key(), METRIC_WIDTH));
+    assertArrayEquals(Bytes.fromLong(3), second.value());
+  }
+
+  @Test
+  public void timeRangeAndRegexp() {
+    final HotTier tier = new HotTier(1 << 20, 86400);
+    tier.add(row(1), METRIC_WIDTH, BASE_TIME, Bytes.fromLong(1), LONG);
+    tier.add(row(2), METRIC_WIDTH, BASE_TIME, Bytes.fromLong(2), LONG);
+    tier.add(row(2), METRIC_WIDTH, BASE_TIME + Const.MAX_TIMESPAN,
+             Bytes.fromLong(2), LONG);
+    assertEquals(3, tier.rows(METRIC, null, 0, Long.MAX_VALUE).size());
+    assertEquals(2, tier.rows(METRIC, null, 0, BASE_TIME + 1).size());
+    assertEquals(1, tier.rows(METRIC, null, BASE_TIME + 1,
+                              Long.MAX_VALUE).size());
+    final Pattern tagv2 = Pattern.compile("(?s)^.{7}.{5}\\x02$");
+    assertEquals(2, tier.rows(METRIC, tagv2, 0, Long.MAX_VALUE).size());
+    assertTrue(tier.rows(new byte[] { 0, 0, 2 }, null, 0,
+                         Long.MAX_VALUE).isEmpty());
+  }
+
+  @Test
+  public void droppingDataMovesTheWindow() {
+    // Room for a single series with its initial capacity.
+    final HotTier tier = new HotTier(500, 86400);
+    final long before = tier.rowsCompleteSince();
+    for (int i = 0; i < 100; i++) {
+      tier.add(row(1), METRIC_WIDTH, before + i, Bytes.fromLong(i), LONG);
+    }
+    final ArrayList<KeyValue> rows = tier.rows(METRIC, null, 0,
+                                               Long.MAX_VALUE);
+    assertEquals(1, rows.size());
+    assertTrue(rows.get(0).qualifier().length < 100 * 2);
+    assertTrue(tier.rowsCompleteSince() > before);
+    assertEquals(0, tier.rowsCompleteSince() % Const.MAX_TIMESPAN);
+  }
+
+  /** Returns a row key with a single tag whose value ID is {@code tagv}. */
+  private static byte[] row(final int tagv) {
+    final byte[] row = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0 };
+    Bytes.setInt(row, BASE_TIME, METRIC_WIDTH);
+    row[row.length - 1] = (byte) tagv;
+    return row;
+  }
+
+}
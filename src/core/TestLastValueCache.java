@@ -0,0 +1,111 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Collection;
+
+import org.hbase.async.Bytes;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class TestLastValueCache {
+
+  private static final short METRIC_WIDTH = 3;
+  private static final byte[] METRIC = { 0, 0, 1 };
+
+  @Test
+  public void keepsLatestDataPoint() {
+    final LastValueCache cache = new LastValueCache(10, 60000);
+    cache.update(row(1000, 1), METRIC_WIDTH, 1001, Bytes.fromLong(42), LONG);
+    cache.update(row(1000, 1), METRIC_WIDTH, 1005, Bytes.fromLong(43), LONG);
+    // Out of order data point, must be ignored.
+    cache.update(row(1000, 1), METRIC_WIDTH, 1003, Bytes.fromLong(44), LONG);
+    final Collection<LastValueCache.Entry> entries = cache.get(METRIC);
+    assertEquals(1, entries.size());
+    final LastValueCache.Entry entry = entries.iterator().next();
+    assertEquals(1005, entry.timestamp);
+    assertEquals(43, entry.value);
+    assertFalse(entry.is_float);
+    // The timestamp must have been zeroed out of the key.
+    assertEquals(0, Bytes.getInt(entry.key, METRIC_WIDTH));
+  }
+
+  @Test
+  public void floatingPointValues() {
+    final LastValueCache cache = new LastValueCache(10, 60000);
+    cache.update(row(3600, 1), METRIC_WIDTH, 3601,
+                 Bytes.fromInt(Float.floatToRawIntBits(4.5f)),
+                 (short) (Const.FLAG_FLOAT | 0x3));
+    final LastValueCache.Entry entry = cache.get(METRIC).iterator().next();
+    assertTrue(entry.is_float);
+    assertEquals(4.5, Double.longBitsToDouble(entry.value), 0.0);
+  }
+
+  @Test
+  public void bounded() {
+    final LastValueCache cache = new LastValueCache(10, 60000);
+    for (int i = 0; i < 100; i++) {
+      cache.update(row(1000, i), METRIC_WIDTH, 1001, Bytes.fromLong(i), LONG);
+    }
+    assertTrue(cache.get(METRIC).size() <= 10);
+  }
+
+  @Test
+  public void evictionsMoveCompleteSince() {
+    final LastValueCache cache = new LastValueCache(10, 60000);
+    final long started = cache.completeSince();
+    final long future = started + 1000;
+    for (int i = 0; i < 100; i++) {
+      cache.update(row(1000, i), METRIC_WIDTH, future + i,
+                   Bytes.fromLong(i), LONG);
+    }
+    // Series were evicted, so we no longer have all those since we started.
+    final long since = cache.completeSince();
+    assertTrue(since > future);
+    // But we still have all those with a data point since then.
+    int expected = 0;
+    for (int i = 0; i < 100; i++) {
+      if (future + i >= since) {
+        expected++;
+      }
+    }
+    int found = 0;
+    for (final LastValueCache.Entry entry : cache.get(METRIC)) {
+      if (entry.timestamp >= since) {
+        found++;
+      }
+    }
+    assertEquals(expected, found);
+  }
+
+  @Test
+  public void unknownMetric() {
+    final LastValueCache cache = new LastValueCache(10, 60000);
+    assertTrue(cache.get(new byte[] { 0, 0, 2 }).isEmpty());
+  }
+
+  private static final short LONG = 0x7;
+
+  /** Returns a row key with a single tag whose value ID is {@code tagv}. */
+  private static byte[] row(final int base_time, final int tagv) {
+    final byte[] row = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0 };
+    Bytes.setInt(row, base_time, METRIC_WIDTH);
+    row[row.length - 2] = (byte) (tagv >> 8);
+    row[row.length - 1] = (byte) tagv;
+    return row;
+  }
+
+}
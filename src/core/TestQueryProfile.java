@@ -0,0 +1,81 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class TestQueryProfile {
+
+  private final QueryProfile profile = new QueryProfile();
+
+  @Test
+  public void phasesAccumulate() {
+    profile.addTime(QueryProfile.HBASE_SCAN, 1500000);
+    profile.addTime(QueryProfile.HBASE_SCAN, 2500000);
+    profile.addTime(QueryProfile.GNUPLOT, 999999);
+    assertEquals(4, profile.getTime(QueryProfile.HBASE_SCAN));
+    assertEquals(0, profile.getTime(QueryProfile.GNUPLOT));  // Truncated.
+    assertEquals(0, profile.getTime(QueryProfile.COMPACTION));
+  }
+
+  @Test
+  public void countersAccumulate() {
+    profile.addCount(QueryProfile.ROWS, 2);
+    profile.addCount(QueryProfile.ROWS, 3);
+    profile.addCount(QueryProfile.POINTS, 42);
+    assertEquals(5, profile.getCount(QueryProfile.ROWS));
+    assertEquals(42, profile.getCount(QueryProfile.POINTS));
+    assertEquals(0, profile.getCount(QueryProfile.CELLS));
+  }
+
+  @Test
+  public void sharedBySubQueries() throws Exception {
+    final Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            profile.addTime(QueryProfile.AGGREGATION, 1000000);
+            profile.addCount(QueryProfile.SPANS, 1);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(4000, profile.getTime(QueryProfile.AGGREGATION));
+    assertEquals(4000, profile.getCount(QueryProfile.SPANS));
+  }
+
+  @Test
+  public void toJson() {
+    profile.addTime(QueryProfile.UID_LOOKUP, 7000000);
+    profile.addTime(QueryProfile.RENDER, 12000000);
+    profile.addCount(QueryProfile.BYTES, 1024);
+    profile.addCount(QueryProfile.GROUPS, 3);
+    final StringBuilder buf = new StringBuilder("foo ");
+    profile.toJson(buf);
+    final String json = buf.toString();
+    assertTrue(json, json.startsWith("foo {\"total_ms\":"));
+    assertTrue(json, json.endsWith(",\"uid_lookup_ms\":7,\"hbase_scan_ms\":0"
+      + ",\"compaction_ms\":0,\"group_by_ms\":0,\"aggregation_ms\":0"
+      + ",\"gnuplot_ms\":0,\"disk_io_ms\":0,\"hot_tier_ms\":0"
+      + ",\"render_ms\":12,\"rows\":0,\"cells\":0,\"bytes\":1024,\"spans\":0"
+      + ",\"groups\":3,\"points\":0}"));
+  }
+
+}
@@ -0,0 +1,163 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public final class TestRollups {
+
+  private static final byte[] KEY = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0,
+                                      0, 0, 1, 0, 0, 2 };
+  private static final byte[] FAMILY = { 't' };
+
+  @Test
+  public void rollupIntegers() {
+    // 1 @ 0s, 3 @ 30s, 5 @ 70s
+    final KeyValue row = row(new short[] { 0, 30, 70 },
+                             new long[] { 1, 3, 5 });
+    final KeyValue sums = toDataPoints(row, 60, Aggregators.SUM);
+    assertArrayEquals(new byte[] { 0, 0x07, 0x03, (byte) 0xC7 },
+                      sums.qualifier());
+    assertEquals(4, Bytes.getLong(sums.value(), 0));
+    assertEquals(5, Bytes.getLong(sums.value(), 8));
+    assertEquals(1, Bytes.getLong(toDataPoints(row, 60, Aggregators.MIN)
+                                  .value(), 0));
+    assertEquals(3, Bytes.getLong(toDataPoints(row, 60, Aggregators.MAX)
+                                  .value(), 0));
+    final KeyValue avgs = toDataPoints(row, 60, Aggregators.AVG);
+    assertArrayEquals(sums.qualifier(), avgs.qualifier());
+    assertEquals(2, Bytes.getLong(avgs.value(), 0));
+  }
+
+  @Test
+  public void rollupLargeIntegersExactly() {
+    final long big = (1L << 53) + 1;  // Not representable as a double.
+    final KeyValue row = row(new short[] { 0, 30 }, new long[] { big, 2 });
+    assertEquals(big + 2, Bytes.getLong(toDataPoints(row, 60, Aggregators.SUM)
+                                        .value(), 0));
+    assertEquals(big, Bytes.getLong(toDataPoints(row, 60, Aggregators.MAX)
+                                    .value(), 0));
+    assertEquals((big + 2) / 2,
+                 Bytes.getLong(toDataPoints(row, 60, Aggregators.AVG)
+                               .value(), 0));
+  }
+
+  @Test
+  public void routedResultsMatchRawResults() {
+    // A data point every minute on the minute, like most collectors do.
+    final short[] deltas = new short[60];
+    final long[] values = new long[60];
+    for (int i = 0; i < deltas.length; i++) {
+      deltas[i] = (short) (i * 60);
+      values[i] = i * 7 % 13;
+    }
+    final KeyValue row = row(deltas, values);
+    for (final Aggregator downsampler : new Aggregator[] {
+           Aggregators.SUM, Aggregators.MIN, Aggregators.MAX }) {
+      assertEquals(downsample(row, 600, downsampler),
+                   downsample(toDataPoints(row, 60, downsampler), 600,
+                              downsampler));
+    }
+    assertEquals(downsample(row, 60, Aggregators.AVG),
+                 downsample(toDataPoints(row, 60, Aggregators.AVG), 60,
+                            Aggregators.AVG));
+  }
+
+  @Test
+  public void routedResultsAreStampedWithTheBucketStart() {
+    final KeyValue row = row(new short[] { 0, 30, 60, 90 },
+                             new long[] { 1, 3, 5, 7 });
+    final long base_time = Bytes.getUnsignedInt(KEY, 3);
+    // Downsampling the raw data points uses their mean timestamp instead.
+    assertEquals((base_time + 15) + "=4 " + (base_time + 75) + "=12",
+                 downsample(row, 60, Aggregators.SUM));
+    assertEquals(base_time + "=4 " + (base_time + 60) + "=12",
+                 downsample(toDataPoints(row, 60, Aggregators.SUM), 60,
+                            Aggregators.SUM));
+  }
+
+  /** Downsamples a row and returns its data points as a string.  */
+  private static String downsample(final KeyValue row, final int interval,
+                                   final Aggregator downsampler) {
+    final Span span = new Span(new TSDB(new HBaseClient("localhost"),
+                                        "tsdb", "tsdb-uid"));
+    span.addRow(row);
+    final StringBuilder buf = new StringBuilder();
+    final Span.DownsamplingIterator it = span.downsampler(interval,
+                                                          downsampler);
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      if (buf.length() > 0) {
+        buf.append(' ');
+      }
+      buf.append(dp.timestamp()).append('=');
+      if (dp.isInteger()) {
+        buf.append(dp.longValue());
+      } else {
+        buf.append(dp.doubleValue());
+      }
+    }
+    return buf.toString();
+  }
+
+  @Test
+  public void rollupSingleBucket() {
+    final KeyValue row = row(new short[] { 0, 30, 70 },
+                             new long[] { 1, 3, 5 });
+    final KeyValue sums = toDataPoints(row, 3600, Aggregators.SUM);
+    assertArrayEquals(new byte[] { 0, 0x07 }, sums.qualifier());
+    assertArrayEquals(Bytes.fromLong(9), sums.value());
+  }
+
+  @Test
+  public void pick() {
+    final Rollups rollups = new Rollups("tsdb", new int[] { 3600, 60 }, 0, 0);
+    assertEquals(1, rollups.pick(7200, Aggregators.SUM));
+    assertEquals(0, rollups.pick(600, Aggregators.MAX));
+    assertEquals(-1, rollups.pick(90, Aggregators.MIN));
+    assertEquals(0, rollups.pick(60, Aggregators.AVG));
+    assertEquals(-1, rollups.pick(600, Aggregators.AVG));
+    assertEquals(-1, rollups.pick(3600, Aggregators.DEV));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void badInterval() {
+    new Rollups("tsdb", new int[] { 7 }, 0, 0);
+  }
+
+  private static KeyValue toDataPoints(final KeyValue row, final int interval,
+                                       final Aggregator downsampler) {
+    final KeyValue cell = new KeyValue(KEY, FAMILY, new byte[] { 'r' },
+                                       Rollups.rollup(row, interval));
+    return Rollups.toDataPoints(cell, downsampler);
+  }
+
+  /** Makes a compacted row of 8-byte integers.  */
+  private static KeyValue row(final short[] deltas, final long[] values) {
+    final byte[] qualifiers = new byte[deltas.length * 2];
+    final byte[] vals = new byte[values.length * 8 + 1];
+    for (int i = 0; i < deltas.length; i++) {
+      Bytes.setShort(qualifiers, (short) (deltas[i] << Const.FLAG_BITS | 0x7),
+                     i * 2);
+      Bytes.setLong(vals, values[i], i * 8);
+    }
+    return new KeyValue(KEY, FAMILY, qualifiers, vals);
+  }
+
+}
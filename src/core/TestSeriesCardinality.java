@@ -0,0 +1,74 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import org.hbase.async.Bytes;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public final class TestSeriesCardinality {
+
+  private static final short METRIC_WIDTH = 3;
+  private static final short NAME_WIDTH = 3;
+  private static final short VALUE_WIDTH = 3;
+
+  @Test
+  public void countsSeriesAndTagValues() {
+    final SeriesCardinality cardinality = new SeriesCardinality(12, 10);
+    for (int tagv = 0; tagv < 100; tagv++) {
+      // Several rows and several points per row of each series.
+      for (int base_time = 0; base_time < 3; base_time++) {
+        for (int i = 0; i < 3; i++) {
+          add(cardinality, 1, base_time * 3600, tagv);
+        }
+      }
+    }
+    assertEquals(100, cardinality.estimate(new byte[] { 0, 0, 1 }));
+    final SeriesCardinality.Sketches sketches =
+      cardinality.get(new byte[] { 0, 0, 1 });
+    assertEquals(1, sketches.tag_values.size());
+    // Lower precision, so the estimate isn't exact.
+    assertEquals(100, sketches.tag_values.values().iterator().next()
+                 .estimate(), 5);
+    // Other metrics with the same tags are counted separately.
+    add(cardinality, 2, 0, 1);
+    assertEquals(1, cardinality.estimate(new byte[] { 0, 0, 2 }));
+  }
+
+  @Test
+  public void boundedNumberOfMetrics() {
+    final SeriesCardinality cardinality = new SeriesCardinality(12, 10);
+    for (int metric = 0; metric < 20; metric++) {
+      add(cardinality, metric, 0, 1);
+    }
+    assertEquals(10, cardinality.all().size());
+    assertEquals(10, cardinality.dropped());
+  }
+
+  @Test
+  public void disabledByDefault() {
+    assertNull(SeriesCardinality.fromSystemProperties());
+  }
+
+  private static void add(final SeriesCardinality cardinality,
+                          final int metric, final int base_time,
+                          final int tagv) {
+    final byte[] row = { 0, 0, (byte) metric, 0, 0, 0, 0,
+                         0, 0, 1, 0, (byte) (tagv >> 8), (byte) tagv };
+    Bytes.setInt(row, base_time, METRIC_WIDTH);
+    cardinality.add(row, METRIC_WIDTH, NAME_WIDTH, VALUE_WIDTH);
+  }
+
+}
@@ -0,0 +1,249 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.powermock.reflect.Whitebox;
+
+public final class TestSeriesIndex {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Base time of the current row.  */
+  private static final int NOW = (int) (System.currentTimeMillis() / 1000
+    / Const.MAX_TIMESPAN * Const.MAX_TIMESPAN);
+
+  private static final byte[] SYS_CPU = { 0, 0, 1 };
+
+  private TSDB tsdb;
+  private FakeIndex index;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = new TSDB(new HBaseClient("localhost"), "tsdb", "tsdb-uid");
+    TestTsdbQuery.addUid(tsdb.metrics, "sys.cpu", 1);
+    TestTsdbQuery.addUid(tsdb.tag_names, "host", 1);
+    TestTsdbQuery.addUid(tsdb.tag_values, "a", 1);
+    TestTsdbQuery.addUid(tsdb.tag_values, "b", 2);
+    TestTsdbQuery.addUid(tsdb.tag_values, "c", 3);
+    TestTsdbQuery.addUid(tsdb.tag_values, "d", 4);
+    index = new FakeIndex(100);
+    final Field field = TSDB.class.getDeclaredField("series_index");
+    field.setAccessible(true);
+    field.set(tsdb, index);
+  }
+
+  @Test
+  public void addOnlyWritesNewRows() {
+    index.add(tsdb, row("a", NOW));
+    assertEquals(1, index.puts.size());
+    final PutRequest put = index.puts.get(0);
+    assertArrayEquals(SYS_CPU, put.key());
+    assertArrayEquals(Bytes.fromInt(NOW), put.value());
+    index.add(tsdb, row("a", NOW));
+    index.add(tsdb, row("a", NOW - 3600));  // Late data point.
+    assertEquals(1, index.puts.size());
+    index.add(tsdb, row("a", NOW + 3600));
+    index.add(tsdb, row("b", NOW));
+    assertEquals(3, index.puts.size());
+    assertEquals(2, index.count(SYS_CPU));
+  }
+
+  @Test
+  public void findFiltersByTime() {
+    index.add(tsdb, row("a", NOW - 7200));
+    index.add(tsdb, row("b", NOW));
+    assertEquals(1, find(null, NOW - 3600, NOW - 3600).size());
+    assertEquals(2, find(null, NOW - 7200, NOW - 3600).size());
+  }
+
+  @Test
+  public void findFiltersByRegexp() {
+    index.add(tsdb, row("a", NOW));
+    index.add(tsdb, row("b", NOW));
+    final byte[] key = row("b", 0);
+    final ArrayList<byte[]> keys =
+      find(Pattern.compile(Pattern.quote(new String(key, CHARSET))),
+           NOW, NOW - 3600);
+    assertEquals(1, keys.size());
+    assertArrayEquals(key, keys.get(0));
+  }
+
+  @Test
+  public void findReloadsAfterTheTtl() throws Exception {
+    find(null, NOW, NOW - 3600);
+    assertEquals(1, index.reads);
+    // Series written through other TSDs show up on the next reload.
+    index.stored.add(stored("c", NOW));
+    assertEquals(0, find(null, NOW, NOW - 3600).size());
+    assertEquals(1, index.reads);
+    final Object metric = metrics().get(new String(SYS_CPU, CHARSET));
+    final Field loaded = metric.getClass().getDeclaredField("loaded");
+    loaded.setAccessible(true);
+    loaded.setLong(metric, System.currentTimeMillis() - 61000);
+    assertEquals(1, find(null, NOW, NOW - 3600).size());
+    assertEquals(2, index.reads);
+  }
+
+  @Test
+  public void findReloadsForRecentData() {
+    find(null, NOW, NOW - 3600);
+    index.stored.add(stored("c", NOW));
+    // The query needs data points from after we last loaded the index,
+    // some other TSD may have started writing the series it wants.
+    assertEquals(1, find(null, NOW, System.currentTimeMillis() / 1000)
+                 .size());
+    assertEquals(2, index.reads);
+  }
+
+  @Test
+  public void clearWhenFull() {
+    index = new FakeIndex(2);
+    index.add(tsdb, row("a", NOW));
+    index.add(tsdb, row("b", NOW));
+    assertEquals(2, index.count(SYS_CPU));
+    index.add(tsdb, row("c", NOW));
+    assertEquals(0, index.count(SYS_CPU));
+    assertEquals(3, index.puts.size());
+    // We write them again, which is harmless.
+    index.add(tsdb, row("a", NOW));
+    assertEquals(4, index.puts.size());
+    assertEquals(1, index.count(SYS_CPU));
+  }
+
+  @Test
+  public void queryUsesTheIndexForFewSeries() {
+    addAll();
+    final ArrayList<byte[]> keys =
+      query("a").indexedKeys(NOW - 3600, NOW + 3600, NOW - 3600);
+    assertNotNull(keys);
+    assertEquals(1, keys.size());
+    assertArrayEquals(row("a", 0), keys.get(0));
+  }
+
+  @Test
+  public void queryScansWhenItMatchesMostSeries() {
+    addAll();
+    assertNotNull(query("a").indexedKeys(NOW - 3600, NOW + 3600, NOW));
+    // 2 out of 4 series: scanning them all is cheaper.
+    assertNull(query("a|b").indexedKeys(NOW - 3600, NOW + 3600, NOW));
+    assertNull(query("*").indexedKeys(NOW - 3600, NOW + 3600, NOW));
+  }
+
+  @Test
+  public void queryScansWhenItNeedsTooManyGets() {
+    addAll();
+    // tsd.query.series_index.max_gets is 2000 by default.
+    assertNotNull(query("a").indexedKeys(NOW - 1999 * 3600, NOW + 3600,
+                                         NOW));
+    assertNull(query("a").indexedKeys(NOW - 2000 * 3600, NOW + 3600, NOW));
+  }
+
+  /** Returns the series matching a range of time.  */
+  private ArrayList<byte[]> find(final Pattern key_regexp, final long start,
+                                 final long data_start) {
+    return index.find(tsdb, (TsdbQuery) tsdb.newQuery(), SYS_CPU,
+                      key_regexp, start, data_start);
+  }
+
+  /** Returns a query on sys.cpu for some hosts.  */
+  private TsdbQuery query(final String host) {
+    final TsdbQuery query = (TsdbQuery) tsdb.newQuery();
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", host);
+    query.setTimeSeries("sys.cpu", tags, Aggregators.SUM, false);
+    return query;
+  }
+
+  /** Adds 4 series that have been written to for a long time.  */
+  private void addAll() {
+    for (final String host : new String[] { "a", "b", "c", "d" }) {
+      index.add(tsdb, row(host, NOW));
+    }
+  }
+
+  /** Returns the row key of a sys.cpu series at the given base time.  */
+  private byte[] row(final String host, final int base_time) {
+    final Map<String, String> tags = Collections.singletonMap("host", host);
+    final byte[] row = IncomingDataPoints.rowKeyTemplate(tsdb, "sys.cpu",
+                                                         tags);
+    Bytes.setInt(row, base_time, tsdb.metrics.width());
+    return row;
+  }
+
+  /** Returns a cell of the index, as written by some other TSD.  */
+  private KeyValue stored(final String host, final int base_time) {
+    final byte[] row = row(host, base_time);
+    final int tags_offset = SYS_CPU.length + Const.TIMESTAMP_BYTES;
+    final byte[] qualifier = new byte[row.length - tags_offset];
+    System.arraycopy(row, tags_offset, qualifier, 0, qualifier.length);
+    return new KeyValue(SYS_CPU, TSDB.FAMILY, qualifier,
+                        Bytes.fromInt(base_time));
+  }
+
+  private Map<?, ?> metrics() {
+    return (Map<?, ?>) Whitebox.getInternalState(index, "metrics");
+  }
+
+  /** An index whose table is in memory, with only sys.cpu in it.  */
+  private static final class FakeIndex extends SeriesIndex {
+
+    /** The cells of the row of sys.cpu.  */
+    final ArrayList<KeyValue> stored = new ArrayList<KeyValue>();
+
+    /** What we've been asked to write.  */
+    final ArrayList<PutRequest> puts = new ArrayList<PutRequest>();
+
+    /** Number of times the table was read.  */
+    int reads;
+
+    FakeIndex(final int max_series) {
+      super("tsdb-series", 0, 60000, max_series);
+    }
+
+    @Override
+    Deferred<Object> write(final TSDB tsdb, final PutRequest put) {
+      puts.add(put);
+      return Deferred.fromResult(null);
+    }
+
+    @Override
+    Deferred<ArrayList<KeyValue>> read(final TSDB tsdb, final byte[] key) {
+      reads++;
+      return Deferred.fromResult(new ArrayList<KeyValue>(stored));
+    }
+
+  }
+
+}
@@ -0,0 +1,585 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+
+import net.opentsdb.uid.UniqueId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.powermock.reflect.Whitebox;
+
+/**
+ * Runs queries against data that's entirely in the hot tier, so that we
+ * never need to talk to HBase.
+ */
+public final class TestTsdbQuery {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  private static final long NOW = System.currentTimeMillis() / 1000;
+
+  /** Where our data starts: the beginning of the row of 12 hours ago.  */
+  private static final long DATA_START =
+    (NOW - 12 * 3600) / Const.MAX_TIMESPAN * Const.MAX_TIMESPAN;
+
+  private TSDB tsdb;
+  /** Same data as {@link #tsdb} but without a query cache.  */
+  private TSDB uncached;
+
+  @Before
+  public void before() throws Exception {
+    uncached = newTsdb(false);
+    tsdb = newTsdb(true);
+  }
+
+  @After
+  public void after() {
+    System.clearProperty("tsd.query.cache.size");
+  }
+
+  @Test
+  public void cacheMissHitAndPartialHitReturnTheSameResults() {
+    final QueryCache cache = tsdb.query_cache;
+    // Entirely older than what the cache considers complete.
+    assertSameResults(NOW - 10 * 3600, NOW - 5 * 3600);
+    assertEquals(1, counter(cache, "misses"));
+    assertSameResults(NOW - 10 * 3600, NOW - 5 * 3600);
+    assertEquals(1, counter(cache, "hits"));
+    // Narrower than what's cached: mustn't get the points around it.
+    assertSameResults(NOW - 9 * 3600, NOW - 6 * 3600);
+    assertEquals(2, counter(cache, "hits"));
+    // Up to now, so the last few hours have to be read again.
+    assertSameResults(NOW - 10 * 3600, NOW);
+    assertEquals(1, counter(cache, "partial_hits"));
+    assertSameResults(NOW - 8 * 3600, NOW - 3600);
+    assertEquals(2, counter(cache, "partial_hits"));
+    assertEquals(1, counter(cache, "misses"));
+  }
+
+  @Test
+  public void rollupsAreOnlyReadAfterSince() {
+    final long since = DATA_START + 4 * Const.MAX_TIMESPAN;
+    System.setProperty("tsd.rollups.intervals", "60,3600");
+    System.setProperty("tsd.rollups.since", "" + since);
+    final TSDB tsdb;
+    try {
+      tsdb = newTsdb(false);
+    } finally {
+      System.clearProperty("tsd.rollups.intervals");
+      System.clearProperty("tsd.rollups.since");
+    }
+    final TsdbQuery query = (TsdbQuery) tsdb.newQuery();
+    query.setTimeSeries("sys.cpu", new HashMap<String, String>(0),
+                        Aggregators.SUM, false);
+    assertEquals(-1, query.pickRollup(since));  // Not downsampling.
+    query.downsample(600, Aggregators.SUM);
+    assertEquals(0, query.pickRollup(since));  // The 60s rollups.
+    assertEquals(0, query.pickRollup(since + 1));
+    // Rows before that may not have been rolled up.
+    assertEquals(-1, query.pickRollup(since - 1));
+  }
+
+  @Test
+  public void rankTopN() {
+    assertEquals("[a]", rank(1, false, Aggregators.MAX));
+    assertEquals("[a, b]", rank(2, false, Aggregators.MAX));
+    assertEquals("[b, b]", rank(2, false, null));  // By the last value.
+    assertEquals("[b, b, d]", rank(3, false, null));
+  }
+
+  @Test
+  public void rankBottomN() {
+    assertEquals("[a, d]", rank(2, true, null));
+    assertEquals("[d]", rank(1, true, Aggregators.MAX));
+    assertEquals("[a, d, b]", rank(3, true, Aggregators.MIN));
+  }
+
+  @Test
+  public void rankLimitLargerThanGroups() {
+    assertEquals("[b, b, d, a]", rank(10, false, Aggregators.SUM));
+    assertEquals("[a, d, b, b]", rank(10, true, null));
+  }
+
+  @Test
+  public void onlyTheWinnersAreMaterialized() {
+    for (final TSDB tsdb : new TSDB[] { uncached, this.tsdb }) {
+      final long before = materialized(tsdb);
+      assertEquals("[a, b]", rank(tsdb, 2, false, Aggregators.MAX));
+      assertEquals(2, materialized(tsdb) - before);
+    }
+  }
+
+  @Test
+  public void rankedResultsAreCachedForTheSameQueryOnly() {
+    final QueryCache cache = tsdb.query_cache;
+    final long start = NOW - 10 * 3600;
+    final long end = NOW - 5 * 3600;
+    final String expected = rank(uncached, "sys.cpu", start, end, 1);
+    assertEquals(expected, rank(tsdb, "sys.cpu", start, end, 1));
+    assertEquals(1, counter(cache, "misses"));
+    assertEquals(expected, rank(tsdb, "sys.cpu", start, end, 1));
+    assertEquals(1, counter(cache, "hits"));
+    // New data could change the winners, and so could a different limit
+    // or time range.
+    rank(tsdb, "sys.cpu", start, end, 2);
+    rank(tsdb, "sys.cpu", start + 60, end, 1);
+    rank(tsdb, "sys.mem", NOW - 3600, NOW, 1);
+    rank(tsdb, "sys.mem", NOW - 3600, NOW, 1);
+    assertEquals(5, counter(cache, "misses"));
+    assertEquals(1, counter(cache, "hits"));
+  }
+
+  @Test
+  public void exactKeyWhenTheQueryNamesAllTheTags() {
+    final TSDB tsdb = newTsdbWithCardinality();
+    final Map<String, String> tags = Collections.singletonMap("host", "a");
+    assertArrayEquals(IncomingDataPoints.rowKeyTemplate(tsdb, "sys.cpu", tags),
+                      exactKey(tsdb, "sys.cpu", tags));
+    // Not when the query matches several values or groups by the tag.
+    assertNull(exactKey(tsdb, "sys.cpu",
+                        Collections.singletonMap("host", "a|b")));
+    assertNull(exactKey(tsdb, "sys.cpu",
+                        Collections.singletonMap("host", "*")));
+  }
+
+  @Test
+  public void noExactKeyWhenSomeSeriesHaveOtherTags() {
+    final TSDB tsdb = newTsdbWithCardinality();
+    addUid(tsdb.tag_names, "cpu", 2);
+    final HashMap<String, String> tags = new HashMap<String, String>(2);
+    tags.put("host", "a");
+    tags.put("cpu", "b");
+    final byte[] row = IncomingDataPoints.rowKeyTemplate(tsdb, "sys.cpu", tags);
+    Bytes.setInt(row, (int) (NOW - NOW % Const.MAX_TIMESPAN),
+                 tsdb.metrics.width());
+    tsdb.cardinality.add(row, tsdb.metrics.width(), tsdb.tag_names.width(),
+                         tsdb.tag_values.width());
+    assertNull(exactKey(tsdb, "sys.cpu",
+                        Collections.singletonMap("host", "a")));
+    assertArrayEquals(IncomingDataPoints.rowKeyTemplate(tsdb, "sys.cpu", tags),
+                      exactKey(tsdb, "sys.cpu", tags));
+  }
+
+  @Test
+  public void noExactKeyWithoutSketches() {
+    final Map<String, String> tags = Collections.singletonMap("host", "a");
+    // The sketches are disabled.
+    assertNull(exactKey(uncached, "sys.cpu", tags));
+    // No sketch for this metric, e.g. it's only written through other TSDs.
+    final TSDB tsdb = newTsdbWithCardinality();
+    addUid(tsdb.metrics, "sys.disk", 3);
+    assertNull(exactKey(tsdb, "sys.disk", tags));
+  }
+
+  private static byte[] exactKey(final TSDB tsdb, final String metric,
+                                 final Map<String, String> tags) {
+    final TsdbQuery query = (TsdbQuery) tsdb.newQuery();
+    query.setStartTime(NOW - 3600);
+    query.setTimeSeries(metric, new HashMap<String, String>(tags),
+                        Aggregators.SUM, false);
+    return query.exactKey();
+  }
+
+  /** Returns a new TSDB that also keeps the cardinality of our series.  */
+  private static TSDB newTsdbWithCardinality() {
+    System.setProperty("tsd.core.cardinality.precision", "10");
+    try {
+      return newTsdb(false);
+    } finally {
+      System.clearProperty("tsd.core.cardinality.precision");
+    }
+  }
+
+  @Test
+  public void abortsQueriesThatLoadTooMuch() {
+    // Each row has 60 data points and is 614 bytes.
+    assertAborted("tsd.query.limits.bytes", "1000");
+    assertAborted("tsd.query.limits.datapoints", "100");
+  }
+
+  @Test
+  public void abortsQueriesWhenAllTheQueriesLoadTooMuch() {
+    assertAborted("tsd.query.limits.global_bytes", "1000");
+    assertEquals(0, inflightBytes().get());
+  }
+
+  @Test
+  public void rejectsQueriesWhenTheGlobalBudgetIsExhausted() {
+    final TSDB tsdb = newScanTsdb("tsd.query.limits.global_bytes", "1000");
+    final long rejected = TsdbQuery.queries_rejected.get();
+    inflightBytes().set(1000);  // As if other queries had loaded that much.
+    try {
+      new FakeScanQuery(tsdb, 1).run();
+      fail("The query should have been rejected");
+    } catch (QueryLimitException e) {
+      assertEquals(rejected + 1, TsdbQuery.queries_rejected.get());
+    } finally {
+      inflightBytes().set(0);
+    }
+    // The bytes of the queries that complete are released too.
+    new FakeScanQuery(tsdb, 1).run();
+    assertEquals(0, inflightBytes().get());
+  }
+
+  @Test
+  public void timesOutWhenHBaseDoesntAnswer() {
+    final TSDB tsdb = newScanTsdb("tsd.query.limits.global_bytes", "100000");
+    final long timedout = TsdbQuery.queries_timedout.get();
+    final FakeScanQuery query = new FakeScanQuery(tsdb, 1);
+    query.hang = true;
+    query.setDeadline(System.currentTimeMillis() + 200);
+    try {
+      query.run();
+      fail("The query should have timed out");
+    } catch (QueryLimitException e) {
+      assertEquals(timedout + 1, TsdbQuery.queries_timedout.get());
+      assertEquals(1, query.closed);
+    }
+    assertEquals(0, inflightBytes().get());
+  }
+
+  @Test
+  public void cancelledWhenInterrupted() throws Exception {
+    final TSDB tsdb = newScanTsdb("tsd.query.limits.global_bytes", "100000");
+    final FakeScanQuery query = new FakeScanQuery(tsdb, 1);
+    query.hang = true;
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+    final Thread thread = new Thread("query") {
+      public void run() {
+        try {
+          query.run();
+        } catch (Exception e) {
+          error.set(e);
+        }
+      }
+    };
+    thread.start();
+    assertTrue(query.waiting.await(10, TimeUnit.SECONDS));
+    thread.interrupt();
+    thread.join(10000);
+    assertFalse(thread.isAlive());
+    assertTrue(String.valueOf(error.get()),
+               error.get() instanceof CancellationException);
+    assertEquals(1, query.closed);
+    assertEquals(0, inflightBytes().get());
+  }
+
+  /**
+   * Checks that a query reading two rows is aborted when the given limit is
+   * set, and that its scanner is closed.
+   */
+  private static void assertAborted(final String limit, final String value) {
+    final long aborted = TsdbQuery.queries_aborted.get();
+    final FakeScanQuery query = new FakeScanQuery(newScanTsdb(limit, value),
+                                                  2);
+    try {
+      query.run();
+      fail("The query should have been aborted with " + limit + '=' + value);
+    } catch (QueryLimitException e) {
+      assertEquals(aborted + 1, TsdbQuery.queries_aborted.get());
+      assertEquals(1, query.closed);
+    }
+  }
+
+  private static AtomicLong inflightBytes() {
+    return (AtomicLong) Whitebox.getInternalState(TsdbQuery.class,
+                                                  "inflight_bytes");
+  }
+
+  /**
+   * Returns a new TSDB without anything in memory, so queries scan HBase.
+   * @param property The name of a system property to set meanwhile.
+   * @param value Its value.
+   */
+  private static TSDB newScanTsdb(final String property, final String value) {
+    System.setProperty(property, value);
+    final TSDB tsdb;
+    try {
+      tsdb = new TSDB(new HBaseClient("localhost"), "tsdb", "tsdb-uid");
+    } finally {
+      System.clearProperty(property);
+    }
+    addUid(tsdb.metrics, "sys.cpu", 1);
+    addUid(tsdb.tag_names, "host", 1);
+    addUid(tsdb.tag_values, "a", 1);
+    return tsdb;
+  }
+
+  /**
+   * A query on sys.cpu{host=a} whose scanner returns a few rows, one at a
+   * time, then either ends or waits forever.
+   */
+  private static class FakeScanQuery extends TsdbQuery {
+
+    /** Base time of the first row.  */
+    static final long BASE_TIME = DATA_START;
+
+    private final TSDB tsdb;
+    /** Number of rows to return.  */
+    private final int nrows;
+    /** Number of rows returned so far.  */
+    private int returned;
+    /** Whether the scanner never ends, instead of having no more rows.  */
+    boolean hang;
+    /** Counted down once the query waits for rows that never come.  */
+    final CountDownLatch waiting = new CountDownLatch(1);
+    /** Number of times the scanner was closed.  */
+    int closed;
+
+    FakeScanQuery(final TSDB tsdb, final int nrows) {
+      super(tsdb);
+      this.tsdb = tsdb;
+      this.nrows = nrows;
+      setStartTime(BASE_TIME);
+      setEndTime(BASE_TIME + 4 * Const.MAX_TIMESPAN);
+      final HashMap<String, String> tags = new HashMap<String, String>(1);
+      tags.put("host", "a");
+      setTimeSeries("sys.cpu", tags, Aggregators.SUM, false);
+    }
+
+    @Override
+    Deferred<ArrayList<ArrayList<KeyValue>>> nextRows(final Scanner scanner) {
+      if (returned == nrows) {
+        if (hang) {
+          waiting.countDown();
+          return new Deferred<ArrayList<ArrayList<KeyValue>>>();
+        }
+        return Deferred.fromResult(null);
+      }
+      final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+      row.add(row(BASE_TIME + returned++ * Const.MAX_TIMESPAN));
+      final ArrayList<ArrayList<KeyValue>> rows =
+        new ArrayList<ArrayList<KeyValue>>(1);
+      rows.add(row);
+      return Deferred.fromResult(rows);
+    }
+
+    @Override
+    void close(final Scanner scanner) {
+      closed++;
+    }
+
+    /** Returns a compacted row with a data point every minute.  */
+    private KeyValue row(final long base_time) {
+      final byte[] key = IncomingDataPoints.rowKeyTemplate(tsdb, "sys.cpu",
+        Collections.singletonMap("host", "a"));
+      Bytes.setInt(key, (int) base_time, tsdb.metrics.width());
+      final byte[] qualifiers = new byte[60 * 2];
+      final byte[] values = new byte[60 * 8 + 1];
+      for (int i = 0; i < 60; i++) {
+        Bytes.setShort(qualifiers, (short) (i * 60 << Const.FLAG_BITS | 0x7),
+                       i * 2);
+        Bytes.setLong(values, i, i * 8);
+      }
+      return new KeyValue(key, TSDB.FAMILY, qualifiers, values);
+    }
+
+  }
+
+  private static long materialized(final TSDB tsdb) {
+    return ((AtomicLong) Whitebox.getInternalState(tsdb.materializer,
+                                                   "groups_materialized"))
+      .get();
+  }
+
+  private String rank(final int limit, final boolean bottom,
+                      final Aggregator ranker) {
+    return rank(uncached, limit, bottom, ranker);
+  }
+
+  /** Runs a top-N query and returns the hosts kept, in order.  */
+  private static String rank(final TSDB tsdb, final String metric,
+                             final long start, final long end,
+                             final int limit) {
+    final Query query = tsdb.newQuery();
+    query.setStartTime(start);
+    query.setEndTime(end);
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "*");
+    query.setTimeSeries(metric, tags, Aggregators.SUM, false);
+    query.setRankLimit(limit, false, Aggregators.SUM);
+    final ArrayList<String> hosts = new ArrayList<String>();
+    for (final DataPoints dps : query.run()) {
+      hosts.add(dps.getTags().get("host"));
+    }
+    return hosts.toString();
+  }
+
+  /**
+   * Runs a query on sys.mem that keeps only some hosts.
+   * @return The hosts kept, in order.  Hosts b and c always have the same
+   * values, so either one can come first: they're both called b.
+   */
+  private static String rank(final TSDB tsdb, final int limit,
+                             final boolean bottom, final Aggregator ranker) {
+    final Query query = tsdb.newQuery();
+    query.setStartTime(NOW - 3600);
+    query.setEndTime(NOW);
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "*");
+    query.setTimeSeries("sys.mem", tags, Aggregators.SUM, false);
+    query.setRankLimit(limit, bottom, ranker);
+    final ArrayList<String> hosts = new ArrayList<String>();
+    for (final DataPoints dps : query.run()) {
+      hosts.add(dps.getTags().get("host").replace('c', 'b'));
+    }
+    return hosts.toString();
+  }
+
+  /**
+   * Runs the same query with and without the cache and checks that the
+   * results are identical within the time range of the query.  Without the
+   * cache, we also get the points of the whole time range we scanned.
+   */
+  private void assertSameResults(final long start, final long end) {
+    final ArrayList<String> expected = run(uncached, start, end, true);
+    assertFalse(expected.isEmpty());
+    assertEquals(expected, run(tsdb, start, end, false));
+  }
+
+  /**
+   * Runs a query and returns its results as sorted strings.
+   * @param clip If true, points outside of the time range are ignored.
+   */
+  private static ArrayList<String> run(final TSDB tsdb,
+                                       final long start, final long end,
+                                       final boolean clip) {
+    final Query query = tsdb.newQuery();
+    query.setStartTime(start);
+    query.setEndTime(end);
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "*");
+    query.setTimeSeries("sys.cpu", tags, Aggregators.SUM, false);
+    query.downsample(600, Aggregators.AVG);
+    final ArrayList<String> results = new ArrayList<String>();
+    for (final DataPoints dps : query.run()) {
+      final StringBuilder buf = new StringBuilder();
+      buf.append(new TreeMap<String, String>(dps.getTags())).append(':');
+      for (final DataPoint dp : dps) {
+        if (clip && (dp.timestamp() < start || dp.timestamp() > end)) {
+          continue;
+        }
+        buf.append(' ').append(dp.timestamp()).append('=')
+          .append(dp.toDouble());
+      }
+      results.add(buf.toString());
+    }
+    Collections.sort(results);
+    return results;
+  }
+
+  private static long counter(final QueryCache cache, final String name) {
+    return ((AtomicLong) Whitebox.getInternalState(cache, name)).get();
+  }
+
+  /**
+   * Returns a new TSDB that knows our UIDs, with all our data in memory.
+   * @param cache Whether or not to enable the query cache.
+   */
+  private static TSDB newTsdb(final boolean cache) {
+    System.setProperty("tsd.core.hot_tier.size", "" + (64 << 20));
+    System.setProperty("tsd.core.hot_tier.window", "" + 2 * 86400);
+    if (cache) {
+      System.setProperty("tsd.query.cache.size", "" + (16 << 20));
+    } else {
+      System.clearProperty("tsd.query.cache.size");
+    }
+    final TSDB tsdb;
+    try {
+      tsdb = new TSDB(new HBaseClient("localhost"), "tsdb", "tsdb-uid");
+    } finally {
+      System.clearProperty("tsd.core.hot_tier.size");
+      System.clearProperty("tsd.core.hot_tier.window");
+    }
+    // Pretend the TSD has been running long enough to have all our data.
+    ((AtomicLong) Whitebox.getInternalState(tsdb.hot_tier,
+                                            "complete_since")).set(0);
+    addUid(tsdb.metrics, "sys.cpu", 1);
+    addUid(tsdb.tag_names, "host", 1);
+    addUid(tsdb.tag_values, "a", 1);
+    addUid(tsdb.tag_values, "b", 2);
+    addUid(tsdb.tag_values, "c", 3);
+    addUid(tsdb.tag_values, "d", 4);
+    addUid(tsdb.metrics, "sys.mem", 2);
+    for (long ts = DATA_START; ts <= NOW; ts += 60) {
+      addPoint(tsdb, "sys.cpu", ts, "a", ts % 7);
+      addPoint(tsdb, "sys.cpu", ts + 30, "b", ts % 11);
+    }
+    // Constant values, except for a spike in the first point of "a".
+    for (long ts = NOW - 3600; ts <= NOW; ts += 60) {
+      addPoint(tsdb, "sys.mem", ts, "a", ts == NOW - 3600 ? 9 : 1);
+      addPoint(tsdb, "sys.mem", ts, "b", 3);
+      addPoint(tsdb, "sys.mem", ts, "c", 3);
+      addPoint(tsdb, "sys.mem", ts, "d", 2);
+    }
+    return tsdb;
+  }
+
+  /** Adds a data point to the hot tier, like {@link TSDB#addPoint} would.  */
+  private static void addPoint(final TSDB tsdb, final String metric,
+                               final long timestamp, final String host,
+                               final long value) {
+    final Map<String, String> tags = Collections.singletonMap("host", host);
+    final byte[] row = IncomingDataPoints.rowKeyTemplate(tsdb, metric, tags);
+    Bytes.setInt(row, (int) (timestamp - timestamp % Const.MAX_TIMESPAN),
+                 tsdb.metrics.width());
+    tsdb.hot_tier.add(row, tsdb.metrics.width(), timestamp,
+                      Bytes.fromLong(value), (short) 0x7);
+    if (tsdb.cardinality != null) {
+      tsdb.cardinality.add(row, tsdb.metrics.width(), tsdb.tag_names.width(),
+                           tsdb.tag_values.width());
+    }
+  }
+
+  /** Puts a UID mapping in the caches of the given {@link UniqueId}.  */
+  @SuppressWarnings("unchecked")
+  static void addUid(final UniqueId uid, final String name,
+                             final int id) {
+    final byte[] bytes = new byte[uid.width()];
+    bytes[bytes.length - 1] = (byte) id;
+    ((ConcurrentHashMap<String, byte[]>)
+     Whitebox.getInternalState(uid, "nameCache")).put(name, bytes);
+    ((ConcurrentHashMap<String, String>)
+     Whitebox.getInternalState(uid, "idCache"))
+      .put(new String(bytes, CHARSET), name);
+  }
+
+}
@@ -21,13 +21,21 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 import java.lang.Boolean;
 
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.TimeoutException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
 import org.hbase.async.HBaseException;
 import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
@@ -40,7 +48,7 @@ import net.opentsdb.uid.NoSuchUniqueName;
 /**
  * Non-synchronized implementation of {@link Query}.
  */
-final class TsdbQuery implements Query {
+class TsdbQuery implements Query {
 
   private static final Logger LOG = LoggerFactory.getLogger(TsdbQuery.class);
 
@@ -54,6 +62,53 @@ final class TsdbQuery implements Query {
    */
   static final Histogram scanlatency = new Histogram(16000, (short) 2, 100);
 
+  /**
+   * Maximum number of rows we fetch individually when we know which series
+   * match (see {@link #fetchRows}).  Beyond that we scan instead.  Set with
+   * {@code tsd.query.series_index.max_gets}.
+   */
+  private static final int MAX_INDEX_GETS =
+    Integer.getInteger("tsd.query.series_index.max_gets", 2000);
+
+  /**
+   * Whether a query that gives a single value for each tag, with no
+   * {@code *} nor {@code |}, only wants the series with exactly those tags.
+   * When all the series of a metric have the same tag names, this lets us
+   * get the rows of such a query directly instead of scanning all the
+   * series of the metric.  Set with {@code tsd.query.exact_gets}.
+   * <p>
+   * We only know the tag names of a metric from its cardinality sketches
+   * (see {@link SeriesCardinality}), so this requires them, and it assumes
+   * that this TSD sees all the tag names each metric is written with.
+   */
+  private static final boolean EXACT_GETS =
+    Boolean.getBoolean("tsd.query.exact_gets");
+
+  /**
+   * Queries that match all the series of a metric that has more series than
+   * this are logged.  Set with {@code tsd.query.warn_series}.
+   */
+  private static final long WARN_SERIES =
+    Long.getLong("tsd.query.warn_series", 10000);
+
+  /** Number of queries that didn't complete before their deadline. */
+  static final AtomicLong queries_timedout = new AtomicLong();
+
+  /** Number of queries that got the rows of their series directly. */
+  static final AtomicLong queries_exact = new AtomicLong();
+
+  /** Number of queries that matched more than {@link #WARN_SERIES}. */
+  static final AtomicLong queries_wide = new AtomicLong();
+
+  /** Number of bytes currently loaded by all the queries in flight. */
+  private static final AtomicLong inflight_bytes = new AtomicLong();
+
+  /** Number of queries refused because the global budget was exhausted. */
+  static final AtomicLong queries_rejected = new AtomicLong();
+
+  /** Number of queries aborted because they went over their budget. */
+  static final AtomicLong queries_aborted = new AtomicLong();
+
   /**
    * Charset to use with our server-side row-filter.
    * We use this one because it preserves every possible byte unchanged.
@@ -118,6 +173,21 @@ final class TsdbQuery implements Query {
   
   private Map<byte[], Boolean> aggregate_tag = new HashMap<byte[], Boolean>();
 
+  /** Where to record the timings of this query (can be {@code null}). */
+  private QueryProfile profile;
+
+  /** UNIX time (in ms) at which we give up, 0 if never.  */
+  private long deadline;
+
+  /** Number of groups to keep, 0 to keep them all.  */
+  private int rank_limit;
+
+  /** Whether we keep the groups that rank the lowest.  */
+  private boolean rank_bottom;
+
+  /** How to rank groups, {@code null} to rank by their last data point.  */
+  private Aggregator ranker;
+
   /** Constructor. */
   public TsdbQuery(final TSDB tsdb) {
     this.tsdb = tsdb;
@@ -180,6 +250,24 @@ final class TsdbQuery implements Query {
     this.sample_interval = interval;
   }
 
+  public void setProfile(final QueryProfile profile) {
+    this.profile = profile;
+  }
+
+  public void setDeadline(final long deadline) {
+    this.deadline = deadline;
+  }
+
+  public void setRankLimit(final int limit, final boolean bottom,
+                           final Aggregator ranker) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("negative limit: " + limit);
+    }
+    this.rank_limit = limit;
+    this.rank_bottom = bottom;
+    this.ranker = ranker;
+  }
+
   /**
    * Extracts all the tags we must use to group results.
    * <ul>
@@ -248,72 +336,803 @@ final class TsdbQuery implements Query {
   }
 
   public DataPoints[] run() throws HBaseException {
-    return groupByAndAggregate(findSpans());
+    final long max_global_bytes = tsdb.query_max_global_bytes;
+    if (max_global_bytes > 0 && inflight_bytes.get() >= max_global_bytes) {
+      queries_rejected.incrementAndGet();
+      throw new QueryLimitException("Too many queries in flight ("
+        + inflight_bytes.get() + " bytes loaded, limit is " + max_global_bytes
+        + "), please try again later");
+    }
+    // Number of bytes this query charged against the global budget.
+    final long[] charged = { 0 };
+    try {
+      final QueryCache cache = tsdb.query_cache;
+      if (cache != null) {
+        return (rank_limit > 0 ? runRankedWithCache(cache, charged)
+                : runWithCache(cache, charged));
+      }
+      final DataPoints[] groups = findAndGroup(getStartTime(), charged);
+      // Rank the lazy groups first, so only the winners are materialized.
+      return materialize(rank_limit > 0 ? rank(groups) : groups);
+    } finally {
+      if (charged[0] != 0) {
+        inflight_bytes.addAndGet(-charged[0]);
+      }
+    }
+  }
+
+  /**
+   * Finds the last data point of each time series matching this query.
+   * Time series aren't grouped or aggregated.
+   * @return One {@link DataPoints} with a single data point per series.
+   */
+  DataPoints[] lastDataPoints() throws HBaseException {
+    final long[] charged = { 0 };
+    try {
+      final TreeMap<byte[], Span> spans = findSpans(getStartTime(), charged);
+      if (spans == null) {
+        return NO_RESULT;
+      }
+      final DataPoints[] results = new DataPoints[spans.size()];
+      int i = 0;
+      for (final Span span : spans.values()) {
+        results[i++] = ArrayDataPoints.lastOf(span);
+      }
+      return results;
+    } finally {
+      if (charged[0] != 0) {
+        inflight_bytes.addAndGet(-charged[0]);
+      }
+    }
+  }
+
+  /**
+   * Scans HBase and groups the {@link Span}s found.
+   * @param start See {@link #findSpans}.
+   * @param charged See {@link #findSpans}.
+   * @return The groups, which will aggregate their data points lazily.
+   */
+  private DataPoints[] findAndGroup(final long start, final long[] charged) {
+    final TreeMap<byte[], Span> spans = findSpans(start, charged);
+    final long starttime = System.nanoTime();
+    final DataPoints[] groups = groupByAndAggregate(spans, start);
+    if (profile != null) {
+      profile.addTime(QueryProfile.GROUP_BY, System.nanoTime() - starttime);
+      profile.addCount(QueryProfile.GROUPS, groups.length);
+    }
+    return groups;
+  }
+
+  /**
+   * Runs this query, reusing results from the cache where possible.
+   * <p>
+   * If the cache has results for this query that cover the beginning of our
+   * time range, we only scan HBase for the data after the point where the
+   * cached results are complete, and stitch both together.  The results are
+   * then put back in the cache, so that a dashboard refreshing the same
+   * graph only ever reads the last few rows.
+   * <p>
+   * The cache holds the results for the whole time range we scan, which
+   * starts a bit before our start time, but we only return the data points
+   * within our time range, whether or not they come from the cache.
+   * Otherwise a query could get the points of an earlier query.
+   * @param cache The cache to use.
+   * @param charged See {@link #findSpans}.
+   */
+  private DataPoints[] runWithCache(final QueryCache cache,
+                                    final long[] charged) {
+    final String key = cacheKey();
+    final long scan_start = getScanStartTime(getStartTime());
+    final long scan_end = getScanEndTime();
+    final QueryCache.Entry entry = cache.get(key);
+    if (entry == null || entry.start_time > scan_start
+        || entry.complete_until <= scan_start) {
+      cache.miss();
+      final ArrayDataPoints[] results =
+        materialize(findAndGroup(getStartTime(), charged));
+      store(cache, key, scan_start, scan_end, results);
+      return merge(results, null, Long.MAX_VALUE,
+                   getStartTime(), getEndTime());
+    } else if (scan_end <= entry.complete_until) {
+      cache.hit();
+      return merge(entry.results, null, scan_end + 1,
+                   getStartTime(), getEndTime());
+    }
+    cache.partialHit();
+    // Scan from where the cached results stop being complete.  The scan
+    // will still start a bit before that so that the points after that time
+    // are computed exactly like in a full scan.
+    final ArrayDataPoints[] tail =
+      materialize(findAndGroup(entry.complete_until, charged));
+    final ArrayDataPoints[] results = merge(entry.results, tail,
+                                            entry.complete_until,
+                                            scan_start, scan_end);
+    store(cache, key, scan_start, scan_end, results);
+    return merge(results, null, Long.MAX_VALUE,
+                 getStartTime(), getEndTime());
+  }
+
+  /**
+   * Runs a ranked query, reusing its results from the cache if the exact
+   * same query was run before.
+   * <p>
+   * Unlike in {@link #runWithCache}, cached results can't be stitched with
+   * new ones, because new data can change which groups win, and they can't
+   * be reused for another time range either.  Only the winning groups are
+   * materialized and cached.
+   * @param cache The cache to use.
+   * @param charged See {@link #findSpans}.
+   */
+  private DataPoints[] runRankedWithCache(final QueryCache cache,
+                                          final long[] charged) {
+    final String key = cacheKey() + '|' + (rank_bottom ? "bottom" : "top")
+      + rank_limit + '-' + (ranker == null ? "last" : ranker.toString())
+      + '|' + getStartTime() + '-' + getEndTime();
+    final long scan_start = getScanStartTime(getStartTime());
+    final long scan_end = getScanEndTime();
+    final QueryCache.Entry entry = cache.get(key);
+    if (entry != null && scan_end <= entry.complete_until) {
+      cache.hit();
+      return merge(entry.results, null, scan_end + 1,
+                   getStartTime(), getEndTime());
+    }
+    cache.miss();
+    final ArrayDataPoints[] results =
+      materialize(rank(findAndGroup(getStartTime(), charged)));
+    // Only complete results will ever be a hit, see above.
+    store(cache, key, scan_start, scan_end, results);
+    return merge(results, null, Long.MAX_VALUE, getStartTime(), getEndTime());
+  }
+
+  /** A group and its rank.  */
+  private static final class Ranked {
+    final DataPoints group;
+    final double score;
+
+    Ranked(final DataPoints group, final double score) {
+      this.group = group;
+      this.score = score;
+    }
+  }
+
+  /**
+   * Keeps only the {@link #rank_limit} groups that rank the best.
+   * We keep the best groups seen so far in a heap whose root is the worst
+   * of them, so we use memory proportional to the limit, not to the number
+   * of groups.
+   * @param groups The groups to rank.
+   * @return The best groups, best first.
+   */
+  private DataPoints[] rank(final DataPoints[] groups) {
+    final long start = System.nanoTime();
+    final Comparator<Ranked> worst_first = new Comparator<Ranked>() {
+      public int compare(final Ranked a, final Ranked b) {
+        final int cmp = Double.compare(a.score, b.score);
+        return rank_bottom ? -cmp : cmp;
+      }
+    };
+    final PriorityQueue<Ranked> best =
+      new PriorityQueue<Ranked>(rank_limit + 1, worst_first);
+    for (final DataPoints group : groups) {
+      final SeekableView it = group.iterator();
+      if (!it.hasNext()) {
+        continue;
+      }
+      final double score;
+      if (ranker == null) {
+        DataPoint dp;
+        do {
+          dp = it.next();
+        } while (it.hasNext());
+        score = dp.toDouble();
+      } else {
+        score = ranker.runDouble(new Aggregator.Doubles() {
+          public boolean hasNextValue() {
+            return it.hasNext();
+          }
+          public double nextDoubleValue() {
+            return it.next().toDouble();
+          }
+        });
+      }
+      if (Double.isNaN(score)) {
+        continue;
+      }
+      best.add(new Ranked(group, score));
+      if (best.size() > rank_limit) {
+        best.poll();  // Drop the worst one.
+      }
+    }
+    final DataPoints[] results = new DataPoints[best.size()];
+    for (int i = results.length - 1; i >= 0; i--) {
+      results[i] = best.poll().group;
+    }
+    if (profile != null) {
+      profile.addTime(QueryProfile.AGGREGATION, System.nanoTime() - start);
+    }
+    return results;
+  }
+
+  /**
+   * Aggregates the given groups and keeps the results in memory, so they
+   * can be iterated and sized without aggregating them again.
+   * @param groups The groups to materialize.
+   */
+  private ArrayDataPoints[] materialize(final DataPoints[] groups) {
+    final long start = System.nanoTime();
+    final ArrayDataPoints[] results = tsdb.materializer.materialize(groups);
+    if (profile != null) {
+      profile.addTime(QueryProfile.AGGREGATION, System.nanoTime() - start);
+    }
+    return results;
+  }
+
+  /**
+   * Stores the results of this query in the cache.
+   * Only the part of the results that's complete is actually useful, since
+   * the rest will have to be read again next time.
+   */
+  private void store(final QueryCache cache, final String key,
+                     final long scan_start, final long scan_end,
+                     final ArrayDataPoints[] results) {
+    final long now = System.currentTimeMillis() / 1000;
+    // Data older than this shouldn't change anymore, as rows that old are no
+    // longer written to.  Leave some room for the lerp and the downsampling
+    // of the points right before that time, which depend on later points.
+    final long complete_until = Math.min(scan_end, now - Const.MAX_TIMESPAN
+                                         - Const.MAX_TIMESPAN
+                                         - sample_interval);
+    if (complete_until > scan_start) {
+      cache.put(key, new QueryCache.Entry(scan_start, complete_until,
+                                          results));
+    }
+  }
+
+  /**
+   * Stitches together cached results and new results.
+   * @param head The cached results to use before {@code boundary}.
+   * @param tail The new results to use from {@code boundary} onwards.
+   * Can be {@code null} if we only need cached results.
+   * @param boundary The timestamp at which to switch from head to tail.
+   * @param start Points strictly before this time are dropped.
+   * @param end Points strictly after this time are dropped.
+   */
+  private static ArrayDataPoints[] merge(final ArrayDataPoints[] head,
+                                         final ArrayDataPoints[] tail,
+                                         final long boundary,
+                                         final long start,
+                                         final long end) {
+    final HashMap<String, ArrayDataPoints> heads =
+      new HashMap<String, ArrayDataPoints>(head.length);
+    for (final ArrayDataPoints dps : head) {
+      heads.put(seriesKey(dps), dps);
+    }
+    final ArrayList<ArrayDataPoints> results =
+      new ArrayList<ArrayDataPoints>(head.length);
+    if (tail != null) {
+      for (final ArrayDataPoints dps : tail) {
+        final ArrayDataPoints merged =
+          ArrayDataPoints.concat(heads.remove(seriesKey(dps)), dps, boundary);
+        addIfNotEmpty(results, merged.slice(start, end));
+      }
+    }
+    // Series for which there's no new data.
+    for (final ArrayDataPoints dps : head) {
+      if (heads.containsKey(seriesKey(dps))) {
+        final ArrayDataPoints merged =
+          ArrayDataPoints.concat(dps, null, boundary);
+        addIfNotEmpty(results, merged.slice(start, end));
+      }
+    }
+    return results.toArray(new ArrayDataPoints[results.size()]);
+  }
+
+  private static void addIfNotEmpty(final ArrayList<ArrayDataPoints> results,
+                                    final ArrayDataPoints dps) {
+    if (dps.size() > 0) {
+      results.add(dps);
+    }
+  }
+
+  /** Returns a key that identifies a result within the results of a query. */
+  private static String seriesKey(final DataPoints dps) {
+    return new TreeMap<String, String>(dps.getTags()).toString();
+  }
+
+  /**
+   * Returns a key that identifies the results of this query, regardless of
+   * its time range.
+   */
+  String cacheKey() {
+    final StringBuilder buf = new StringBuilder(64);
+    buf.append(Arrays.toString(metric));
+    for (final byte[] tag : tags) {
+      buf.append(Arrays.toString(tag));
+    }
+    buf.append('|');
+    if (group_bys != null) {
+      final ArrayList<byte[]> sorted = new ArrayList<byte[]>(group_bys);
+      Collections.sort(sorted, Bytes.MEMCMP);
+      for (final byte[] tag_id : sorted) {
+        buf.append(Arrays.toString(tag_id));
+        final byte[][] value_ids = (group_by_values == null
+                                    ? null
+                                    : group_by_values.get(tag_id));
+        if (value_ids != null) {
+          // Whether we group by each value or aggregate them all.
+          buf.append('=').append(aggregate_tag.get(tag_id));
+          for (final byte[] value_id : value_ids) {
+            buf.append(Arrays.toString(value_id));
+          }
+        }
+        buf.append(',');
+      }
+    }
+    buf.append('|').append(aggregator).append('|').append(rate);
+    if (downsampler != null) {
+      buf.append('|').append(sample_interval).append('-').append(downsampler);
+    }
+    return buf.toString();
   }
 
   /**
    * Finds all the {@link Span}s that match this query.
    * This is what actually scans the HBase table and loads the data into
    * {@link Span}s.
+   * @param start The start time of the data we need, usually
+   * {@link #getStartTime}.  We actually scan from a bit before that, see
+   * {@link #getScanStartTime}.
+   * @param charged A one-element array in which we keep track of how many
+   * bytes we charged against the global budget, so the caller can release
+   * them once it's done.
    * @return A map from HBase row key to the {@link Span} for that row key.
    * Since a {@link Span} actually contains multiple HBase rows, the row key
    * stored in the map has its timestamp zero'ed out.
    * @throws HBaseException if there was a problem communicating with HBase to
    * perform the search.
    * @throws IllegalArgumentException if bad data was retreived from HBase.
+   * @throws QueryLimitException if this query loaded too much data.
    */
-  private TreeMap<byte[], Span> findSpans() throws HBaseException {
+  private TreeMap<byte[], Span> findSpans(final long start,
+                                          final long[] charged)
+    throws HBaseException {
+    final long scan_start = getScanStartTime(start);
     final short metric_width = tsdb.metrics.width();
     final TreeMap<byte[], Span> spans =  // The key is a row key from HBase.
       new TreeMap<byte[], Span>(new SpanCmp(metric_width));
     int nrows = 0;
-    int hbase_time = 0;  // milliseconds.
+    long ncells = 0;
+    long nbytes = 0;
+    long npoints = 0;
+    long compaction_time = 0;  // nanoseconds.
+    long hbase_time = 0;  // nanoseconds.
+    final long max_bytes = tsdb.query_max_bytes;
+    final long max_datapoints = tsdb.query_max_datapoints;
+    final long max_global_bytes = tsdb.query_max_global_bytes;
     long starttime = System.nanoTime();
-    final Scanner scanner = getScanner();
+    if (tsdb.cardinality != null && matchesAllSeries()) {
+      final long estimate = tsdb.cardinality.estimate(metric);
+      if (estimate > WARN_SERIES) {
+        queries_wide.incrementAndGet();
+        LOG.warn(this + " has no tag filter and its metric has about "
+                 + estimate + " series");
+      }
+    }
+    // When downsampling, read as much as we can from the rollups, if any,
+    // then the rest from the data table.
+    final Rollups rollups = tsdb.rollups;
+    final int rollup = pickRollup(scan_start);
+    final long rollup_end = (rollup < 0 ? 0 : Math.min(
+      rollups.completeUntil(System.currentTimeMillis() / 1000),
+      getScanEndTime()));
+    boolean from_rollup = rollup >= 0 && rollup_end > scan_start;
+    // The most recent rows may be in memory, in which case we only need to
+    // scan HBase for the rows before those.
+    final HotTier hot_tier = tsdb.hot_tier;
+    final long hot_start = (hot_tier == null ? Long.MAX_VALUE
+      : Math.max(hot_tier.rowsCompleteSince(),
+                 from_rollup ? rollup_end : scan_start));
+    final boolean from_hot = hot_start < getScanEndTime();
+    Scanner scanner = null;
+    if (from_rollup) {
+      rollups.routed();
+      scanner = getScanner(rollups.table(rollup), scan_start,
+                           (int) rollup_end);
+    }
+    // Rows fetched individually thanks to the series index, if any.
+    ArrayList<ArrayList<KeyValue>> fetched = null;
     try {
+      // Unless everything is in memory, read the data table.
+      if (!from_rollup && (!from_hot || scan_start < hot_start)) {
+        fetched = fetchRows(scan_start,
+                            from_hot ? hot_start : getScanEndTime(), start);
+        if (fetched != null) {
+          // We already have the rows.
+        } else if (from_hot) {
+          scanner = getScanner(tsdb.table, scan_start,
+                               (int) hot_start);
+        } else {
+          scanner = getScanner(tsdb.table, scan_start,
+                               (end_time == UNSET
+                                ? -1  // Will scan until the end (0xFFF...).
+                                : (int) getScanEndTime()));
+        }
+      }
       ArrayList<ArrayList<KeyValue>> rows;
-      while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
-        hbase_time += (System.nanoTime() - starttime) / 1000000;
-        for (final ArrayList<KeyValue> row : rows) {
-          final byte[] key = row.get(0).key();
-          if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
-            throw new IllegalDataException("HBase returned a row that doesn't match"
-                + " our scanner (" + scanner + ")! " + row + " does not start"
-                + " with " + Arrays.toString(metric));
+      while (scanner != null || fetched != null) {
+        while ((rows = (scanner != null
+                        ? join(nextRows(scanner), scanner)
+                        : fetched)) != null) {
+          fetched = null;
+          hbase_time += System.nanoTime() - starttime;
+          for (final ArrayList<KeyValue> row : rows) {
+            final byte[] key = row.get(0).key();
+            if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
+              throw new IllegalDataException("HBase returned a row that"
+                  + " doesn't match our scanner (" + scanner + ")! " + row
+                  + " does not start with " + Arrays.toString(metric));
+            }
+            Span datapoints = spans.get(key);
+            if (datapoints == null) {
+              datapoints = new Span(tsdb);
+              spans.put(key, datapoints);
+            }
+            final KeyValue compacted;
+            if (from_rollup) {
+              compacted = Rollups.toDataPoints(row.get(0), downsampler);
+            } else {
+              final long compaction_start = System.nanoTime();
+              compacted = tsdb.compact(row);
+              compaction_time += System.nanoTime() - compaction_start;
+            }
+            datapoints.addRow(compacted);
+            nrows++;
+            ncells += row.size();
+            final long size = compacted.key().length
+              + compacted.qualifier().length + compacted.value().length;
+            nbytes += size;
+            npoints += compacted.qualifier().length / 2;
+            if (max_global_bytes > 0) {
+              charged[0] += size;
+              if (inflight_bytes.addAndGet(size) > max_global_bytes) {
+                abort(scanner, "all queries in flight loaded more than "
+                      + max_global_bytes + " bytes");
+              }
+            }
+            if (max_bytes > 0 && nbytes > max_bytes) {
+              abort(scanner, "loaded more than " + max_bytes + " bytes");
+            } else if (max_datapoints > 0 && npoints > max_datapoints) {
+              abort(scanner, "loaded more than " + max_datapoints
+                    + " data points");
+            }
+            starttime = System.nanoTime();
           }
+        }
+        final long raw_end = from_hot ? hot_start : getScanEndTime();
+        if (from_rollup && rollup_end < raw_end) {
+          // Now read the rest of the time range from the data table.
+          from_rollup = false;
+          fetched = fetchRows(rollup_end, raw_end,
+                              Math.max(start, rollup_end));
+          scanner = (fetched == null
+                     ? getScanner(tsdb.table, rollup_end, (int) raw_end)
+                     : null);
+        } else {
+          scanner = null;
+        }
+      }
+      hbase_time += System.nanoTime() - starttime;
+      if (from_hot) {
+        final long hot_time = System.nanoTime();
+        for (final KeyValue row : hot_tier.rows(metric, keyPattern(),
+                                                hot_start, getScanEndTime())) {
+          final byte[] key = row.key();
           Span datapoints = spans.get(key);
           if (datapoints == null) {
             datapoints = new Span(tsdb);
             spans.put(key, datapoints);
           }
-          datapoints.addRow(tsdb.compact(row));
+          datapoints.addRow(row);
           nrows++;
-          starttime = System.nanoTime();
+          nbytes += key.length + row.qualifier().length + row.value().length;
+          npoints += row.qualifier().length / 2;
+        }
+        if (profile != null) {
+          profile.addTime(QueryProfile.HOT_TIER, System.nanoTime() - hot_time);
         }
       }
+      starttime = System.nanoTime();
     } catch (RuntimeException e) {
       throw e;
     } catch (Exception e) {
       throw new RuntimeException("Should never be here", e);
     } finally {
-      hbase_time += (System.nanoTime() - starttime) / 1000000;
-      scanlatency.add(hbase_time);
+      hbase_time += System.nanoTime() - starttime;
+      scanlatency.add((int) (hbase_time / 1000000));
+      if (profile != null) {
+        profile.addTime(QueryProfile.HBASE_SCAN, hbase_time);
+        profile.addTime(QueryProfile.COMPACTION, compaction_time);
+        profile.addCount(QueryProfile.ROWS, nrows);
+        profile.addCount(QueryProfile.CELLS, ncells);
+        profile.addCount(QueryProfile.BYTES, nbytes);
+        profile.addCount(QueryProfile.SPANS, spans.size());
+      }
     }
-    LOG.info(this + " matched " + nrows + " rows in " + spans.size() + " spans");
+    LOG.info(this + " matched " + nrows + " rows in " + spans.size()
+             + " spans (" + nbytes + " bytes, " + npoints + " points)");
     if (nrows == 0) {
       return null;
     }
     return spans;
   }
 
+  /**
+   * Returns which rollup table to read from, if any.
+   * @param scan_start The time from which we start scanning.
+   * @return The index of the rollup table, or -1 if we can only read the
+   * data table, e.g. because some of the rows we need were written before
+   * {@link Rollups#since} and may not have been rolled up.
+   */
+  int pickRollup(final long scan_start) {
+    final Rollups rollups = tsdb.rollups;
+    if (rollups == null || downsampler == null
+        || scan_start < rollups.since()) {
+      return -1;
+    }
+    return rollups.pick(sample_interval, downsampler);
+  }
+
+  /**
+   * Fetches the rows of the data table in a time range one by one, when we
+   * know which series match this query without having to scan them all.
+   * That's the case when the query names a single series (see
+   * {@link #exactKey}), or when the series index can tell us.
+   * @param start Rows whose base time is before this are ignored.
+   * @param end Rows whose base time is at or after this are ignored.
+   * @param data_start The time from which we actually need data points,
+   * see {@link SeriesIndex#find}.
+   * @return The rows found (possibly none), in order for each series, or
+   * {@code null} if we don't know which series match or if scanning would
+   * be cheaper.
+   */
+  private ArrayList<ArrayList<KeyValue>> fetchRows(final long start,
+                                                   final long end,
+                                                   final long data_start) {
+    if (start >= end) {
+      return null;
+    }
+    final byte[] key = EXACT_GETS ? exactKey() : null;
+    if (key != null && rowsBetween(start, end) <= MAX_INDEX_GETS) {
+      final ArrayList<byte[]> keys = new ArrayList<byte[]>(1);
+      keys.add(key);
+      queries_exact.incrementAndGet();
+      return get(keys, start, end);
+    }
+    final ArrayList<byte[]> keys = indexedKeys(start, end, data_start);
+    if (keys == null) {
+      return null;
+    }
+    final ArrayList<ArrayList<KeyValue>> rows = get(keys, start, end);
+    tsdb.series_index.routed();
+    return rows;
+  }
+
+  /**
+   * Returns the row keys (with the timestamp zeroed out) of the series the
+   * series index says match this query, if it's worth fetching their rows
+   * one by one.  See {@link #fetchRows} for the parameters.
+   * @return The keys, or {@code null} if we should scan instead.
+   */
+  ArrayList<byte[]> indexedKeys(final long start, final long end,
+                                final long data_start) {
+    final SeriesIndex index = tsdb.series_index;
+    if (index == null || start < index.since() || matchesAllSeries()) {
+      return null;
+    }
+    final ArrayList<byte[]> keys = index.find(tsdb, this, metric,
+                                              keyPattern(), start, data_start);
+    // Fetching most of the series one by one is more expensive than
+    // scanning them all.
+    if (keys.size() * 4 > index.count(metric)
+        || keys.size() * rowsBetween(start, end) > MAX_INDEX_GETS) {
+      return null;
+    }
+    return keys;
+  }
+
+  /**
+   * Returns the row key (with the timestamp zeroed out) of the only series
+   * this query matches, or {@code null} if it may match several series.
+   * See {@link #EXACT_GETS}.  The query must name all the tags the metric
+   * was written with, so we need the sketches of the metric to know them.
+   */
+  byte[] exactKey() {
+    if (group_bys != null || tags.isEmpty() || tsdb.cardinality == null) {
+      return null;
+    }
+    final SeriesCardinality.Sketches sketches = tsdb.cardinality.get(metric);
+    // Without sketches, we can't tell whether the series have other tags.
+    if (sketches == null || sketches.tag_values.size() != tags.size()) {
+      return null;
+    }
+    final short metric_width = tsdb.metrics.width();
+    final short name_width = tsdb.tag_names.width();
+    for (final String name : sketches.tag_values.keySet()) {
+      if (!hasTag(SeriesCardinality.id(name), name_width)) {
+        return null;  // Some series have a tag the query doesn't name.
+      }
+    }
+    int size = metric_width + Const.TIMESTAMP_BYTES;
+    for (final byte[] tag : tags) {
+      size += tag.length;
+    }
+    final byte[] key = new byte[size];
+    System.arraycopy(metric, 0, key, 0, metric_width);
+    int pos = metric_width + Const.TIMESTAMP_BYTES;
+    for (final byte[] tag : tags) {  // Already sorted, like in row keys.
+      System.arraycopy(tag, 0, key, pos, tag.length);
+      pos += tag.length;
+    }
+    return key;
+  }
+
+  /** Returns whether one of the tags of this query has the given name.  */
+  private boolean hasTag(final byte[] name, final short name_width) {
+    for (final byte[] tag : tags) {
+      if (Bytes.memcmp(name, tag, 0, name_width) == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of rows each series has between two times.
+   * @param start Rows whose base time is before this are ignored.
+   * @param end Rows whose base time is at or after this are ignored.
+   */
+  private static long rowsBetween(final long start, final long end) {
+    return (end - firstRow(start) + Const.MAX_TIMESPAN - 1)
+      / Const.MAX_TIMESPAN;
+  }
+
+  /** Returns the base time of the first row at or after a time.  */
+  private static long firstRow(final long start) {
+    return ((start + Const.MAX_TIMESPAN - 1)
+            / Const.MAX_TIMESPAN * Const.MAX_TIMESPAN);
+  }
+
+  /**
+   * Gets the rows of some series in a time range, with one Get per row.
+   * @param keys The row keys of the series, with the timestamp zeroed out.
+   * @param start Rows whose base time is before this are ignored.
+   * @param end Rows whose base time is at or after this are ignored.
+   * @return The rows found (possibly none), in order for each series.
+   */
+  private ArrayList<ArrayList<KeyValue>> get(final ArrayList<byte[]> keys,
+                                             final long start,
+                                             final long end) {
+    final long first = firstRow(start);
+    final short metric_width = tsdb.metrics.width();
+    final ArrayList<Deferred<ArrayList<KeyValue>>> gets =
+      new ArrayList<Deferred<ArrayList<KeyValue>>>();
+    // Get rows in time order, so each series gets them in order.
+    for (long base_time = first; base_time < end;
+         base_time += Const.MAX_TIMESPAN) {
+      for (final byte[] key : keys) {
+        final byte[] row = key.clone();
+        Bytes.setInt(row, (int) base_time, metric_width);
+        gets.add(tsdb.client.get(new GetRequest(tsdb.table, row)
+                                 .family(TSDB.FAMILY)));
+      }
+    }
+    final ArrayList<Object> results = join(Deferred.group(gets), null);
+    final ArrayList<ArrayList<KeyValue>> rows =
+      new ArrayList<ArrayList<KeyValue>>(results.size());
+    for (final Object result : results) {
+      @SuppressWarnings("unchecked")
+      final ArrayList<KeyValue> row = (ArrayList<KeyValue>) result;
+      if (!row.isEmpty()) {
+        rows.add(row);
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Waits for the result of an RPC, until the deadline of this query.
+   * Unlike {@link Deferred#joinUninterruptibly}, this gives up when the
+   * thread is interrupted, which is how queries get cancelled.
+   * @param rpc The RPC to wait for.
+   * @param scanner The scanner to close if we give up, can be {@code null}.
+   * @return The result of the RPC.
+   * @throws QueryLimitException if the deadline expired.
+   * @throws CancellationException if the thread was interrupted.
+   */
+  <T> T join(final Deferred<T> rpc, final Scanner scanner) {
+    try {
+      if (deadline == 0) {
+        return rpc.join();
+      }
+      final long remaining = deadline - System.currentTimeMillis();
+      if (remaining > 0) {
+        return rpc.join(remaining);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();  // Preserve the interrupt status.
+      if (scanner != null) {
+        close(scanner);
+      }
+      throw new CancellationException("Query interrupted: " + this);
+    } catch (TimeoutException e) {
+      // Handled below.
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    }
+    queries_timedout.incrementAndGet();
+    if (scanner != null) {
+      close(scanner);
+    }
+    LOG.warn(this + " timed out");
+    throw new QueryLimitException("Query timed out.  Try a shorter time range"
+                                  + " or fewer time series.");
+  }
+
+  /** Returns whether this query has no tag filter at all.  */
+  private boolean matchesAllSeries() {
+    if (!tags.isEmpty()) {
+      return false;
+    } else if (group_bys != null && group_by_values != null) {
+      for (final byte[] tag_id : group_bys) {
+        if (group_by_values.get(tag_id) != null) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Closes the scanner and aborts this query.
+   * @param scanner The scanner to close.
+   * @param why A description of the limit that was exceeded.
+   * @throws QueryLimitException always.
+   */
+  private void abort(final Scanner scanner, final String why) {
+    queries_aborted.incrementAndGet();
+    if (scanner != null) {  // null when fetching rows one by one.
+      close(scanner);
+    }
+    LOG.warn(this + " aborted: " + why);
+    throw new QueryLimitException("Query aborted, it " + why
+      + ".  Try a shorter time range or fewer time series.");
+  }
+
+  /**
+   * Returns the next rows of a scanner.
+   * Tests override this and {@link #close} to not need HBase.
+   */
+  Deferred<ArrayList<ArrayList<KeyValue>>> nextRows(final Scanner scanner) {
+    return scanner.nextRows();
+  }
+
+  /** Closes a scanner whose results we're throwing away.  */
+  void close(final Scanner scanner) {
+    scanner.close();  // Don't wait, we don't need to.
+  }
+
   /**
    * Creates the {@link SpanGroup}s to form the final results of this query.
    * @param spans The {@link Span}s found for this query ({@link #findSpans}).
    * Can be {@code null}, in which case the array returned will be empty.
+   * @param start The start time given to {@link #findSpans}.
    * @return A possibly empty array of {@link SpanGroup}s built according to
    * any 'GROUP BY' formulated in this query.
    */
-  private DataPoints[] groupByAndAggregate(final TreeMap<byte[], Span> spans) {
+  private DataPoints[] groupByAndAggregate(final TreeMap<byte[], Span> spans,
+                                           final long start) {
     if (spans == null || spans.size() <= 0) {
       return NO_RESULT;
     }
@@ -321,7 +1140,7 @@ final class TsdbQuery implements Query {
       // We haven't been asked to find groups, so let's put all the spans
       // together in the same group.
       final SpanGroup group = new SpanGroup(tsdb,
-                                            getScanStartTime(),
+                                            getScanStartTime(start),
                                             getScanEndTime(),
                                             spans.values(),
                                             rate,
@@ -372,7 +1191,8 @@ final class TsdbQuery implements Query {
       //LOG.info("Span belongs to group " + Arrays.toString(group) + ": " + Arrays.toString(row));
       SpanGroup thegroup = groups.get(group);
       if (thegroup == null) {
-        thegroup = new SpanGroup(tsdb, getScanStartTime(), getScanEndTime(),
+        thegroup = new SpanGroup(tsdb, getScanStartTime(start),
+                                 getScanEndTime(),
                                  null, rate, aggregator,
                                  sample_interval, downsampler);
         thegroup.setExtraTags(extra_tags);
@@ -394,6 +1214,21 @@ final class TsdbQuery implements Query {
    * Creates the {@link Scanner} to use for this query.
    */
   Scanner getScanner() throws HBaseException {
+    return getScanner(tsdb.table, getScanStartTime(getStartTime()),
+                      (end_time == UNSET
+                       ? -1  // Will scan until the end (0xFFF...).
+                       : (int) getScanEndTime()));
+  }
+
+  /**
+   * Creates a {@link Scanner} for this query on the given table.
+   * @param table The table to scan (data table or rollup table).
+   * @param start The UNIX timestamp at which to start scanning.
+   * @param end The UNIX timestamp at which to stop scanning (exclusive), or
+   * -1 to scan until the end.
+   */
+  private Scanner getScanner(final byte[] table, final long start,
+                             final int end) throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
     final byte[] end_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
@@ -403,15 +1238,12 @@ final class TsdbQuery implements Query {
     // rely on having a few extra data points before & after the exact start
     // & end dates in order to do proper rate calculation or downsampling near
     // the "edges" of the graph.
-    Bytes.setInt(start_row, (int) getScanStartTime(), metric_width);
-    Bytes.setInt(end_row, (end_time == UNSET
-                           ? -1  // Will scan until the end (0xFFF...).
-                           : (int) getScanEndTime()),
-                 metric_width);
+    Bytes.setInt(start_row, (int) start, metric_width);
+    Bytes.setInt(end_row, end, metric_width);
     System.arraycopy(metric, 0, start_row, 0, metric_width);
     System.arraycopy(metric, 0, end_row, 0, metric_width);
 
-    final Scanner scanner = tsdb.client.newScanner(tsdb.table);
+    final Scanner scanner = tsdb.client.newScanner(table);
     scanner.setStartKey(start_row);
     scanner.setStopKey(end_row);
     if (tags.size() > 0 || group_bys != null) {
@@ -421,8 +1253,11 @@ final class TsdbQuery implements Query {
     return scanner;
   }
 
-  /** Returns the UNIX timestamp from which we must start scanning.  */
-  private long getScanStartTime() {
+  /**
+   * Returns the UNIX timestamp from which we must start scanning.
+   * @param start The start time of the data we need.
+   */
+  private long getScanStartTime(final long start) {
     // The reason we look before by `MAX_TIMESPAN * 2' seconds is because of
     // the following.  Let's assume MAX_TIMESPAN = 600 (10 minutes) and the
     // start_time = ... 12:31:00.  If we initialize the scanner to look
@@ -435,7 +1270,7 @@ final class TsdbQuery implements Query {
     // but this doesn't really matter.
     // Additionally, in case our sample_interval is large, we need to look
     // even further before/after, so use that too.
-    final long ts = getStartTime() - Const.MAX_TIMESPAN * 2 - sample_interval;
+    final long ts = start - Const.MAX_TIMESPAN * 2 - sample_interval;
     return ts > 0 ? ts : 0;
   }
 
@@ -459,6 +1294,25 @@ final class TsdbQuery implements Query {
    * @param scanner The scanner on which to add the filter.
    */
   void createAndSetFilter(final Scanner scanner) {
+    scanner.setKeyRegexp(keyRegexp(), CHARSET);
+  }
+
+  /**
+   * Returns a pattern matching the row keys with the relevant tags, or
+   * {@code null} if all the row keys match.
+   */
+  private Pattern keyPattern() {
+    if (tags.size() > 0 || group_bys != null) {
+      return Pattern.compile(keyRegexp());
+    }
+    return null;
+  }
+
+  /**
+   * Returns a regexp that matches the row keys with the relevant tags.
+   * The row keys must be turned into strings using ISO-8859-1.
+   */
+  private String keyRegexp() {
     if (group_bys != null) {
       Collections.sort(group_bys, Bytes.MEMCMP);
     }
@@ -516,8 +1370,8 @@ final class TsdbQuery implements Query {
     } while (tag != group_by);  // Stop when they both become null.
     // Skip any number of tags before the end.
     buf.append("(?:.{").append(tagsize).append("})*$");
-    scanner.setKeyRegexp(buf.toString(), CHARSET);
-   }
+    return buf.toString();
+  }
 
   /**
    * Helper comparison function to compare tag name IDs.
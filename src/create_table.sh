@@ -15,6 +15,25 @@ UID_TABLE=${UID_TABLE-'tsdb-uid'}
 BLOOMFILTER=${BLOOMFILTER-'ROW'}
 # LZO requires lzo2 64bit to be installed + the hadoop-gpl-compression jar.
 COMPRESSION=${COMPRESSION-'LZO'}
+# Space separated rollup intervals, in seconds, must match the TSD's
+# tsd.rollups.intervals (e.g. ROLLUP_INTERVALS='60 3600').
+ROLLUP_INTERVALS=${ROLLUP_INTERVALS-''}
+# Set to any value to create the table of tsd.core.series_index.
+SERIES_INDEX=${SERIES_INDEX-''}
+
+rollup_tables=
+for interval in $ROLLUP_INTERVALS; do
+  rollup_tables="$rollup_tables
+create '$TSDB_TABLE-rollup-$interval',
+  {NAME => 't', VERSIONS => 1, BLOOMFILTER => '$BLOOMFILTER'}
+"
+done
+
+series_table=
+test -z "$SERIES_INDEX" || series_table="
+create '$TSDB_TABLE-series',
+  {NAME => 't', VERSIONS => 1, BLOOMFILTER => '$BLOOMFILTER'}
+"
 
 # HBase scripts also use a variable named `HBASE_HOME', and having this
 # variable in the environment with a value somewhat different from what
@@ -28,4 +47,6 @@ create '$UID_TABLE',
 
 create '$TSDB_TABLE',
   {NAME => 't', VERSIONS => 1, BLOOMFILTER => '$BLOOMFILTER'}
+$rollup_tables
+$series_table
 EOF
@@ -47,6 +47,15 @@ public final class Plot {
   /** Per-DataPoints Gnuplot options. */
   private ArrayList<String> options = new ArrayList<String>();
 
+  /**
+   * The data points actually plotted, one per entry in {@code datapoints}.
+   * Built lazily, see {@link #getPlottedDataPoints}.
+   */
+  private ArrayList<DataPoints> plotted;
+
+  /** Whether to only plot what can be seen, see {@link #setReduction}.  */
+  private boolean reduce = true;
+
   /** Global Gnuplot parameters. */
   private Map<String, String> params;
 
@@ -125,6 +134,19 @@ public final class Plot {
     this.height = height;
   }
 
+  /**
+   * Sets whether or not to reduce the data points before plotting them.
+   * <p>
+   * By default, only the first, minimum, maximum and last data points of
+   * each time interval that falls on the same pixel of the X axis are
+   * plotted, since the other ones wouldn't change the graph.  This can
+   * make a difference with styles other than lines, e.g. with points.
+   * @param reduce Whether or not to reduce the data points.
+   */
+  public void setReduction(final boolean reduce) {
+    this.reduce = reduce;
+  }
+
   /**
    * Adds some data points to this plot.
    * @param datapoints The data points to plot.
@@ -140,6 +162,7 @@ public final class Plot {
     // through the entire data.
     this.datapoints.add(datapoints);
     this.options.add(options);
+    plotted = null;
   }
 
   /**
@@ -150,6 +173,22 @@ public final class Plot {
     return datapoints;
   }
 
+  /**
+   * Returns the data points to actually plot, which are reduced to what can
+   * be seen on the graph unless {@link #setReduction} disabled it.
+   */
+  ArrayList<DataPoints> getPlottedDataPoints() {
+    if (plotted == null) {
+      plotted = new ArrayList<DataPoints>(datapoints.size());
+      for (final DataPoints dps : datapoints) {
+        plotted.add(reduce ? ReducedDataPoints.reduce(dps, start_time,
+                                                      end_time, width)
+                    : dps);
+      }
+    }
+    return plotted;
+  }
+
   /**
    * Generates the Gnuplot script and data files.
    * @param basepath The base path to use.  A number of new files will be
@@ -161,6 +200,7 @@ public final class Plot {
    */
   public int dumpToFiles(final String basepath) throws IOException {
     int npoints = 0;
+    final ArrayList<DataPoints> datapoints = getPlottedDataPoints();
     final int nseries = datapoints.size();
     final String datafiles[] = nseries > 0 ? new String[nseries] : null;
     for (int i = 0; i < nseries; i++) {
@@ -202,6 +242,19 @@ public final class Plot {
     return npoints;
   }
   
+  /**
+   * Renders this plot to a PNG file in-process, without Gnuplot.
+   * @param path The path of the PNG file to write.
+   * @return The number of data points within the time range of the plot,
+   * like {@link #dumpToFiles}.
+   * @throws UnsupportedOperationException if this plot has parameters or
+   * options that only Gnuplot understands.  Nothing is written then.
+   * @throws IOException if there was an error while writing the file.
+   */
+  public int renderToFile(final String path) throws IOException {
+    return new Renderer(this).render(path);
+  }
+
   public int getStartTime() {
       return start_time;
   }
@@ -210,6 +263,26 @@ public final class Plot {
       return end_time;
   }
 
+  /** Returns the width of the graph, in pixels.  */
+  short getWidth() {
+    return width;
+  }
+
+  /** Returns the height of the graph, in pixels.  */
+  short getHeight() {
+    return height;
+  }
+
+  /** Returns the global parameters, see {@link #setParams}.  */
+  Map<String, String> getParams() {
+    return params;
+  }
+
+  /** Returns the options of each series, see {@link #add}.  */
+  ArrayList<String> getOptions() {
+    return options;
+  }
+
   /**
    * Generates the Gnuplot script.
    * @param basepath The base path to use.
@@ -326,7 +399,17 @@ public final class Plot {
    * @return The Gnuplot time format string to use.
    */
   private String xFormat() {
-    long timespan = end_time - start_time;
+    return xFormat(start_time, end_time);
+  }
+
+  /**
+   * Finds some sensible default formatting for the X axis (time).
+   * @param start_time The start time of the graph.
+   * @param end_time The end time of the graph.
+   * @return The Gnuplot time format string to use.
+   */
+  static String xFormat(final long start_time, final long end_time) {
+    final long timespan = end_time - start_time;
     if (timespan < 2100) {  // 35m
       return "%H:%M:%S";
     } else if (timespan < 86400) {  // 1d
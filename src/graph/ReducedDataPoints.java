@@ -0,0 +1,287 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+/**
+ * The data points of a series reduced to what can be seen on a graph.
+ * <p>
+ * The time range of the graph is split in as many buckets as there are
+ * pixels on the X axis, and only the first, minimum, maximum and last data
+ * points of each bucket are kept.  A line through those points draws the
+ * same pixels as a line through all of them, but we send at most 4 points
+ * per pixel to Gnuplot, instead of e.g. 260k points for 30 days of data
+ * points every 10s.
+ * <p>
+ * Data points outside of the time range of the graph are all kept.
+ */
+final class ReducedDataPoints implements DataPoints {
+
+  /** The series that was reduced.  */
+  private final DataPoints source;
+
+  private final long[] timestamps;
+  /** Values, floating point values are stored as their raw long bits.  */
+  private final long[] values;
+  private final boolean[] is_float;
+  private final int size;
+
+  private ReducedDataPoints(final DataPoints source,
+                            final long[] timestamps,
+                            final long[] values,
+                            final boolean[] is_float,
+                            final int size) {
+    this.source = source;
+    this.timestamps = timestamps;
+    this.values = values;
+    this.is_float = is_float;
+    this.size = size;
+  }
+
+  /**
+   * Reduces a series.
+   * @param dps The data points to reduce.  They're iterated exactly once.
+   * @param start_time The start time of the graph.
+   * @param end_time The end time of the graph.
+   * @param nbuckets The number of buckets in which to split the time range,
+   * typically the width of the graph in pixels.
+   */
+  static ReducedDataPoints reduce(final DataPoints dps,
+                                  final long start_time,
+                                  final long end_time,
+                                  final int nbuckets) {
+    final Reducer reducer = new Reducer();
+    final long span = end_time - start_time + 1;
+    long current = -1;  // Bucket we're currently in.
+    for (final DataPoint dp : dps) {
+      final long ts = dp.timestamp();
+      final long bucket = ts < start_time || ts > end_time
+        ? -1 : (ts - start_time) * nbuckets / span;
+      if (bucket != current) {
+        reducer.flush();
+        current = bucket;
+      }
+      final boolean f = !dp.isInteger();
+      final long value = f ? Double.doubleToRawLongBits(dp.doubleValue())
+        : dp.longValue();
+      if (bucket < 0) {
+        reducer.append(ts, value, f);  // Outside of the graph, keep it.
+      } else {
+        reducer.add(ts, value, f, dp.toDouble());
+      }
+    }
+    reducer.flush();
+    return new ReducedDataPoints(dps, reducer.timestamps, reducer.values,
+                                 reducer.is_float, reducer.size);
+  }
+
+  /** Keeps the first, min, max and last data points of each bucket.  */
+  private static final class Reducer {
+    long[] timestamps = new long[64];
+    long[] values = new long[64];
+    boolean[] is_float = new boolean[64];
+    int size;
+
+    // The points kept for the current bucket: first, min, max, last.
+    private static final int FIRST = 0, MIN = 1, MAX = 2, LAST = 3;
+    private final long[] bucket_ts = new long[4];
+    private final long[] bucket_values = new long[4];
+    private final boolean[] bucket_float = new boolean[4];
+    private final double[] bucket_doubles = new double[4];
+    private boolean empty = true;
+
+    void add(final long ts, final long value, final boolean f,
+             final double d) {
+      if (empty) {
+        for (int i = 0; i < 4; i++) {
+          set(i, ts, value, f, d);
+        }
+        empty = false;
+        return;
+      }
+      if (d < bucket_doubles[MIN]) {
+        set(MIN, ts, value, f, d);
+      }
+      if (d > bucket_doubles[MAX]) {
+        set(MAX, ts, value, f, d);
+      }
+      set(LAST, ts, value, f, d);
+    }
+
+    private void set(final int i, final long ts, final long value,
+                     final boolean f, final double d) {
+      bucket_ts[i] = ts;
+      bucket_values[i] = value;
+      bucket_float[i] = f;
+      bucket_doubles[i] = d;
+    }
+
+    /** Appends the points kept for the current bucket, in time order.  */
+    void flush() {
+      if (empty) {
+        return;
+      }
+      empty = true;
+      long prev = Long.MIN_VALUE;
+      for (int n = 0; n < 4; n++) {
+        // Find the next point in time order (there's at most 4 of them).
+        int next = -1;
+        for (int i = 0; i < 4; i++) {
+          if (bucket_ts[i] > prev
+              && (next < 0 || bucket_ts[i] < bucket_ts[next])) {
+            next = i;
+          }
+        }
+        if (next < 0) {
+          break;
+        }
+        prev = bucket_ts[next];
+        append(prev, bucket_values[next], bucket_float[next]);
+      }
+    }
+
+    void append(final long ts, final long value, final boolean f) {
+      if (size == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+        is_float = Arrays.copyOf(is_float, size * 2);
+      }
+      timestamps[size] = ts;
+      values[size] = value;
+      is_float[size] = f;
+      size++;
+    }
+  }
+
+  public String metricName() {
+    return source.metricName();
+  }
+
+  public Map<String, String> getTags() {
+    return source.getTags();
+  }
+
+  public List<String> getAggregatedTags() {
+    return source.getAggregatedTags();
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int aggregatedSize() {
+    return source.aggregatedSize();
+  }
+
+  public SeekableView iterator() {
+    return new Iterator();
+  }
+
+  public long timestamp(final int i) {
+    checkIndex(i);
+    return timestamps[i];
+  }
+
+  public boolean isInteger(final int i) {
+    checkIndex(i);
+    return !is_float[i];
+  }
+
+  public long longValue(final int i) {
+    if (!isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a long in "
+                                   + this);
+    }
+    return values[i];
+  }
+
+  public double doubleValue(final int i) {
+    if (isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a float in "
+                                   + this);
+    }
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  private void checkIndex(final int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("index " + i + " >= " + size
+                                          + " for " + this);
+    }
+  }
+
+  public String toString() {
+    return "ReducedDataPoints(" + source.metricName() + source.getTags()
+      + ", " + size + " points)";
+  }
+
+  /** Iterates over the reduced data points.  */
+  private final class Iterator implements SeekableView, DataPoint {
+
+    /** Index of the next data point, {@code index - 1} is the current one. */
+    private int index;
+
+    public boolean hasNext() {
+      return index < size;
+    }
+
+    public DataPoint next() {
+      if (index >= size) {
+        throw new NoSuchElementException("no more elements in " + this);
+      }
+      index++;
+      return this;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void seek(final long timestamp) {
+      index = 0;
+      while (index < size && timestamps[index] < timestamp) {
+        index++;
+      }
+    }
+
+    public long timestamp() {
+      return timestamps[index - 1];
+    }
+
+    public boolean isInteger() {
+      return !is_float[index - 1];
+    }
+
+    public long longValue() {
+      return ReducedDataPoints.this.longValue(index - 1);
+    }
+
+    public double doubleValue() {
+      return ReducedDataPoints.this.doubleValue(index - 1);
+    }
+
+    public double toDouble() {
+      return is_float[index - 1] ? Double.longBitsToDouble(values[index - 1])
+        : values[index - 1];
+    }
+  }
+
+}
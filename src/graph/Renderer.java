@@ -0,0 +1,972 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IllegalFormatException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.imageio.ImageIO;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+
+/**
+ * Renders a {@link Plot} to a PNG image in-process, without Gnuplot.
+ * <p>
+ * This understands the Gnuplot settings the HTTP interface generates (see
+ * {@link Plot#setParams}) and the most common per-series options
+ * ({@code axis x1y2}, {@code with lines}, {@code linewidth N}, ...), and
+ * draws something that looks like what Gnuplot's PNG terminal would.
+ * Anything else makes the constructor throw an
+ * {@link UnsupportedOperationException}, so that the caller can fall back
+ * to Gnuplot.
+ * <p>
+ * Instances are not thread-safe and can only render once.
+ */
+final class Renderer {
+
+  static {
+    if (System.getProperty("java.awt.headless") == null) {
+      System.setProperty("java.awt.headless", "true");
+    }
+  }
+
+  /** Colors of the series, same as the default ones of Gnuplot's PNGs.  */
+  private static final Color[] COLORS = {
+    new Color(0xFF0000), new Color(0x00C000), new Color(0x0080FF),
+    new Color(0xC000FF), new Color(0x00EEEE), new Color(0xC04000),
+    new Color(0xC8C800), new Color(0x4169E1), new Color(0xFFC020),
+    new Color(0x008040), new Color(0xC080FF), new Color(0x306080),
+  };
+
+  private static final Color GRID = new Color(0xA0A0A0);
+
+  private static final Stroke GRID_STROKE =
+    new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 1,
+                    new float[] { 1, 3 }, 0);
+
+  private static final Font FONT = new Font(Font.SANS_SERIF, Font.PLAIN, 10);
+
+  /** Size (in pixels) of the ticks and of the point markers.  */
+  private static final int TICK = 5;
+
+  /** Ways of drawing a series, as in Gnuplot's {@code with} option.  */
+  private static final int LINESPOINTS = 0;
+  private static final int LINES = 1;
+  private static final int POINTS = 2;
+  private static final int DOTS = 3;
+  private static final int IMPULSES = 4;
+  private static final int STEPS = 5;
+
+  private static final String[] STYLES = {
+    "linespoints", "lines", "points", "dots", "impulses", "steps",
+  };
+
+  private final Plot plot;
+  private final int width;
+  private final int height;
+  private final long start_time;
+  private final long end_time;
+  private final TimeZone tz = TimeZone.getDefault();
+
+  private final Color bgcolor;  // null for transparent.
+  private final Color fgcolor;
+  private final String title;
+  private final Label label;
+  private final Key key;  // null if there's no key.
+  private final Axis y = new Axis();
+  private final Axis y2 = new Axis();
+  private final SimpleDateFormat xformat;
+
+  /** Per series: whether it's plotted against y2, and how to draw it.  */
+  private final boolean[] on_y2;
+  private final int[] styles;
+  private final int[] linetypes;
+  private final float[] linewidths;
+
+  /** A vertical axis.  */
+  private static final class Axis {
+    double min = Double.NaN;  // NaN when not fixed by the user.
+    double max = Double.NaN;
+    boolean log;
+    String label;
+    String format;
+    boolean used;
+
+    /** Range of the data plotted against this axis.  */
+    double data_min = Double.POSITIVE_INFINITY;
+    double data_max = Double.NEGATIVE_INFINITY;
+
+    /** Ticks, computed by {@link Renderer#computeTicks}.  */
+    double[] ticks;
+  }
+
+  /** Where to put the key.  */
+  private static final class Key {
+    boolean left;
+    boolean bottom;
+    boolean box;
+  }
+
+  /** A label at a position relative to the graph, in [0, 1].  */
+  private static final class Label {
+    String text;
+    double x;
+    double y;
+    int align = -1;  // -1 left, 0 center, 1 right.
+  }
+
+  /**
+   * Constructor.
+   * @param plot The plot to render.
+   * @throws UnsupportedOperationException if the plot has parameters or
+   * options that only Gnuplot understands.
+   */
+  Renderer(final Plot plot) {
+    this.plot = plot;
+    width = plot.getWidth();
+    height = plot.getHeight();
+    start_time = plot.getStartTime() & 0xFFFFFFFFL;
+    end_time = plot.getEndTime() & 0xFFFFFFFFL;
+    Map<String, String> params = plot.getParams();
+    if (params == null) {
+      params = new HashMap<String, String>(0);
+    }
+    String xfmt = null;
+    String bg = null;
+    String fg = null;
+    String title = null;
+    Label label = null;
+    Key key = new Key();
+    key.box = true;
+    for (final Map.Entry<String, String> entry : params.entrySet()) {
+      final String name = entry.getKey();
+      final String value = entry.getValue();
+      if ("key".equals(name)) {
+        key = value == null ? null : parseKey(value);
+      } else if (value == null) {
+        unsupported("unset " + name);
+      } else if ("yrange".equals(name)) {
+        parseRange(y, value);
+      } else if ("y2range".equals(name)) {
+        parseRange(y2, value);
+      } else if ("ylabel".equals(name)) {
+        y.label = unquote(value);
+      } else if ("y2label".equals(name)) {
+        y2.label = unquote(value);
+      } else if ("format y".equals(name)) {
+        y.format = checkFormat(unquote(value));
+      } else if ("format y2".equals(name)) {
+        y2.format = checkFormat(unquote(value));
+      } else if ("format x".equals(name)) {
+        xfmt = unquote(value);
+      } else if ("logscale".equals(name)) {
+        if ("y".equals(value)) {
+          y.log = true;
+        } else if ("y2".equals(value)) {
+          y2.log = true;
+        } else {
+          unsupported("logscale " + value);
+        }
+      } else if ("title".equals(name)) {
+        title = unquote(value);
+      } else if ("bgcolor".equals(name)) {
+        bg = value;
+      } else if ("fgcolor".equals(name)) {
+        fg = value;
+      } else if ("label".equals(name)) {
+        label = parseLabel(value);
+      } else {
+        unsupported("set " + name);
+      }
+    }
+    this.title = title;
+    this.key = key;
+    fgcolor = fg == null ? Color.BLACK : parseColor(fg);
+    if ("transparent".equals(bg)) {
+      bgcolor = null;
+    } else {
+      bgcolor = bg == null ? Color.WHITE : parseColor(bg);
+    }
+    xformat = new SimpleDateFormat(strftimeToJava(xfmt == null
+                                                  ? Plot.xFormat(start_time,
+                                                                 end_time)
+                                                  : xfmt));
+    xformat.setTimeZone(tz);
+
+    final ArrayList<String> options = plot.getOptions();
+    final int nseries = options.size();
+    on_y2 = new boolean[nseries];
+    styles = new int[nseries];
+    linetypes = new int[nseries];
+    linewidths = new float[nseries];
+    for (int i = 0; i < nseries; i++) {
+      linetypes[i] = i;
+      linewidths[i] = 1;
+      parseOptions(i, options.get(i));
+    }
+    if (nseries == 0 && label == null) {
+      label = new Label();
+      label.text = "No data";
+      label.x = 0.5;
+      label.y = 0.9;
+      label.align = 0;
+    }
+    this.label = label;
+  }
+
+  /**
+   * Renders the plot to a PNG file.
+   * @param path The path of the file to write.
+   * @return The number of data points within the time range of the plot.
+   * @throws IOException if the file couldn't be written.
+   */
+  int render(final String path) throws IOException {
+    final int nseries = on_y2.length;
+    final long[][] timestamps = new long[nseries][];
+    final double[][] values = new double[nseries][];
+    final int[] sizes = new int[nseries];
+    int npoints = 0;
+    int i = 0;
+    for (final DataPoints dps : plot.getPlottedDataPoints()) {
+      final Axis axis = on_y2[i] ? y2 : y;
+      axis.used = true;
+      long[] ts = new long[64];
+      double[] vs = new double[64];
+      int n = 0;
+      for (final DataPoint dp : dps) {
+        final double value = dp.toDouble();
+        if (value != value || Double.isInfinite(value)) {
+          throw new IllegalStateException("NaN or Infinity found in"
+              + " datapoints #" + i + ": " + value + " d=" + dp);
+        }
+        if (n == ts.length) {
+          ts = Arrays.copyOf(ts, n * 2);
+          vs = Arrays.copyOf(vs, n * 2);
+        }
+        ts[n] = dp.timestamp();
+        vs[n] = value;
+        n++;
+        if (ts[n - 1] >= start_time && ts[n - 1] <= end_time) {
+          npoints++;
+          if (!axis.log || value > 0) {
+            axis.data_min = Math.min(axis.data_min, value);
+            axis.data_max = Math.max(axis.data_max, value);
+          }
+        }
+      }
+      timestamps[i] = ts;
+      values[i] = vs;
+      sizes[i] = n;
+      i++;
+    }
+
+    final BufferedImage image = new BufferedImage(width, height,
+      bgcolor == null ? BufferedImage.TYPE_INT_ARGB
+                      : BufferedImage.TYPE_INT_RGB);
+    final Graphics2D g = image.createGraphics();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                         RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      g.setFont(FONT);
+      if (bgcolor != null) {
+        g.setColor(bgcolor);
+        g.fillRect(0, 0, width, height);
+      }
+      draw(g, timestamps, values, sizes);
+    } finally {
+      g.dispose();
+    }
+    if (!ImageIO.write(image, "png", new File(path))) {
+      throw new IOException("No PNG writer available");
+    }
+    return npoints;
+  }
+
+  /** Draws everything but the background.  */
+  private void draw(final Graphics2D g, final long[][] timestamps,
+                    final double[][] values, final int[] sizes) {
+    final FontMetrics fm = g.getFontMetrics();
+    final int line_height = fm.getHeight();
+    if (!y2.used) {
+      y2.min = Double.isNaN(y2.min) ? y.min : y2.min;
+      y2.max = Double.isNaN(y2.max) ? y.max : y2.max;
+    }
+    computeTicks(y);
+    // Gnuplot only draws y2 tics when a series uses the y2 axis.
+    if (y2.used) {
+      computeTicks(y2);
+    }
+
+    // Layout.
+    final int top = line_height + (title == null ? 0 : line_height + 4);
+    final long[] xticks = xTicks(width / 40);
+    int xlabel_width = 0;
+    for (final long tick : xticks) {
+      xlabel_width = Math.max(xlabel_width, fm.stringWidth(formatTime(tick)));
+    }
+    final int bottom = height - xlabel_width - TICK - 6;
+    int left = 10 + labelsWidth(fm, y) + (y.label == null ? 0 : line_height);
+    int right = width - 10;
+    if (y2.used) {
+      right -= labelsWidth(fm, y2) + (y2.label == null ? 0 : line_height);
+    }
+    if (right - left < 10 || bottom - top < 10) {
+      left = 0;
+      right = width - 1;
+    }
+    final int pw = right - left;
+    final int ph = Math.max(1, bottom - top);
+
+    // Grid and tick labels.
+    g.setColor(fgcolor);
+    for (final long tick : xticks) {
+      final int x = left + (int) ((tick - start_time) * pw
+                                  / (double) (end_time - start_time));
+      drawGridLine(g, x, top, x, bottom);
+      g.setColor(fgcolor);
+      g.drawLine(x, bottom, x, bottom - TICK);
+      g.drawLine(x, top, x, top + TICK);
+      final String s = formatTime(tick);
+      final AffineTransform saved = g.getTransform();
+      g.translate(x + fm.getAscent() / 2, bottom + 4 + fm.stringWidth(s));
+      g.rotate(-Math.PI / 2);
+      g.drawString(s, 0, 0);
+      g.setTransform(saved);
+    }
+    for (final double tick : y.ticks) {
+      final int yy = toY(y, tick, top, ph);
+      drawGridLine(g, left, yy, right, yy);
+      g.setColor(fgcolor);
+      g.drawLine(left, yy, left + TICK, yy);
+      if (!y2.used) {
+        g.drawLine(right, yy, right - TICK, yy);
+      }
+      final String s = formatNumber(y, tick);
+      g.drawString(s, left - 4 - fm.stringWidth(s),
+                   yy + fm.getAscent() / 2 - 1);
+    }
+    if (y2.used) {
+      for (final double tick : y2.ticks) {
+        final int yy = toY(y2, tick, top, ph);
+        g.drawLine(right, yy, right - TICK, yy);
+        g.drawString(formatNumber(y2, tick), right + 4,
+                     yy + fm.getAscent() / 2 - 1);
+      }
+    }
+    g.drawRect(left, top, pw, ph);
+    if (y.label != null) {
+      drawVertical(g, y.label, 4 + fm.getAscent(), top + ph / 2);
+    }
+    if (y2.used && y2.label != null) {
+      drawVertical(g, y2.label, width - 4, top + ph / 2);
+    }
+    if (title != null) {
+      g.drawString(title, (width - fm.stringWidth(title)) / 2,
+                   4 + fm.getAscent());
+    }
+
+    // The series themselves.
+    final Shape clip = g.getClip();
+    g.clipRect(left, top, pw + 1, ph + 1);
+    for (int i = 0; i < sizes.length; i++) {
+      final Axis axis = on_y2[i] ? y2 : y;
+      g.setColor(COLORS[linetypes[i] % COLORS.length]);
+      g.setStroke(new BasicStroke(linewidths[i]));
+      drawSeries(g, axis, styles[i], linetypes[i], timestamps[i], values[i],
+                 sizes[i], left, pw, top, ph);
+    }
+    g.setClip(clip);
+    g.setStroke(new BasicStroke(1));
+
+    if (key != null && sizes.length > 0) {
+      drawKey(g, fm, left, right, top, bottom);
+    }
+    if (label != null) {
+      g.setColor(fgcolor);
+      final int w = fm.stringWidth(label.text);
+      final int x = left + (int) (label.x * pw)
+        - (label.align < 0 ? 0 : label.align == 0 ? w / 2 : w);
+      g.drawString(label.text, x,
+                   bottom - (int) (label.y * ph) + fm.getAscent() / 2);
+    }
+  }
+
+  private static void drawGridLine(final Graphics2D g, final int x1,
+                                   final int y1, final int x2, final int y2) {
+    final Stroke saved = g.getStroke();
+    g.setColor(GRID);
+    g.setStroke(GRID_STROKE);
+    g.drawLine(x1, y1, x2, y2);
+    g.setStroke(saved);
+  }
+
+  private static void drawVertical(final Graphics2D g, final String s,
+                                   final int x, final int y) {
+    final AffineTransform saved = g.getTransform();
+    g.translate(x, y + g.getFontMetrics().stringWidth(s) / 2);
+    g.rotate(-Math.PI / 2);
+    g.drawString(s, 0, 0);
+    g.setTransform(saved);
+  }
+
+  private void drawSeries(final Graphics2D g, final Axis axis,
+                          final int style, final int linetype,
+                          final long[] timestamps, final double[] values,
+                          final int n, final int left, final int pw,
+                          final int top, final int ph) {
+    final double span = end_time - start_time;
+    final int base = toY(axis, axis.log ? axis.min : Math.max(axis.min,
+      Math.min(0, axis.max)), top, ph);
+    int px = 0;
+    int py = 0;
+    for (int j = 0; j < n; j++) {
+      if (axis.log && values[j] <= 0) {
+        continue;  // Can't be plotted in log scale.
+      }
+      final int x = left + (int) Math.round((timestamps[j] - start_time) * pw
+                                            / span);
+      final int yy = toY(axis, values[j], top, ph);
+      switch (style) {
+        case LINESPOINTS:
+        case LINES:
+          if (j > 0) {
+            g.drawLine(px, py, x, yy);
+          }
+          break;
+        case STEPS:
+          if (j > 0) {
+            g.drawLine(px, py, x, py);
+            g.drawLine(x, py, x, yy);
+          }
+          break;
+        case IMPULSES:
+          g.drawLine(x, base, x, yy);
+          break;
+        case DOTS:
+          g.drawLine(x, yy, x, yy);
+          break;
+        default:
+          break;
+      }
+      if (style == LINESPOINTS || style == POINTS) {
+        drawPoint(g, linetype, x, yy);
+      }
+      px = x;
+      py = yy;
+    }
+  }
+
+  /** Draws a point marker, whose shape depends on the line type.  */
+  private static void drawPoint(final Graphics2D g, final int linetype,
+                                final int x, final int y) {
+    final int r = TICK / 2;
+    switch (linetype % 6) {
+      case 0:  // +
+        g.drawLine(x - r, y, x + r, y);
+        g.drawLine(x, y - r, x, y + r);
+        break;
+      case 1:  // x
+        g.drawLine(x - r, y - r, x + r, y + r);
+        g.drawLine(x - r, y + r, x + r, y - r);
+        break;
+      case 2:  // *
+        g.drawLine(x - r, y, x + r, y);
+        g.drawLine(x, y - r, x, y + r);
+        g.drawLine(x - r, y - r, x + r, y + r);
+        g.drawLine(x - r, y + r, x + r, y - r);
+        break;
+      case 3:
+        g.drawRect(x - r, y - r, 2 * r, 2 * r);
+        break;
+      case 4:
+        g.fillRect(x - r, y - r, 2 * r + 1, 2 * r + 1);
+        break;
+      default:
+        g.drawOval(x - r, y - r, 2 * r, 2 * r);
+    }
+  }
+
+  private void drawKey(final Graphics2D g, final FontMetrics fm,
+                       final int left, final int right, final int top,
+                       final int bottom) {
+    final ArrayList<String> titles = new ArrayList<String>();
+    int text_width = 0;
+    for (final DataPoints dps : plot.getDataPoints()) {
+      final String t = dps.metricName() + dps.getTags();
+      titles.add(t);
+      text_width = Math.max(text_width, fm.stringWidth(t));
+    }
+    final int sample = 30;
+    final int line_height = fm.getHeight();
+    final int w = text_width + sample + 16;
+    final int h = titles.size() * line_height + 6;
+    final int x = key.left ? left + 6 : right - 6 - w;
+    final int yy = key.bottom ? bottom - 6 - h : top + 6;
+    if (key.box) {
+      if (bgcolor != null) {
+        g.setColor(bgcolor);
+        g.fillRect(x, yy, w, h);
+      }
+      g.setColor(fgcolor);
+      g.drawRect(x, yy, w, h);
+    }
+    for (int i = 0; i < titles.size(); i++) {
+      final int ty = yy + 3 + i * line_height;
+      g.setColor(fgcolor);
+      g.drawString(titles.get(i), x + 6, ty + fm.getAscent());
+      g.setColor(COLORS[linetypes[i] % COLORS.length]);
+      g.setStroke(new BasicStroke(linewidths[i]));
+      final int sx = x + w - sample - 6;
+      final int sy = ty + line_height / 2;
+      if (styles[i] != POINTS && styles[i] != DOTS) {
+        g.drawLine(sx, sy, sx + sample, sy);
+      }
+      if (styles[i] == LINESPOINTS || styles[i] == POINTS) {
+        drawPoint(g, linetypes[i], sx + sample / 2, sy);
+      }
+      g.setStroke(new BasicStroke(1));
+    }
+  }
+
+  /** Returns the vertical pixel coordinate of a value.  */
+  private static int toY(final Axis axis, final double value, final int top,
+                         final int ph) {
+    final double ratio;
+    if (axis.log) {
+      ratio = (Math.log10(value) - Math.log10(axis.min))
+        / (Math.log10(axis.max) - Math.log10(axis.min));
+    } else {
+      ratio = (value - axis.min) / (axis.max - axis.min);
+    }
+    // Clamp far away values, the clip takes care of the rest.
+    return top + ph - (int) Math.round(Math.max(-1, Math.min(2, ratio)) * ph);
+  }
+
+  /** Width of the widest tick label of an axis.  */
+  private int labelsWidth(final FontMetrics fm, final Axis axis) {
+    int w = 0;
+    for (final double tick : axis.ticks) {
+      w = Math.max(w, fm.stringWidth(formatNumber(axis, tick)));
+    }
+    return w;
+  }
+
+  /**
+   * Finds the range and the ticks of an axis.
+   * Like Gnuplot, unless the user fixed the range, we extend it to the
+   * nearest ticks.
+   */
+  private static void computeTicks(final Axis axis) {
+    double lo = axis.data_min;
+    double hi = axis.data_max;
+    if (lo > hi) {  // No data.
+      lo = axis.log ? 1 : 0;
+      hi = 10;
+    }
+    if (!Double.isNaN(axis.min)) {
+      lo = axis.min;
+    }
+    if (!Double.isNaN(axis.max)) {
+      hi = axis.max;
+    }
+    if (axis.log) {
+      lo = lo > 0 ? lo : (hi > 1 ? 1 : hi / 10);
+      hi = hi > lo ? hi : lo * 10;
+      final int from = (int) Math.floor(Math.log10(lo));
+      final int to = (int) Math.ceil(Math.log10(hi));
+      if (Double.isNaN(axis.min)) {
+        lo = Math.pow(10, from);
+      }
+      if (Double.isNaN(axis.max)) {
+        hi = Math.pow(10, to);
+      }
+      final int step = Math.max(1, (to - from) / 10);
+      final ArrayList<Double> ticks = new ArrayList<Double>();
+      for (int e = from; e <= to; e += step) {
+        final double tick = Math.pow(10, e);
+        if (tick >= lo && tick <= hi) {
+          ticks.add(tick);
+        }
+      }
+      axis.ticks = toArray(ticks);
+    } else {
+      if (lo == hi) {
+        final double delta = lo == 0 ? 1 : Math.abs(lo) / 10;
+        lo -= delta;
+        hi += delta;
+      }
+      final double step = niceStep((hi - lo) / 8);
+      if (Double.isNaN(axis.min)) {
+        lo = Math.floor(lo / step) * step;
+      }
+      if (Double.isNaN(axis.max)) {
+        hi = Math.ceil(hi / step) * step;
+      }
+      final ArrayList<Double> ticks = new ArrayList<Double>();
+      for (double tick = Math.ceil(lo / step) * step; tick <= hi + step / 1e6;
+           tick += step) {
+        // Avoid things like 0.30000000000000004.
+        ticks.add(Math.abs(tick) < step / 1e6 ? 0 : tick);
+      }
+      axis.ticks = toArray(ticks);
+    }
+    axis.min = lo;
+    axis.max = hi;
+  }
+
+  /** Rounds up a step to 1, 2 or 5 times a power of 10.  */
+  private static double niceStep(final double raw) {
+    final double magnitude = Math.pow(10, Math.floor(Math.log10(raw)));
+    final double fraction = raw / magnitude;
+    if (fraction <= 1) {
+      return magnitude;
+    } else if (fraction <= 2) {
+      return 2 * magnitude;
+    } else if (fraction <= 5) {
+      return 5 * magnitude;
+    }
+    return 10 * magnitude;
+  }
+
+  private static double[] toArray(final ArrayList<Double> list) {
+    final double[] array = new double[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i);
+    }
+    return array;
+  }
+
+  /** Steps (in seconds) we can use between two ticks of the time axis.  */
+  private static final int[] TIME_STEPS = {
+    1, 2, 5, 10, 15, 30, 60, 120, 300, 600, 900, 1800, 3600, 7200, 10800,
+    21600, 43200, 86400, 172800, 604800, 1209600, 2592000, 7776000,
+    15552000, 31536000,
+  };
+
+  /**
+   * Returns the ticks of the time axis, aligned on round local times.
+   * @param max_ticks Maximum number of ticks to return.
+   */
+  private long[] xTicks(final int max_ticks) {
+    final long span = end_time - start_time;
+    int step = TIME_STEPS[TIME_STEPS.length - 1];
+    for (final int s : TIME_STEPS) {
+      if (span / s <= max_ticks) {
+        step = s;
+        break;
+      }
+    }
+    final long offset = tz.getOffset(start_time * 1000) / 1000;
+    long tick = ((start_time + offset + step - 1) / step) * step - offset;
+    final ArrayList<Long> ticks = new ArrayList<Long>();
+    for (; tick <= end_time; tick += step) {
+      ticks.add(tick);
+    }
+    final long[] array = new long[ticks.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = ticks.get(i);
+    }
+    return array;
+  }
+
+  private String formatTime(final long timestamp) {
+    return xformat.format(new Date(timestamp * 1000));
+  }
+
+  /** Formats a tick label, by default like Gnuplot's {@code % h}.  */
+  private static String formatNumber(final Axis axis, final double value) {
+    if (axis.format != null) {
+      return String.format(Locale.US, axis.format, value);
+    } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    String s = String.format(Locale.US, "%.6g", value);
+    final int e = s.indexOf('e');
+    String mantissa = e < 0 ? s : s.substring(0, e);
+    if (mantissa.indexOf('.') >= 0) {
+      int end = mantissa.length();
+      while (mantissa.charAt(end - 1) == '0') {
+        end--;
+      }
+      if (mantissa.charAt(end - 1) == '.') {
+        end--;
+      }
+      mantissa = mantissa.substring(0, end);
+    }
+    return e < 0 ? mantissa : mantissa + s.substring(e);
+  }
+
+  /** Parses the per-series options given to Gnuplot's {@code plot}.  */
+  private void parseOptions(final int i, final String options) {
+    styles[i] = LINESPOINTS;
+    final String[] tokens = options.trim().split("\\s+");
+    for (int j = 0; j < tokens.length; j++) {
+      final String token = tokens[j];
+      if (token.isEmpty()) {
+        continue;
+      } else if (j + 1 == tokens.length) {
+        unsupported("plot option " + token);
+      }
+      final String arg = tokens[++j];
+      if ("axis".equals(token) || "axes".equals(token)) {
+        if ("x1y2".equals(arg)) {
+          on_y2[i] = true;
+        } else if (!"x1y1".equals(arg)) {
+          unsupported("axes " + arg);
+        }
+      } else if ("with".equals(token) || "w".equals(token)) {
+        styles[i] = -1;
+        for (int s = 0; s < STYLES.length; s++) {
+          if (STYLES[s].equals(arg)) {
+            styles[i] = s;
+          }
+        }
+        if (styles[i] < 0) {
+          unsupported("with " + arg);
+        }
+      } else if ("linetype".equals(token) || "lt".equals(token)) {
+        linetypes[i] = Math.max(0, parseNumber(token, arg).intValue() - 1);
+      } else if ("linewidth".equals(token) || "lw".equals(token)) {
+        linewidths[i] = parseNumber(token, arg).floatValue();
+      } else {
+        unsupported("plot option " + token);
+      }
+    }
+  }
+
+  private static Double parseNumber(final String what, final String s) {
+    try {
+      return Double.valueOf(s);
+    } catch (NumberFormatException e) {
+      unsupported(what + ' ' + s);
+      return null;  // Unreachable.
+    }
+  }
+
+  /** Parses a range such as {@code [0:]} or {@code [1:100]}.  */
+  private static void parseRange(final Axis axis, final String range) {
+    final String s = range.trim();
+    final int colon = s.indexOf(':');
+    if (!s.startsWith("[") || !s.endsWith("]") || colon < 0) {
+      unsupported("range " + range);
+    }
+    axis.min = parseBound(s.substring(1, colon));
+    axis.max = parseBound(s.substring(colon + 1, s.length() - 1));
+  }
+
+  private static double parseBound(final String bound) {
+    final String s = bound.trim();
+    if (s.isEmpty() || "*".equals(s)) {
+      return Double.NaN;
+    }
+    return parseNumber("bound", s);
+  }
+
+  /** Parses a key specification such as {@code top left box}.  */
+  private static Key parseKey(final String spec) {
+    final Key key = new Key();
+    key.box = false;
+    for (final String token : spec.trim().split("\\s+")) {
+      if ("left".equals(token)) {
+        key.left = true;
+      } else if ("bottom".equals(token)) {
+        key.bottom = true;
+      } else if ("box".equals(token)) {
+        key.box = true;
+      } else if ("nobox".equals(token)) {
+        key.box = false;
+      } else if (!"right".equals(token) && !"top".equals(token)
+                 && !"center".equals(token) && !"in".equals(token)
+                 && !"inside".equals(token) && !token.isEmpty()) {
+        // Notably "out", which Gnuplot uses to shrink the graph.
+        unsupported("key " + spec);
+      }
+    }
+    return key;
+  }
+
+  /** Parses a label such as {@code "text" at graph 0.5,0.9 center}.  */
+  private static Label parseLabel(final String spec) {
+    final String s = spec.trim();
+    final int end = s.lastIndexOf('"');
+    if (!s.startsWith("\"") || end <= 0) {
+      unsupported("label " + spec);
+    }
+    final Label label = new Label();
+    label.text = unquote(s.substring(0, end + 1));
+    final String[] tokens = s.substring(end + 1).trim().split("[\\s,]+");
+    if (tokens.length < 4 || !"at".equals(tokens[0])
+        || !"graph".equals(tokens[1])) {
+      unsupported("label " + spec);
+    }
+    label.x = parseNumber("label", tokens[2]);
+    label.y = parseNumber("label", tokens[3]);
+    if (tokens.length > 4) {
+      if ("center".equals(tokens[4])) {
+        label.align = 0;
+      } else if ("right".equals(tokens[4])) {
+        label.align = 1;
+      } else if (!"left".equals(tokens[4])) {
+        unsupported("label " + spec);
+      }
+    }
+    return label;
+  }
+
+  /** Parses a color given as {@code xRRGGBB}.  */
+  private static Color parseColor(final String color) {
+    if (color.length() != 7 || color.charAt(0) != 'x') {
+      unsupported("color " + color);
+    }
+    try {
+      return new Color(Integer.parseInt(color.substring(1), 16));
+    } catch (NumberFormatException e) {
+      unsupported("color " + color);
+      return null;  // Unreachable.
+    }
+  }
+
+  /** Checks that a Gnuplot number format is also a valid Java format.  */
+  private static String checkFormat(final String format) {
+    try {
+      String.format(Locale.US, format, 1.0);
+    } catch (IllegalFormatException e) {
+      unsupported("format " + format);
+    }
+    return format;
+  }
+
+  /**
+   * Removes the quotes of a string quoted for Gnuplot, and its escapes.
+   * Strings that aren't quoted are returned as-is.
+   */
+  static String unquote(final String s) {
+    if (s.length() < 2 || s.charAt(0) != '"'
+        || s.charAt(s.length() - 1) != '"') {
+      return s;
+    }
+    final StringBuilder buf = new StringBuilder(s.length());
+    for (int i = 1; i < s.length() - 1; i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length() - 1) {
+        c = s.charAt(++i);
+        switch (c) {
+          case 'n': c = '\n'; break;
+          case 't': c = '\t'; break;
+          case 'r': c = '\r'; break;
+          case 'u':
+            if (i + 4 < s.length() - 1) {
+              c = (char) Integer.parseInt(s.substring(i + 1, i + 5), 16);
+              i += 4;
+            }
+            break;
+          default:  // \" and \\ and others are the character itself.
+        }
+      }
+      buf.append(c);
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Converts a {@code strftime} format, as used by Gnuplot, into a
+   * {@link SimpleDateFormat} pattern.
+   * @throws UnsupportedOperationException if the format uses a conversion
+   * we don't know.
+   */
+  static String strftimeToJava(final String format) {
+    final StringBuilder buf = new StringBuilder(format.length() * 2);
+    final StringBuilder literal = new StringBuilder();
+    for (int i = 0; i < format.length(); i++) {
+      final char c = format.charAt(i);
+      if (c != '%' || i + 1 == format.length()) {
+        literal.append(c);
+        continue;
+      }
+      final char conversion = format.charAt(++i);
+      if (conversion == '%') {
+        literal.append('%');
+        continue;
+      }
+      final String pattern;
+      switch (conversion) {
+        case 'a': pattern = "EEE"; break;
+        case 'A': pattern = "EEEE"; break;
+        case 'b': case 'h': pattern = "MMM"; break;
+        case 'B': pattern = "MMMM"; break;
+        case 'd': pattern = "dd"; break;
+        case 'e': pattern = "d"; break;
+        case 'H': pattern = "HH"; break;
+        case 'I': pattern = "hh"; break;
+        case 'j': pattern = "DDD"; break;
+        case 'm': pattern = "MM"; break;
+        case 'M': pattern = "mm"; break;
+        case 'p': pattern = "a"; break;
+        case 'S': pattern = "ss"; break;
+        case 'y': pattern = "yy"; break;
+        case 'Y': pattern = "yyyy"; break;
+        default:
+          unsupported("time format " + format);
+          return null;  // Unreachable.
+      }
+      appendLiteral(buf, literal);
+      buf.append(pattern);
+    }
+    appendLiteral(buf, literal);
+    return buf.toString();
+  }
+
+  /** Appends some literal text to a {@link SimpleDateFormat} pattern. */
+  private static void appendLiteral(final StringBuilder buf,
+                                    final StringBuilder literal) {
+    if (literal.length() == 0) {
+      return;
+    }
+    buf.append('\'');
+    for (int i = 0; i < literal.length(); i++) {
+      final char c = literal.charAt(i);
+      buf.append(c);
+      if (c == '\'') {
+        buf.append('\'');  // Quotes are escaped by doubling them.
+      }
+    }
+    buf.append('\'');
+    literal.setLength(0);
+  }
+
+  private static void unsupported(final String what) {
+    throw new UnsupportedOperationException("Not supported without"
+                                            + " Gnuplot: " + what);
+  }
+
+}
@@ -0,0 +1,192 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class TestReducedDataPoints {
+
+  private static final long START = 1356998400;
+
+  @Test
+  public void keepsFirstMinMaxLast() {
+    // 2 buckets of 10s: [0, 9] and [10, 19].
+    final Series series = new Series(
+      new long[] { 0, 1, 2, 3, 4, 5, 10, 11, 12 },
+      new long[] { 5, 9, 1, 7, 3, 4, 2, 2, 2 });
+    final ReducedDataPoints dps =
+      ReducedDataPoints.reduce(series, START, START + 19, 2);
+    assertArrayEquals(new long[] { 0, 1, 2, 5, 10, 12 }, timestamps(dps));
+    assertEquals(5, dps.longValue(0));
+    assertEquals(9, dps.longValue(1));
+    assertEquals(1, dps.longValue(2));
+    assertEquals(4, dps.longValue(3));
+    assertEquals(series.aggregatedSize(), dps.aggregatedSize());
+  }
+
+  @Test
+  public void keepsPointsOutsideOfTheGraph() {
+    final Series series = new Series(
+      new long[] { -20, -10, 0, 1, 2, 3, 30, 40 },
+      new long[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+    final ReducedDataPoints dps =
+      ReducedDataPoints.reduce(series, START, START + 19, 1);
+    assertArrayEquals(new long[] { -20, -10, 0, 3, 30, 40 },
+                      timestamps(dps));
+  }
+
+  @Test
+  public void keepsFloats() {
+    final Series series = new Series(new long[] { 0, 1, 2 },
+                                     new long[] { 1, 3, 2 });
+    series.floats = true;
+    final ReducedDataPoints dps =
+      ReducedDataPoints.reduce(series, START, START + 19, 1);
+    assertEquals(3, dps.size());
+    assertFalse(dps.isInteger(1));
+    assertEquals(1.5, dps.doubleValue(1), 0.0);
+    final SeekableView it = dps.iterator();
+    it.seek(START + 2);
+    assertTrue(it.hasNext());
+    assertEquals(1.0, it.next().toDouble(), 0.0);
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void plotReducesUnlessDisabled() throws Exception {
+    final int n = 3600;
+    final long[] ts = new long[n];
+    final long[] values = new long[n];
+    for (int i = 0; i < n; i++) {
+      ts[i] = i;
+      values[i] = i % 7;
+    }
+    final Plot plot = new Plot(START, START + n - 1);
+    plot.setDimensions((short) 100, (short) 100);
+    plot.add(new Series(ts, values), "");
+    final int reduced = plot.getPlottedDataPoints().get(0).size();
+    assertTrue("reduced to " + reduced, reduced <= 100 * 4);
+    final Plot raw = new Plot(START, START + n - 1);
+    raw.setReduction(false);
+    raw.add(new Series(ts, values), "");
+    assertEquals(n, raw.getPlottedDataPoints().get(0).size());
+  }
+
+  private static long[] timestamps(final DataPoints dps) {
+    final long[] ts = new long[dps.size()];
+    for (int i = 0; i < ts.length; i++) {
+      ts[i] = dps.timestamp(i) - START;
+    }
+    return ts;
+  }
+
+  /** A series with the given offsets from START and values.  */
+  private static final class Series implements DataPoints {
+    private final long[] offsets;
+    private final long[] values;
+    /** If true, values are floats, half of the value given.  */
+    boolean floats;
+
+    Series(final long[] offsets, final long[] values) {
+      this.offsets = offsets;
+      this.values = values;
+    }
+
+    public String metricName() {
+      return "sys.cpu";
+    }
+
+    public Map<String, String> getTags() {
+      return Collections.singletonMap("host", "web01");
+    }
+
+    public List<String> getAggregatedTags() {
+      return new ArrayList<String>(0);
+    }
+
+    public int size() {
+      return offsets.length;
+    }
+
+    public int aggregatedSize() {
+      return offsets.length * 2;
+    }
+
+    public SeekableView iterator() {
+      return new SeekableView() {
+        private int i = 0;
+
+        public boolean hasNext() {
+          return i < offsets.length;
+        }
+
+        public DataPoint next() {
+          final int n = i++;
+          return new DataPoint() {
+            public long timestamp() { return Series.this.timestamp(n); }
+            public boolean isInteger() { return Series.this.isInteger(n); }
+            public long longValue() { return Series.this.longValue(n); }
+            public double doubleValue() { return Series.this.doubleValue(n); }
+            public double toDouble() {
+              return floats ? doubleValue() : longValue();
+            }
+          };
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+
+        public void seek(final long timestamp) {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    public long timestamp(final int i) {
+      return START + offsets[i];
+    }
+
+    public boolean isInteger(final int i) {
+      return !floats;
+    }
+
+    public long longValue(final int i) {
+      if (floats) {
+        throw new ClassCastException();
+      }
+      return values[i];
+    }
+
+    public double doubleValue(final int i) {
+      if (!floats) {
+        throw new ClassCastException();
+      }
+      return values[i] / 2.0;
+    }
+  }
+
+}
@@ -0,0 +1,194 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class TestRenderer {
+
+  private static final long START = 1356998400;
+
+  @Test
+  public void render() throws Exception {
+    final Plot plot = new Plot(START, START + 3600);
+    plot.setDimensions((short) 300, (short) 200);
+    final HashMap<String, String> params = new HashMap<String, String>();
+    params.put("yrange", "[0:]");
+    params.put("title", "\"CPU \\\"usage\\\"\"");
+    params.put("logscale", "y2");
+    params.put("bgcolor", "transparent");
+    plot.setParams(params);
+    // 61 points, one before the start time.
+    plot.add(new Series(START - 60, 61), "");
+    plot.add(new Series(START, 10), "axis x1y2 with lines lw 2");
+    final File png = File.createTempFile("graph", ".png");
+    try {
+      assertEquals(60 + 10, plot.renderToFile(png.getPath()));
+      final BufferedImage image = ImageIO.read(png);
+      assertEquals(300, image.getWidth());
+      assertEquals(200, image.getHeight());
+    } finally {
+      png.delete();
+    }
+  }
+
+  @Test
+  public void renderNoData() throws Exception {
+    final Plot plot = new Plot(START, START + 60);
+    plot.setParams(new HashMap<String, String>());
+    final File png = File.createTempFile("graph", ".png");
+    try {
+      assertEquals(0, plot.renderToFile(png.getPath()));
+      assertEquals(1024, ImageIO.read(png).getWidth());
+    } finally {
+      png.delete();
+    }
+  }
+
+  @Test
+  public void unsupportedSettings() throws Exception {
+    assertUnsupported("key", "out center top");
+    assertUnsupported("format x", "\"%H:%M %Z\"");
+    assertUnsupported("format y", "\"%.1s%c\"");
+    assertUnsupported("xtics", "60");
+    final Plot plot = new Plot(START, START + 60);
+    plot.setParams(new HashMap<String, String>());
+    plot.add(new Series(START, 1), "with candlesticks");
+    try {
+      new Renderer(plot);
+      fail("rendered candlesticks");
+    } catch (UnsupportedOperationException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void strftimeToJava() {
+    assertEquals("yyyy'/'MM'/'dd", Renderer.strftimeToJava("%Y/%m/%d"));
+    assertEquals("EEE' 'HH':'mm", Renderer.strftimeToJava("%a %H:%M"));
+    assertEquals("HH'h''%'", Renderer.strftimeToJava("%Hh'%%"));
+  }
+
+  @Test
+  public void unquote() {
+    assertEquals("a \"b\" \\ c", Renderer.unquote("\"a \\\"b\\\" \\\\ c\""));
+    assertEquals("plain", Renderer.unquote("plain"));
+  }
+
+  private static void assertUnsupported(final String param,
+                                        final String value) {
+    final Plot plot = new Plot(START, START + 60);
+    final HashMap<String, String> params = new HashMap<String, String>();
+    params.put(param, value);
+    plot.setParams(params);
+    try {
+      new Renderer(plot);
+      fail("rendered " + param + ' ' + value);
+    } catch (UnsupportedOperationException e) {
+      // Expected.
+    }
+  }
+
+  /** A series with one integer point per minute.  */
+  private static final class Series implements DataPoints {
+    private final long start;
+    private final int size;
+
+    Series(final long start, final int size) {
+      this.start = start;
+      this.size = size;
+    }
+
+    public String metricName() {
+      return "sys.cpu";
+    }
+
+    public Map<String, String> getTags() {
+      return Collections.singletonMap("host", "web01");
+    }
+
+    public List<String> getAggregatedTags() {
+      return new ArrayList<String>(0);
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public int aggregatedSize() {
+      return size;
+    }
+
+    public SeekableView iterator() {
+      return new SeekableView() {
+        private int i = 0;
+
+        public boolean hasNext() {
+          return i < size;
+        }
+
+        public DataPoint next() {
+          final int n = i++;
+          return new DataPoint() {
+            public long timestamp() { return Series.this.timestamp(n); }
+            public boolean isInteger() { return true; }
+            public long longValue() { return Series.this.longValue(n); }
+            public double doubleValue() { throw new ClassCastException(); }
+            public double toDouble() { return longValue(); }
+          };
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+
+        public void seek(final long timestamp) {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    public long timestamp(final int i) {
+      return start + i * 60;
+    }
+
+    public boolean isInteger(final int i) {
+      return true;
+    }
+
+    public long longValue(final int i) {
+      return i + 1;
+    }
+
+    public double doubleValue(final int i) {
+      throw new ClassCastException();
+    }
+  }
+
+}
@@ -0,0 +1,171 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.stats;
+
+/**
+ * A HyperLogLog sketch, to estimate the number of distinct values seen.
+ * <p>
+ * A sketch with precision {@code p} uses {@code 2^p} bytes and has a
+ * standard error of about {@code 1.04 / sqrt(2^p)}, so 1.6% for p=12.
+ * Sketches with the same precision can be merged, which gives the sketch
+ * of the union of the values they've seen.
+ * <p>
+ * This class is not synchronized, but concurrent calls to {@link #add} are
+ * safe in the sense that the worst that can happen is that an update is
+ * lost.  When the same values keep being added, as is the case with time
+ * series, a lost update is repaired the next time the value is added.
+ */
+public final class HyperLogLog {
+
+  /** Number of bits of the hash used to pick a register.  */
+  private final int precision;
+
+  /** For each register, the highest rank seen.  */
+  private final byte[] registers;
+
+  /**
+   * Constructor.
+   * @param precision Number of bits used to pick a register, between 4 and
+   * 16 (inclusive).
+   * @throws IllegalArgumentException if the precision is out of range.
+   */
+  public HyperLogLog(final int precision) {
+    if (precision < 4 || precision > 16) {
+      throw new IllegalArgumentException("invalid precision: " + precision);
+    }
+    this.precision = precision;
+    registers = new byte[1 << precision];
+  }
+
+  /**
+   * Creates a sketch from the output of {@link #toBytes}.
+   * @throws IllegalArgumentException if the bytes don't look like a sketch.
+   */
+  public HyperLogLog(final byte[] bytes) {
+    this(bytes.length > 0 ? bytes[0] : 0);
+    if (bytes.length != registers.length + 1) {
+      throw new IllegalArgumentException("invalid sketch of " + bytes.length
+                                         + " bytes");
+    }
+    System.arraycopy(bytes, 1, registers, 0, registers.length);
+  }
+
+  /** Returns the precision of this sketch.  */
+  public int precision() {
+    return precision;
+  }
+
+  /**
+   * Adds a value to the sketch.
+   * @param buf The buffer that contains the value.
+   * @param offset The offset of the value in the buffer.
+   * @param length The number of bytes of the value.
+   */
+  public void add(final byte[] buf, final int offset, final int length) {
+    addHash(hash(buf, offset, length));
+  }
+
+  /**
+   * Adds a value to the sketch, given its hash.
+   * @param hash A 64-bit hash whose bits are evenly distributed.
+   */
+  public void addHash(final long hash) {
+    final int index = (int) (hash >>> (64 - precision));
+    // Guarantee a 1 bit so the rank is at most 64 - precision + 1.
+    final long w = (hash << precision) | (1L << (precision - 1));
+    final byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+    if (rank > registers[index]) {
+      registers[index] = rank;
+    }
+  }
+
+  /**
+   * Merges another sketch into this one.
+   * @param other The sketch to merge, which isn't modified.
+   * @throws IllegalArgumentException if the precisions differ.
+   */
+  public void merge(final HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException("can't merge a sketch of precision "
+        + other.precision + " into one of precision " + precision);
+    }
+    for (int i = 0; i < registers.length; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  /** Returns the estimated number of distinct values added.  */
+  public long estimate() {
+    final int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (final byte rank : registers) {
+      sum += 1.0 / (1L << rank);
+      if (rank == 0) {
+        zeros++;
+      }
+    }
+    final double alpha;
+    switch (m) {
+      case 16: alpha = 0.673; break;
+      case 32: alpha = 0.697; break;
+      case 64: alpha = 0.709; break;
+      default: alpha = 0.7213 / (1 + 1.079 / m);
+    }
+    double estimate = alpha * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // Small range correction: use linear counting.
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  /** Returns a copy of this sketch.  */
+  public HyperLogLog copy() {
+    return new HyperLogLog(toBytes());
+  }
+
+  /**
+   * Serializes this sketch, see {@link #HyperLogLog(byte[])}.
+   * The first byte is the precision, the others are the registers.
+   */
+  public byte[] toBytes() {
+    final byte[] bytes = new byte[registers.length + 1];
+    bytes[0] = (byte) precision;
+    System.arraycopy(registers, 0, bytes, 1, registers.length);
+    return bytes;
+  }
+
+  /**
+   * Returns a 64-bit hash of some bytes.
+   * This is FNV-1a followed by the finalizer of MurmurHash3, which spreads
+   * the bits evenly, as required by {@link #addHash}.
+   */
+  public static long hash(final byte[] buf, final int offset,
+                          final int length) {
+    long h = 0xCBF29CE484222325L;
+    for (int i = offset; i < offset + length; i++) {
+      h ^= buf[i] & 0xFF;
+      h *= 0x100000001B3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+}
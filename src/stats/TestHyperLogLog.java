@@ -0,0 +1,83 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.stats;
+
+import junit.framework.TestCase;
+
+public final class TestHyperLogLog extends TestCase {
+
+  public void test_empty() {
+    assertEquals(0, new HyperLogLog(12).estimate());
+  }
+
+  public void test_small_cardinality_is_exact() {
+    final HyperLogLog hll = new HyperLogLog(12);
+    for (int n = 0; n < 3; n++) {  // Duplicates don't count.
+      for (int i = 0; i < 10; i++) {
+        add(hll, i);
+      }
+    }
+    assertEquals(10, hll.estimate());
+  }
+
+  public void test_large_cardinality_within_error() {
+    final HyperLogLog hll = new HyperLogLog(12);
+    for (int i = 0; i < 100000; i++) {
+      add(hll, i);
+    }
+    assertWithin(100000, hll.estimate(), 0.05);
+  }
+
+  public void test_merge() {
+    final HyperLogLog a = new HyperLogLog(10);
+    final HyperLogLog b = new HyperLogLog(10);
+    for (int i = 0; i < 20000; i++) {
+      add(a, i);
+      add(b, i + 10000);
+    }
+    a.merge(b);
+    assertWithin(30000, a.estimate(), 0.1);
+  }
+
+  public void test_merge_precision_mismatch() {
+    try {
+      new HyperLogLog(10).merge(new HyperLogLog(12));
+      fail("merged sketches of different precisions");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  public void test_serialization() {
+    final HyperLogLog hll = new HyperLogLog(8);
+    for (int i = 0; i < 1000; i++) {
+      add(hll, i);
+    }
+    final HyperLogLog copy = new HyperLogLog(hll.toBytes());
+    assertEquals(8, copy.precision());
+    assertEquals(hll.estimate(), copy.estimate());
+  }
+
+  private static void add(final HyperLogLog hll, final int value) {
+    final byte[] buf = { (byte) (value >>> 24), (byte) (value >>> 16),
+                         (byte) (value >>> 8), (byte) value };
+    hll.add(buf, 0, buf.length);
+  }
+
+  private static void assertWithin(final long expected, final long actual,
+                                   final double error) {
+    assertTrue("estimate " + actual + " is too far from " + expected,
+               Math.abs(actual - expected) <= expected * error);
+  }
+
+}
@@ -0,0 +1,182 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.tsd.QueryExecutor;
+
+/**
+ * Measures the throughput of the query executor under blocking load.
+ * <p>
+ * Each simulated request is made of a number of sub-queries that block on
+ * a {@link Deferred} the same way {@code TsdbQuery} blocks on HBase, except
+ * that the "HBase latency" is a fixed delay.  We run the same workload with
+ * several thread pool sizes and, if the JVM supports them, with virtual
+ * threads, and print how many requests per second each configuration can
+ * sustain.
+ */
+final class ExecutorBenchmark {
+
+  /** Prints usage and exits with the given retval.  */
+  private static void usage(final ArgP argp, final String errmsg,
+                            final int retval) {
+    System.err.println(errmsg);
+    System.err.println("Usage: bench [--requests=N] [--subqueries=N]"
+      + " [--latency=MSEC] [--clients=N] [--threads=N,N,...]"
+      + " [--virtual=N]\n"
+      + "Measures how many graph requests per second the query executor can"
+      + " serve when sub-queries block on HBase.");
+    if (argp != null) {
+      System.err.print(argp.usage());
+    }
+    System.exit(retval);
+  }
+
+  public static void main(String[] args) throws Exception {
+    final ArgP argp = new ArgP();
+    argp.addOption("--requests", "N", "Number of requests (default: 2000).");
+    argp.addOption("--subqueries", "N",
+                   "Number of sub-queries per request (default: 4).");
+    argp.addOption("--latency", "MSEC",
+                   "Simulated HBase latency of each sub-query (default: 50).");
+    argp.addOption("--clients", "N",
+                   "Number of concurrent clients (default: 200).");
+    argp.addOption("--threads", "N,N,...",
+                   "Thread pool sizes to try (default: 24,48,128,512).");
+    argp.addOption("--virtual", "N", "Also try virtual threads with up to N"
+                   + " concurrent sub-queries (default: 10000).");
+    try {
+      args = argp.parse(args);
+    } catch (IllegalArgumentException e) {
+      usage(argp, e.getMessage(), 1);
+    }
+    if (args == null || args.length != 0) {
+      usage(argp, "Invalid usage.", 1);
+    }
+    final int nrequests = Integer.parseInt(argp.get("--requests", "2000"));
+    final int nsubqueries = Integer.parseInt(argp.get("--subqueries", "4"));
+    final int latency = Integer.parseInt(argp.get("--latency", "50"));
+    final int nclients = Integer.parseInt(argp.get("--clients", "200"));
+    final String[] pools = argp.get("--threads", "24,48,128,512").split(",");
+    final int nvirtual = Integer.parseInt(argp.get("--virtual", "10000"));
+
+    final ScheduledThreadPoolExecutor hbase =
+      new ScheduledThreadPoolExecutor(2);
+    System.out.println("requests=" + nrequests + " subqueries=" + nsubqueries
+                       + " latency=" + latency + "ms clients=" + nclients);
+    for (final String pool : pools) {
+      final int nthreads = Integer.parseInt(pool.trim());
+      run("threads=" + nthreads,
+          new QueryExecutor(nthreads, nrequests * nsubqueries),
+          hbase, nrequests, nsubqueries, latency, nclients);
+    }
+    QueryExecutor virtual = null;
+    try {
+      virtual = new QueryExecutor(nvirtual, nrequests * nsubqueries, true);
+    } catch (UnsupportedOperationException e) {
+      System.out.println("virtual=" + nvirtual + ": skipped, "
+                         + e.getMessage());
+    }
+    if (virtual != null) {
+      run("virtual=" + nvirtual, virtual, hbase, nrequests, nsubqueries,
+          latency, nclients);
+    }
+    hbase.shutdown();
+  }
+
+  /**
+   * Runs the workload once and prints the results.
+   * @param name Name of the configuration being tested.
+   * @param executor The executor to test.  It'll be shut down.
+   * @param hbase Executor used to simulate the HBase latency.
+   */
+  private static void run(final String name,
+                          final QueryExecutor executor,
+                          final ScheduledThreadPoolExecutor hbase,
+                          final int nrequests,
+                          final int nsubqueries,
+                          final int latency,
+                          final int nclients) throws InterruptedException {
+    final Histogram latencies = new Histogram(16000, (short) 2, 100);
+    final AtomicLong remaining = new AtomicLong(nrequests);
+    final AtomicLong errors = new AtomicLong();
+    final Thread[] clients = new Thread[nclients];
+    final long start_time = System.nanoTime();
+    for (int i = 0; i < nclients; i++) {
+      final String tenant = "client" + i;
+      clients[i] = new Thread(tenant) {
+        public void run() {
+          while (remaining.decrementAndGet() >= 0) {
+            final long start = System.nanoTime();
+            final QueryExecutor.Batch batch = executor.newBatch(tenant, 0);
+            try {
+              for (int j = 0; j < nsubqueries; j++) {
+                batch.submit(new SubQuery(hbase, latency));
+              }
+              batch.await();
+            } catch (Exception e) {
+              errors.incrementAndGet();
+              continue;
+            }
+            final int millis = (int) ((System.nanoTime() - start) / 1000000);
+            synchronized (latencies) {
+              latencies.add(millis);
+            }
+          }
+        }
+      };
+      clients[i].start();
+    }
+    for (final Thread client : clients) {
+      client.join();
+    }
+    final long elapsed = (System.nanoTime() - start_time) / 1000000;
+    executor.shutdown();
+    System.out.println(name + ": " + elapsed + "ms, "
+      + (nrequests * 1000L / Math.max(elapsed, 1)) + " requests/s, "
+      + (nrequests * (long) nsubqueries * 1000L / Math.max(elapsed, 1))
+      + " sub-queries/s, latency p50=" + latencies.percentile(50)
+      + "ms p99=" + latencies.percentile(99) + "ms, errors=" + errors.get());
+  }
+
+  /** A fake sub-query that blocks until HBase "answers".  */
+  private static final class SubQuery implements Callable<Object> {
+
+    private final ScheduledThreadPoolExecutor hbase;
+    private final int latency;
+
+    SubQuery(final ScheduledThreadPoolExecutor hbase, final int latency) {
+      this.hbase = hbase;
+      this.latency = latency;
+    }
+
+    public Object call() throws Exception {
+      final Deferred<Object> d = new Deferred<Object>();
+      hbase.schedule(new Runnable() {
+        public void run() {
+          d.callback(null);
+        }
+      }, latency, TimeUnit.MILLISECONDS);
+      return d.joinUninterruptibly();
+    }
+
+  }
+
+}
@@ -96,6 +96,14 @@ final class TSDMain {
     argp.addOption("--flush-interval", "MSEC",
                    "Maximum time for which a new data point can be buffered"
                    + " (default: " + DEFAULT_FLUSH_INTERVAL + ").");
+    argp.addOption("--virtual-threads",
+                   "Run queries on virtual threads (requires JDK 21+).");
+    argp.addOption("--worker-threads", "NUM",
+                   "Number of threads doing network I/O"
+                   + " (default: 2 per CPU).");
+    argp.addOption("--ingest-workers", "NUM",
+                   "Number of threads importing data points, 0 to import"
+                   + " them on the network threads (default: 0).");
     CliOptions.addAutoMetricFlag(argp);
     args = CliOptions.parse(argp, args);
     if (args == null || !argp.has("--port")
@@ -107,6 +115,12 @@ final class TSDMain {
     args = null;  // free().
 
     final short flush_interval = getFlushInterval(argp);
+    if (argp.has("--virtual-threads")) {
+      System.setProperty("tsd.query.virtual_threads", "true");
+    }
+    if (argp.has("--ingest-workers")) {
+      System.setProperty("tsd.ingest.workers", argp.get("--ingest-workers"));
+    }
 
     setDirectoryInSystemProps("tsd.http.staticroot", argp.get("--staticroot"),
                               DONT_CREATE, !MUST_BE_WRITEABLE);
@@ -115,7 +129,8 @@ final class TSDMain {
 
     final NioServerSocketChannelFactory factory =
         new NioServerSocketChannelFactory(Executors.newCachedThreadPool(),
-                                          Executors.newCachedThreadPool());
+                                          Executors.newCachedThreadPool(),
+                                          getWorkerThreads(argp));
     final HBaseClient client = CliOptions.clientFromOptions(argp);
     try {
       // Make sure we don't even start if we can't find out tables.
@@ -150,6 +165,24 @@ final class TSDMain {
     // The server is now running in separate threads, we can exit main.
   }
 
+  /**
+   * Parses the value of the --worker-threads parameter.
+   * @throws IllegalArgumentException if the number of threads is 0 or
+   * negative.
+   */
+  private static int getWorkerThreads(final ArgP argp) {
+    final String threads = argp.get("--worker-threads");
+    if (threads == null) {
+      return Runtime.getRuntime().availableProcessors() * 2;  // Netty's.
+    }
+    final int n = Integer.parseInt(threads);
+    if (n <= 0) {
+      throw new IllegalArgumentException("Non-positive --worker-threads: "
+                                         + n);
+    }
+    return n;
+  }
+
   /**
    * Parses the value of the --flush-interval parameter.
    * @throws IllegalArgumentException if the flush interval is negative.
@@ -0,0 +1,156 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.HyperLogLog;
+import net.opentsdb.uid.NoSuchUniqueName;
+
+/**
+ * Implements the {@code /cardinality} endpoint, which returns the estimated
+ * number of time series of metrics.
+ * <pre>
+ *   /cardinality[?limit=N]            metrics with the most series
+ *   /cardinality?m=metric[&amp;m=...]    series and values of each tag
+ * </pre>
+ * Add {@code &amp;json} for JSON.  With {@code &amp;sketch}, the JSON also
+ * contains the sketch of the series of each metric, in hex, so that the
+ * sketches of several TSDs can be merged.
+ * <p>
+ * Only the series written through this TSD are counted, and only if
+ * {@code tsd.core.cardinality.precision} is set.
+ */
+final class CardinalityRpc implements HttpRpc {
+
+  public void execute(final TSDB tsdb, final HttpQuery query) {
+    final boolean json = query.hasQueryStringParam("json");
+    final List<String> ms = query.getQueryStringParams("m");
+    final StringBuilder buf = new StringBuilder();
+    if (ms == null) {
+      listMetrics(tsdb, query, json, buf);
+    } else {
+      if (json) {
+        buf.append('[');
+      }
+      for (final String metric : ms) {
+        try {
+          describe(tsdb, metric, json, query.hasQueryStringParam("sketch"),
+                   buf);
+        } catch (NoSuchUniqueName e) {
+          throw new BadRequestException(e.getMessage());
+        }
+      }
+      if (json) {
+        if (buf.length() > 1) {
+          buf.setLength(buf.length() - 1);  // Trailing comma.
+        }
+        buf.append(']');
+      }
+    }
+    query.sendReply(buf);
+  }
+
+  /** Lists the metrics with the most series, most series first.  */
+  private static void listMetrics(final TSDB tsdb, final HttpQuery query,
+                                  final boolean json,
+                                  final StringBuilder buf) {
+    int limit = 100;
+    final String param = query.getQueryStringParam("limit");
+    if (param != null) {
+      try {
+        limit = Integer.parseInt(param);
+      } catch (NumberFormatException e) {
+        throw new BadRequestException("Invalid 'limit' parameter: " + param);
+      }
+    }
+    final ArrayList<Map.Entry<String, Long>> metrics =
+      new ArrayList<Map.Entry<String, Long>>(
+        tsdb.getSeriesCardinalities().entrySet());
+    Collections.sort(metrics, new Comparator<Map.Entry<String, Long>>() {
+      public int compare(final Map.Entry<String, Long> a,
+                         final Map.Entry<String, Long> b) {
+        return b.getValue().compareTo(a.getValue());
+      }
+    });
+    if (json) {
+      buf.append('{');
+    }
+    for (int i = 0; i < metrics.size() && i < limit; i++) {
+      final Map.Entry<String, Long> metric = metrics.get(i);
+      if (json) {
+        buf.append('"');
+        HttpQuery.escapeJson(metric.getKey(), buf);
+        buf.append("\":").append(metric.getValue()).append(',');
+      } else {
+        buf.append(metric.getKey()).append(' ').append(metric.getValue())
+          .append('\n');
+      }
+    }
+    if (json) {
+      if (buf.length() > 1) {
+        buf.setLength(buf.length() - 1);  // Trailing comma.
+      }
+      buf.append('}');
+    }
+  }
+
+  /**
+   * Appends the estimates of one metric.
+   * In JSON, the object is followed by a comma.
+   */
+  private static void describe(final TSDB tsdb, final String metric,
+                               final boolean json, final boolean sketch,
+                               final StringBuilder buf) {
+    final HyperLogLog series = tsdb.getSeriesSketch(metric);
+    final long estimate = series == null ? 0 : series.estimate();
+    final TreeMap<String, HyperLogLog> tags =
+      new TreeMap<String, HyperLogLog>(tsdb.getTagValueSketches(metric));
+    if (!json) {
+      buf.append(metric).append(' ').append(estimate).append('\n');
+      for (final Map.Entry<String, HyperLogLog> tag : tags.entrySet()) {
+        buf.append(metric).append(' ').append(tag.getKey()).append(' ')
+          .append(tag.getValue().estimate()).append('\n');
+      }
+      return;
+    }
+    buf.append("{\"metric\":\"");
+    HttpQuery.escapeJson(metric, buf);
+    buf.append("\",\"series\":").append(estimate).append(",\"tags\":{");
+    for (final Map.Entry<String, HyperLogLog> tag : tags.entrySet()) {
+      buf.append('"');
+      HttpQuery.escapeJson(tag.getKey(), buf);
+      buf.append("\":").append(tag.getValue().estimate()).append(',');
+    }
+    if (!tags.isEmpty()) {
+      buf.setLength(buf.length() - 1);
+    }
+    buf.append('}');
+    if (sketch && series != null) {
+      buf.append(",\"sketch\":\"");
+      for (final byte b : series.toBytes()) {
+        buf.append(Character.forDigit((b >>> 4) & 0xF, 16))
+          .append(Character.forDigit(b & 0xF, 16));
+      }
+      buf.append('"');
+    }
+    buf.append("},");
+  }
+
+}
@@ -14,34 +14,102 @@ package net.opentsdb.tsd;
 
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelState;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 
 import net.opentsdb.stats.StatsCollector;
 
 /**
  * Keeps track of all existing connections.
+ * <p>
+ * Configuration:
+ * <ul>
+ * <li>{@code tsd.network.max_connections}: how many connections can be open
+ * at the same time, 0 (the default) for no limit.  Connections in excess
+ * are closed as soon as they're accepted, see {@link #admit}.</li>
+ * <li>{@code tsd.network.idle_timeout}: connections, telnet or HTTP, on
+ * which nothing was read or written for this many seconds are closed,
+ * unless we're still working on something for them, see {@link #isBusy}.
+ * 0 (the default) to keep idle connections open.</li>
+ * <li>{@code tsd.ingest.max_pending_points}: we stop reading from a
+ * connection that has this many data points waiting to be written to HBase
+ * (10000 by default, 0 for no limit), until half of them are written.
+ * Data points waiting for an {@link IngestWorkers ingest worker} count
+ * too, see {@link #recordQueued}.</li>
+ * </ul>
+ * The data points, bytes and errors of each connection are tracked, so that
+ * the clients that send the most (see {@link #clients}) can be found.
+ * <p>
+ * We also stop reading from a connection while the writes that HBase asked
+ * us to throttle are retried, see {@link #recordWrite}.  This way clients
+ * that send more than HBase can take are pushed back by TCP flow control,
+ * instead of us buffering their data points until we run out of memory.
  */
 final class ConnectionManager extends SimpleChannelHandler {
 
   private static final Logger LOG = LoggerFactory.getLogger(ConnectionManager.class);
 
+  /** Maximum number of connections open at the same time, 0 for no limit. */
+  static final int MAX_CONNECTIONS =
+    Integer.getInteger("tsd.network.max_connections", 0);
+
+  /** How many seconds idle connections stay open, 0 for ever.  */
+  static final int IDLE_TIMEOUT =
+    Integer.getInteger("tsd.network.idle_timeout", 0);
+
+  /** Stop reading a connection with this many pending writes, 0 for never. */
+  static final int MAX_PENDING_POINTS =
+    Integer.getInteger("tsd.ingest.max_pending_points", 10000);
+
   private static final AtomicLong connections_established = new AtomicLong();
+  private static final AtomicLong connections_rejected = new AtomicLong();
+  private static final AtomicLong idle_closed = new AtomicLong();
   private static final AtomicLong exceptions_caught = new AtomicLong();
+  private static final AtomicLong suspensions = new AtomicLong();
+  /** Time spent not reading from connections, in nanoseconds.  */
+  private static final AtomicLong suspended_nanos = new AtomicLong();
+
+  /** Connections admitted that haven't been closed yet.  */
+  private static final AtomicInteger open_connections = new AtomicInteger();
 
   private static final DefaultChannelGroup channels =
     new DefaultChannelGroup("all-channels");
 
+  /** The open connections, along with their usage stats.  */
+  private static final ConcurrentHashMap<Channel, Client> clients =
+    new ConcurrentHashMap<Channel, Client>();
+
+  /** Lazily created, see {@link #timer}.  */
+  private static Timer timer;
+
+  /** Closes the connections that weren't admitted.  */
+  static final ChannelHandler REJECTER = new Rejecter();
+
   static void closeAllConnections() {
     channels.close().awaitUninterruptibly();
   }
@@ -50,27 +118,358 @@ final class ConnectionManager extends SimpleChannelHandler {
   public ConnectionManager() {
   }
 
+  /**
+   * Returns the timer to use for the timeouts and delays of connections.
+   * Its thread doesn't prevent the TSD from exiting.
+   */
+  static synchronized Timer timer() {
+    if (timer == null) {
+      final class DaemonThreads implements ThreadFactory {
+        public Thread newThread(final Runnable r) {
+          final Thread thread = new Thread(r, "ConnectionTimer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      }
+      timer = new HashedWheelTimer(new DaemonThreads());
+    }
+    return timer;
+  }
+
   /**
    * Collects the stats and metrics tracked by this instance.
    * @param collector The collector to use.
    */
   public static void collectStats(final StatsCollector collector) {
     collector.record("connectionmgr.connections", connections_established);
+    collector.record("connectionmgr.open", open_connections.get());
+    collector.record("connectionmgr.rejected", connections_rejected);
+    collector.record("connectionmgr.idle_closed", idle_closed);
     collector.record("connectionmgr.exceptions", exceptions_caught);
+    collector.record("connectionmgr.suspensions", suspensions);
+    collector.record("connectionmgr.suspended_ms",
+                     suspended_nanos.get() / 1000000);
+  }
+
+  /**
+   * Decides whether or not to accept a new connection, before anything is
+   * done for it.  If this returns {@code true}, the connection must go
+   * through a {@link ConnectionManager}, so that we know when it's closed.
+   * Otherwise it must be closed with {@link #REJECTER}.
+   */
+  static boolean admit() {
+    return admit(MAX_CONNECTIONS);
+  }
+
+  /**
+   * Same as {@link #admit()} with a different limit.
+   * @param max_connections How many connections can be open at the same
+   * time, 0 for no limit.
+   */
+  static boolean admit(final int max_connections) {
+    while (true) {
+      final int n = open_connections.get();
+      if (max_connections > 0 && n >= max_connections) {
+        connections_rejected.incrementAndGet();
+        return false;
+      }
+      if (open_connections.compareAndSet(n, n + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Returns the usage stats of the connections currently open.
+   * The list returned is a copy and isn't sorted.
+   */
+  static ArrayList<Client> clients() {
+    return new ArrayList<Client>(clients.values());
+  }
+
+  /**
+   * Records that a data point was received on a connection.
+   * @param chan The connection, which may not be managed by this class.
+   */
+  static void recordPoint(final Channel chan) {
+    final Client client = clients.get(chan);
+    if (client != null) {
+      client.points.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records that a request on a connection failed.
+   * @param chan The connection, which may not be managed by this class.
+   */
+  static void recordError(final Channel chan) {
+    final Client client = clients.get(chan);
+    if (client != null) {
+      client.errors.incrementAndGet();
+    }
+  }
+
+  /**
+   * Keeps track of a data point being written to HBase for a connection,
+   * and stops reading from the connection while it has too many of them.
+   * @param chan The connection, which may not be managed by this class.
+   * @param write The write of the data point.
+   * @param retry Whether this is the retry of a write HBase asked us to
+   * throttle, in which case we don't read from the connection until it's
+   * done.
+   */
+  static void recordWrite(final Channel chan, final Deferred<Object> write,
+                          final boolean retry) {
+    final Client client = clients.get(chan);
+    if (client == null) {
+      return;
+    }
+    client.writeStarted(chan, retry);
+    final class WriteDone implements Callback<Object, Object> {
+      public Object call(final Object arg) {
+        client.writeDone(chan, retry);
+        return arg;
+      }
+      public String toString() {
+        return "resume reading if needed";
+      }
+    }
+    write.addBoth(new WriteDone());
+  }
+
+  /**
+   * Keeps track of a request being served for a connection, so that the
+   * connection isn't closed for being idle meanwhile.
+   * @param chan The connection, which may not be managed by this class.
+   * @param done Called back once the request has been served.
+   */
+  static void recordRequest(final Channel chan, final Deferred<Object> done) {
+    final Client client = clients.get(chan);
+    if (client == null) {
+      return;
+    }
+    client.requestStarted();
+    final class RequestDone implements Callback<Object, Object> {
+      public Object call(final Object arg) {
+        client.requestDone();
+        return arg;
+      }
+      public String toString() {
+        return "request done";
+      }
+    }
+    done.addBoth(new RequestDone());
+  }
+
+  /**
+   * Returns whether we're working on something for a connection, in which
+   * case it's not idle even if nothing is read from or written to it: we're
+   * serving one of its requests, writing its data points, or not reading
+   * from it on purpose.
+   * @param chan The connection, which may not be managed by this class.
+   */
+  static boolean isBusy(final Channel chan) {
+    final Client client = clients.get(chan);
+    return client != null && client.isBusy();
+  }
+
+  /**
+   * Keeps track of a command queued for an {@link IngestWorkers ingest
+   * worker} on behalf of a connection.  Queued commands count against
+   * {@code tsd.ingest.max_pending_points} like writes to HBase, until they
+   * leave the queue, at which point their write is recorded instead.
+   * @param chan The connection, which may not be managed by this class.
+   * @param dequeued Called back when the command leaves the queue.
+   * @param overflow Whether the queue was full, in which case we don't read
+   * from the connection until the command leaves the queue.
+   */
+  static void recordQueued(final Channel chan,
+                           final Deferred<Object> dequeued,
+                           final boolean overflow) {
+    final Client client = clients.get(chan);
+    if (client == null) {
+      return;
+    }
+    client.commandQueued(chan, overflow);
+    final class Dequeued implements Callback<Object, Object> {
+      public Object call(final Object arg) {
+        client.commandDequeued(chan, overflow);
+        return arg;
+      }
+      public String toString() {
+        return "resume reading if needed";
+      }
+    }
+    dequeued.addBoth(new Dequeued());
+  }
+
+  /** The usage stats of a connection.  */
+  static final class Client {
+    /** The address of the client.  */
+    final String remote;
+    /** When the connection was opened, in milliseconds.  */
+    final long opened;
+    final AtomicLong points = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();  // Received.
+    final AtomicLong errors = new AtomicLong();
+
+    /** Writes to HBase in flight, first attempts and retries.  */
+    private int pending_writes;  // Guarded by this.
+    private int retried_writes;  // Guarded by this.
+    /** Commands waiting for an ingest worker, and those that overflowed. */
+    private int queued_commands;  // Guarded by this.
+    private int overflowed_commands;  // Guarded by this.
+    /** Requests being served, see {@link #recordRequest}.  */
+    private int requests;  // Guarded by this.
+    /** Whether we stopped reading from the connection.  */
+    private boolean suspended;  // Guarded by this.
+    /** When we stopped reading from the connection, in nanoseconds.  */
+    private long suspended_since;  // Guarded by this.
+    private boolean closed;  // Guarded by this.
+
+    Client(final String remote, final long opened) {
+      this.remote = remote;
+      this.opened = opened;
+    }
+
+    synchronized void writeStarted(final Channel chan, final boolean retry) {
+      if (retry) {
+        retried_writes++;
+      } else {
+        pending_writes++;
+      }
+      updateReadable(chan);
+    }
+
+    synchronized void writeDone(final Channel chan, final boolean retry) {
+      if (retry) {
+        retried_writes--;
+      } else {
+        pending_writes--;
+      }
+      updateReadable(chan);
+    }
+
+    synchronized void commandQueued(final Channel chan,
+                                    final boolean overflow) {
+      queued_commands++;
+      if (overflow) {
+        overflowed_commands++;
+      }
+      updateReadable(chan);
+    }
+
+    synchronized void commandDequeued(final Channel chan,
+                                      final boolean overflow) {
+      queued_commands--;
+      if (overflow) {
+        overflowed_commands--;
+      }
+      updateReadable(chan);
+    }
+
+    synchronized boolean isSuspended() {
+      return suspended;
+    }
+
+    synchronized void requestStarted() {
+      requests++;
+    }
+
+    synchronized void requestDone() {
+      requests--;
+    }
+
+    synchronized boolean isBusy() {
+      return suspended || requests > 0 || pending_writes > 0
+        || retried_writes > 0 || queued_commands > 0;
+    }
+
+    synchronized void close() {
+      closed = true;
+      resumed();
+    }
+
+    /**
+     * Stops or resumes reading from the connection.  Once we've stopped,
+     * we only resume when half of the pending writes are done, so we don't
+     * flip-flop on every write.
+     */
+    private void updateReadable(final Channel chan) {
+      if (closed) {
+        return;
+      }
+      final int limit = suspended ? MAX_PENDING_POINTS / 2
+                                  : MAX_PENDING_POINTS;
+      final boolean suspend = retried_writes > 0 || overflowed_commands > 0
+        || (MAX_PENDING_POINTS > 0
+            && pending_writes + queued_commands >= limit);
+      if (suspend == suspended) {
+        return;
+      }
+      if (suspend) {
+        suspended = true;
+        suspended_since = System.nanoTime();
+        suspensions.incrementAndGet();
+      } else {
+        resumed();
+      }
+      chan.setReadable(!suspend);
+    }
+
+    private void resumed() {
+      if (suspended) {
+        suspended = false;
+        suspended_nanos.addAndGet(System.nanoTime() - suspended_since);
+      }
+    }
   }
 
   @Override
   public void channelOpen(final ChannelHandlerContext ctx,
                           final ChannelStateEvent e) {
-    channels.add(e.getChannel());
+    final Channel chan = e.getChannel();
+    channels.add(chan);
+    clients.put(chan, new Client(String.valueOf(chan.getRemoteAddress()),
+                                 System.currentTimeMillis()));
     connections_established.incrementAndGet();
   }
 
+  @Override
+  public void channelClosed(final ChannelHandlerContext ctx,
+                            final ChannelStateEvent e) throws Exception {
+    final Client client = clients.remove(e.getChannel());
+    if (client != null) {
+      client.close();
+    }
+    open_connections.decrementAndGet();
+    // The handlers after us need to know too, e.g. ChunkedWriteHandler
+    // to discard what it hasn't written yet.
+    super.channelClosed(ctx, e);
+  }
+
   @Override
   public void handleUpstream(final ChannelHandlerContext ctx,
                              final ChannelEvent e) throws Exception {
     if (e instanceof ChannelStateEvent) {
-      LOG.info(e.toString());
+      // Don't log every time we stop or resume reading from a connection.
+      if (((ChannelStateEvent) e).getState() != ChannelState.INTEREST_OPS) {
+        LOG.info(e.toString());
+      }
+    } else if (e instanceof MessageEvent) {
+      final Object msg = ((MessageEvent) e).getMessage();
+      final Client client = clients.get(e.getChannel());
+      if (client != null && msg instanceof ChannelBuffer) {
+        client.bytes.addAndGet(((ChannelBuffer) msg).readableBytes());
+      }
+    } else if (e instanceof IdleStateEvent) {
+      if (isBusy(e.getChannel())) {
+        return;  // Only idle while we work on it, or don't read from it.
+      }
+      LOG.info("Closing idle connection " + e.getChannel());
+      idle_closed.incrementAndGet();
+      e.getChannel().close();
+      return;
     }
     super.handleUpstream(ctx, e);
   }
@@ -93,6 +492,17 @@ final class ConnectionManager extends SimpleChannelHandler {
       e.getChannel().close();
     }
     exceptions_caught.incrementAndGet();
+    recordError(chan);
+  }
+
+  /** Closes connections as soon as they're open, without reading them.  */
+  @ChannelHandler.Sharable
+  private static final class Rejecter extends SimpleChannelUpstreamHandler {
+    @Override
+    public void channelOpen(final ChannelHandlerContext ctx,
+                            final ChannelStateEvent e) {
+      e.getChannel().close();  // Don't log, there could be a lot of them.
+    }
   }
 
 }
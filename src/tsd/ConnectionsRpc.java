@@ -0,0 +1,133 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import net.opentsdb.core.TSDB;
+
+/**
+ * Implements the {@code /connections} endpoint, which lists the clients
+ * connected to this TSD, those that sent the most first.
+ * <pre>
+ *   /connections[?limit=N][&amp;sort=points|bytes|errors]
+ * </pre>
+ * Connections are sorted by number of data points by default.  Each line
+ * has the address of the client, the number of data points, bytes and
+ * errors received on the connection, the average number of data points per
+ * second, and how long ago the connection was opened, in seconds.  Add
+ * {@code &amp;json} for JSON.
+ */
+final class ConnectionsRpc implements HttpRpc {
+
+  public void execute(final TSDB tsdb, final HttpQuery query) {
+    final boolean json = query.hasQueryStringParam("json");
+    int limit = 100;
+    final String param = query.getQueryStringParam("limit");
+    if (param != null) {
+      try {
+        limit = Integer.parseInt(param);
+      } catch (NumberFormatException e) {
+        throw new BadRequestException("Invalid 'limit' parameter: " + param);
+      }
+    }
+    final int sort = sortField(query.getQueryStringParam("sort"));
+    // The counters keep changing, so sort a snapshot of them.
+    final ArrayList<Row> rows = new ArrayList<Row>();
+    for (final ConnectionManager.Client client : ConnectionManager.clients()) {
+      rows.add(new Row(client, sort));
+    }
+    Collections.sort(rows);
+    final long now = System.currentTimeMillis();
+    final StringBuilder buf = new StringBuilder();
+    if (json) {
+      buf.append('[');
+    }
+    for (int i = 0; i < rows.size() && i < limit; i++) {
+      final Row row = rows.get(i);
+      final ConnectionManager.Client client = row.client;
+      final double rate = row.pointsPerSecond(now);
+      final long age = (now - client.opened) / 1000;
+      if (json) {
+        buf.append("{\"remote\":\"");
+        HttpQuery.escapeJson(client.remote, buf);
+        buf.append("\",\"points\":").append(row.points)
+          .append(",\"bytes\":").append(row.bytes)
+          .append(",\"errors\":").append(row.errors)
+          .append(",\"points_per_sec\":").append(rate)
+          .append(",\"age\":").append(age)
+          .append("},");
+      } else {
+        buf.append(client.remote)
+          .append(' ').append(row.points)
+          .append(' ').append(row.bytes)
+          .append(' ').append(row.errors)
+          .append(' ').append(rate)
+          .append(' ').append(age)
+          .append('\n');
+      }
+    }
+    if (json) {
+      if (buf.length() > 1) {
+        buf.setLength(buf.length() - 1);  // Trailing comma.
+      }
+      buf.append(']');
+    }
+    query.sendReply(buf);
+  }
+
+  /**
+   * Returns which counter to sort the connections by.
+   * @param sort The {@code sort} parameter of the query, if any.
+   * @return 0 for points, 1 for bytes, 2 for errors.
+   */
+  private static int sortField(final String sort) {
+    if (sort == null || "points".equals(sort)) {
+      return 0;
+    } else if ("bytes".equals(sort)) {
+      return 1;
+    } else if ("errors".equals(sort)) {
+      return 2;
+    }
+    throw new BadRequestException("Invalid 'sort' parameter: " + sort);
+  }
+
+  /** The counters of a connection at one point in time.  */
+  private static final class Row implements Comparable<Row> {
+    final ConnectionManager.Client client;
+    final long points;
+    final long bytes;
+    final long errors;
+    /** What we sort by, biggest first.  */
+    private final long key;
+
+    Row(final ConnectionManager.Client client, final int sort) {
+      this.client = client;
+      points = client.points.get();
+      bytes = client.bytes.get();
+      errors = client.errors.get();
+      key = sort == 1 ? bytes : sort == 2 ? errors : points;
+    }
+
+    /** Returns the average number of data points per second received.  */
+    double pointsPerSecond(final long now) {
+      return points * 1000.0 / Math.max(1000, now - client.opened);
+    }
+
+    public int compareTo(final Row other) {
+      return key > other.key ? -1 : key < other.key ? 1 : 0;
+    }
+  }
+
+}
@@ -0,0 +1,384 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.stream.ChunkedInput;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Compresses the body of an HTTP response with gzip or deflate.
+ * <p>
+ * Only textual responses (HTML, JSON, plain text, ...) that aren't too small
+ * are compressed, and only for clients that accept it.  Configuration:
+ * <ul>
+ * <li>{@code tsd.http.compression.level}: the zlib compression level, from
+ * 1 (fastest) to 9 (smallest), 6 by default.  0 disables compression.</li>
+ * <li>{@code tsd.http.compression.min_bytes}: responses smaller than this
+ * are sent uncompressed (1024 by default).</li>
+ * </ul>
+ * An instance compresses a single response, possibly in several pieces,
+ * and isn't thread-safe.
+ */
+final class ContentCompressor {
+
+  private static final int LEVEL =
+    Integer.getInteger("tsd.http.compression.level", 6);
+
+  private static final int MIN_BYTES =
+    Integer.getInteger("tsd.http.compression.min_bytes", 1024);
+
+  /** Header of a gzip member (RFC 1952) with no optional field.  */
+  private static final byte[] GZIP_HEADER = {
+    0x1F, (byte) 0x8B,  // Magic number.
+    8,                  // Compression method: deflate.
+    0,                  // Flags.
+    0, 0, 0, 0,         // Modification time: not available.
+    0,                  // Extra flags.
+    (byte) 0xFF,        // Operating system: unknown.
+  };
+
+  private static final AtomicLong responses = new AtomicLong();
+  private static final AtomicLong raw_bytes = new AtomicLong();
+  private static final AtomicLong compressed_bytes = new AtomicLong();
+
+  private final boolean gzip;
+  private final Deflater deflater;
+  /** Checksum of the uncompressed data, for gzip only.  */
+  private final CRC32 crc;
+  /** Number of bytes compressed and of bytes produced so far.  */
+  private long nin;
+  private long nout;
+  private boolean started;
+
+  /**
+   * Constructor.
+   * @param encoding The content-coding to use, as returned by
+   * {@link #negotiate}.
+   */
+  ContentCompressor(final String encoding) {
+    gzip = "gzip".equals(encoding);
+    // gzip uses raw deflate data, "deflate" is actually the zlib format.
+    deflater = new Deflater(Math.max(1, Math.min(LEVEL, 9)), gzip);
+    crc = gzip ? new CRC32() : null;
+  }
+
+  /**
+   * Picks the content-coding of a response.
+   * @param request The request we're responding to.
+   * @param content_type The MIME type of the response.
+   * @param length The size of the response, or -1 if it's not known.
+   * @return {@code "gzip"} or {@code "deflate"}, or {@code null} if the
+   * response must not be compressed.
+   */
+  static String negotiate(final HttpRequest request,
+                          final String content_type,
+                          final int length) {
+    if (LEVEL <= 0 || (0 <= length && length < MIN_BYTES)
+        || !isCompressible(content_type)) {
+      return null;
+    }
+    return accepts(request, "gzip") ? "gzip"
+      : accepts(request, "deflate") ? "deflate" : null;
+  }
+
+  /**
+   * Returns whether or not responses of the given MIME type are worth
+   * compressing.  Images (e.g. PNG) are already compressed.
+   */
+  static boolean isCompressible(final String content_type) {
+    return content_type != null
+      && (content_type.startsWith("text/")
+          || content_type.startsWith("application/json")
+          || content_type.startsWith("application/javascript"));
+  }
+
+  /**
+   * Returns whether or not the {@code Accept-Encoding} of a request allows
+   * the given content-coding.
+   */
+  static boolean accepts(final HttpRequest request, final String encoding) {
+    if (LEVEL <= 0) {
+      return false;
+    }
+    final String accept = request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING);
+    if (accept == null) {
+      return false;
+    }
+    boolean wildcard = false;
+    for (final String coding : accept.split(",")) {
+      final String[] params = coding.split(";");
+      final String name = params[0].trim();
+      if (!name.equalsIgnoreCase(encoding) && !name.equals("*")) {
+        continue;
+      }
+      boolean ok = true;
+      for (int i = 1; i < params.length; i++) {
+        final String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            ok = Double.parseDouble(param.substring(2)) > 0;
+          } catch (NumberFormatException e) {
+            ok = false;
+          }
+        }
+      }
+      if (name.equals("*")) {
+        wildcard = ok;
+      } else {
+        return ok;  // An explicit entry wins over "*".
+      }
+    }
+    return wildcard;
+  }
+
+  /**
+   * Compresses a whole response.
+   * @param encoding The content-coding to use, see {@link #negotiate}.
+   * @param buf The body of the response.
+   * @return The compressed body.
+   */
+  static ChannelBuffer compress(final String encoding,
+                                final ChannelBuffer buf) {
+    final int length = buf.readableBytes();
+    final ChannelBuffer out = new ContentCompressor(encoding).compress(buf,
+                                                                       true);
+    record(length, out.readableBytes());
+    return out;
+  }
+
+  /**
+   * Returns a gzip'ed copy of some data if it's worth it, for responses
+   * that are sent many times.
+   * @param data The body of a response.
+   * @return The compressed body, or {@code null} if compression is disabled,
+   * the data is too small, or it doesn't compress.
+   */
+  static byte[] gzipped(final byte[] data) {
+    if (LEVEL <= 0 || data.length < MIN_BYTES) {
+      return null;
+    }
+    final ChannelBuffer out =
+      new ContentCompressor("gzip").compress(ChannelBuffers.wrappedBuffer(data),
+                                             true);
+    if (out.readableBytes() >= data.length) {
+      return null;
+    }
+    final byte[] gzipped = new byte[out.readableBytes()];
+    out.readBytes(gzipped);
+    return gzipped;
+  }
+
+  /**
+   * Writes a gzip'ed copy of a file if it's worth it, for responses that
+   * are too big to be kept in memory but are sent many times from disk.
+   * @param path The path of the file to compress.
+   * @param gzpath Where to write the compressed copy.
+   * @return Whether or not the copy was written: it isn't if compression is
+   * disabled, the file is too small, or it doesn't compress.  Any previous
+   * copy is deleted when this returns {@code false}.
+   * @throws IOException if the file couldn't be read or its copy written,
+   * in which case the copy is deleted.
+   */
+  static boolean gzipFile(final String path,
+                          final String gzpath) throws IOException {
+    final long length = new File(path).length();
+    if (LEVEL <= 0 || length < MIN_BYTES) {
+      new File(gzpath).delete();
+      return false;
+    }
+    final ContentCompressor compressor = new ContentCompressor("gzip");
+    boolean ok = false;
+    final FileInputStream in = new FileInputStream(path);
+    try {
+      final FileOutputStream out = new FileOutputStream(gzpath);
+      try {
+        final byte[] buf = new byte[65536];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+          final ChannelBuffer chunk =
+            compressor.compress(ChannelBuffers.wrappedBuffer(buf, 0, n), false);
+          chunk.readBytes(out, chunk.readableBytes());
+        }
+        final ChannelBuffer chunk =
+          compressor.compress(ChannelBuffers.EMPTY_BUFFER, true);
+        chunk.readBytes(out, chunk.readableBytes());
+      } finally {
+        out.close();
+      }
+      ok = compressor.nout < compressor.nin;
+    } finally {
+      in.close();
+      compressor.deflater.end();  // In case we failed half-way.
+      if (!ok) {
+        new File(gzpath).delete();
+      }
+    }
+    return ok;
+  }
+
+  /**
+   * Compresses a piece of a response.
+   * @param buf The next piece of the body of the response.
+   * @param last Whether or not this is the last piece.  Once it has been
+   * compressed, this instance can't be used anymore.  Until then, this
+   * instance holds native memory.
+   * @return The compressed data, which may be empty since the compressor
+   * buffers data internally until it has enough to compress.
+   */
+  ChannelBuffer compress(final ChannelBuffer buf, final boolean last) {
+    final int length = buf.readableBytes();
+    final ChannelBuffer out =
+      ChannelBuffers.dynamicBuffer(Math.max(256, length / 4));
+    if (!started) {
+      started = true;
+      if (gzip) {
+        out.writeBytes(GZIP_HEADER);
+      }
+    }
+    final byte[] input;
+    final int offset;
+    if (buf.hasArray()) {
+      input = buf.array();
+      offset = buf.arrayOffset() + buf.readerIndex();
+    } else {
+      input = new byte[length];
+      offset = 0;
+      buf.getBytes(buf.readerIndex(), input);
+    }
+    if (gzip) {
+      crc.update(input, offset, length);
+    }
+    nin += length;
+    deflater.setInput(input, offset, length);
+    if (last) {
+      deflater.finish();
+    }
+    final byte[] tmp = new byte[8192];
+    while (!(last ? deflater.finished() : deflater.needsInput())) {
+      final int n = deflater.deflate(tmp);
+      out.writeBytes(tmp, 0, n);
+    }
+    if (last) {
+      if (gzip) {  // Trailer: CRC-32 and size, in little endian.
+        writeIntLE(out, (int) crc.getValue());
+        writeIntLE(out, (int) nin);
+      }
+      deflater.end();
+    }
+    nout += out.readableBytes();
+    return out;
+  }
+
+  private static void writeIntLE(final ChannelBuffer out, final int i) {
+    out.writeByte(i);
+    out.writeByte(i >>> 8);
+    out.writeByte(i >>> 16);
+    out.writeByte(i >>> 24);
+  }
+
+  /**
+   * Records that a response was sent compressed.
+   * @param raw The size of the response, uncompressed.
+   * @param compressed The number of bytes actually sent.
+   */
+  static void record(final long raw, final long compressed) {
+    responses.incrementAndGet();
+    raw_bytes.addAndGet(raw);
+    compressed_bytes.addAndGet(compressed);
+  }
+
+  /**
+   * Wraps a stream of {@link ChannelBuffer}s, so that it is compressed.
+   * @param encoding The content-coding to use, see {@link #negotiate}.
+   * @param input The stream to compress.
+   */
+  static ChunkedInput compress(final String encoding,
+                               final ChunkedInput input) {
+    return new CompressedInput(new ContentCompressor(encoding), input);
+  }
+
+  /** Compresses the chunks of a {@link ChunkedInput}.  */
+  private static final class CompressedInput implements ChunkedInput {
+
+    private final ContentCompressor compressor;
+    private final ChunkedInput input;
+    private boolean done;
+
+    CompressedInput(final ContentCompressor compressor,
+                    final ChunkedInput input) {
+      this.compressor = compressor;
+      this.input = input;
+    }
+
+    public boolean hasNextChunk() {
+      return !done;
+    }
+
+    public Object nextChunk() throws Exception {
+      if (done) {
+        return null;
+      }
+      ChannelBuffer buf = (ChannelBuffer) input.nextChunk();
+      if (buf == null) {
+        buf = ChannelBuffers.EMPTY_BUFFER;
+      }
+      done = input.isEndOfInput();
+      final ChannelBuffer out = compressor.compress(buf, done);
+      if (done) {
+        record(compressor.nin, compressor.nout);
+      }
+      return out;
+    }
+
+    public boolean isEndOfInput() {
+      return done;
+    }
+
+    public void close() throws Exception {
+      if (!done) {
+        done = true;
+        compressor.deflater.end();
+      }
+      input.close();
+    }
+
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("http.compression.responses", responses);
+    final long raw = raw_bytes.get();
+    final long compressed = compressed_bytes.get();
+    collector.record("http.compression.bytes", raw, "type=raw");
+    collector.record("http.compression.bytes", compressed,
+                     "type=compressed");
+    collector.record("http.compression.saved_bytes", raw - compressed);
+  }
+
+}
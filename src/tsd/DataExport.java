@@ -0,0 +1,217 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.jboss.netty.util.CharsetUtil;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+/**
+ * Streams the data points of a query, one chunk at a time.
+ * <p>
+ * Chunks are only generated as fast as the client reads them (see
+ * {@link org.jboss.netty.handler.stream.ChunkedWriteHandler}), so the data
+ * points don't have to be written anywhere before the client gets the first
+ * byte, and the TSD doesn't buffer the whole response for slow clients.
+ * <p>
+ * Two formats are supported:
+ * <ul>
+ * <li>{@code ascii}: the format of {@code /q?ascii}, one data point per
+ * line: {@code metric timestamp value tag1=value1 ...}</li>
+ * <li>{@code json}: an array with one object per time series, e.g.
+ * {@code [{"metric":"foo","tags":{"host":"a"},"aggregated_tags":[],
+ * "dps":[[1356998400,42],...]}]}</li>
+ * </ul>
+ * Only the data points within the time range of the query are exported.
+ */
+final class DataExport implements ChunkedInput {
+
+  /** Approximate number of characters to put in each chunk.  */
+  private static final int CHUNK_SIZE = 32768;
+
+  private final Iterator<DataPoints> series;
+  private final long start_time;
+  private final long end_time;
+  private final boolean json;
+
+  /** The time series being exported, {@code null} between two series.  */
+  private DataPoints current;
+  /** Iterator on {@code current}.  */
+  private SeekableView points;
+  /** The metric and tags of {@code current}, in the ASCII format.  */
+  private String metric;
+  private String tags;
+  /** Whether we haven't started writing any time series yet.  */
+  private boolean first_series = true;
+  /** Whether we've written a data point of {@code current} yet.  */
+  private boolean first_point;
+  /** Whether we've started and finished writing the output.  */
+  private boolean started;
+  private boolean finished;
+
+  /**
+   * Constructor.
+   * @param series The time series to export.
+   * @param start_time Data points before this timestamp are skipped.
+   * @param end_time Data points after this timestamp are skipped.
+   * @param json Whether to use the JSON format rather than ASCII.
+   */
+  DataExport(final Iterable<DataPoints> series, final long start_time,
+             final long end_time, final boolean json) {
+    this.series = series.iterator();
+    this.start_time = start_time;
+    this.end_time = end_time;
+    this.json = json;
+  }
+
+  /** Returns the MIME type of the output.  */
+  String contentType() {
+    return json ? "application/json" : "text/plain";
+  }
+
+  public boolean hasNextChunk() {
+    return !finished;
+  }
+
+  public Object nextChunk() {
+    if (finished) {
+      return null;
+    }
+    final StringBuilder buf = new StringBuilder(CHUNK_SIZE + 256);
+    if (!started) {
+      started = true;
+      if (json) {
+        buf.append('[');
+      }
+    }
+    while (buf.length() < CHUNK_SIZE) {
+      if (current == null) {
+        if (!series.hasNext()) {
+          if (json) {
+            buf.append(']');
+          }
+          finished = true;
+          break;
+        }
+        startSeries(series.next(), buf);
+      }
+      if (!points.hasNext()) {
+        if (json) {
+          buf.append("]}");
+        }
+        current = null;
+        points = null;
+        continue;
+      }
+      final DataPoint dp = points.next();
+      final long ts = dp.timestamp();
+      if (ts < start_time || ts > end_time) {
+        continue;
+      }
+      if (json) {
+        if (!first_point) {
+          buf.append(',');
+        }
+        buf.append('[').append(ts).append(',');
+        appendValue(dp, buf);
+        buf.append(']');
+      } else {
+        buf.append(metric).append(' ').append(ts).append(' ');
+        appendValue(dp, buf);
+        buf.append(tags).append('\n');
+      }
+      first_point = false;
+    }
+    return ChannelBuffers.copiedBuffer(buf, CharsetUtil.UTF_8);
+  }
+
+  public boolean isEndOfInput() {
+    return finished;
+  }
+
+  public void close() {
+    finished = true;
+    current = null;
+    points = null;
+  }
+
+  /** Starts exporting a new time series.  */
+  private void startSeries(final DataPoints dps, final StringBuilder buf) {
+    current = dps;
+    points = dps.iterator();
+    first_point = true;
+    if (json) {
+      if (!first_series) {
+        buf.append(',');
+      }
+      first_series = false;
+      buf.append("{\"metric\":\"");
+      HttpQuery.escapeJson(dps.metricName(), buf);
+      buf.append("\",\"tags\":{");
+      boolean first = true;
+      for (final Map.Entry<String, String> tag : dps.getTags().entrySet()) {
+        if (!first) {
+          buf.append(',');
+        }
+        first = false;
+        buf.append('"');
+        HttpQuery.escapeJson(tag.getKey(), buf);
+        buf.append("\":\"");
+        HttpQuery.escapeJson(tag.getValue(), buf);
+        buf.append('"');
+      }
+      buf.append("},\"aggregated_tags\":");
+      if (dps.getAggregatedTags().isEmpty()) {
+        buf.append("[]");
+      } else {
+        HttpQuery.toJsonArray(dps.getAggregatedTags(), buf);
+      }
+      buf.append(",\"dps\":[");
+      return;
+    }
+    try {
+      metric = URLEncoder.encode(dps.metricName(), "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError("UTF-8 is always supported: " + e);
+    }
+    final StringBuilder tagbuf = new StringBuilder();
+    for (final Map.Entry<String, String> tag : dps.getTags().entrySet()) {
+      tagbuf.append(' ').append(tag.getKey())
+        .append('=').append(tag.getValue());
+    }
+    tags = tagbuf.toString();
+  }
+
+  private void appendValue(final DataPoint dp, final StringBuilder buf) {
+    if (dp.isInteger()) {
+      buf.append(dp.longValue());
+      return;
+    }
+    final double value = dp.doubleValue();
+    if (value != value || Double.isInfinite(value)) {
+      throw new IllegalStateException("NaN or Infinity:" + value
+        + " d=" + dp + " in " + current.metricName() + current.getTags());
+    }
+    buf.append(value);
+  }
+
+}
@@ -0,0 +1,353 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Manages the files cached in {@code tsd.http.cachedir}.
+ * <p>
+ * Each request gets a base path derived from a SHA-1 of its normalized
+ * query string, in a two-level directory layout ({@code ab/cd/abcd...}) so
+ * that no directory gets too big.  The files written for a request (PNG,
+ * JSON, text, Gnuplot's inputs, ...) all start with that base path.
+ * <p>
+ * An in-memory index of those files (size, mtime, expiration) answers
+ * lookups without touching the disk, and evicts the least recently used
+ * files, starting with expired ones, once the cache is bigger than
+ * {@code tsd.http.cachedir.max_bytes}.  The index is rebuilt at startup by
+ * scanning the directory in the background.  Meanwhile, lookups fall back
+ * to the filesystem.
+ * <p>
+ * This class is thread-safe.
+ */
+final class DiskCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DiskCache.class);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Once over the limit, evict until we're below this fraction of it.  */
+  private static final double LOW_WATERMARK = 0.9;
+
+  private static DiskCache instance;
+
+  /** The directory of the cache, ends with a {@code /}.  */
+  private final String dir;
+
+  /** Maximum number of bytes the files of the cache can use, 0 for none. */
+  private final long max_bytes;
+
+  /** Cached files by path, least recently used first.  */
+  private LinkedHashMap<String, Entry> files =
+    new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+
+  /** Total size of the files in the index.  Guarded by {@code this}. */
+  private long bytes;
+
+  /** Whether the index has been rebuilt from the directory yet.  */
+  private volatile boolean loaded;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /** A file in the cache.  */
+  private static final class Entry {
+    final long size;
+    final long mtime;  // In milliseconds, like File.lastModified().
+    final long expires;  // UNIX timestamp, after which it's useless.
+
+    Entry(final long size, final long mtime, final long expires) {
+      this.size = size;
+      this.mtime = mtime;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * Constructor.
+   * @param dir The directory of the cache, must end with a {@code /}.
+   * @param max_bytes Maximum number of bytes the cached files can use, 0
+   * or less for no limit.
+   */
+  DiskCache(final String dir, final long max_bytes) {
+    this.dir = dir;
+    this.max_bytes = max_bytes;
+  }
+
+  /**
+   * Returns the cache of {@code tsd.http.cachedir}, and starts rebuilding
+   * its index the first time.
+   * @throws IllegalStateException if {@code tsd.http.cachedir} isn't set.
+   */
+  static synchronized DiskCache instance() {
+    if (instance == null) {
+      instance = new DiskCache(
+        RpcHandler.getDirectoryFromSystemProp("tsd.http.cachedir"),
+        Long.getLong("tsd.http.cachedir.max_bytes", 1L << 30));
+      instance.loadInBackground();
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the base path of the files of a request.
+   * The parent directory of the base path is created if needed.
+   * @param query_string The parameters that influence the response.  Two
+   * requests with the same parameters, in any order, get the same base path.
+   */
+  String basePath(final Map<String, List<String>> query_string) {
+    final StringBuilder buf = new StringBuilder(256);
+    for (final Map.Entry<String, List<String>> param
+         : new TreeMap<String, List<String>>(query_string).entrySet()) {
+      buf.append(param.getKey().length()).append(':').append(param.getKey());
+      for (final String value : param.getValue()) {
+        buf.append(',').append(value.length()).append(':').append(value);
+      }
+      buf.append(';');
+    }
+    return basePath(buf.toString());
+  }
+
+  /**
+   * Returns the base path of the files for the given key.
+   * The parent directory of the base path is created if needed.
+   */
+  String basePath(final String key) {
+    final String hash = sha1(key.getBytes(UTF8));
+    final File parent = new File(dir + hash.substring(0, 2) + '/'
+                                 + hash.substring(2, 4));
+    if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+      LOG.error("Failed to create the cache directory " + parent);
+    }
+    return parent.getPath() + '/' + hash;
+  }
+
+  /**
+   * Returns when a cached file was last modified.
+   * This doesn't touch the disk once the index is loaded.
+   * @param path The path of the file.
+   * @return The mtime in milliseconds, or 0 if the file isn't cached.
+   */
+  long lastModified(final String path) {
+    if (!loaded) {
+      return new File(path).lastModified();
+    }
+    final Entry entry;
+    synchronized (this) {
+      entry = files.get(path);  // Also marks it as recently used.
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+      return 0;
+    }
+    hits.incrementAndGet();
+    return entry.mtime;
+  }
+
+  /**
+   * Returns the size of a cached file.
+   * @param path The path of the file.
+   * @return The size in bytes, or 0 if the file isn't cached.
+   */
+  long length(final String path) {
+    if (!loaded) {
+      return new File(path).length();
+    }
+    synchronized (this) {
+      final Entry entry = files.get(path);
+      return entry == null ? 0 : entry.size;
+    }
+  }
+
+  /**
+   * Records the files that were written for a request, and evicts old files
+   * if the cache is now too big.
+   * @param basepath The base path of the request, see {@link #basePath}.
+   * @param expires UNIX timestamp after which the files are useless, or
+   * {@link Long#MAX_VALUE} if they never expire.
+   */
+  void written(final String basepath, final long expires) {
+    final File base = new File(basepath);
+    final File[] written = base.getParentFile().listFiles();
+    if (written == null) {
+      return;
+    }
+    final String name = base.getName();
+    synchronized (this) {
+      for (final File file : written) {
+        if (file.getName().startsWith(name)) {
+          put(file.getPath(), new Entry(file.length(), file.lastModified(),
+                                        expires));
+        }
+      }
+    }
+    evictIfNeeded();
+  }
+
+  /** Adds a file to the index.  Must be called with the lock held.  */
+  private void put(final String path, final Entry entry) {
+    final Entry prev = files.put(path, entry);
+    bytes += entry.size - (prev == null ? 0 : prev.size);
+  }
+
+  /** Removes old files until the cache is below its low watermark.  */
+  private void evictIfNeeded() {
+    final ArrayList<String> victims = new ArrayList<String>();
+    synchronized (this) {
+      if (max_bytes <= 0 || bytes <= max_bytes) {
+        return;
+      }
+      final long target = (long) (max_bytes * LOW_WATERMARK);
+      final long now = System.currentTimeMillis() / 1000;
+      // Expired files first, then the least recently used ones.
+      for (int pass = 0; pass < 2 && bytes > target; pass++) {
+        final Iterator<Map.Entry<String, Entry>> it =
+          files.entrySet().iterator();
+        while (it.hasNext() && bytes > target) {
+          final Map.Entry<String, Entry> file = it.next();
+          if (pass == 1 || file.getValue().expires < now) {
+            it.remove();
+            bytes -= file.getValue().size;
+            victims.add(file.getKey());
+          }
+        }
+      }
+    }
+    // Delete the files without holding the lock.
+    for (final String path : victims) {
+      if (!new File(path).delete() && new File(path).exists()) {
+        LOG.warn("Failed to evict " + path + " from the cache");
+      }
+    }
+    evictions.addAndGet(victims.size());
+  }
+
+  /** Rebuilds the index from the files in the directory.  */
+  private void loadInBackground() {
+    final Thread loader = new Thread("Disk cache loader") {
+      public void run() {
+        try {
+          load();
+        } catch (RuntimeException e) {
+          LOG.error("Failed to load the disk cache index of " + dir, e);
+        }
+      }
+    };
+    loader.setDaemon(true);
+    loader.start();
+  }
+
+  /** Scans the two levels of directories of the cache.  */
+  void load() {
+    final long start = System.currentTimeMillis();
+    final ArrayList<File> found = new ArrayList<File>();
+    final File[] level1 = new File(dir).listFiles();
+    if (level1 != null) {
+      for (final File d1 : level1) {
+        final File[] level2 = d1.getName().length() == 2
+          ? d1.listFiles() : null;
+        if (level2 == null) {
+          continue;  // Not one of our directories.
+        }
+        for (final File d2 : level2) {
+          final File[] cached = d2.listFiles();
+          if (cached != null) {
+            Collections.addAll(found, cached);
+          }
+        }
+      }
+    }
+    final long[] mtimes = new long[found.size()];
+    final ArrayList<Integer> order = new ArrayList<Integer>(found.size());
+    for (int i = 0; i < mtimes.length; i++) {
+      mtimes[i] = found.get(i).lastModified();
+      order.add(i);
+    }
+    // Oldest first, so they're the first to be evicted.
+    Collections.sort(order, new Comparator<Integer>() {
+      public int compare(final Integer a, final Integer b) {
+        return mtimes[a] < mtimes[b] ? -1 : mtimes[a] == mtimes[b] ? 0 : 1;
+      }
+    });
+    synchronized (this) {
+      final LinkedHashMap<String, Entry> current = files;
+      files = new LinkedHashMap<String, Entry>(
+        Math.max(1024, (found.size() + current.size()) * 4 / 3), 0.75f, true);
+      bytes = 0;
+      for (final int i : order) {
+        final File file = found.get(i);
+        put(file.getPath(), new Entry(file.length(), mtimes[i],
+                                      Long.MAX_VALUE));
+      }
+      // Files written while we were scanning are the most recent ones.
+      for (final Map.Entry<String, Entry> file : current.entrySet()) {
+        put(file.getKey(), file.getValue());
+      }
+      loaded = true;
+    }
+    LOG.info("Loaded the index of the disk cache: " + found.size()
+             + " files, " + bytes + " bytes, in "
+             + (System.currentTimeMillis() - start) + "ms");
+    evictIfNeeded();
+  }
+
+  /** Returns the SHA-1 of the given bytes, as a lowercase hex string.  */
+  static String sha1(final byte[] data) {
+    final byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1").digest(data);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError("SHA-1 is always available: " + e);
+    }
+    final StringBuilder buf = new StringBuilder(digest.length * 2);
+    for (final byte b : digest) {
+      buf.append(Character.forDigit((b >>> 4) & 0xF, 16))
+        .append(Character.forDigit(b & 0xF, 16));
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    synchronized (this) {
+      collector.record("http.diskcache.files", files.size());
+      collector.record("http.diskcache.bytes", bytes);
+    }
+    collector.record("http.diskcache.lookups", hits, "type=hit");
+    collector.record("http.diskcache.lookups", misses, "type=miss");
+    collector.record("http.diskcache.evictions", evictions);
+  }
+
+}
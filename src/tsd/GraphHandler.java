@@ -18,23 +18,35 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.URL;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+import com.stumbleupon.async.Callback;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,13 +56,14 @@ import net.opentsdb.core.Const;
 import net.opentsdb.core.DataPoint;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.Query;
+import net.opentsdb.core.QueryLimitException;
+import net.opentsdb.core.QueryProfile;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
 import net.opentsdb.graph.Plot;
 import net.opentsdb.stats.Histogram;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.uid.NoSuchUniqueName;
-import net.opentsdb.tsd.TaskExecutor;
 
 /**
  * Stateless handler of HTTP graph requests (the {@code /q} endpoint).
@@ -63,9 +76,15 @@ final class GraphHandler implements HttpRpc {
   /** Number of times we had to do all the work up to running Gnuplot. */
   private static final AtomicInteger graphs_generated
     = new AtomicInteger();
+  /** Number of times a graph request was served from memory.  */
+  private static final AtomicInteger graphs_memcache_hit
+    = new AtomicInteger();
   /** Number of times a graph request was served from disk, no work needed. */
   private static final AtomicInteger graphs_diskcache_hit
     = new AtomicInteger();
+  /** Number of graph requests that piggybacked on an identical one. */
+  private static final AtomicInteger graphs_coalesced
+    = new AtomicInteger();
 
   /** Keep track of the latency of graphing requests. */
   private static final Histogram graphlatency =
@@ -75,11 +94,57 @@ final class GraphHandler implements HttpRpc {
   private static final Histogram gnuplotlatency =
     new Histogram(16000, (short) 2, 100);
 
+  /** Keep track of the latency (in ms) of rendering graphs in-process. */
+  private static final Histogram renderlatency =
+    new Histogram(16000, (short) 2, 100);
+
+  /** Number of graphs we had to render with Gnuplot instead.  */
+  private static final AtomicInteger render_fallbacks = new AtomicInteger();
+
+  /**
+   * How graphs are rendered by default: {@code gnuplot}, or {@code java}
+   * to render them in-process.  Set with {@code tsd.http.graph.renderer},
+   * requests can override it with the {@code renderer} parameter.
+   */
+  private static final String RENDERER =
+    System.getProperty("tsd.http.graph.renderer", "gnuplot");
+
+  /**
+   * Queries taking longer than this (in ms) get their profile logged.
+   * Set with {@code tsd.query.profile.log_threshold}, 0 disables this.
+   */
+  private static final long PROFILE_LOG_THRESHOLD =
+    Long.getLong("tsd.query.profile.log_threshold", 10000);
+
+  /**
+   * Header carrying the profile of a query (as JSON) in the responses that
+   * have no room for it in their body: ASCII outputs and exports.
+   */
+  static final String PROFILE_HEADER = "X-OpenTSDB-Profile";
+
+  /**
+   * Default and maximum time (in ms) the sub-queries of a graph request have
+   * to complete.  Set with {@code tsd.query.timeout}, 0 means no deadline.
+   */
+  private static final long QUERY_TIMEOUT =
+    Long.getLong("tsd.query.timeout", 300000);
+
+  /** Executor to run the sub-queries of graph requests.  */
+  private final QueryExecutor executor;
+
   /** Executor to run Gnuplot in separate bounded thread pool. */
   private final ThreadPoolExecutor gnuplot;
 
-  /** Directory where to cache query results. */
-  private final String cachedir;
+  /** Where to cache query results. */
+  private final DiskCache disk_cache;
+
+  /**
+   * Graph requests currently being served, keyed by normalized query string.
+   * Identical requests that come in meanwhile wait for the same response
+   * instead of doing all the work again.
+   */
+  private final ConcurrentHashMap<String, HttpQuery> inflight =
+    new ConcurrentHashMap<String, HttpQuery>();
 
   /**
    * Constructor.
@@ -101,13 +166,79 @@ final class GraphHandler implements HttpRpc {
     // ArrayBlockingQueue does not scale as much as LinkedBlockingQueue in terms
     // of throughput but we don't need high throughput here.  We use ABQ instead
     // of LBQ because it creates far fewer references.
-    cachedir = RpcHandler.getDirectoryFromSystemProp("tsd.http.cachedir");
-    TaskExecutor.init(128, 512, 5000);
+    disk_cache = DiskCache.instance();
+    executor = newQueryExecutor();
+  }
+
+  /**
+   * Creates the executor for the sub-queries of graph requests.
+   * <p>
+   * With {@code tsd.query.virtual_threads}, each sub-query runs on its own
+   * virtual thread and {@code tsd.query.threads} only limits how many can
+   * run concurrently, so it defaults to a much higher value.
+   */
+  private static QueryExecutor newQueryExecutor() {
+    final int max_queued = Integer.getInteger("tsd.query.max_queued", 1024);
+    if (Boolean.getBoolean("tsd.query.virtual_threads")) {
+      if (VirtualThreads.isSupported()) {
+        return new QueryExecutor(Integer.getInteger("tsd.query.threads", 10000),
+                                 max_queued, true);
+      }
+      LOG.warn("tsd.query.virtual_threads is set but this JVM ("
+               + System.getProperty("java.version") + ") doesn't support"
+               + " virtual threads, falling back to a thread pool.");
+    }
+    return new QueryExecutor(Integer.getInteger("tsd.query.threads", 128),
+                             max_queued);
+  }
+
+  /** Returns the executor of the sub-queries of graph requests.  */
+  QueryExecutor executor() {
+    return executor;
   }
 
   public void execute(final TSDB tsdb, final HttpQuery query) {
+    // Computed once: parsing the request pops some of its parameters.
+    final String key = getCoalescingKey(query);
+    if (key != null && !lead(key, query)) {
+      graphs_coalesced.incrementAndGet();
+      return;
+    }
+    if (!executor.usesVirtualThreads()) {
+      handle(tsdb, query, key);
+      return;
+    }
+    // Resolving UIDs and waiting on sub-queries blocks, so don't do it on
+    // a Netty I/O thread.
     try {
-      doGraph(tsdb, query);
+      executor.spawn(new Runnable() {
+        public void run() {
+          try {
+            handle(tsdb, query, key);
+          } catch (BadRequestException e) {
+            query.badRequest(e.getMessage());
+          } catch (RuntimeException e) {
+            query.internalError(e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      query.internalError(new Exception("Too many requests pending,"
+                                        + " please try again later", e));
+    }
+  }
+
+  /**
+   * Serves a graph request.
+   * @param tsdb The TSDB to use.
+   * @param query The query to serve.
+   * @param key The key under which it's in flight (see {@link #lead}), or
+   * {@code null} if it isn't coalesced with others.
+   */
+  private void handle(final TSDB tsdb, final HttpQuery query,
+                      final String key) {
+    try {
+      doGraph(tsdb, query, key);
     } catch (IOException e) {
       query.internalError(e);
     } catch (IllegalArgumentException e) {
@@ -115,11 +246,19 @@ final class GraphHandler implements HttpRpc {
     }
   }
 
-  private void doGraph(final TSDB tsdb, final HttpQuery query)
-    throws IOException {
+  private void doGraph(final TSDB tsdb, final HttpQuery query,
+                       final String key) throws IOException {
     final String basepath = getGnuplotBasePath(query);
     final long start_time = getQueryStringDate(query, "start");
     final boolean nocache = query.hasQueryStringParam("nocache");
+    // Profiling has to bypass the cache, otherwise there's nothing to profile.
+    final boolean profiling = wantsProfile(query);
+    final QueryProfile profile = new QueryProfile();
+    final String export = query.getQueryStringParam("export");
+    if (export != null && !export.isEmpty() && !"ascii".equals(export)
+        && !"json".equals(export)) {
+      throw new BadRequestException("Invalid export format: " + export);
+    }
     if (start_time == -1) {
       throw BadRequestException.missingParameter("start");
     }
@@ -129,12 +268,17 @@ final class GraphHandler implements HttpRpc {
       end_time = now;
     }
     final int max_age = computeMaxAge(query, start_time, end_time, now);
-    if (!nocache && isDiskCacheHit(query, end_time, max_age, basepath)) {
+    // Results for a time range entirely in the past never become stale.
+    final long expires = (0 < end_time && end_time < now ? Long.MAX_VALUE
+                          : now + max_age);
+    if (!nocache && !profiling && export == null
+        && (isMemoryCacheHit(query, end_time, max_age, basepath)
+            || isDiskCacheHit(query, end_time, max_age, expires, basepath))) {
       return;
     }
     Query[] tsdbqueries;
     List<String> options;
-    tsdbqueries = parseQuery(tsdb, query);
+    tsdbqueries = parseQuery(tsdb, query, profile);
     options = query.getQueryStringParams("o");
     if (options == null) {
       options = new ArrayList<String>(tsdbqueries.length);
@@ -145,10 +289,15 @@ final class GraphHandler implements HttpRpc {
       throw new BadRequestException(options.size() + " `o' parameters, but "
         + tsdbqueries.length + " `m' parameters.");
     }
+    final long timeout = getQueryTimeout(query);
+    final long deadline = timeout > 0 ? System.currentTimeMillis() + timeout
+                                      : 0;
     for (final Query tsdbquery : tsdbqueries) {
       if (null == tsdbquery) {
         continue;
       }
+      tsdbquery.setProfile(profile);
+      tsdbquery.setDeadline(deadline);
       try {
         tsdbquery.setStartTime(start_time);
       } catch (IllegalArgumentException e) {
@@ -163,70 +312,231 @@ final class GraphHandler implements HttpRpc {
     final Plot plot = new Plot(start_time, end_time);
     setPlotDimensions(query, plot);
     setPlotParams(query, plot);
+    plot.setReduction(!query.hasQueryStringParam("noreduce"));
     final int nqueries = tsdbqueries.length;
     @SuppressWarnings("unchecked")
     final HashSet<String>[] aggregated_tags = new HashSet[nqueries];
     int npoints = 0;
     
-    List<TaskExecutor.Task> tasks = new LinkedList<TaskExecutor.Task>();
-    for (int i = 0; i < nqueries; i++) {
-      if (null == tsdbqueries[i]) {
+    final QueryExecutor.Batch batch =
+      executor.newBatch(getTenant(query.channel()), timeout);
+    batch.cancelWhenClosed(query.channel());
+    final Object[] results;
+    try {
+      for (final Query tsdbquery : tsdbqueries) {
+        if (null == tsdbquery) {
           continue;
-      }
-      final int ii = i;
-      final Query[] tsdbqueriesF = tsdbqueries;
-      tasks.add(new TaskExecutor.Task() {
-          public Object execute() throws Exception {
-              return tsdbqueriesF[ii].run();
-          }
-          public int getId() {
-              return ii;
+        }
+        batch.submit(new Callable<Object>() {
+          public Object call() {
+            return tsdbquery.run();
           }
-      });
+        });
+      }
+      results = batch.await();
+    } catch (RejectedExecutionException e) {
+      query.internalError(new Exception("Too many requests pending,"
+                                        + " please try again later", e));
+      return;
+    } catch (CancellationException e) {
+      logInfo(query, "Query cancelled: " + e.getMessage());
+      abandon(tsdb, query, key);
+      return;
+    } catch (TimeoutException e) {
+      throw new BadRequestException("Query timed out: " + e.getMessage()
+        + ".  Try a shorter time range or fewer time series.");
+    } catch (QueryLimitException e) {
+      throw new BadRequestException(e.getMessage());
+    } catch (RuntimeException e) {
+      logInfo(query, "Query failed (stack trace coming): "
+              + Arrays.toString(tsdbqueries));
+      throw e;
     }
-    
-    TaskExecutor executor = new TaskExecutor();
-    List<TaskExecutor.TaskResult> results = executor.parallelize(tasks);
-    
-    for (TaskExecutor.TaskResult result : results) {
-        if (result.exception != null) {
-            logInfo(query, "Query failed (stack trace coming): "
-                + tsdbqueries[result.id]);
-            if (result.exception instanceof RuntimeException)
-                throw (RuntimeException) result.exception;
-            else
-                throw new RuntimeException(result.exception.getMessage());
-        }
-        try {
-            final DataPoints[] series = (DataPoints[]) result.value;
-            for (final DataPoints datapoints : series) {
-              plot.add(datapoints, options.get(result.id));
-              aggregated_tags[result.id] = new HashSet<String>();
-              aggregated_tags[result.id].addAll(datapoints.getAggregatedTags());
-              npoints += datapoints.aggregatedSize();
-            }
-        } catch (RuntimeException e) {
-          logInfo(query, "Query failed (stack trace coming): "
-                + tsdbqueries[result.id]);
-          throw e;
+
+    final long aggregation_start = System.nanoTime();
+    for (int i = 0, j = 0; i < nqueries; i++) {
+      if (null == tsdbqueries[i]) {
+        continue;
+      }
+      try {
+        final DataPoints[] series = (DataPoints[]) results[j++];
+        for (final DataPoints datapoints : series) {
+          plot.add(datapoints, options.get(i));
+          aggregated_tags[i] = new HashSet<String>();
+          aggregated_tags[i].addAll(datapoints.getAggregatedTags());
+          npoints += datapoints.aggregatedSize();
         }
+      } catch (RuntimeException e) {
+        logInfo(query, "Query failed (stack trace coming): "
+                + tsdbqueries[i]);
+        throw e;
+      }
     }
+    profile.addTime(QueryProfile.AGGREGATION,
+                    System.nanoTime() - aggregation_start);
     tsdbqueries = null;  // free()
+    profile.addCount(QueryProfile.POINTS, npoints);
+
+    if (export != null) {
+      final DataExport stream =
+        new DataExport(plot.getDataPoints(), plot.getStartTime(),
+                       plot.getEndTime(), "json".equals(export));
+      // Aggregation happens as the data points are streamed, so the profile
+      // we send in the headers doesn't include all of it.
+      setProfileHeader(query, profile);
+      query.sendChunked(stream.contentType(), stream);
+      logProfile(query, profile);
+      return;
+    }
 
     if (query.hasQueryStringParam("ascii")) {
-      respondAsciiQuery(query, max_age, basepath, plot);
+      try {
+        respondAsciiQuery(query, max_age, expires, basepath, plot, profile);
+      } finally {
+        disk_cache.written(basepath, expires);
+      }
+      logProfile(query, profile);
       return;
     }
 
     try {
       gnuplot.execute(new RunGnuplot(query, max_age, plot, basepath,
-                                     aggregated_tags, npoints));
+                                     disk_cache, expires,
+                                     aggregated_tags, npoints, profile));
     } catch (RejectedExecutionException e) {
       query.internalError(new Exception("Too many requests pending,"
                                         + " please try again later", e));
     }
   }
 
+  /**
+   * Returns the key under which identical in-flight requests are coalesced.
+   * @param query The query to serve.
+   * @return The normalized query string, or {@code null} if this request
+   * must not be coalesced with others.
+   */
+  private static String getCoalescingKey(final HttpQuery query) {
+    if (wantsProfile(query)) {
+      return null;  // Each request wants its own profile.
+    } else if (query.hasQueryStringParam("export")) {
+      return null;  // A stream can't be sent to several clients.
+    }
+    final TreeMap<String, List<String>> qs =
+      new TreeMap<String, List<String>>(query.getQueryString());
+    qs.remove("ignore");
+    return qs.toString();
+  }
+
+  /**
+   * Registers a request as in-flight, unless an identical one already is.
+   * @param key The key of the request, see {@link #getCoalescingKey}.
+   * @param query The query to serve.
+   * @return {@code true} if the caller needs to serve this request, or
+   * {@code false} if it's going to get the response of the identical request
+   * that's already in flight.
+   */
+  private boolean lead(final String key, final HttpQuery query) {
+    while (true) {
+      final HttpQuery leader = inflight.putIfAbsent(key, query);
+      if (leader == null) {
+        break;
+      } else if (leader.addFollower(query)) {
+        return false;
+      } else if (inflight.replace(key, leader, query)) {
+        break;  // The leader was already done responding.
+      }
+    }
+    query.getDeferred().addBoth(new Callback<Object, Object>() {
+      public Object call(final Object arg) {
+        inflight.remove(key, query);
+        return arg;
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Gives up on a request that won't be responded to (e.g. because its
+   * client went away) and serves its followers on their own instead.
+   * @param tsdb The TSDB to use.
+   * @param query The query we're giving up on.
+   * @param key The key under which it's in flight (see {@link #lead}), or
+   * {@code null} if it isn't coalesced with others.
+   */
+  private void abandon(final TSDB tsdb, final HttpQuery query,
+                       final String key) {
+    if (key != null) {
+      inflight.remove(key, query);
+    }
+    final List<HttpQuery> followers = query.detachFollowers();
+    if (followers == null) {
+      return;
+    }
+    for (final HttpQuery follower : followers) {
+      try {
+        execute(tsdb, follower);
+      } catch (BadRequestException e) {
+        follower.badRequest(e.getMessage());
+      } catch (RuntimeException e) {
+        follower.internalError(e);
+      }
+    }
+  }
+
+  /**
+   * Returns the tenant on behalf of whom a query runs.
+   * Queries are scheduled fairly between tenants, and we consider that each
+   * host (e.g. each machine running a dashboard) is a different tenant.
+   * @param chan The channel of the client.
+   */
+  static String getTenant(final Channel chan) {
+    final SocketAddress addr = chan.getRemoteAddress();
+    if (addr instanceof InetSocketAddress) {
+      return ((InetSocketAddress) addr).getAddress().getHostAddress();
+    }
+    return String.valueOf(addr);
+  }
+
+  /**
+   * Returns how long (in ms) the sub-queries of a request have to complete.
+   * The client can ask for a shorter deadline with the {@code timeout}
+   * parameter (e.g. "30s"), but not for a longer one than the default.
+   * @param query The query to serve.
+   * @throws BadRequestException if the {@code timeout} parameter is invalid.
+   */
+  private static long getQueryTimeout(final HttpQuery query) {
+    final String timeout = query.getQueryStringParam("timeout");
+    if (timeout == null) {
+      return QUERY_TIMEOUT;
+    }
+    final long millis = parseDuration(timeout) * 1000L;
+    return QUERY_TIMEOUT > 0 ? Math.min(millis, QUERY_TIMEOUT) : millis;
+  }
+
+  /**
+   * Returns whether or not the client asked for the profile of its query.
+   * @param query The query to serve.
+   */
+  private static boolean wantsProfile(final HttpQuery query) {
+    return query.hasQueryStringParam("profile")
+      || query.hasQueryStringParam("explain");
+  }
+
+  /**
+   * Sends the profile of a query in {@link #PROFILE_HEADER}, if the client
+   * asked for it.
+   * @param query The query to serve.
+   * @param profile The profile of that query.
+   */
+  private static void setProfileHeader(final HttpQuery query,
+                                       final QueryProfile profile) {
+    if (wantsProfile(query)) {
+      final StringBuilder buf = new StringBuilder(200);
+      profile.toJson(buf);
+      query.setHeader(PROFILE_HEADER, buf.toString());
+    }
+  }
+
   /**
    * Decides how long we're going to allow the client to cache our response.
    * <p>
@@ -261,28 +571,37 @@ final class GraphHandler implements HttpRpc {
     }
   }
 
-  // Runs Gnuplot in a subprocess to generate the graph.
+  // Generates the graph (with Gnuplot, unless rendered in-process).
   private static final class RunGnuplot implements Runnable {
 
     private final HttpQuery query;
     private final int max_age;
     private final Plot plot;
     private final String basepath;
+    private final DiskCache disk_cache;
+    private final long expires;
     private final HashSet<String>[] aggregated_tags;
     private final int npoints;
+    private final QueryProfile profile;
 
     public RunGnuplot(final HttpQuery query,
                       final int max_age,
                       final Plot plot,
                       final String basepath,
+                      final DiskCache disk_cache,
+                      final long expires,
                       final HashSet<String>[] aggregated_tags,
-                      final int npoints) {
+                      final int npoints,
+                      final QueryProfile profile) {
       this.query = query;
       this.max_age = max_age;
       this.plot = plot;
       this.basepath = basepath;
+      this.disk_cache = disk_cache;
+      this.expires = expires;
       this.aggregated_tags = aggregated_tags;
       this.npoints = npoints;
+      this.profile = profile;
     }
 
     public void run() {
@@ -296,11 +615,14 @@ final class GraphHandler implements HttpRpc {
         query.internalError(e);
       } catch (IOException e) {
         query.internalError(e);
+      } finally {
+        disk_cache.written(basepath, expires);
       }
     }
 
     private void execute() throws IOException {
-      final int nplotted = runGnuplot(query, basepath, plot);
+      final int nplotted = renderGraph(query, basepath, plot, profile);
+      final boolean profiling = wantsProfile(query);
       if (query.hasQueryStringParam("json")) {
         final StringBuilder buf = new StringBuilder(64);
         buf.append("{\"plotted\":").append(nplotted)
@@ -315,20 +637,33 @@ final class GraphHandler implements HttpRpc {
           buf.append(',');
         }
         buf.setCharAt(buf.length() - 1, ']');
+        if (profiling) {
+          buf.append(",\"profile\":");
+          profile.toJson(buf);
+        }
         // The "timing" field must remain last, loadCachedJson relies this.
         buf.append(",\"timing\":").append(query.processingTimeMillis())
           .append('}');
-        query.sendReply(buf);
-        writeFile(query, basepath + ".json", buf.toString().getBytes());
+        if (profiling) {  // Don't cache a profile, it'd be stale.
+          query.sendReply(buf);
+        } else {
+          final String json = buf.toString();
+          writeFile(query, basepath + ".json", json.getBytes());
+          query.sendCached(cacheJson(basepath + ".json", json,
+                                     System.currentTimeMillis(), expires),
+                           ChannelBuffers.wrappedBuffer(json.getBytes()),
+                           max_age);
+        }
       } else {
           if (query.hasQueryStringParam("png")) {
-            query.sendFile(basepath + ".png", max_age);
+            sendFileFromMemory(query, basepath + ".png", max_age, expires);
           } else {
             if (nplotted > 0) {
               query.sendReply(HttpQuery.makePage("TSDB Query", "Your graph is ready",
                 "<img src=\"" + query.request().getUri() + "&amp;png\"/><br/>"
                 + "<small>(" + nplotted + " points plotted in "
-                + query.processingTimeMillis() + "ms)</small>"));
+                + query.processingTimeMillis() + "ms)</small>"
+                + (profiling ? "<pre>" + profile + "</pre>" : "")));
             } else {
               query.sendReply(HttpQuery.makePage("TSDB Query", "No results found",
                 "<blockquote><h1>No results</h1>Your query didn't return"
@@ -337,15 +672,16 @@ final class GraphHandler implements HttpRpc {
           }
       }
 
-      // TODO(tsuna): Expire old files from the on-disk cache.
+      logProfile(query, profile);
       graphlatency.add(query.processingTimeMillis());
       graphs_generated.incrementAndGet();
     }
 
   }
 
-  /** Shuts down the thread pool used to run Gnuplot.  */
+  /** Shuts down the thread pools used to run queries and Gnuplot.  */
   public void shutdown() {
+    executor.shutdown();
     gnuplot.shutdown();
   }
 
@@ -356,8 +692,17 @@ final class GraphHandler implements HttpRpc {
   public static void collectStats(final StatsCollector collector) {
     collector.record("http.latency", graphlatency, "type=graph");
     collector.record("http.latency", gnuplotlatency, "type=gnuplot");
+    collector.record("http.latency", renderlatency, "type=render");
+    collector.record("http.graph.render_fallbacks", render_fallbacks);
+    collector.record("http.graph.requests", graphs_memcache_hit,
+                     "cache=memory");
     collector.record("http.graph.requests", graphs_diskcache_hit, "cache=disk");
     collector.record("http.graph.requests", graphs_generated, "cache=miss");
+    collector.record("http.graph.requests", graphs_coalesced,
+                     "cache=coalesced");
+    QueryExecutor.collectStats(collector);
+    DiskCache.instance().collectStats(collector);
+    MemoryCache.instance().collectStats(collector);
   }
 
   /** Returns the base path to use for the Gnuplot files. */
@@ -371,7 +716,48 @@ final class GraphHandler implements HttpRpc {
     qs.remove("png");
     qs.remove("json");
     qs.remove("ascii");
-    return cachedir + Integer.toHexString(qs.hashCode());
+    qs.remove("profile");
+    qs.remove("explain");
+    return disk_cache.basePath(qs);
+  }
+
+  /**
+   * Checks whether or not it's possible to re-serve this query from memory.
+   * @param query The query to serve.
+   * @param end_time The end time on the query (32-bit unsigned int, seconds).
+   * @param max_age The maximum time (in seconds) we wanna allow clients to
+   * cache the result in case of a cache hit.
+   * @param basepath The base path used for the Gnuplot files.
+   * @return {@code true} if this request was served from memory (in which
+   * case processing can stop here), {@code false} otherwise.
+   */
+  private static boolean isMemoryCacheHit(final HttpQuery query,
+                                          final long end_time,
+                                          final int max_age,
+                                          final String basepath) {
+    final boolean json = query.hasQueryStringParam("json");
+    final String cachepath;
+    if (json) {
+      cachepath = basepath + ".json";
+    } else if (query.hasQueryStringParam("png")) {
+      cachepath = basepath + ".png";
+    } else if (query.hasQueryStringParam("ascii")) {
+      cachepath = basepath + ".txt";
+    } else {
+      return false;  // The HTML page is cheap, the disk cache will do.
+    }
+    final MemoryCache.Entry entry = MemoryCache.instance().get(cachepath);
+    if (entry == null
+        || staleCacheFile(query, end_time, max_age, cachepath, entry.mtime)) {
+      return false;
+    }
+    if (json) {
+      sendCachedJson(query, entry, "memory", max_age);
+    } else {
+      query.sendCached(entry, max_age);
+    }
+    graphs_memcache_hit.incrementAndGet();
+    return true;
   }
 
   /**
@@ -380,6 +766,7 @@ final class GraphHandler implements HttpRpc {
    * @param end_time The end time on the query (32-bit unsigned int, seconds).
    * @param max_age The maximum time (in seconds) we wanna allow clients to
    * cache the result in case of a cache hit.
+   * @param expires UNIX timestamp after which the result is useless.
    * @param basepath The base path used for the Gnuplot files.
    * @return {@code true} if this request was served from disk (in which
    * case processing can stop here), {@code false} otherwise (in which case
@@ -388,33 +775,35 @@ final class GraphHandler implements HttpRpc {
   private boolean isDiskCacheHit(final HttpQuery query,
                                  final long end_time,
                                  final int max_age,
+                                 final long expires,
                                  final String basepath) throws IOException {
     final String cachepath = basepath + (query.hasQueryStringParam("ascii")
                                          ? ".txt" : ".png");
-    final File cachedfile = new File(cachepath);
-    if (cachedfile.exists()) {
-      final long bytes = cachedfile.length();
+    final long mtime = disk_cache.lastModified(cachepath);
+    if (mtime > 0) {
+      final long bytes = disk_cache.length(cachepath);
       if (bytes < 21) {  // Minimum possible size for a PNG: 21 bytes.
                          // For .txt files, <21 bytes is almost impossible.
         logWarn(query, "Cached " + cachepath + " is too small ("
                 + bytes + " bytes) to be valid.  Ignoring it.");
         return false;
       }
-      if (staleCacheFile(query, end_time, max_age, cachedfile)) {
+      if (staleCacheFile(query, end_time, max_age, cachepath, mtime)) {
         return false;
       }
       if (query.hasQueryStringParam("json")) {
-        StringBuilder json = loadCachedJson(query, end_time, max_age, basepath);
+        final StringBuilder json =
+          loadCachedJson(query, end_time, max_age, basepath);
         if (json == null) {
-          json = new StringBuilder(32);
-          json.append("{\"timing\":");
+          query.sendReply(new StringBuilder(64).append("{\"timing\":")
+                          .append(query.processingTimeMillis())
+                          .append(",\"cachehit\":\"disk\"}"));
+        } else {
+          sendCachedJson(query, basepath, json, expires, max_age);
         }
-        json.append(query.processingTimeMillis())
-          .append(",\"cachehit\":\"disk\"}");
-        query.sendReply(json);
       } else if (query.hasQueryStringParam("png")
                  || query.hasQueryStringParam("ascii")) {
-        query.sendFile(cachepath, max_age);
+        sendFileFromMemory(query, cachepath, max_age, expires);
       } else {
         query.sendReply(HttpQuery.makePage("TSDB Query", "Your graph is ready",
             "<img src=\"" + query.request().getUri() + "&amp;png\"/><br/>"
@@ -432,9 +821,7 @@ final class GraphHandler implements HttpRpc {
       return false;
     }
     if (query.hasQueryStringParam("json")) {
-      json.append(query.processingTimeMillis())
-        .append(",\"cachehit\":\"disk\"}");
-      query.sendReply(json);
+      sendCachedJson(query, basepath, json, expires, max_age);
     } else if (query.hasQueryStringParam("png")) {
       query.sendReply(" ");  // Send back an empty response...
     } else {
@@ -453,13 +840,16 @@ final class GraphHandler implements HttpRpc {
    * @param max_age The maximum time (in seconds) we wanna allow clients to
    * cache the result in case of a cache hit.  If the file is exactly that
    * old, it is not considered stale.
-   * @param cachedfile The file to check for staleness.
+   * @param cachedfile The path of the file to check for staleness.
+   * @param mtime_ms The mtime of the file in milliseconds, 0 if it doesn't
+   * exist.
    */
   private static boolean staleCacheFile(final HttpQuery query,
                                         final long end_time,
                                         final long max_age,
-                                        final File cachedfile) {
-    final long mtime = cachedfile.lastModified() / 1000;
+                                        final String cachedfile,
+                                        final long mtime_ms) {
+    final long mtime = mtime_ms / 1000;
     if (mtime <= 0) {
       return true;  // File doesn't exist, or can't be read.
     }
@@ -488,7 +878,7 @@ final class GraphHandler implements HttpRpc {
     // The cached file contains partial data and can only be re-used if it's
     // not too old.
     if (staleness > max_age) {
-      logInfo(query, "Cached file @ " + cachedfile.getPath() + " is "
+      logInfo(query, "Cached file @ " + cachedfile + " is "
               + staleness + "s stale, which is more than its limit of "
               + max_age + "s, and needs to be regenerated.");
       return true;
@@ -562,6 +952,119 @@ final class GraphHandler implements HttpRpc {
     }
   }
 
+  /**
+   * Sends a file of the disk cache, and keeps it in memory for the next
+   * requests unless it's too big, in which case it's sent from disk, along
+   * with its {@code .gz} copy (see {@link #gzipIfTooBig}) if it has one.
+   * @param query The query to serve.
+   * @param path The path of the file to send.
+   * @param max_age The maximum time (in seconds) we wanna allow clients to
+   * cache the result.
+   * @param expires UNIX timestamp after which the file is useless.
+   */
+  private static void sendFileFromMemory(final HttpQuery query,
+                                         final String path,
+                                         final int max_age,
+                                         final long expires)
+    throws IOException {
+    final MemoryCache mem_cache = MemoryCache.instance();
+    final File file = new File(path);
+    final long length = file.length();
+    final byte[] data = 0 < length && length <= mem_cache.maxEntryBytes()
+      ? readFile(query, file, (int) length) : null;
+    if (data == null) {
+      final String gzpath = path + ".gz";
+      // The copy must have been written after the file itself.
+      final boolean gzip = path.endsWith(".txt") && length > 0
+        && new File(gzpath).lastModified() >= file.lastModified();
+      query.sendFile(path, gzip ? gzpath : null, max_age);
+      return;
+    }
+    // PNGs are already compressed, but ASCII outputs compress very well.
+    query.sendCached(mem_cache.put(path, data, path.endsWith(".txt"),
+                                   file.lastModified(), expires),
+                     max_age);
+  }
+
+  /**
+   * Writes a gzip'ed copy of a file next to it if the file is too big to be
+   * kept in memory, because then {@link MemoryCache} can't compress it.
+   * The copy is {@code path + ".gz"}, and goes in the disk cache with the
+   * other files of the request.
+   * @param query The query being served.
+   * @param path The path of the file to compress.
+   */
+  private static void gzipIfTooBig(final HttpQuery query, final String path) {
+    final String gzpath = path + ".gz";
+    if (new File(path).length() <= MemoryCache.instance().maxEntryBytes()) {
+      new File(gzpath).delete();  // Don't leave a stale copy behind.
+      return;
+    }
+    try {
+      ContentCompressor.gzipFile(path, gzpath);
+    } catch (IOException e) {
+      logWarn(query, "Failed to compress " + path + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Keeps the JSON of a graph in memory.
+   * @param path The path of the {@code .json} file of the graph.
+   * @param json The JSON, only what's up to its last `:' is kept, so that
+   * the timing of each request can be appended to it.
+   * @param mtime When the JSON was generated, in milliseconds.
+   * @param expires UNIX timestamp after which the JSON is useless.
+   * @return The cache entry for this JSON.
+   */
+  private static MemoryCache.Entry cacheJson(final String path,
+                                             final String json,
+                                             final long mtime,
+                                             final long expires) {
+    return MemoryCache.instance().put(
+      path, json.substring(0, json.lastIndexOf(':') + 1).getBytes(), false,
+      mtime, expires);
+  }
+
+  /**
+   * Sends the JSON of a graph loaded from disk, and keeps it in memory.
+   * @param query The query to serve.
+   * @param basepath The base path used for the Gnuplot files.
+   * @param json The JSON returned by {@link #loadCachedJson}.
+   * @param expires UNIX timestamp after which the JSON is useless.
+   * @param max_age The maximum time (in seconds) we wanna allow clients to
+   * cache the result.
+   */
+  private void sendCachedJson(final HttpQuery query,
+                              final String basepath,
+                              final StringBuilder json,
+                              final long expires,
+                              final int max_age) {
+    final String path = basepath + ".json";
+    sendCachedJson(query, cacheJson(path, json.toString(),
+                                    disk_cache.lastModified(path), expires),
+                   "disk", max_age);
+  }
+
+  /**
+   * Sends the JSON of a graph kept in memory, with the timing of this
+   * request.
+   * @param query The query to serve.
+   * @param entry The cached JSON, see {@link #cacheJson}.
+   * @param cachehit Which cache the JSON came from.
+   * @param max_age The maximum time (in seconds) we wanna allow clients to
+   * cache the result.
+   */
+  private static void sendCachedJson(final HttpQuery query,
+                                     final MemoryCache.Entry entry,
+                                     final String cachehit,
+                                     final int max_age) {
+    final String trailer = query.processingTimeMillis()
+      + ",\"cachehit\":\"" + cachehit + "\"}";
+    query.sendCached(entry, ChannelBuffers.wrappedBuffer(entry.data,
+                                                         trailer.getBytes()),
+                     max_age);
+  }
+
   /**
    * Attempts to read the cached {@code .json} file for this query.
    * @param query The query to serve.
@@ -580,7 +1083,8 @@ final class GraphHandler implements HttpRpc {
                                        final String basepath) {
     final String json_path = basepath + ".json";
     File json_cache = new File(json_path);
-    if (staleCacheFile(query, end_time, max_age, json_cache)) {
+    if (staleCacheFile(query, end_time, max_age, json_path,
+                       disk_cache.lastModified(json_path))) {
       return null;
     }
     final byte[] json = readFile(query, json_cache, 4096);
@@ -723,12 +1227,59 @@ final class GraphHandler implements HttpRpc {
     plot.setParams(params);
   }
 
+  /**
+   * Generates the graph, in-process or with Gnuplot.
+   * <p>
+   * The {@code renderer} query string parameter picks how, {@code java} or
+   * {@code gnuplot}, see {@link #RENDERER} for the default.  Graphs using
+   * settings that only Gnuplot understands are rendered with Gnuplot.
+   * @param query The query being handled.
+   * @param basepath The base path used for the Gnuplot files.  The graph
+   * is written to the {@code .png} file.
+   * @param plot The plot to render.
+   * @param profile Where to record how long things took (can be
+   * {@code null}).
+   * @return The number of points plotted (0 or more).
+   * @throws BadRequestException if the {@code renderer} is invalid.
+   * @throws IOException if the graph couldn't be generated.
+   * @throws GnuplotException if Gnuplot returns non-zero.
+   */
+  static int renderGraph(final HttpQuery query,
+                         final String basepath,
+                         final Plot plot,
+                         final QueryProfile profile) throws IOException {
+    String renderer = query.getQueryStringParam("renderer");
+    if (renderer == null) {
+      renderer = RENDERER;
+    }
+    if ("java".equals(renderer)) {
+      final long start_time = System.nanoTime();
+      try {
+        final int nplotted = plot.renderToFile(basepath + ".png");
+        final long render_time = System.nanoTime() - start_time;
+        renderlatency.add((int) (render_time / 1000000));
+        if (profile != null) {
+          profile.addTime(QueryProfile.RENDER, render_time);
+        }
+        return nplotted;
+      } catch (UnsupportedOperationException e) {
+        render_fallbacks.incrementAndGet();
+        logInfo(query, e.getMessage() + ", using Gnuplot instead");
+      }
+    } else if (!"gnuplot".equals(renderer)) {
+      throw new BadRequestException("Invalid renderer: " + renderer);
+    }
+    return runGnuplot(query, basepath, plot, profile);
+  }
+
   /**
    * Runs Gnuplot in a subprocess to generate the graph.
    * <strong>This function will block</strong> while Gnuplot is running.
    * @param query The query being handled (for logging purposes).
    * @param basepath The base path used for the Gnuplot files.
    * @param plot The plot object to generate Gnuplot's input files.
+   * @param profile Where to record how long things took (can be
+   * {@code null}).
    * @return The number of points plotted by Gnuplot (0 or more).
    * @throws IOException if the Gnuplot files can't be written, or
    * the Gnuplot subprocess fails to start, or we can't read the
@@ -737,9 +1288,14 @@ final class GraphHandler implements HttpRpc {
    */
   static int runGnuplot(final HttpQuery query,
                         final String basepath,
-                        final Plot plot) throws IOException {
+                        final Plot plot,
+                        final QueryProfile profile) throws IOException {
+    final long dump_start = System.nanoTime();
     final int nplotted = plot.dumpToFiles(basepath);
     final long start_time = System.nanoTime();
+    if (profile != null) {
+      profile.addTime(QueryProfile.DISK_IO, start_time - dump_start);
+    }
     final Process gnuplot = new ProcessBuilder(GNUPLOT,
       basepath + ".out", basepath + ".err", basepath + ".gnuplot").start();
     final int rv;
@@ -758,7 +1314,11 @@ final class GraphHandler implements HttpRpc {
       // running TSDs, except where ulimit -n was low (the default, 1024).
       gnuplot.destroy();
     }
-    gnuplotlatency.add((int) ((System.nanoTime() - start_time) / 1000000));
+    final long gnuplot_time = System.nanoTime() - start_time;
+    gnuplotlatency.add((int) (gnuplot_time / 1000000));
+    if (profile != null) {
+      profile.addTime(QueryProfile.GNUPLOT, gnuplot_time);
+    }
     if (rv != 0) {
       final byte[] stderr = readFile(query, new File(basepath + ".err"),
                                      4096);
@@ -790,13 +1350,19 @@ final class GraphHandler implements HttpRpc {
    * @param query The query we're currently serving.
    * @param max_age The maximum time (in seconds) we wanna allow clients to
    * cache the result in case of a cache hit.
+   * @param expires UNIX timestamp after which the result is useless.
    * @param basepath The base path used for the Gnuplot files.
    * @param plot The plot object to generate Gnuplot's input files.
+   * @param profile Where to record how long things took, sent with the
+   * response if the client asked for it.
    */
   private static void respondAsciiQuery(final HttpQuery query,
                                         final int max_age,
+                                        final long expires,
                                         final String basepath,
-                                        final Plot plot) {
+                                        final Plot plot,
+                                        final QueryProfile profile) {
+    final long start_time = System.nanoTime();
     final String path = basepath + ".txt";
     PrintWriter asciifile;
     try {
@@ -845,9 +1411,12 @@ final class GraphHandler implements HttpRpc {
       }
     } finally {
       asciifile.close();
+      profile.addTime(QueryProfile.DISK_IO, System.nanoTime() - start_time);
     }
+    gzipIfTooBig(query, path);
+    setProfileHeader(query, profile);
     try {
-      query.sendFile(path, max_age);
+      sendFileFromMemory(query, path, max_age, expires);
     } catch (IOException e) {
       query.internalError(e);
     }
@@ -857,11 +1426,13 @@ final class GraphHandler implements HttpRpc {
    * Parses the {@code /q} query in a list of {@link Query} objects.
    * @param tsdb The TSDB to use.
    * @param query The HTTP query for {@code /q}.
+   * @param profile Where to record how long UID lookups took.
    * @return The corresponding {@link Query} objects.
    * @throws BadRequestException if the query was malformed.
    * @throws IllegalArgumentException if the metric or tags were malformed.
    */
-  private static Query[] parseQuery(final TSDB tsdb, final HttpQuery query) {
+  private static Query[] parseQuery(final TSDB tsdb, final HttpQuery query,
+                                    final QueryProfile profile) {
     final List<String> ms = query.getQueryStringParams("m");
     if (ms == null) {
       throw BadRequestException.missingParameter("m");
@@ -870,11 +1441,14 @@ final class GraphHandler implements HttpRpc {
     int nqueries = 0;
     for (final String m : ms) {
       // m is of the following forms:
-      //   agg:[interval-agg:][rate:]metric[{tag=value,...}]
+      //   agg:[top|bottomN-rank:][interval-agg:][rate:]metric[{tag=value,...}]
       // Where the parts in square brackets `[' .. `]' are optional.
       final String[] parts = Tags.splitString(m, ':');
       int i = parts.length;
-      if (i < 2 || i > 4) {
+      // Index of the downsampling part, which comes after the ranking part.
+      final int ds = (i > 2 && (parts[1].startsWith("top")
+                                || parts[1].startsWith("bottom")) ? 2 : 1);
+      if (i < 2 || i > 3 + ds) {
         throw new BadRequestException("Invalid parameter m=" + m + " ("
           + (i < 2 ? "not enough" : "too many") + " :-separated parts)");
       }
@@ -892,35 +1466,75 @@ final class GraphHandler implements HttpRpc {
       if (rate) {
         i--;  // Move to the next part.
       }
+      if (i > ds) {  // E.g. a ranking specifier after the downsampling one.
+        throw new BadRequestException("Unexpected '" + parts[i]
+                                      + "' in m=" + m);
+      }
       final Query tsdbquery = tsdb.newQuery();
+      final long uid_start = System.nanoTime();
       try {
         tsdbquery.setTimeSeries(metric, parsedtags, agg, rate);
       } catch (NoSuchUniqueName e) {
         LOG.warn("Skipping serie, metric: " + metric);
         continue;
+      } finally {
+        profile.addTime(QueryProfile.UID_LOOKUP, System.nanoTime() - uid_start);
       }
       // downsampling function & interval.
-      if (i > 0) {
-        final int dash = parts[1].indexOf('-', 1);  // 1st char can't be `-'.
+      if (i >= ds) {
+        final int dash = parts[ds].indexOf('-', 1);  // 1st char can't be `-'.
         if (dash < 0) {
           throw new BadRequestException("Invalid downsampling specifier '"
-                                        + parts[1] + "' in m=" + m);
+                                        + parts[ds] + "' in m=" + m);
         }
         Aggregator downsampler;
         try {
-          downsampler = Aggregators.get(parts[1].substring(dash + 1));
+          downsampler = Aggregators.get(parts[ds].substring(dash + 1));
         } catch (NoSuchElementException e) {
           throw new BadRequestException("No such downsampling function: "
-                                        + parts[1].substring(dash + 1));
+                                        + parts[ds].substring(dash + 1));
         }
-        final int interval = parseDuration(parts[1].substring(0, dash));
+        final int interval = parseDuration(parts[ds].substring(0, dash));
         tsdbquery.downsample(interval, downsampler);
       }
+      if (ds == 2) {
+        parseRankLimit(tsdbquery, parts[1], m);
+      }
       tsdbqueries[nqueries++] = tsdbquery;
     }
     return tsdbqueries;
   }
 
+  /**
+   * Parses a ranking specifier such as "top10-max" or "bottom5-last".
+   * @param tsdbquery The query to limit.
+   * @param spec The ranking specifier.
+   * @param m The whole sub-query, for error messages.
+   * @throws BadRequestException if the specifier is malformed.
+   */
+  private static void parseRankLimit(final Query tsdbquery, final String spec,
+                                     final String m) {
+    final boolean bottom = spec.startsWith("bottom");
+    final int dash = spec.indexOf('-');
+    final int limit;
+    try {
+      limit = Integer.parseInt(spec.substring(bottom ? 6 : 3,
+                                              dash < 0 ? spec.length()
+                                                       : dash));
+    } catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid ranking specifier '" + spec
+                                    + "' in m=" + m);
+    }
+    if (limit <= 0) {
+      throw new BadRequestException("Invalid ranking limit in '" + spec
+                                    + "' in m=" + m);
+    }
+    // Rank by the maximum value by default.
+    final String ranker = dash < 0 ? "max" : spec.substring(dash + 1);
+    tsdbquery.setRankLimit(limit, bottom, "last".equals(ranker)
+                           ? null : getAggregator(ranker));
+  }
+
   /**
    * Returns the aggregator with the given name.
    * @param name Name of the aggregator to get.
@@ -1077,6 +1691,18 @@ final class GraphHandler implements HttpRpc {
   // Logging helpers. //
   // ---------------- //
 
+  /**
+   * Logs the profile of a query if it took longer than the threshold.
+   * @param query The query we're currently serving.
+   * @param profile The profile of that query.
+   */
+  static void logProfile(final HttpQuery query, final QueryProfile profile) {
+    if (PROFILE_LOG_THRESHOLD > 0
+        && profile.elapsedMillis() >= PROFILE_LOG_THRESHOLD) {
+      logWarn(query, "Slow query " + query.request().getUri() + ": " + profile);
+    }
+  }
+
   static void logInfo(final HttpQuery query, final String msg) {
     LOG.info(query.channel().toString() + ' ' + msg);
   }
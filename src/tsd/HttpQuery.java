@@ -16,9 +16,16 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.stumbleupon.async.Deferred;
 
@@ -34,13 +41,16 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.DefaultFileRegion;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.handler.stream.ChunkedInput;
 import org.jboss.netty.util.CharsetUtil;
 
 import net.opentsdb.core.Const;
@@ -66,6 +76,9 @@ final class HttpQuery {
   private static final Histogram httplatency =
     new Histogram(16000, (short) 2, 100);
 
+  /** Number of "304 Not Modified" replies sent.  */
+  private static final AtomicLong not_modified_replies = new AtomicLong();
+
   /** When the query was started (useful for timing). */
   private final long start_time = System.nanoTime();
 
@@ -81,6 +94,15 @@ final class HttpQuery {
   /** Deferred result of this query, to allow asynchronous processing.  */
   private final Deferred<Object> deferred = new Deferred<Object>();
 
+  /**
+   * Identical queries that will get the same response as this one.
+   * Set to {@code null} once we've responded.  Guarded by {@code this}.
+   */
+  private ArrayList<HttpQuery> followers = new ArrayList<HttpQuery>(0);
+
+  /** Headers to add to the response, {@code null} if none.  */
+  private HashMap<String, String> headers;
+
   /**
    * Constructor.
    * @param request The request in this HTTP query.
@@ -97,6 +119,8 @@ final class HttpQuery {
    */
   public static void collectStats(final StatsCollector collector) {
     collector.record("http.latency", httplatency, "type=all");
+    collector.record("http.not_modified", not_modified_replies);
+    ContentCompressor.collectStats(collector);
   }
 
   /**
@@ -204,6 +228,33 @@ final class HttpQuery {
     return getQueryString().get(paramname);
   }
 
+  /**
+   * Makes another, identical query get the same response as this one.
+   * @param follower The query to respond to along with this one.
+   * @return {@code false} if it's too late because we've already started
+   * responding to this query, in which case the follower must be served on
+   * its own.
+   */
+  public synchronized boolean addFollower(final HttpQuery follower) {
+    if (followers == null) {
+      return false;
+    }
+    followers.add(follower);
+    return true;
+  }
+
+  /**
+   * Stops tracking followers and returns those we had.
+   * After this, {@link #addFollower} always returns {@code false}.
+   * @return A possibly empty list of followers, or {@code null} if they have
+   * already been detached.
+   */
+  public synchronized List<HttpQuery> detachFollowers() {
+    final ArrayList<HttpQuery> followers = this.followers;
+    this.followers = null;
+    return followers;
+  }
+
   /**
    * Sends a 500 error page to the client.
    * @param cause The unexpected exception that caused this error.
@@ -445,10 +496,13 @@ final class HttpQuery {
       buf = null;
       plot.setParams(params);
       params = null;
-      final String basepath =
-        RpcHandler.getDirectoryFromSystemProp("tsd.http.cachedir")
-        + Integer.toHexString(msg.hashCode());
-      GraphHandler.runGnuplot(this, basepath, plot);
+      final DiskCache disk_cache = DiskCache.instance();
+      final String basepath = disk_cache.basePath("png-message:" + msg);
+      try {
+        GraphHandler.renderGraph(this, basepath, plot, null);
+      } finally {
+        disk_cache.written(basepath, Long.MAX_VALUE);
+      }
       plot = null;
       sendFile(status, basepath + ".png", max_age);
     } catch (Exception e) {
@@ -487,17 +541,48 @@ final class HttpQuery {
   public void sendFile(final HttpResponseStatus status,
                        final String path,
                        final int max_age) throws IOException {
+    sendFile(status, path, null, max_age);
+  }
+
+  /**
+   * Send a file (with zero-copy) to the client with a 200 OK status, or its
+   * gzip'ed copy if the client accepts it.
+   * @param path The path to the file to send to the client.
+   * @param gzpath The path to a gzip'ed copy of the file, or {@code null}.
+   * @param max_age The expiration time of this entity, in seconds.
+   */
+  void sendFile(final String path, final String gzpath,
+                final int max_age) throws IOException {
+    sendFile(HttpResponseStatus.OK, path, gzpath, max_age);
+  }
+
+  private void sendFile(final HttpResponseStatus status,
+                        final String path,
+                        final String gzpath,
+                        final int max_age) throws IOException {
     if (max_age < 0) {
       throw new IllegalArgumentException("Negative max_age=" + max_age
                                          + " for path=" + path);
     }
+    final List<HttpQuery> followers = detachFollowers();
+    if (followers != null) {
+      for (final HttpQuery follower : followers) {
+        try {
+          follower.sendFile(status, path, gzpath, max_age);
+        } catch (IOException e) {
+          follower.internalError(e);
+        }
+      }
+    }
     if (!chan.isConnected()) {
       done();
       return;
     }
+    final boolean gzip = gzpath != null
+      && ContentCompressor.accepts(request, "gzip");
     RandomAccessFile file;
     try {
-      file = new RandomAccessFile(path, "r");
+      file = new RandomAccessFile(gzip ? gzpath : path, "r");
     } catch (FileNotFoundException e) {
       logWarn("File not found: " + e.getMessage());
       if (querystring != null) {
@@ -510,18 +595,44 @@ final class HttpQuery {
     {
       final DefaultHttpResponse response =
         new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+      setHeaders(response);
       final String mimetype = guessMimeTypeFromUri(path);
       response.setHeader(HttpHeaders.Names.CONTENT_TYPE,
                          mimetype == null ? "text/plain" : mimetype);
+      if (gzpath != null) {
+        response.setHeader(HttpHeaders.Names.VARY,
+                           HttpHeaders.Names.ACCEPT_ENCODING);
+      }
       final long mtime = new File(path).lastModified();
       if (mtime > 0) {
         response.setHeader(HttpHeaders.Names.AGE,
                            (System.currentTimeMillis() - mtime) / 1000);
+        response.setHeader(HttpHeaders.Names.LAST_MODIFIED,
+                           formatHttpDate(mtime));
+        if (status == HttpResponseStatus.OK
+            && isNotModified(request, null, mtime)) {
+          file.close();
+          response.setStatus(HttpResponseStatus.NOT_MODIFIED);
+          response.setHeader(HttpHeaders.Names.CACHE_CONTROL,
+                             max_age == 0 ? "no-cache" : "max-age=" + max_age);
+          HttpHeaders.setContentLength(response, 0);
+          not_modified_replies.incrementAndGet();
+          final ChannelFuture future = chan.write(response);
+          if (!HttpHeaders.isKeepAlive(request)) {
+            future.addListener(ChannelFutureListener.CLOSE);
+          }
+          done();
+          return;
+        }
       } else {
         logWarn("Found a file with mtime=" + mtime + ": " + path);
       }
       response.setHeader(HttpHeaders.Names.CACHE_CONTROL,
                          max_age == 0 ? "no-cache" : "max-age=" + max_age);
+      if (gzip) {
+        response.setHeader(HttpHeaders.Names.CONTENT_ENCODING, "gzip");
+        ContentCompressor.record(new File(path).length(), length);
+      }
       HttpHeaders.setContentLength(response, length);
       chan.write(response);
     }
@@ -539,6 +650,279 @@ final class HttpQuery {
     }
   }
 
+  /**
+   * Streams a response to the client with a 200 OK status.
+   * <p>
+   * The response is sent with the "chunked" transfer-coding, except to
+   * HTTP/1.0 clients, for which the connection is closed once the response
+   * has been sent.
+   * @param content_type The MIME type of the response.
+   * @param input The contents of the response, as {@link ChannelBuffer}s.
+   * Chunks are read from it only as fast as the client can receive them.
+   */
+  void sendChunked(final String content_type, ChunkedInput input) {
+    if (!chan.isConnected()) {
+      try {
+        input.close();
+      } catch (Exception e) {
+        logError("Failed to close " + input, e);
+      }
+      done();
+      return;
+    }
+    final boolean chunked =
+      request.getProtocolVersion() != HttpVersion.HTTP_1_0;
+    final DefaultHttpResponse response =
+      new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    setHeaders(response);
+    response.setHeader(HttpHeaders.Names.CONTENT_TYPE, content_type);
+    final String encoding =
+      ContentCompressor.negotiate(request, content_type, -1);
+    if (encoding != null) {
+      input = ContentCompressor.compress(encoding, input);
+      response.setHeader(HttpHeaders.Names.CONTENT_ENCODING, encoding);
+      response.setHeader(HttpHeaders.Names.VARY,
+                         HttpHeaders.Names.ACCEPT_ENCODING);
+    }
+    if (chunked) {
+      response.setChunked(true);
+      response.setHeader(HttpHeaders.Names.TRANSFER_ENCODING,
+                         HttpHeaders.Values.CHUNKED);
+    }
+    chan.write(response);
+    final ChannelFuture future =
+      chan.write(chunked ? new HttpChunks(input) : input);
+    future.addListener(new ChannelFutureListener() {
+      public void operationComplete(final ChannelFuture future) {
+        if (!future.isSuccess()) {
+          // We can't send an error in the middle of the response, closing
+          // the connection lets the client know the response is truncated.
+          logWarn("Streaming the response failed: " + future.getCause());
+          chan.close();
+        }
+        done();
+      }
+    });
+    if (!chunked || !HttpHeaders.isKeepAlive(request)) {
+      future.addListener(ChannelFutureListener.CLOSE);
+    }
+  }
+
+  /** Wraps the buffers of a {@link ChunkedInput} in HTTP chunks.  */
+  private static final class HttpChunks implements ChunkedInput {
+
+    private final ChunkedInput input;
+
+    /** Whether we've returned the last (empty) chunk.  */
+    private boolean done;
+
+    HttpChunks(final ChunkedInput input) {
+      this.input = input;
+    }
+
+    public boolean hasNextChunk() {
+      return !done;
+    }
+
+    public Object nextChunk() throws Exception {
+      while (!input.isEndOfInput()) {
+        final ChannelBuffer buf = (ChannelBuffer) input.nextChunk();
+        // An empty chunk would mean the end of the response.
+        if (buf != null && buf.readable()) {
+          return new DefaultHttpChunk(buf);
+        }
+      }
+      done = true;
+      return HttpChunk.LAST_CHUNK;
+    }
+
+    public boolean isEndOfInput() {
+      return done;
+    }
+
+    public void close() throws Exception {
+      input.close();
+    }
+
+  }
+
+  /**
+   * Sends a response cached in memory with a 200 OK status, or a 304 Not
+   * Modified if the client already has it.
+   * @param entry The cached response.
+   * @param max_age The expiration time of this entity, in seconds.  This is
+   * not a timestamp, it's how old the resource is allowed to be in the client
+   * cache.  See RFC 2616 section 14.9 for more information.  Use 0 to disable
+   * caching.
+   */
+  void sendCached(final MemoryCache.Entry entry, final int max_age) {
+    sendCached(entry, ChannelBuffers.wrappedBuffer(entry.data), false,
+               max_age);
+  }
+
+  /**
+   * Sends a response cached in memory with a 200 OK status, or a 304 Not
+   * Modified if the client already has it.
+   * @param entry The cached response.
+   * @param content What to send in the 200 OK, which isn't exactly the
+   * cached data (e.g. the cached JSON with the timing of this request), so
+   * the ETag sent is weak.
+   * @param max_age The expiration time of this entity, in seconds.  This is
+   * not a timestamp, it's how old the resource is allowed to be in the client
+   * cache.  See RFC 2616 section 14.9 for more information.  Use 0 to disable
+   * caching.
+   */
+  void sendCached(final MemoryCache.Entry entry, final ChannelBuffer content,
+                  final int max_age) {
+    sendCached(entry, content, true, max_age);
+  }
+
+  private void sendCached(final MemoryCache.Entry entry,
+                          final ChannelBuffer content,
+                          final boolean weak,
+                          final int max_age) {
+    final List<HttpQuery> followers = detachFollowers();
+    if (followers != null) {
+      for (final HttpQuery follower : followers) {
+        follower.sendCached(entry, content.duplicate(), weak, max_age);
+      }
+    }
+    if (!chan.isConnected()) {
+      done();
+      return;
+    }
+    String mimetype = guessMimeTypeFromUri(entry.path);
+    if (mimetype == null) {
+      mimetype = guessMimeTypeFromContents(content);
+    }
+    // Each content-coding is a different representation, with its own ETag.
+    final String encoding;
+    if (weak) {
+      encoding = ContentCompressor.negotiate(request, mimetype,
+                                             content.readableBytes());
+    } else if (entry.gzipped != null
+               && ContentCompressor.accepts(request, "gzip")) {
+      encoding = "gzip";
+    } else {
+      encoding = null;
+    }
+    final String etag = encoding == null ? entry.etag
+      : entry.etag.substring(0, entry.etag.length() - 1) + '-' + encoding + '"';
+    final boolean not_modified = isNotModified(request, etag, entry.mtime);
+    final DefaultHttpResponse response = new DefaultHttpResponse(
+      HttpVersion.HTTP_1_1,
+      not_modified ? HttpResponseStatus.NOT_MODIFIED : HttpResponseStatus.OK);
+    setHeaders(response);
+    response.setHeader(HttpHeaders.Names.ETAG, weak ? "W/" + etag : etag);
+    response.setHeader(HttpHeaders.Names.LAST_MODIFIED,
+                       formatHttpDate(entry.mtime));
+    response.setHeader(HttpHeaders.Names.CACHE_CONTROL,
+                       max_age == 0 ? "no-cache" : "max-age=" + max_age);
+    if (encoding != null || entry.gzipped != null) {
+      response.setHeader(HttpHeaders.Names.VARY,
+                         HttpHeaders.Names.ACCEPT_ENCODING);
+    }
+    if (not_modified) {
+      not_modified_replies.incrementAndGet();
+      HttpHeaders.setContentLength(response, 0);
+    } else {
+      final ChannelBuffer body;
+      if (encoding == null) {
+        body = content;
+      } else if (weak) {
+        body = ContentCompressor.compress(encoding, content);
+      } else {
+        body = ChannelBuffers.wrappedBuffer(entry.gzipped);
+        ContentCompressor.record(entry.data.length, entry.gzipped.length);
+      }
+      response.setHeader(HttpHeaders.Names.CONTENT_TYPE, mimetype);
+      if (encoding != null) {
+        response.setHeader(HttpHeaders.Names.CONTENT_ENCODING, encoding);
+      }
+      response.setContent(body);
+      HttpHeaders.setContentLength(response, body.readableBytes());
+    }
+    final ChannelFuture future = chan.write(response);
+    if (!HttpHeaders.isKeepAlive(request)) {
+      future.addListener(ChannelFutureListener.CLOSE);
+    }
+    done();
+  }
+
+  /**
+   * Returns whether the conditional headers of a request show that the
+   * client already has the current version of a response.
+   * As mandated by RFC 2616 section 14.26, {@code If-Modified-Since} is
+   * ignored when {@code If-None-Match} is present.
+   * @param request The request to check.
+   * @param etag The strong entity tag of the response, with its quotes.
+   * @param mtime When the response was last modified, in milliseconds.
+   */
+  static boolean isNotModified(final HttpRequest request, final String etag,
+                               final long mtime) {
+    final String if_none_match =
+      request.getHeader(HttpHeaders.Names.IF_NONE_MATCH);
+    if (if_none_match != null) {
+      for (String tag : if_none_match.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {  // Weak comparison is fine for a GET.
+          tag = tag.substring(2);
+        }
+        if (tag.equals("*") || tag.equals(etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    final String if_modified_since =
+      request.getHeader(HttpHeaders.Names.IF_MODIFIED_SINCE);
+    if (if_modified_since == null || mtime <= 0) {
+      return false;
+    }
+    try {
+      // HTTP dates only have a one second resolution.
+      return mtime / 1000 <= newHttpDateFormat().parse(if_modified_since)
+        .getTime() / 1000;
+    } catch (ParseException e) {
+      return false;  // RFC 2616 section 14.25 says to ignore invalid dates.
+    }
+  }
+
+  /** Formats a timestamp in milliseconds as an RFC 1123 HTTP date.  */
+  static String formatHttpDate(final long timestamp) {
+    return newHttpDateFormat().format(new Date(timestamp));
+  }
+
+  /** Returns a new (since they're not thread-safe) HTTP date format.  */
+  private static SimpleDateFormat newHttpDateFormat() {
+    final SimpleDateFormat fmt =
+      new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return fmt;
+  }
+
+  /**
+   * Adds a header to the response to this query.
+   * Identical queries coalesced with this one don't get it.
+   * @param name The name of the header.
+   * @param value Its value, which must fit on a single line.
+   */
+  void setHeader(final String name, final String value) {
+    if (headers == null) {
+      headers = new HashMap<String, String>(1);
+    }
+    headers.put(name, value);
+  }
+
+  /** Adds the headers set with {@link #setHeader} to a response.  */
+  private void setHeaders(final DefaultHttpResponse response) {
+    if (headers != null) {
+      for (final Map.Entry<String, String> header : headers.entrySet()) {
+        response.setHeader(header.getKey(), header.getValue());
+      }
+    }
+  }
+
   /**
    * Method to call after writing the HTTP response to the wire.
    */
@@ -556,18 +940,37 @@ final class HttpQuery {
    */
   private void sendBuffer(final HttpResponseStatus status,
                           final ChannelBuffer buf) {
+    final List<HttpQuery> followers = detachFollowers();
+    if (followers != null) {
+      for (final HttpQuery follower : followers) {
+        follower.sendBuffer(status, buf.duplicate());
+      }
+    }
     if (!chan.isConnected()) {
       done();
       return;
     }
     final DefaultHttpResponse response =
       new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
-    response.setHeader(HttpHeaders.Names.CONTENT_TYPE, guessMimeType(buf));
+    setHeaders(response);
+    final String mimetype = guessMimeType(buf);
+    response.setHeader(HttpHeaders.Names.CONTENT_TYPE, mimetype);
     // TODO(tsuna): Server, X-Backend, etc. headers.
-    response.setContent(buf);
+    final String encoding =
+      ContentCompressor.negotiate(request, mimetype, buf.readableBytes());
+    final ChannelBuffer content;
+    if (encoding == null) {
+      content = buf;
+    } else {
+      content = ContentCompressor.compress(encoding, buf);
+      response.setHeader(HttpHeaders.Names.CONTENT_ENCODING, encoding);
+      response.setHeader(HttpHeaders.Names.VARY,
+                         HttpHeaders.Names.ACCEPT_ENCODING);
+    }
+    response.setContent(content);
     final boolean keepalive = HttpHeaders.isKeepAlive(request);
     if (keepalive) {
-      HttpHeaders.setContentLength(response, buf.readableBytes());
+      HttpHeaders.setContentLength(response, content.readableBytes());
     }
     final ChannelFuture future = chan.write(response);
     if (!keepalive) {
@@ -589,7 +992,7 @@ final class HttpQuery {
    * Attempts to guess the MIME type by looking at the URI requested.
    * @param uri The URI from which to infer the MIME type.
    */
-  private static String guessMimeTypeFromUri(final String uri) {
+  static String guessMimeTypeFromUri(final String uri) {
     final int questionmark = uri.indexOf('?', 1);  // 1 => skip the initial /
     final int end = (questionmark > 0 ? questionmark : uri.length()) - 1;
     if (end < 5) {  // Need at least: "/a.js"
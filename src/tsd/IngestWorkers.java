@@ -0,0 +1,238 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.jboss.netty.channel.Channel;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Executes the "put" commands on dedicated threads instead of Netty's I/O
+ * threads.
+ * <p>
+ * Importing a data point parses it, may look up UIDs in HBase, and updates
+ * various structures in memory.  Doing this on the I/O threads delays the
+ * reads and writes of every other connection handled by the same thread,
+ * including HTTP queries.  Here the I/O threads only decode the commands,
+ * and hand them to a fixed number of workers.  This way the number of I/O
+ * threads and the number of threads importing data points can be sized
+ * independently.  Configuration:
+ * <ul>
+ * <li>{@code tsd.ingest.workers}: the number of workers, 0 (the default)
+ * to import data points on the I/O threads.</li>
+ * <li>{@code tsd.ingest.queue_size}: the number of commands a worker can
+ * have waiting (10000 by default).</li>
+ * </ul>
+ * Each worker has its own lock-free queue, and all the data points of a
+ * time series go to the same worker, so they're imported in the order they
+ * were received.  A connection that adds a command to a full queue isn't
+ * read from until that command leaves the queue.  Commands waiting in a
+ * queue also count as pending data points of their connection, see
+ * {@link ConnectionManager#recordQueued}.
+ */
+final class IngestWorkers {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(IngestWorkers.class);
+
+  /** Commands queued or being executed.  */
+  private static final AtomicInteger pending = new AtomicInteger();
+  private static final AtomicLong executed = new AtomicLong();
+  private static final AtomicLong overflows = new AtomicLong();
+  private static final AtomicLong exceptions_caught = new AtomicLong();
+
+  private final TSDB tsdb;
+  private final TelnetRpc rpc;
+  private final int queue_size;
+  private final Worker[] workers;
+
+  /**
+   * Constructor.  Starts the workers.
+   * @param tsdb The TSDB to use.
+   * @param rpc The command to execute.
+   * @param nworkers The number of workers, strictly positive.
+   * @param queue_size The number of commands a worker can have waiting.
+   */
+  IngestWorkers(final TSDB tsdb, final TelnetRpc rpc, final int nworkers,
+                final int queue_size) {
+    this.tsdb = tsdb;
+    this.rpc = rpc;
+    this.queue_size = queue_size;
+    workers = new Worker[nworkers];
+    for (int i = 0; i < nworkers; i++) {
+      workers[i] = new Worker(i);
+      workers[i].start();
+    }
+  }
+
+  /**
+   * Returns the workers configured by {@code tsd.ingest.workers}, or
+   * {@code null} if commands must be executed on the I/O threads.
+   * @param tsdb The TSDB to use.
+   * @param rpc The command to execute.
+   */
+  static IngestWorkers fromSystemProps(final TSDB tsdb, final TelnetRpc rpc) {
+    final int nworkers = Integer.getInteger("tsd.ingest.workers", 0);
+    if (nworkers <= 0) {
+      return null;
+    }
+    return new IngestWorkers(tsdb, rpc, nworkers,
+                             Integer.getInteger("tsd.ingest.queue_size",
+                                                10000));
+  }
+
+  /**
+   * Hands a command over to the worker of its time series.
+   * @param chan The channel on which the command was received.
+   * @param command The split command: {@code put metric ts value tags...}
+   */
+  void execute(final Channel chan, final String[] command) {
+    final Worker worker = workers[shard(command, workers.length)];
+    final Deferred<Object> dequeued = new Deferred<Object>();
+    final boolean overflow = worker.size.incrementAndGet() > queue_size;
+    if (overflow) {
+      overflows.incrementAndGet();
+    }
+    ConnectionManager.recordQueued(chan, dequeued, overflow);
+    pending.incrementAndGet();
+    worker.queue.offer(new Command(chan, command, dequeued));
+    if (worker.parked) {
+      LockSupport.unpark(worker);
+    }
+  }
+
+  /**
+   * Picks the worker of the time series of a command.
+   * @param words The split command: {@code put metric ts value tags...}
+   * @param nworkers The number of workers.
+   * @return A number between 0 and {@code nworkers} excluded.
+   */
+  static int shard(final String[] words, final int nworkers) {
+    if (words.length < 2) {
+      return 0;
+    }
+    int tags = 0;
+    for (int i = 4; i < words.length; i++) {
+      tags += words[i].hashCode();  // The order of the tags doesn't matter.
+    }
+    final int hash = words[1].hashCode() * 31 + tags;
+    return (hash & 0x7FFFFFFF) % nworkers;
+  }
+
+  /**
+   * Waits until all the commands received so far have been executed.
+   * @param timeout How long to wait at most, in milliseconds.
+   * @return {@code true} if there's no command left.
+   */
+  boolean drain(final long timeout) {
+    final long deadline = System.currentTimeMillis() + timeout;
+    while (pending.get() > 0) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false;
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("ingest.pending", pending.get());
+    collector.record("ingest.executed", executed);
+    collector.record("ingest.overflows", overflows);
+    collector.record("ingest.exceptions", exceptions_caught);
+  }
+
+  /** A command waiting to be executed.  */
+  private static final class Command {
+    final Channel chan;
+    final String[] words;
+    /** Called back once the command leaves the queue.  */
+    final Deferred<Object> dequeued;
+
+    Command(final Channel chan, final String[] words,
+            final Deferred<Object> dequeued) {
+      this.chan = chan;
+      this.words = words;
+      this.dequeued = dequeued;
+    }
+  }
+
+  /** Executes the commands of some time series, in order.  */
+  private final class Worker extends Thread {
+
+    final ConcurrentLinkedQueue<Command> queue =
+      new ConcurrentLinkedQueue<Command>();
+    /** Size of {@code queue}, which is O(n) to compute.  */
+    final AtomicInteger size = new AtomicInteger();
+    /** Whether this thread is parked or about to be, waiting for work.  */
+    volatile boolean parked;
+
+    Worker(final int i) {
+      super("IngestWorker#" + i);
+      setDaemon(true);
+    }
+
+    public void run() {
+      while (true) {
+        final Command command = queue.poll();
+        if (command == null) {
+          parked = true;
+          // Check again: a command added before `parked' was set didn't
+          // unpark us.
+          if (queue.isEmpty()) {
+            LockSupport.park(this);
+          }
+          parked = false;
+          continue;
+        }
+        size.decrementAndGet();
+        // From now on, the write of the data point counts instead.
+        command.dequeued.callback(null);
+        try {
+          rpc.execute(tsdb, command.chan, command.words);
+        } catch (Exception e) {
+          LOG.error("Unexpected exception caught while importing "
+                    + Arrays.toString(command.words)
+                    + " from " + command.chan, e);
+          exceptions_caught.incrementAndGet();
+        } finally {
+          executed.incrementAndGet();
+          pending.decrementAndGet();
+        }
+      }
+    }
+
+  }
+
+}
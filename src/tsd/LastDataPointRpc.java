@@ -0,0 +1,299 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.channel.Channel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.Tags;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.NoSuchUniqueName;
+
+/**
+ * Implements the "last" telnet-style command and the {@code /last} endpoint.
+ * <p>
+ * Both return the last data point of each time series matching a metric and
+ * some tags, one per line, in the same format as the "put" command:
+ * <pre>
+ *   last metric [tag=value ...]         (telnet)
+ *   /last?m=metric{tag=value,...}       (HTTP, add &amp;json for JSON)
+ * </pre>
+ * A tag value of {@code *} matches any value.
+ */
+final class LastDataPointRpc implements TelnetRpc, HttpRpc {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(LastDataPointRpc.class);
+
+  /**
+   * How far back (in seconds) we look for the last data point of each
+   * series.  Set with {@code tsd.core.last_values.lookback}.  The HTTP
+   * endpoint can override it with the {@code back} parameter, up to
+   * {@link #MAX_LOOKBACK}.
+   */
+  private static final long LOOKBACK =
+    Long.getLong("tsd.core.last_values.lookback", 3600);
+
+  /**
+   * Maximum value of the {@code back} parameter, in seconds.  Set with
+   * {@code tsd.core.last_values.max_lookback}, a week by default.
+   */
+  private static final long MAX_LOOKBACK =
+    Long.getLong("tsd.core.last_values.max_lookback", 7 * 86400);
+
+  private static final AtomicLong telnet_requests = new AtomicLong();
+  private static final AtomicLong http_requests = new AtomicLong();
+
+  /**
+   * Where to run the lookups.  Series that aren't in the last-value cache
+   * are looked up in HBase, and we mustn't block a Netty I/O thread.
+   */
+  private final QueryExecutor executor;
+
+  /**
+   * Constructor.
+   * @param executor The executor to run the lookups, shared with /q.
+   */
+  LastDataPointRpc(final QueryExecutor executor) {
+    this.executor = executor;
+  }
+
+  public Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                                  final String[] cmd) {
+    telnet_requests.incrementAndGet();
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    try {
+      if (cmd.length < 2) {
+        throw new IllegalArgumentException("not enough arguments"
+                                           + " (need at least a metric)");
+      }
+      for (int i = 2; i < cmd.length; i++) {
+        if (!cmd[i].isEmpty()) {
+          Tags.parse(tags, cmd[i]);
+        }
+      }
+    } catch (IllegalArgumentException x) {
+      reply(chan, "last: illegal argument: " + x.getMessage() + '\n');
+      return Deferred.fromResult(null);
+    }
+    final Deferred<Object> done = new Deferred<Object>();
+    final class Lookup implements Callable<Object> {
+      public Object call() {
+        String reply;
+        try {
+          final StringBuilder buf = new StringBuilder();
+          for (final DataPoints dps
+               : tsdb.getLastValues(cmd[1], tags, LOOKBACK)) {
+            appendLine(dps, buf);
+          }
+          reply = buf.toString();
+        } catch (IllegalArgumentException x) {
+          reply = "last: illegal argument: " + x.getMessage() + '\n';
+        } catch (NoSuchUniqueName x) {
+          reply = "last: " + x.getMessage() + '\n';
+        } catch (RuntimeException x) {
+          LOG.error("Unexpected exception while looking up "
+                    + Arrays.toString(cmd) + " for " + chan, x);
+          reply = "last: " + x.getMessage() + '\n';
+        }
+        reply(chan, reply);
+        done.callback(null);
+        return null;
+      }
+    }
+    try {
+      submit(chan, new Lookup());
+    } catch (RejectedExecutionException e) {
+      reply(chan, "last: too many requests pending, please try again later\n");
+      return Deferred.fromResult(null);
+    }
+    return done;
+  }
+
+  public void execute(final TSDB tsdb, final HttpQuery query) {
+    http_requests.incrementAndGet();
+    final List<String> ms = query.getQueryStringParams("m");
+    if (ms == null) {
+      throw BadRequestException.missingParameter("m");
+    }
+    final long lookback = parseLookback(query.getQueryStringParam("back"));
+    final String[] metrics = new String[ms.size()];
+    final ArrayList<HashMap<String, String>> tagsets =
+      new ArrayList<HashMap<String, String>>(ms.size());
+    for (int i = 0; i < metrics.length; i++) {
+      final HashMap<String, String> tags = new HashMap<String, String>();
+      try {
+        metrics[i] = Tags.parseWithMetric(ms.get(i), tags);
+      } catch (IllegalArgumentException e) {
+        throw new BadRequestException(e.getMessage());
+      }
+      tagsets.add(tags);
+    }
+    final boolean json = query.hasQueryStringParam("json");
+    final class Lookup implements Callable<Object> {
+      public Object call() {
+        try {
+          query.sendReply(lookup(tsdb, metrics, tagsets, lookback, json));
+        } catch (IllegalArgumentException e) {
+          query.badRequest(e.getMessage());
+        } catch (NoSuchUniqueName e) {
+          query.badRequest(e.getMessage());
+        } catch (RuntimeException e) {
+          query.internalError(e);
+        }
+        return null;
+      }
+    }
+    try {
+      submit(query.channel(), new Lookup());
+    } catch (RejectedExecutionException e) {
+      query.internalError(new Exception("Too many requests pending,"
+                                        + " please try again later", e));
+    }
+  }
+
+  /**
+   * Looks up the last data points for {@code /last}.
+   * @return The body of the response.
+   */
+  private static StringBuilder lookup(
+    final TSDB tsdb, final String[] metrics,
+    final List<HashMap<String, String>> tagsets, final long lookback,
+    final boolean json) {
+    final StringBuilder buf = new StringBuilder();
+    if (json) {
+      buf.append('[');
+    }
+    for (int i = 0; i < metrics.length; i++) {
+      for (final DataPoints dps
+           : tsdb.getLastValues(metrics[i], tagsets.get(i), lookback)) {
+        if (json) {
+          appendJson(dps, buf);
+        } else {
+          appendLine(dps, buf);
+        }
+      }
+    }
+    if (json) {
+      if (buf.length() > 1) {
+        buf.setLength(buf.length() - 1);  // Trailing comma.
+      }
+      buf.append(']');
+    }
+    return buf;
+  }
+
+  /**
+   * Parses the {@code back} parameter of {@code /last}.
+   * @param back The value of the parameter, or {@code null}.
+   * @return How far back (in seconds) to look for data points.
+   * @throws BadRequestException if the value isn't a number of seconds
+   * between 1 and {@code tsd.core.last_values.max_lookback}.
+   */
+  static long parseLookback(final String back) {
+    if (back == null) {
+      return LOOKBACK;
+    }
+    final long lookback;
+    try {
+      lookback = Long.parseLong(back);
+    } catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid 'back' parameter: " + back);
+    }
+    if (lookback <= 0 || lookback > MAX_LOOKBACK) {
+      throw new BadRequestException("Invalid 'back' parameter: " + back
+                                    + " (must be between 1 and "
+                                    + MAX_LOOKBACK + " seconds)");
+    }
+    return lookback;
+  }
+
+  /** Runs a lookup on the executor, in the tenant of the client.  */
+  private void submit(final Channel chan, final Callable<Object> lookup) {
+    executor.newBatch(GraphHandler.getTenant(chan), 0).submit(lookup);
+  }
+
+  private static void reply(final Channel chan, final String reply) {
+    if (chan.isConnected()) {
+      chan.write(reply);
+    }
+  }
+
+  /** Appends a data point as a line in the format of the "put" command. */
+  private static void appendLine(final DataPoints dps,
+                                 final StringBuilder buf) {
+    buf.append(dps.metricName()).append(' ').append(dps.timestamp(0))
+      .append(' ');
+    if (dps.isInteger(0)) {
+      buf.append(dps.longValue(0));
+    } else {
+      buf.append(dps.doubleValue(0));
+    }
+    for (final Map.Entry<String, String> tag : dps.getTags().entrySet()) {
+      buf.append(' ').append(tag.getKey()).append('=').append(tag.getValue());
+    }
+    buf.append('\n');
+  }
+
+  /** Appends a data point as a JSON object followed by a comma. */
+  private static void appendJson(final DataPoints dps,
+                                 final StringBuilder buf) {
+    buf.append("{\"metric\":\"");
+    HttpQuery.escapeJson(dps.metricName(), buf);
+    buf.append("\",\"timestamp\":").append(dps.timestamp(0))
+      .append(",\"value\":");
+    if (dps.isInteger(0)) {
+      buf.append(dps.longValue(0));
+    } else {
+      buf.append(dps.doubleValue(0));
+    }
+    buf.append(",\"tags\":{");
+    final Map<String, String> tags = dps.getTags();
+    for (final Map.Entry<String, String> tag : tags.entrySet()) {
+      buf.append('"');
+      HttpQuery.escapeJson(tag.getKey(), buf);
+      buf.append("\":\"");
+      HttpQuery.escapeJson(tag.getValue(), buf);
+      buf.append("\",");
+    }
+    if (!tags.isEmpty()) {
+      buf.setLength(buf.length() - 1);
+    }
+    buf.append("}},");
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("rpc.received", telnet_requests, "type=last");
+    collector.record("http.last.requests", http_requests);
+  }
+
+}
@@ -0,0 +1,193 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Keeps the most recently served responses in memory.
+ * <p>
+ * Dashboards keep reloading the same graphs.  Serving them from memory
+ * avoids stat'ing, opening and reading files for every poll, and the
+ * strong ETag of each entry lets clients revalidate what they already have
+ * with a 304 instead of downloading it again.
+ * <p>
+ * Entries are keyed by the path of the file they mirror in the
+ * {@link DiskCache}, and the least recently used ones are evicted once the
+ * entries use more than {@code tsd.http.memcache.max_bytes}.
+ * <p>
+ * This class is thread-safe.
+ */
+final class MemoryCache {
+
+  private static MemoryCache instance;
+
+  /** Maximum number of bytes the entries can use, 0 to cache nothing.  */
+  private final long max_bytes;
+
+  /** Entries by path, least recently used first.  Guarded by {@code this}. */
+  private final LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+  /** Total size of the entries.  Guarded by {@code this}.  */
+  private long bytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /** A response kept in memory.  */
+  static final class Entry {
+    /** The path of the cached file, tells what type of content this is.  */
+    final String path;
+    final byte[] data;
+    /**
+     * {@code data} compressed with gzip, or {@code null} if it's not worth
+     * it.  Most clients accept gzip, so we compress once for all of them.
+     */
+    final byte[] gzipped;
+    /** Strong entity tag of {@code data}, including the double quotes.  */
+    final String etag;
+    final long mtime;  // In milliseconds, like File.lastModified().
+    final long expires;  // UNIX timestamp, after which it's useless.
+
+    Entry(final String path, final byte[] data, final boolean compressible,
+          final long mtime, final long expires) {
+      this.path = path;
+      this.data = data;
+      this.gzipped = compressible ? ContentCompressor.gzipped(data) : null;
+      this.etag = '"' + DiskCache.sha1(data) + '"';
+      this.mtime = mtime;
+      this.expires = expires;
+    }
+
+    /** Returns how many bytes of memory this entry uses.  */
+    long size() {
+      return data.length + (gzipped == null ? 0 : gzipped.length);
+    }
+  }
+
+  /**
+   * Constructor.
+   * @param max_bytes Maximum number of bytes the entries can use, 0 or less
+   * to disable the cache.
+   */
+  MemoryCache(final long max_bytes) {
+    this.max_bytes = max_bytes;
+  }
+
+  /**
+   * Returns the cache configured by {@code tsd.http.memcache.max_bytes}
+   * (64 MB by default).
+   */
+  static synchronized MemoryCache instance() {
+    if (instance == null) {
+      instance = new MemoryCache(Long.getLong("tsd.http.memcache.max_bytes",
+                                              64L << 20));
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the size of the biggest entry this cache accepts.
+   * Bigger responses are sent straight from disk, so that a handful of
+   * huge ones doesn't flush everything else.
+   */
+  long maxEntryBytes() {
+    return max_bytes / 8;
+  }
+
+  /**
+   * Returns a cached entry.
+   * @param path The path of the file mirrored by the entry.
+   * @return The entry, or {@code null} if it's not cached or has expired.
+   */
+  Entry get(final String path) {
+    Entry entry = null;
+    if (max_bytes > 0) {
+      synchronized (this) {
+        entry = entries.get(path);  // Also marks it as recently used.
+        if (entry != null
+            && entry.expires < System.currentTimeMillis() / 1000) {
+          remove(path);
+          entry = null;
+        }
+      }
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return entry;
+  }
+
+  /**
+   * Caches a response, replacing any previous one for the same path.
+   * @param path The path of the file mirrored by the entry.
+   * @param data The contents of the response.  Must not be changed anymore.
+   * @param compressible Whether or not to keep a compressed copy of the
+   * response, for the clients that accept it.
+   * @param mtime When the response was generated, in milliseconds.
+   * @param expires UNIX timestamp after which the response is useless, or
+   * {@link Long#MAX_VALUE} if it never expires.
+   * @return The new entry, which is returned even if it's too big to be
+   * cached, so the caller can always use it to send the response.
+   */
+  Entry put(final String path, final byte[] data, final boolean compressible,
+            final long mtime, final long expires) {
+    final Entry entry = new Entry(path, data, compressible, mtime, expires);
+    if (max_bytes <= 0 || entry.size() > maxEntryBytes()) {
+      return entry;
+    }
+    synchronized (this) {
+      remove(path);
+      entries.put(path, entry);
+      bytes += entry.size();
+      final Iterator<Entry> it = entries.values().iterator();
+      while (bytes > max_bytes && it.hasNext()) {
+        bytes -= it.next().size();
+        it.remove();
+        evictions.incrementAndGet();
+      }
+    }
+    return entry;
+  }
+
+  /** Removes an entry.  Must be called with the lock held.  */
+  private void remove(final String path) {
+    final Entry prev = entries.remove(path);
+    if (prev != null) {
+      bytes -= prev.size();
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    synchronized (this) {
+      collector.record("http.memcache.entries", entries.size());
+      collector.record("http.memcache.bytes", bytes);
+    }
+    collector.record("http.memcache.lookups", hits, "type=hit");
+    collector.record("http.memcache.lookups", misses, "type=miss");
+    collector.record("http.memcache.evictions", evictions);
+  }
+
+}
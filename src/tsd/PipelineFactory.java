@@ -13,6 +13,7 @@
 package net.opentsdb.tsd;
 
 import static org.jboss.netty.channel.Channels.pipeline;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -25,6 +26,8 @@ import org.jboss.netty.handler.codec.string.StringEncoder;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
 import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
 
 import net.opentsdb.core.TSDB;
 
@@ -43,6 +46,8 @@ public final class PipelineFactory implements ChannelPipelineFactory {
   // PipelineFactory is needed.
   private final ConnectionManager connmgr = new ConnectionManager();
   private final DetectHttpOrRpc HTTP_OR_RPC = new DetectHttpOrRpc();
+  /** Detects idle connections, {@code null} if they can stay open.  */
+  private final IdleStateHandler idle;
 
   /** Stateless handler for RPCs. */
   private final RpcHandler rpchandler;
@@ -53,12 +58,26 @@ public final class PipelineFactory implements ChannelPipelineFactory {
    */
   public PipelineFactory(final TSDB tsdb) {
     this.rpchandler = new RpcHandler(tsdb);
+    if (ConnectionManager.IDLE_TIMEOUT > 0) {
+      idle = new IdleStateHandler(ConnectionManager.timer(),
+                                  0, 0, ConnectionManager.IDLE_TIMEOUT);
+    } else {
+      idle = null;
+    }
   }
 
   @Override
   public ChannelPipeline getPipeline() throws Exception {
    final ChannelPipeline pipeline = pipeline();
 
+    // Reject excess connections before allocating anything for them.
+    if (!ConnectionManager.admit()) {
+      pipeline.addLast("reject", ConnectionManager.REJECTER);
+      return pipeline;
+    }
+    if (idle != null) {
+      pipeline.addLast("idle", idle);
+    }
     pipeline.addLast("connmgr", connmgr);
     pipeline.addLast("detect", HTTP_OR_RPC);
     return pipeline;
@@ -88,6 +107,7 @@ public final class PipelineFactory implements ChannelPipelineFactory {
         pipeline.addLast("decoder", new HttpRequestDecoder());
         pipeline.addLast("aggregator", new HttpChunkAggregator(1048576));
         pipeline.addLast("encoder", new HttpResponseEncoder());
+        pipeline.addLast("chunker", new ChunkedWriteHandler());
       } else {
         pipeline.addLast("framer",
                          new DelimiterBasedFrameDecoder(1024, DELIMITERS));
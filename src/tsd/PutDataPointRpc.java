@@ -13,12 +13,17 @@
 package net.opentsdb.tsd;
 
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
+import org.hbase.async.PleaseThrottleException;
+import org.hbase.async.PutRequest;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
@@ -28,8 +33,15 @@ import net.opentsdb.uid.NoSuchUniqueName;
 /** Implements the "put" telnet-style command. */
 final class PutDataPointRpc implements TelnetRpc {
 
+  /**
+   * How long to wait before writing again a data point HBase asked us to
+   * throttle, in milliseconds.  HBase would refuse it again right away.
+   */
+  private static final int THROTTLE_DELAY = 1000;
+
   private static final AtomicLong requests = new AtomicLong();
   private static final AtomicLong hbase_errors = new AtomicLong();
+  private static final AtomicLong throttled = new AtomicLong();
   private static final AtomicLong invalid_values = new AtomicLong();
   private static final AtomicLong illegal_arguments = new AtomicLong();
   private static final AtomicLong unknown_metrics = new AtomicLong();
@@ -41,17 +53,47 @@ final class PutDataPointRpc implements TelnetRpc {
     try {
       final class PutErrback implements Callback<Exception, Exception> {
         public Exception call(final Exception arg) {
+          if (arg instanceof PleaseThrottleException
+              && ((PleaseThrottleException) arg).getFailedRpc()
+                 instanceof PutRequest) {
+            // HBase isn't keeping up.  Don't lose the data point, and don't
+            // read more from this client until it's been written.
+            retryLater((PleaseThrottleException) arg);
+            return null;
+          }
           if (chan.isConnected()) {
             chan.write("put: HBase error: " + arg.getMessage() + '\n');
           }
           hbase_errors.incrementAndGet();
+          ConnectionManager.recordError(chan);
           return arg;
         }
         public String toString() {
           return "report error to channel";
         }
+        private void retryLater(final PleaseThrottleException e) {
+          throttled.incrementAndGet();
+          final PutErrback errback = this;
+          final Deferred<Object> done = new Deferred<Object>();
+          ConnectionManager.recordWrite(chan, done, true);
+          final class Retry implements TimerTask {
+            public void run(final Timeout timeout) {
+              // The errback must be called first, so that if the retry is
+              // throttled too, we keep not reading from the client.
+              tsdb.retryPoint(e).addErrback(errback).chain(done);
+            }
+          }
+          ConnectionManager.timer().newTimeout(new Retry(), THROTTLE_DELAY,
+                                               TimeUnit.MILLISECONDS);
+        }
       }
-      return importDataPoint(tsdb, cmd).addErrback(new PutErrback());
+      final Deferred<Object> d = importDataPoint(tsdb, cmd);
+      ConnectionManager.recordPoint(chan);
+      d.addErrback(new PutErrback());
+      // After the errback, so that we keep not reading from the client if
+      // the write is throttled.
+      ConnectionManager.recordWrite(chan, d, false);
+      return d;
     } catch (NumberFormatException x) {
       errmsg = "put: invalid value: " + x.getMessage() + '\n';
       invalid_values.incrementAndGet();
@@ -62,8 +104,11 @@ final class PutDataPointRpc implements TelnetRpc {
       errmsg = "put: unknown metric: " + x.getMessage() + '\n';
       unknown_metrics.incrementAndGet();
     }
-    if (errmsg != null && chan.isConnected()) {
-      chan.write(errmsg);
+    if (errmsg != null) {
+      ConnectionManager.recordError(chan);
+      if (chan.isConnected()) {
+        chan.write(errmsg);
+      }
     }
     return Deferred.fromResult(null);
   }
@@ -75,6 +120,7 @@ final class PutDataPointRpc implements TelnetRpc {
   public static void collectStats(final StatsCollector collector) {
     collector.record("rpc.received", requests, "type=put");
     collector.record("rpc.errors", hbase_errors, "type=hbase_errors");
+    collector.record("rpc.throttled", throttled, "type=put");
     collector.record("rpc.errors", invalid_values, "type=invalid_values");
     collector.record("rpc.errors", illegal_arguments, "type=illegal_arguments");
     collector.record("rpc.errors", unknown_metrics, "type=unknown_metrics");
@@ -0,0 +1,551 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Bounded thread pool to execute the sub-queries of graph requests.
+ * <p>
+ * Tasks are submitted in {@link Batch}es, typically one per HTTP request,
+ * and each batch belongs to a "tenant" (e.g. the host a dashboard runs on).
+ * Workers pick tasks from the tenants in a round-robin fashion, so that one
+ * dashboard firing off hundreds of queries can't starve everybody else.
+ * The total number of tasks waiting to be executed is bounded, and new
+ * tasks are rejected once this limit is reached.
+ * <p>
+ * A batch is cancelled when one of its tasks fails, when its deadline
+ * expires, or when the channel of the client that issued it gets closed.
+ * Cancelling a batch removes its pending tasks from the queue and interrupts
+ * the ones that are running.
+ * <p>
+ * Tasks normally run on a fixed pool of platform threads.  On JVMs that
+ * support them, tasks can instead each run on their own virtual thread, in
+ * which case the number of threads only bounds how many tasks can run
+ * concurrently, and can be made much larger.
+ */
+public final class QueryExecutor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(QueryExecutor.class);
+
+  /** Number of tasks that ran to completion (successfully or not).  */
+  private static final AtomicLong tasks_executed = new AtomicLong();
+  /** Number of tasks rejected because the queue was full.  */
+  private static final AtomicLong tasks_rejected = new AtomicLong();
+  /** Number of tasks cancelled before they could complete.  */
+  private static final AtomicLong tasks_cancelled = new AtomicLong();
+  /** Number of batches that didn't complete before their deadline.  */
+  private static final AtomicLong batches_timedout = new AtomicLong();
+  /** Number of tasks currently waiting to be executed.  */
+  private static final AtomicInteger tasks_queued = new AtomicInteger();
+  /** Number of tasks currently being executed.  */
+  private static final AtomicInteger tasks_active = new AtomicInteger();
+
+  /** Maximum number of tasks that can be waiting to be executed.  */
+  private final int max_queued;
+
+  /** Pending tasks, per tenant.  Guarded by {@code this}.  */
+  private final HashMap<String, ArrayDeque<Job>> queues =
+    new HashMap<String, ArrayDeque<Job>>();
+
+  /**
+   * Tenants that have pending tasks, in the order in which they'll be served.
+   * Guarded by {@code this}.
+   */
+  private final ArrayDeque<String> tenants = new ArrayDeque<String>();
+
+  /** Number of tasks in {@code queues}.  Guarded by {@code this}.  */
+  private int nqueued;
+
+  /** Whether or not we've been shut down.  Guarded by {@code this}.  */
+  private boolean shutdown;
+
+  /** Executor starting virtual threads, or {@code null} if not used.  */
+  private final ExecutorService vthreads;
+
+  /**
+   * Constructor.
+   * Tasks will run on a fixed pool of platform threads.
+   * @param nthreads Number of worker threads.
+   * @param max_queued Maximum number of tasks that can wait in the queue.
+   */
+  public QueryExecutor(final int nthreads, final int max_queued) {
+    this(nthreads, max_queued, false);
+  }
+
+  /**
+   * Constructor.
+   * @param nthreads Number of worker threads or, if {@code virtual} is
+   * {@code true}, maximum number of tasks running concurrently.
+   * @param max_queued Maximum number of tasks that can wait in the queue.
+   * @param virtual Whether or not to run each task on a virtual thread.
+   * @throws UnsupportedOperationException if {@code virtual} is {@code true}
+   * but this JVM doesn't support virtual threads.
+   */
+  public QueryExecutor(final int nthreads, final int max_queued,
+                       final boolean virtual) {
+    if (nthreads <= 0) {
+      throw new IllegalArgumentException("nthreads not > 0: " + nthreads);
+    } else if (max_queued <= 0) {
+      throw new IllegalArgumentException("max_queued not > 0: " + max_queued);
+    }
+    this.max_queued = max_queued;
+    if (virtual) {
+      vthreads = VirtualThreads.newThreadPerTaskExecutor();
+      final Dispatcher dispatcher = new Dispatcher(nthreads);
+      dispatcher.setDaemon(true);
+      dispatcher.start();
+      LOG.info("Running up to " + nthreads + " queries on virtual threads,"
+               + " max_queued=" + max_queued);
+      return;
+    }
+    vthreads = null;
+    for (int i = 0; i < nthreads; i++) {
+      final Worker worker = new Worker(i + 1);
+      worker.setDaemon(true);
+      worker.start();
+    }
+    LOG.info("Started " + nthreads + " query threads, max_queued="
+             + max_queued);
+  }
+
+  /** Returns whether or not tasks run on virtual threads.  */
+  public boolean usesVirtualThreads() {
+    return vthreads != null;
+  }
+
+  /**
+   * Runs something on a new virtual thread, outside of any batch.
+   * This is for work that would otherwise block the caller's thread.
+   * @param task What to run.
+   * @throws IllegalStateException if we don't use virtual threads.
+   * @throws RejectedExecutionException if we've been shut down.
+   */
+  public void spawn(final Runnable task) {
+    if (vthreads == null) {
+      throw new IllegalStateException("Not using virtual threads");
+    }
+    vthreads.execute(task);
+  }
+
+  /**
+   * Creates a new batch of tasks.
+   * @param tenant Name of the tenant on behalf of whom the batch runs.
+   * @param timeout How long (in milliseconds) the batch has to complete.
+   * 0 or less means no deadline.
+   */
+  public Batch newBatch(final String tenant, final long timeout) {
+    return new Batch(tenant, timeout);
+  }
+
+  /**
+   * Stops the worker threads once the tasks already queued are done.
+   */
+  public synchronized void shutdown() {
+    shutdown = true;
+    notifyAll();
+    if (vthreads != null) {
+      vthreads.shutdown();
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("query.executor.queued", tasks_queued);
+    collector.record("query.executor.active", tasks_active);
+    collector.record("query.executor.tasks", tasks_executed, "type=executed");
+    collector.record("query.executor.tasks", tasks_rejected, "type=rejected");
+    collector.record("query.executor.tasks", tasks_cancelled, "type=cancelled");
+    collector.record("query.executor.timeouts", batches_timedout);
+  }
+
+  /**
+   * Adds a task at the end of the queue of its tenant.
+   * @throws RejectedExecutionException if the queue is full.
+   */
+  private synchronized void enqueue(final Job job) {
+    if (shutdown) {
+      throw new RejectedExecutionException("Query executor is shut down");
+    } else if (nqueued >= max_queued) {
+      tasks_rejected.incrementAndGet();
+      throw new RejectedExecutionException("Too many queries queued ("
+                                           + nqueued + ')');
+    }
+    ArrayDeque<Job> queue = queues.get(job.tenant);
+    if (queue == null) {
+      queue = new ArrayDeque<Job>();
+      queues.put(job.tenant, queue);
+      tenants.add(job.tenant);
+    }
+    queue.add(job);
+    nqueued++;
+    tasks_queued.incrementAndGet();
+    notify();
+  }
+
+  /** Removes a task from the queue, if it's still there.  */
+  private synchronized void dequeue(final Job job) {
+    final ArrayDeque<Job> queue = queues.get(job.tenant);
+    if (queue == null || !queue.remove(job)) {
+      return;  // Already picked up by a worker.
+    }
+    nqueued--;
+    tasks_queued.decrementAndGet();
+    if (queue.isEmpty()) {
+      queues.remove(job.tenant);
+      tenants.remove(job.tenant);
+    }
+  }
+
+  /**
+   * Takes the next task to execute, blocking until there is one.
+   * @return The next task, or {@code null} if we've been shut down.
+   */
+  private synchronized Job take() throws InterruptedException {
+    while (nqueued == 0) {
+      if (shutdown) {
+        return null;
+      }
+      wait();
+    }
+    final String tenant = tenants.poll();
+    final ArrayDeque<Job> queue = queues.get(tenant);
+    final Job job = queue.poll();
+    if (queue.isEmpty()) {
+      queues.remove(tenant);
+    } else {
+      tenants.add(tenant);  // Go to the back of the line.
+    }
+    nqueued--;
+    tasks_queued.decrementAndGet();
+    return job;
+  }
+
+  /**
+   * A group of tasks that succeed or fail together.
+   * <p>
+   * This class isn't meant to be used by multiple threads, except for
+   * {@link #cancel}, which can be called from any thread.
+   */
+  public final class Batch implements ChannelFutureListener {
+
+    private final String tenant;
+
+    /** Deadline, from {@link System#nanoTime}, or 0 if none.  */
+    private final long deadline;
+
+    /** All the tasks submitted so far.  Guarded by {@code this}.  */
+    private final ArrayList<Job> jobs = new ArrayList<Job>();
+
+    /** How many tasks haven't completed yet.  Guarded by {@code this}.  */
+    private int remaining;
+
+    /** The first failure of a task, if any.  Guarded by {@code this}.  */
+    private Throwable failure;
+
+    /** Whether or not we've been cancelled.  Guarded by {@code this}.  */
+    private boolean cancelled;
+
+    /** If non-null, we need to stop listening on this when we're done.  */
+    private ChannelFuture close_future;
+
+    Batch(final String tenant, final long timeout) {
+      this.tenant = tenant;
+      this.deadline = timeout > 0 ? System.nanoTime() + timeout * 1000000 : 0;
+    }
+
+    /**
+     * Submits a task to execute.
+     * @param task The task to execute.
+     * @throws RejectedExecutionException if the executor's queue is full.
+     */
+    public void submit(final Callable<Object> task) {
+      final Job job;
+      synchronized (this) {
+        if (cancelled) {
+          throw new CancellationException("Batch already cancelled");
+        }
+        job = new Job(this, task);
+        jobs.add(job);
+        remaining++;
+      }
+      try {
+        enqueue(job);
+      } catch (RejectedExecutionException e) {
+        cancel();
+        throw e;
+      }
+    }
+
+    /**
+     * Cancels this batch if the given channel gets closed.
+     * @param chan The channel of the client that issued this batch.
+     */
+    public void cancelWhenClosed(final Channel chan) {
+      close_future = chan.getCloseFuture();
+      close_future.addListener(this);
+    }
+
+    /**
+     * Waits for all the tasks of this batch to complete.
+     * @return The results of the tasks, in the order they were submitted.
+     * @throws TimeoutException if the deadline expired.
+     * @throws CancellationException if the batch was cancelled.
+     * @throws RuntimeException the exception thrown by the first task that
+     * failed, if any (checked exceptions are wrapped).
+     */
+    public Object[] await() throws TimeoutException {
+      try {
+        waitForJobs();
+      } catch (InterruptedException e) {
+        cancel();
+        Thread.currentThread().interrupt();  // Restore the interrupted status.
+        throw new CancellationException("Interrupted while waiting");
+      } finally {
+        if (close_future != null) {
+          close_future.removeListener(this);
+        }
+      }
+      final Object[] results = new Object[jobs.size()];
+      for (int i = 0; i < results.length; i++) {
+        try {
+          results[i] = jobs.get(i).get();
+        } catch (InterruptedException e) {
+          throw new AssertionError("Should never happen, job is done: " + e);
+        } catch (ExecutionException e) {
+          throw new AssertionError("Should never happen, no failure: " + e);
+        }
+      }
+      return results;
+    }
+
+    /** Blocks until all the tasks are done or something goes wrong.  */
+    private void waitForJobs() throws InterruptedException, TimeoutException {
+      final Throwable cause;
+      final boolean was_cancelled;
+      final int still_running;
+      synchronized (this) {
+        while (remaining > 0 && failure == null && !cancelled) {
+          if (deadline == 0) {
+            wait();
+            continue;
+          }
+          final long millis = (deadline - System.nanoTime()) / 1000000;
+          if (millis <= 0) {
+            break;
+          }
+          wait(millis);
+        }
+        if (remaining == 0 && failure == null && !cancelled) {
+          return;
+        }
+        cause = failure;
+        was_cancelled = cancelled;
+        still_running = remaining;
+      }
+      cancel();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else if (cause != null) {
+        throw new RuntimeException(cause.getMessage(), cause);
+      } else if (was_cancelled) {
+        throw new CancellationException("Batch cancelled");
+      }
+      batches_timedout.incrementAndGet();
+      throw new TimeoutException("Deadline expired with " + still_running
+                                 + " queries still running");
+    }
+
+    /**
+     * Cancels all the tasks of this batch.
+     * Tasks that haven't started yet are removed from the queue, tasks that
+     * are running are interrupted.
+     */
+    public void cancel() {
+      final Job[] to_cancel;
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        cancelled = true;
+        to_cancel = jobs.toArray(new Job[jobs.size()]);
+        notifyAll();
+      }
+      for (final Job job : to_cancel) {
+        if (job.cancel(true)) {
+          tasks_cancelled.incrementAndGet();
+          dequeue(job);
+        }
+      }
+    }
+
+    /** Cancels this batch when the client's channel gets closed.  */
+    public void operationComplete(final ChannelFuture future) {
+      LOG.debug("Channel closed, cancelling {}", this);
+      cancel();
+    }
+
+    /** Called by a {@link Job} when it completes.  */
+    private synchronized void done(final Job job) {
+      remaining--;
+      if (failure == null && !job.isCancelled()) {
+        try {
+          job.get();
+        } catch (ExecutionException e) {
+          failure = e.getCause();
+        } catch (InterruptedException e) {
+          throw new AssertionError("Should never happen, job is done: " + e);
+        }
+      }
+      notifyAll();
+    }
+
+    public String toString() {
+      return "Batch(tenant=" + tenant + ", jobs=" + jobs.size() + ')';
+    }
+
+  }
+
+  /** A task along with the batch it belongs to.  */
+  private static final class Job extends FutureTask<Object> {
+
+    private final Batch batch;
+    private final String tenant;
+
+    Job(final Batch batch, final Callable<Object> task) {
+      super(task);
+      this.batch = batch;
+      this.tenant = batch.tenant;
+    }
+
+    protected void done() {
+      if (!isCancelled()) {
+        tasks_executed.incrementAndGet();
+      }
+      batch.done(this);
+    }
+
+  }
+
+  /** Executes a task, keeping track of how many are running.  */
+  private static void runJob(final Job job) {
+    tasks_active.incrementAndGet();
+    try {
+      job.run();
+    } finally {
+      tasks_active.decrementAndGet();
+    }
+  }
+
+  /**
+   * Thread that hands tasks over to virtual threads, in the same order
+   * as the worker threads would pick them.
+   */
+  private final class Dispatcher extends Thread {
+
+    /** One permit per task allowed to run concurrently.  */
+    private final Semaphore permits;
+
+    Dispatcher(final int max_concurrent) {
+      super("Query dispatcher");
+      permits = new Semaphore(max_concurrent);
+    }
+
+    public void run() {
+      while (true) {
+        final Job job;
+        try {
+          permits.acquire();
+          job = take();
+        } catch (InterruptedException e) {
+          LOG.warn(getName() + " interrupted, exiting", e);
+          return;
+        }
+        if (job == null) {
+          return;  // We've been shut down.
+        }
+        try {
+          vthreads.execute(new Runnable() {
+            public void run() {
+              try {
+                runJob(job);
+              } finally {
+                permits.release();
+              }
+            }
+          });
+        } catch (RejectedExecutionException e) {  // Racing with shutdown().
+          permits.release();
+          job.cancel(false);
+        }
+      }
+    }
+
+  }
+
+  /** Thread that executes tasks until the executor is shut down.  */
+  private final class Worker extends Thread {
+
+    Worker(final int id) {
+      super("Query #" + id);
+    }
+
+    public void run() {
+      while (true) {
+        final Job job;
+        try {
+          job = take();
+        } catch (InterruptedException e) {
+          LOG.warn(getName() + " interrupted while idle, exiting", e);
+          return;
+        }
+        if (job == null) {
+          return;  // We've been shut down.
+        }
+        try {
+          runJob(job);
+        } finally {
+          Thread.interrupted();  // Clear the flag if the job was cancelled.
+        }
+      }
+    }
+
+  }
+
+}
@@ -53,6 +53,8 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
   private final TelnetRpc unknown_cmd = new Unknown();
   /** Commands we serve on the HTTP interface. */
   private final HashMap<String, HttpRpc> http_commands;
+  /** Where to execute "put" commands, {@code null} for the I/O threads. */
+  private final IngestWorkers ingest;
 
   /** The TSDB to use. */
   private final TSDB tsdb;
@@ -81,6 +83,13 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
       telnet_commands.put("stats", stats);
       http_commands.put("stats", stats);
     }
+    final GraphHandler graph = new GraphHandler();
+    {
+      // Shares the executor of /q, as lookups may have to scan HBase.
+      final LastDataPointRpc last = new LastDataPointRpc(graph.executor());
+      telnet_commands.put("last", last);
+      http_commands.put("last", last);
+    }
     {
       final Version version = new Version();
       telnet_commands.put("version", version);
@@ -89,15 +98,21 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
 
     telnet_commands.put("exit", new Exit());
     telnet_commands.put("help", new Help());
-    telnet_commands.put("put", new PutDataPointRpc());
+    {
+      final PutDataPointRpc put = new PutDataPointRpc();
+      telnet_commands.put("put", put);
+      ingest = IngestWorkers.fromSystemProps(tsdb, put);
+    }
     telnet_commands.put("tagk", new GetNewTagKeyId());
     telnet_commands.put("tagv", new GetNewTagValueId());
     telnet_commands.put("metrics", new GetNewMetricId());
 
     http_commands.put("", new HomePage());
     http_commands.put("aggregators", new ListAggregators());
+    http_commands.put("cardinality", new CardinalityRpc());
+    http_commands.put("connections", new ConnectionsRpc());
     http_commands.put("logs", new LogsRpc());
-    http_commands.put("q", new GraphHandler());
+    http_commands.put("q", graph);
     http_commands.put("suggest", new Suggest());
   }
 
@@ -137,7 +152,14 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
       rpc = unknown_cmd;
     }
     telnet_rpcs_received.incrementAndGet();
-    rpc.execute(tsdb, chan, command);
+    if (ingest != null && rpc instanceof PutDataPointRpc) {
+      ingest.execute(chan, command);
+      return;
+    }
+    final Deferred<Object> done = rpc.execute(tsdb, chan, command);
+    if (!(rpc instanceof PutDataPointRpc)) {  // Its writes are tracked.
+      ConnectionManager.recordRequest(chan, done);
+    }
   }
 
   /**
@@ -148,6 +170,7 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
   private void handleHttpQuery(final Channel chan, final HttpRequest req) {
     http_rpcs_received.incrementAndGet();
     final HttpQuery query = new HttpQuery(req, chan);
+    ConnectionManager.recordRequest(chan, query.getDeferred());
     /* this is turned off because HttpChunkAggregator is added to PipelineFactory
     if (req.isChunked()) {
       logError(query, "Received an unsupported chunked request: "
@@ -225,6 +248,9 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
     HttpQuery.collectStats(collector);
     GraphHandler.collectStats(collector);
     PutDataPointRpc.collectStats(collector);
+    LastDataPointRpc.collectStats(collector);
+    StaticFileRpc.collectStats(collector);
+    IngestWorkers.collectStats(collector);
   }
 
   // ---------------------------- //
@@ -250,6 +276,10 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
     private Deferred<Object> doShutdown(final TSDB tsdb, final Channel chan) {
       ((GraphHandler) http_commands.get("q")).shutdown();
       ConnectionManager.closeAllConnections();
+      // Don't lose the data points still waiting to be imported.
+      if (ingest != null && !ingest.drain(10000)) {
+        LOG.warn("Some data points couldn't be imported before shutdown");
+      }
       // Netty gets stuck in an infinite loop if we shut it down from within a
       // NIO thread.  So do this from a newly created thread.
       final class ShutdownNetty extends Thread {
@@ -12,31 +12,94 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tsd;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
 
-/** Implements the "/s" endpoint to serve static files. */
+/**
+ * Implements the "/s" endpoint to serve static files.
+ * <p>
+ * The files under the static root (the UI, mostly) are read in memory when
+ * the TSD starts, and compressed once if they're worth it, so serving them
+ * doesn't touch the disk and they can be revalidated with their ETag.
+ * A background thread polls the static root and reloads the files that
+ * changed.  Configuration:
+ * <ul>
+ * <li>{@code tsd.http.staticroot.max_bytes}: how much memory the files can
+ * use (16 MB by default, 0 to always serve them from disk).  Files that
+ * don't fit are served from disk.</li>
+ * <li>{@code tsd.http.staticroot.reload_interval}: how often to look for
+ * changes, in seconds (5 by default, 0 to never reload).</li>
+ * </ul>
+ */
 final class StaticFileRpc implements HttpRpc {
 
+  private static final Logger LOG =
+    LoggerFactory.getLogger(StaticFileRpc.class);
+
+  /** Files bigger than this are always served from disk.  */
+  private static final int MAX_FILE_BYTES = 4 << 20;
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong reloads = new AtomicLong();
+  private static final AtomicLong files_loaded = new AtomicLong();
+  private static final AtomicLong bytes_loaded = new AtomicLong();
+
   /**
    * The path to the directory where to find static files
    * (for the {@code /s} URLs).
    */
   private final String staticroot;
 
+  /** Maximum number of bytes the files in memory can use.  */
+  private final long max_bytes;
+
+  /** Files in memory, by path (e.g. {@code staticroot + "favicon.ico"}).  */
+  private final ConcurrentHashMap<String, MemoryCache.Entry> files =
+    new ConcurrentHashMap<String, MemoryCache.Entry>();
+
   /**
    * Constructor.
    */
   public StaticFileRpc() {
-    staticroot = RpcHandler.getDirectoryFromSystemProp("tsd.http.staticroot");
+    this(RpcHandler.getDirectoryFromSystemProp("tsd.http.staticroot"),
+         Long.getLong("tsd.http.staticroot.max_bytes", 16L << 20));
+    final int interval =
+      Integer.getInteger("tsd.http.staticroot.reload_interval", 5);
+    if (max_bytes > 0 && interval > 0) {
+      new Reloader(interval).start();
+    }
+  }
+
+  /**
+   * Constructor that doesn't start the reloading thread.
+   * @param staticroot The directory of the static files, ending with '/'.
+   * @param max_bytes Maximum number of bytes the files in memory can use.
+   */
+  StaticFileRpc(final String staticroot, final long max_bytes) {
+    this.staticroot = staticroot;
+    this.max_bytes = max_bytes;
+    if (max_bytes > 0) {
+      reload();
+    }
   }
 
   public void execute(final TSDB tsdb, final HttpQuery query)
     throws IOException {
     final String uri = query.request().getUri();
     if ("/favicon.ico".equals(uri)) {
-      query.sendFile(staticroot + "/favicon.ico", 31536000 /*=1yr*/);
+      sendFile(query, staticroot + "favicon.ico", 31536000 /*=1yr*/);
       return;
     }
     if (uri.length() < 3) {  // Must be at least 3 because of the "/s/".
@@ -49,7 +112,162 @@ final class StaticFileRpc implements HttpRpc {
     }
     final int questionmark = uri.indexOf('?', 3);
     final int pathend = questionmark > 0 ? questionmark : uri.length();
-    query.sendFile(staticroot + uri.substring(3, pathend),
-                   uri.contains("nocache") ? 0 : 31536000 /*=1yr*/);
+    sendFile(query, staticroot + uri.substring(3, pathend),
+             uri.contains("nocache") ? 0 : 31536000 /*=1yr*/);
   }
+
+  /** Sends a static file from memory if we have it, from disk otherwise.  */
+  private void sendFile(final HttpQuery query, final String path,
+                        final int max_age) throws IOException {
+    final MemoryCache.Entry entry = files.get(path);
+    if (entry != null) {
+      hits.incrementAndGet();
+      query.sendCached(entry, max_age);
+    } else {
+      misses.incrementAndGet();
+      query.sendFile(path, max_age);
+    }
+  }
+
+  /** Returns the file kept in memory for the given path, if any.  */
+  MemoryCache.Entry get(final String path) {
+    return files.get(path);
+  }
+
+  /**
+   * Loads the new and modified files of the static root in memory, and
+   * forgets about those that have been deleted.
+   * Only one thread at a time calls this method.
+   */
+  void reload() {
+    final HashSet<String> seen = new HashSet<String>();
+    final long bytes = scan(new File(staticroot), staticroot, seen, 0);
+    for (final Iterator<String> it = files.keySet().iterator();
+         it.hasNext(); ) {
+      if (!seen.contains(it.next())) {
+        it.remove();
+      }
+    }
+    files_loaded.set(files.size());
+    bytes_loaded.set(bytes);
+  }
+
+  /**
+   * Recursively loads the files of a directory.
+   * @param dir The directory to scan.
+   * @param prefix The path of {@code dir}, ending with '/'.
+   * @param seen Where to add the path of each file that still fits.
+   * @param bytes How many bytes the files loaded so far use.
+   * @return How many bytes the files loaded use, including {@code bytes}.
+   */
+  private long scan(final File dir, final String prefix,
+                    final HashSet<String> seen, long bytes) {
+    final File[] children = dir.listFiles();
+    if (children == null) {  // Not a directory or I/O error.
+      return bytes;
+    }
+    for (final File file : children) {
+      final String path = prefix + file.getName();
+      if (file.isDirectory()) {
+        bytes = scan(file, path + '/', seen, bytes);
+        continue;
+      }
+      final long length = file.length();
+      final long mtime = file.lastModified();
+      MemoryCache.Entry entry = files.get(path);
+      if (entry == null || entry.mtime != mtime
+          || entry.data.length != length) {
+        if (length > MAX_FILE_BYTES || bytes + length > max_bytes) {
+          continue;  // Doesn't fit, we'll serve it from disk.
+        }
+        try {
+          entry = load(path, file, mtime);
+        } catch (IOException e) {
+          LOG.warn("Failed to load " + path + ", serving it from disk", e);
+          continue;
+        }
+        if (entry == null) {  // Changed while we were reading it.
+          continue;
+        }
+        files.put(path, entry);
+        reloads.incrementAndGet();
+      }
+      if (bytes + entry.size() > max_bytes) {
+        continue;  // Doesn't fit once compressed, serve it from disk.
+      }
+      bytes += entry.size();
+      seen.add(path);
+    }
+    return bytes;
+  }
+
+  /**
+   * Reads a file in memory.
+   * @return The file, or {@code null} if it changed while being read, in
+   * which case we'll try again on the next scan.
+   */
+  private static MemoryCache.Entry load(final String path, final File file,
+                                        final long mtime) throws IOException {
+    final RandomAccessFile f = new RandomAccessFile(file, "r");
+    final byte[] data;
+    try {
+      final long length = f.length();
+      if (length > MAX_FILE_BYTES) {
+        return null;
+      }
+      data = new byte[(int) length];
+      f.readFully(data);
+    } finally {
+      f.close();
+    }
+    if (file.lastModified() != mtime) {
+      return null;
+    }
+    final String mimetype = HttpQuery.guessMimeTypeFromUri(path);
+    return new MemoryCache.Entry(path, data,
+                                 ContentCompressor.isCompressible(mimetype),
+                                 mtime, Long.MAX_VALUE);
+  }
+
+  /** Periodically reloads the files that changed.  */
+  private final class Reloader extends Thread {
+
+    /** How long to wait between two scans, in milliseconds.  */
+    private final long interval;
+
+    Reloader(final int interval) {
+      super("StaticFileReloader");
+      this.interval = interval * 1000L;
+      setDaemon(true);
+    }
+
+    public void run() {
+      while (true) {
+        try {
+          Thread.sleep(interval);
+          reload();
+        } catch (InterruptedException e) {
+          LOG.error("Static file reloader interrupted, files in memory"
+                    + " won't be updated anymore", e);
+          return;
+        } catch (Exception e) {
+          LOG.error("Uncaught exception while reloading static files", e);
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("http.static.requests", hits, "type=memory");
+    collector.record("http.static.requests", misses, "type=disk");
+    collector.record("http.static.reloads", reloads);
+    collector.record("http.static.files", files_loaded);
+    collector.record("http.static.bytes", bytes_loaded);
+  }
+
 }
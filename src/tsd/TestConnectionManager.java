@@ -0,0 +1,286 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.UpstreamChannelStateEvent;
+import org.jboss.netty.handler.timeout.DefaultIdleStateEvent;
+import org.jboss.netty.handler.timeout.IdleState;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.powermock.reflect.Whitebox;
+
+public final class TestConnectionManager {
+
+  /** How many times setReadable(false) and setReadable(true) were called. */
+  private final int[] set_readable = new int[2];
+  /** How many times close() was called.  */
+  private int closed;
+  /** The events sent upstream through our fake context.  */
+  private final ArrayList<ChannelEvent> upstream =
+    new ArrayList<ChannelEvent>();
+  private final Channel chan = fakeChannel();
+  private final ConnectionManager.Client client =
+    new ConnectionManager.Client("/127.0.0.1:4242", 0);
+
+  @After
+  public void after() {
+    clients().remove(chan);
+  }
+
+  @Test
+  public void admitUpToTheLimit() throws Exception {
+    final AtomicInteger open = openConnections();
+    final int before = open.get();
+    assertTrue(ConnectionManager.admit(before + 2));
+    assertTrue(ConnectionManager.admit(before + 2));
+    assertFalse(ConnectionManager.admit(before + 2));
+    assertEquals(before + 2, open.get());
+    // Closing a connection makes room for another one.
+    new ConnectionManager().channelClosed(fakeContext(), closedEvent());
+    assertTrue(ConnectionManager.admit(before + 2));
+    assertTrue(ConnectionManager.admit(0));  // No limit.
+    open.set(before);
+  }
+
+  @Test
+  public void closedConnectionsAreForgottenAndForwarded() throws Exception {
+    clients().put(chan, client);
+    client.writeStarted(chan, true);
+    final AtomicInteger open = openConnections();
+    final int before = open.get();
+    final ChannelStateEvent event = closedEvent();
+    new ConnectionManager().channelClosed(fakeContext(), event);
+    assertFalse(ConnectionManager.clients().contains(client));
+    assertFalse(client.isSuspended());
+    assertEquals(before - 1, open.get());
+    // So that the handlers after us can release their resources.
+    assertEquals(1, upstream.size());
+    assertSame(event, upstream.get(0));
+    open.set(before);
+  }
+
+  @Test
+  public void rejecterClosesConnections() throws Exception {
+    ((ChannelUpstreamHandler) ConnectionManager.REJECTER).handleUpstream(
+      fakeContext(), new UpstreamChannelStateEvent(chan, ChannelState.OPEN,
+                                                   Boolean.TRUE));
+    assertEquals(1, closed);
+  }
+
+  @Test
+  public void closesIdleConnections() throws Exception {
+    clients().put(chan, client);
+    new ConnectionManager().handleUpstream(fakeContext(), idleEvent());
+    assertEquals(1, closed);
+    assertTrue(upstream.isEmpty());
+  }
+
+  @Test
+  public void doesntCloseSuspendedConnections() throws Exception {
+    clients().put(chan, client);
+    client.writeStarted(chan, true);
+    final ConnectionManager connmgr = new ConnectionManager();
+    connmgr.handleUpstream(fakeContext(), idleEvent());
+    assertEquals(0, closed);
+    // Once we read from it again, it can be closed if it stays idle.
+    client.writeDone(chan, true);
+    connmgr.handleUpstream(fakeContext(), idleEvent());
+    assertEquals(1, closed);
+  }
+
+  @Test
+  public void doesntCloseConnectionsWithARequestInFlight() throws Exception {
+    clients().put(chan, client);
+    final Deferred<Object> request = new Deferred<Object>();
+    ConnectionManager.recordRequest(chan, request);
+    final ConnectionManager connmgr = new ConnectionManager();
+    connmgr.handleUpstream(fakeContext(), idleEvent());
+    assertEquals(0, closed);
+    // Once it's been served, it can be closed if it stays idle.
+    request.callback(null);
+    connmgr.handleUpstream(fakeContext(), idleEvent());
+    assertEquals(1, closed);
+  }
+
+  @Test
+  public void suspendsWithTooManyPendingWrites() {
+    final int max = ConnectionManager.MAX_PENDING_POINTS;
+    for (int i = 0; i < max - 1; i++) {
+      client.writeStarted(chan, false);
+    }
+    assertFalse(client.isSuspended());
+    client.writeStarted(chan, false);
+    assertTrue(client.isSuspended());
+    assertEquals(1, set_readable[0]);
+    // Resume only once half of the writes are done.
+    for (int i = 0; i < max / 2; i++) {
+      client.writeDone(chan, false);
+    }
+    assertTrue(client.isSuspended());
+    client.writeDone(chan, false);
+    assertFalse(client.isSuspended());
+    assertEquals(1, set_readable[1]);
+  }
+
+  @Test
+  public void suspendsWhileRetrying() {
+    client.writeStarted(chan, false);
+    client.writeStarted(chan, true);
+    client.writeStarted(chan, true);
+    assertTrue(client.isSuspended());
+    client.writeDone(chan, true);
+    assertTrue(client.isSuspended());
+    client.writeDone(chan, true);
+    assertFalse(client.isSuspended());
+    assertEquals(1, set_readable[0]);
+    assertEquals(1, set_readable[1]);
+  }
+
+  @Test
+  public void queuedCommandsCountAsPendingPoints() {
+    final int max = ConnectionManager.MAX_PENDING_POINTS;
+    for (int i = 0; i < max - 1; i++) {
+      client.commandQueued(chan, false);
+    }
+    assertFalse(client.isSuspended());
+    client.writeStarted(chan, false);
+    assertTrue(client.isSuspended());
+    // A command that leaves its queue is only counted again for its write.
+    for (int i = 0; i < max / 2 - 1; i++) {
+      client.commandDequeued(chan, false);
+      client.writeStarted(chan, false);
+    }
+    assertTrue(client.isSuspended());
+    for (int i = 0; i < max / 2; i++) {
+      client.writeDone(chan, false);
+    }
+    assertTrue(client.isSuspended());
+    client.writeDone(chan, false);
+    assertFalse(client.isSuspended());
+  }
+
+  @Test
+  public void suspendsWhileOverflowed() {
+    client.commandQueued(chan, false);
+    client.commandQueued(chan, true);
+    assertTrue(client.isSuspended());
+    client.commandDequeued(chan, false);
+    assertTrue(client.isSuspended());
+    client.commandDequeued(chan, true);
+    assertFalse(client.isSuspended());
+    assertEquals(1, set_readable[0]);
+    assertEquals(1, set_readable[1]);
+  }
+
+  @Test
+  public void doesntResumeOnceClosed() {
+    client.writeStarted(chan, true);
+    client.close();
+    assertFalse(client.isSuspended());
+    client.writeDone(chan, true);
+    assertEquals(0, set_readable[1]);
+  }
+
+  private ChannelStateEvent closedEvent() {
+    return new UpstreamChannelStateEvent(chan, ChannelState.OPEN,
+                                         Boolean.FALSE);
+  }
+
+  private ChannelEvent idleEvent() {
+    return new DefaultIdleStateEvent(chan, IdleState.ALL_IDLE, 0);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<Channel, ConnectionManager.Client> clients() {
+    return (Map<Channel, ConnectionManager.Client>)
+      Whitebox.getInternalState(ConnectionManager.class, "clients");
+  }
+
+  private static AtomicInteger openConnections() {
+    return Whitebox.getInternalState(ConnectionManager.class,
+                                     "open_connections");
+  }
+
+  /**
+   * Returns a channel that only counts the calls to setReadable() and
+   * close().
+   */
+  private Channel fakeChannel() {
+    final InvocationHandler handler = new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method,
+                           final Object[] args) {
+        final String name = method.getName();
+        if ("setReadable".equals(name)) {
+          set_readable[(Boolean) args[0] ? 1 : 0]++;
+          return null;
+        } else if ("close".equals(name)) {
+          closed++;
+          return Channels.succeededFuture((Channel) proxy);
+        } else if ("toString".equals(name)) {
+          return "[fake channel]";
+        } else if ("hashCode".equals(name)) {
+          return System.identityHashCode(proxy);
+        } else if ("equals".equals(name)) {
+          return proxy == args[0];
+        }
+        throw new UnsupportedOperationException(method.toString());
+      }
+    };
+    return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                                            new Class<?>[] { Channel.class },
+                                            handler);
+  }
+
+  /** Returns a context that records the events sent upstream.  */
+  private ChannelHandlerContext fakeContext() {
+    final InvocationHandler handler = new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method,
+                           final Object[] args) {
+        final String name = method.getName();
+        if ("sendUpstream".equals(name)) {
+          upstream.add((ChannelEvent) args[0]);
+          return null;
+        } else if ("getChannel".equals(name)) {
+          return chan;
+        }
+        throw new UnsupportedOperationException(method.toString());
+      }
+    };
+    return (ChannelHandlerContext) Proxy.newProxyInstance(
+      ChannelHandlerContext.class.getClassLoader(),
+      new Class<?>[] { ChannelHandlerContext.class }, handler);
+  }
+
+}
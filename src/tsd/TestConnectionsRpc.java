@@ -0,0 +1,136 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.powermock.reflect.Whitebox;
+
+public final class TestConnectionsRpc {
+
+  private final ArrayList<Channel> channels = new ArrayList<Channel>();
+
+  @Before
+  public void before() {
+    // Address, points, bytes, errors.
+    addClient("a", 10, 500, 0);
+    addClient("b", 30, 100, 1);
+    addClient("c", 20, 300, 5);
+  }
+
+  @After
+  public void after() {
+    for (final Channel chan : channels) {
+      clients().remove(chan);
+    }
+  }
+
+  @Test
+  public void sortedByPointsByDefault() {
+    assertEquals("bca", remotes(execute("/connections")));
+  }
+
+  @Test
+  public void sortedByBytesOrErrors() {
+    assertEquals("acb", remotes(execute("/connections?sort=bytes")));
+    assertEquals("cba", remotes(execute("/connections?sort=errors")));
+  }
+
+  @Test
+  public void limit() {
+    assertEquals("bc", remotes(execute("/connections?limit=2")));
+  }
+
+  @Test
+  public void counters() {
+    final String[] fields =
+      execute("/connections?limit=1").split("\n")[0].split(" ");
+    assertEquals("b", fields[0]);
+    assertEquals("30", fields[1]);
+    assertEquals("100", fields[2]);
+    assertEquals("1", fields[3]);
+  }
+
+  @Test
+  public void json() {
+    final String json = execute("/connections?limit=1&json");
+    assertTrue(json, json.startsWith("[{\"remote\":\"b\",\"points\":30,"
+                                     + "\"bytes\":100,\"errors\":1,"));
+    assertTrue(json, json.endsWith("}]"));
+  }
+
+  @Test
+  public void badParameters() {
+    assertBadRequest("/connections?sort=foo");
+    assertBadRequest("/connections?limit=foo");
+  }
+
+  private static void assertBadRequest(final String uri) {
+    try {
+      execute(uri);
+      fail(uri + " should have been rejected");
+    } catch (BadRequestException e) {
+      // Expected.
+    }
+  }
+
+  /** Returns the first letter of each line of a text response.  */
+  private static String remotes(final String response) {
+    final StringBuilder buf = new StringBuilder();
+    for (final String line : response.split("\n")) {
+      buf.append(line.charAt(0));
+    }
+    return buf.toString();
+  }
+
+  /** Returns the body of the response to the given URI.  */
+  private static String execute(final String uri) {
+    final HttpQuery query = TestHttpQuery.newQuery(uri);
+    new ConnectionsRpc().execute(null, query);
+    final HttpResponse response =
+      (HttpResponse) TestHttpQuery.written(query).get(0);
+    return response.getContent().toString(Charset.forName("UTF-8"));
+  }
+
+  /** Adds a client as if it were connected on a channel of its own.  */
+  private void addClient(final String remote, final long points,
+                         final long bytes, final long errors) {
+    final ConnectionManager.Client client =
+      new ConnectionManager.Client(remote, System.currentTimeMillis());
+    client.points.set(points);
+    client.bytes.set(bytes);
+    client.errors.set(errors);
+    final Channel chan = TestHttpQuery.newQuery("/").channel();
+    channels.add(chan);
+    clients().put(chan, client);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<Channel, ConnectionManager.Client> clients() {
+    return (Map<Channel, ConnectionManager.Client>)
+      Whitebox.getInternalState(ConnectionManager.class, "clients");
+  }
+
+}
@@ -0,0 +1,198 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.stream.ChunkedInput;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class TestContentCompressor {
+
+  @Test
+  public void negotiate() {
+    assertEquals("gzip", negotiate("gzip, deflate", "text/plain", 4096));
+    assertEquals("deflate", negotiate("deflate", "application/json", -1));
+    assertEquals("gzip", negotiate("*", "text/html; charset=UTF-8", 4096));
+    assertEquals("deflate", negotiate("gzip;q=0, deflate;q=0.5",
+                                      "text/plain", 4096));
+    assertNull(negotiate("*, gzip;q=0, deflate;q=0", "text/plain", 4096));
+    assertNull(negotiate(null, "text/plain", 4096));
+    assertNull(negotiate("gzip", "image/png", 4096));
+    assertNull(negotiate("gzip", "text/plain", 100));  // Too small.
+  }
+
+  @Test
+  public void gzip() throws IOException {
+    final byte[] data = sample(10000);
+    final ChannelBuffer out =
+      ContentCompressor.compress("gzip", ChannelBuffers.wrappedBuffer(data));
+    assertTrue(out.readableBytes() < data.length);
+    assertArrayEquals(data, gunzip(out));
+  }
+
+  @Test
+  public void deflate() throws IOException {
+    final byte[] data = sample(10000);
+    final ChannelBuffer out = ContentCompressor.compress(
+      "deflate", ChannelBuffers.wrappedBuffer(data));
+    assertArrayEquals(data, read(new InflaterInputStream(stream(out))));
+  }
+
+  @Test
+  public void gzipped() throws IOException {
+    final byte[] data = sample(10000);
+    assertArrayEquals(data, gunzip(ChannelBuffers.wrappedBuffer(
+      ContentCompressor.gzipped(data))));
+    assertNull(ContentCompressor.gzipped(sample(100)));  // Too small.
+  }
+
+  @Test
+  public void stream() throws Exception {
+    final byte[] data = sample(300000);
+    final ChunkedInput input = ContentCompressor.compress("gzip",
+      new Pieces(data, 7000));
+    final ChannelBuffer out = ChannelBuffers.dynamicBuffer();
+    while (!input.isEndOfInput()) {
+      assertTrue(input.hasNextChunk());
+      out.writeBytes((ChannelBuffer) input.nextChunk());
+    }
+    assertFalse(input.hasNextChunk());
+    input.close();
+    assertArrayEquals(data, gunzip(out));
+  }
+
+  @Test
+  public void gzipFile() throws IOException {
+    final byte[] data = sample(300000);  // Bigger than our read buffer.
+    final File file = File.createTempFile("compressor", ".txt");
+    final File gzfile = new File(file.getPath() + ".gz");
+    try {
+      write(file, data);
+      assertTrue(ContentCompressor.gzipFile(file.getPath(), gzfile.getPath()));
+      assertTrue(gzfile.length() < data.length);
+      assertArrayEquals(data, read(new GZIPInputStream(
+        new FileInputStream(gzfile))));
+      write(file, sample(100));  // Too small.
+      assertFalse(ContentCompressor.gzipFile(file.getPath(),
+                                             gzfile.getPath()));
+      assertFalse(gzfile.exists());
+    } finally {
+      file.delete();
+      gzfile.delete();
+    }
+  }
+
+  private static void write(final File file,
+                            final byte[] data) throws IOException {
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String negotiate(final String accept_encoding,
+                                  final String content_type,
+                                  final int length) {
+    final HttpRequest request =
+      new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/q");
+    if (accept_encoding != null) {
+      request.setHeader(HttpHeaders.Names.ACCEPT_ENCODING, accept_encoding);
+    }
+    return ContentCompressor.negotiate(request, content_type, length);
+  }
+
+  /** Returns some compressible data.  */
+  private static byte[] sample(final int size) {
+    final byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) ("sys.cpu 1356998400 42 host=web01\n".charAt(i % 33)
+                        + (i / 33) % 3);
+    }
+    return data;
+  }
+
+  private static InputStream stream(final ChannelBuffer buf) {
+    final byte[] bytes = new byte[buf.readableBytes()];
+    buf.getBytes(buf.readerIndex(), bytes);
+    return new ByteArrayInputStream(bytes);
+  }
+
+  private static byte[] gunzip(final ChannelBuffer buf) throws IOException {
+    return read(new GZIPInputStream(stream(buf)));
+  }
+
+  private static byte[] read(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) > 0) {
+      out.write(buf, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  /** Returns some data in pieces of the given size.  */
+  private static final class Pieces implements ChunkedInput {
+    private final byte[] data;
+    private final int size;
+    private int offset;
+
+    Pieces(final byte[] data, final int size) {
+      this.data = data;
+      this.size = size;
+    }
+
+    public boolean hasNextChunk() {
+      return offset < data.length;
+    }
+
+    public Object nextChunk() {
+      final int n = Math.min(size, data.length - offset);
+      offset += n;
+      return ChannelBuffers.wrappedBuffer(data, offset - n, n);
+    }
+
+    public boolean isEndOfInput() {
+      return offset >= data.length;
+    }
+
+    public void close() {
+    }
+  }
+
+}
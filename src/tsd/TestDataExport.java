@@ -0,0 +1,181 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.util.CharsetUtil;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class TestDataExport {
+
+  @Test
+  public void ascii() {
+    final List<DataPoints> series = Arrays.<DataPoints>asList(
+      new Series("sys.cpu", "web01", 9, 3),
+      new Series("sys.mem", "web02", 10, 1));
+    // The first point of sys.cpu is before the start time.
+    assertEquals("sys.cpu 10 20 host=web01\n"
+                 + "sys.cpu 11 30 host=web01\n"
+                 + "sys.mem 10 10 host=web02\n",
+                 export(series, 10, 11, false));
+  }
+
+  @Test
+  public void json() {
+    final List<DataPoints> series = Arrays.<DataPoints>asList(
+      new Series("sys.cpu", "web01", 10, 2),
+      new Series("sys.mem", "web02", 10, 0));
+    assertEquals("[{\"metric\":\"sys.cpu\",\"tags\":{\"host\":\"web01\"},"
+                 + "\"aggregated_tags\":[],\"dps\":[[10,10],[11,20]]},"
+                 + "{\"metric\":\"sys.mem\",\"tags\":{\"host\":\"web02\"},"
+                 + "\"aggregated_tags\":[],\"dps\":[]}]",
+                 export(series, 0, 100, true));
+  }
+
+  @Test
+  public void empty() {
+    final List<DataPoints> series = new ArrayList<DataPoints>(0);
+    assertEquals("", export(series, 0, 100, false));
+    assertEquals("[]", export(series, 0, 100, true));
+  }
+
+  @Test
+  public void manyChunks() {
+    final int n = 100000;
+    final List<DataPoints> series = Arrays.<DataPoints>asList(
+      new Series("sys.cpu", "web01", 1, n),
+      new Series("sys.mem", "web02", 1, n));
+    final DataExport export = new DataExport(series, 0, Long.MAX_VALUE, true);
+    final StringBuilder buf = new StringBuilder();
+    int nchunks = 0;
+    while (export.hasNextChunk()) {
+      final ChannelBuffer chunk = (ChannelBuffer) export.nextChunk();
+      assertTrue(chunk.readableBytes() < 65536);
+      buf.append(chunk.toString(CharsetUtil.UTF_8));
+      nchunks++;
+    }
+    assertTrue("only " + nchunks + " chunks", nchunks > 10);
+    final String json = buf.toString();
+    assertTrue(json.startsWith("[{\"metric\":\"sys.cpu\""));
+    assertTrue(json.contains("[100000,1000000]]},{\"metric\":\"sys.mem\""));
+    assertTrue(json.endsWith("[100000,1000000]]}]"));
+  }
+
+  private static String export(final List<DataPoints> series,
+                               final long start_time, final long end_time,
+                               final boolean json) {
+    final DataExport export = new DataExport(series, start_time, end_time,
+                                             json);
+    final StringBuilder buf = new StringBuilder();
+    while (export.hasNextChunk()) {
+      buf.append(((ChannelBuffer) export.nextChunk())
+                 .toString(CharsetUtil.UTF_8));
+    }
+    return buf.toString();
+  }
+
+  /** A series with one point per second, with values 10, 20, 30...  */
+  private static final class Series implements DataPoints {
+    private final String metric;
+    private final String host;
+    private final long start;
+    private final int size;
+
+    Series(final String metric, final String host, final long start,
+           final int size) {
+      this.metric = metric;
+      this.host = host;
+      this.start = start;
+      this.size = size;
+    }
+
+    public String metricName() {
+      return metric;
+    }
+
+    public Map<String, String> getTags() {
+      return Collections.singletonMap("host", host);
+    }
+
+    public List<String> getAggregatedTags() {
+      return new ArrayList<String>(0);
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public int aggregatedSize() {
+      return size;
+    }
+
+    public SeekableView iterator() {
+      return new SeekableView() {
+        private int i = 0;
+
+        public boolean hasNext() {
+          return i < size;
+        }
+
+        public DataPoint next() {
+          final int n = i++;
+          return new DataPoint() {
+            public long timestamp() { return Series.this.timestamp(n); }
+            public boolean isInteger() { return true; }
+            public long longValue() { return Series.this.longValue(n); }
+            public double doubleValue() { throw new ClassCastException(); }
+            public double toDouble() { return longValue(); }
+          };
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+
+        public void seek(final long timestamp) {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    public long timestamp(final int i) {
+      return start + i;
+    }
+
+    public boolean isInteger(final int i) {
+      return true;
+    }
+
+    public long longValue(final int i) {
+      return (i + 1) * 10L;
+    }
+
+    public double doubleValue(final int i) {
+      throw new ClassCastException();
+    }
+  }
+
+}
@@ -0,0 +1,126 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class TestDiskCache {
+
+  private File dir;
+
+  @Before
+  public void before() throws IOException {
+    dir = File.createTempFile("diskcache", "");
+    dir.delete();
+    dir.mkdir();
+  }
+
+  @After
+  public void after() {
+    delete(dir);
+  }
+
+  @Test
+  public void basePathIgnoresParameterOrder() {
+    final DiskCache cache = new DiskCache(dir.getPath() + '/', 0);
+    final LinkedHashMap<String, List<String>> a =
+      new LinkedHashMap<String, List<String>>();
+    a.put("start", Arrays.asList("1h-ago"));
+    a.put("m", Arrays.asList("sum:foo", "sum:bar"));
+    final LinkedHashMap<String, List<String>> b =
+      new LinkedHashMap<String, List<String>>();
+    b.put("m", Arrays.asList("sum:foo", "sum:bar"));
+    b.put("start", Arrays.asList("1h-ago"));
+    final String path = cache.basePath(a);
+    assertEquals(path, cache.basePath(b));
+    // Sharded in two levels of directories.
+    final File base = new File(path);
+    assertTrue(base.getParentFile().isDirectory());
+    assertEquals(dir, base.getParentFile().getParentFile().getParentFile());
+    // Values don't get mixed up with each other.
+    b.put("m", Arrays.asList("sum:foo,sum:bar"));
+    assertFalse(path.equals(cache.basePath(b)));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws IOException {
+    final DiskCache cache = new DiskCache(dir.getPath() + '/', 250);
+    cache.load();
+    final String a = write(cache, "a", 100, Long.MAX_VALUE);
+    final String b = write(cache, "b", 100, Long.MAX_VALUE);
+    assertTrue(cache.lastModified(a + ".png") > 0);  // a is now more recent.
+    write(cache, "c", 100, Long.MAX_VALUE);
+    assertEquals(100, cache.length(a + ".png"));
+    assertEquals(0, cache.lastModified(b + ".png"));
+    assertFalse(new File(b + ".png").exists());
+  }
+
+  @Test
+  public void evictsExpiredFirst() throws IOException {
+    final DiskCache cache = new DiskCache(dir.getPath() + '/', 250);
+    cache.load();
+    final String a = write(cache, "a", 100, Long.MAX_VALUE);
+    final String b = write(cache, "b", 100, 1);  // Already expired.
+    write(cache, "c", 100, Long.MAX_VALUE);
+    assertEquals(0, cache.lastModified(b + ".png"));
+    assertTrue(new File(a + ".png").exists());
+  }
+
+  @Test
+  public void loadsExistingFiles() throws IOException {
+    final DiskCache before = new DiskCache(dir.getPath() + '/', 0);
+    final String a = write(before, "a", 100, Long.MAX_VALUE);
+    final DiskCache cache = new DiskCache(dir.getPath() + '/', 0);
+    cache.load();
+    assertEquals(100, cache.length(a + ".png"));
+    assertEquals(0, cache.length(a + ".json"));
+  }
+
+  /** Writes a cached file and returns its base path.  */
+  private static String write(final DiskCache cache, final String key,
+                              final int size,
+                              final long expires) throws IOException {
+    final String basepath = cache.basePath(key);
+    final FileOutputStream out = new FileOutputStream(basepath + ".png");
+    try {
+      out.write(new byte[size]);
+    } finally {
+      out.close();
+    }
+    cache.written(basepath, expires);
+    return basepath;
+  }
+
+  private static void delete(final File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (final File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+}
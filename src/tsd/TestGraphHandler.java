@@ -13,13 +13,30 @@
 package net.opentsdb.tsd;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hbase.async.HBaseClient;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+
+import net.opentsdb.core.Aggregators;
+import net.opentsdb.core.Query;
+import net.opentsdb.core.QueryProfile;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.UniqueId;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -163,6 +180,143 @@ public final class TestGraphHandler {
     System.currentTimeMillis();  // ... this was called only once.
   }
 
+  @Test
+  public void followersGetTheLeadersResponse() throws Exception {
+    final GraphHandler handler = newGraphHandler();
+    final String uri = "/q?start=1h-ago&m=sum:sys.cpu";
+    final HttpQuery leader = TestHttpQuery.newQuery(uri);
+    final HttpQuery follower = TestHttpQuery.newQuery(uri);
+    assertTrue(lead(handler, leader));
+    assertFalse(lead(handler, follower));
+    leader.badRequest("nope");
+    assertEquals(HttpResponseStatus.BAD_REQUEST, response(follower));
+    assertTrue(TestHttpQuery.isDone(follower));
+    // The leader is done, so the next identical request has to lead.
+    assertTrue(lead(handler, TestHttpQuery.newQuery(uri)));
+  }
+
+  @Test
+  public void abandonedLeaderReleasesItsFollowers() throws Exception {
+    final GraphHandler handler = newGraphHandler();
+    // No start time, so it fails.
+    final String uri = "/q?m=sum:sys.cpu&title=foo";
+    final HttpQuery leader = TestHttpQuery.newQuery(uri);
+    final HttpQuery follower = TestHttpQuery.newQuery(uri);
+    final String key = coalescingKey(leader);
+    assertTrue(lead(handler, leader));
+    assertFalse(lead(handler, follower));
+    // Like setPlotParams() does by the time we give up on the leader.
+    leader.getQueryString().remove("title");
+    Whitebox.invokeMethod(handler, "abandon",
+                          new Class<?>[] { TSDB.class, HttpQuery.class,
+                                           String.class },
+                          null, leader, key);
+    // The follower was served on its own.
+    assertEquals(HttpResponseStatus.BAD_REQUEST, response(follower));
+    assertTrue(TestHttpQuery.isDone(follower));
+    assertTrue(TestHttpQuery.written(leader).isEmpty());
+    assertFalse(leader.addFollower(TestHttpQuery.newQuery(uri)));
+    assertTrue(lead(handler, TestHttpQuery.newQuery(uri)));
+  }
+
+  @Test
+  public void parseRankLimit() throws Exception {
+    Query query = parseQuery("sum:top5-max:sys.cpu");
+    assertEquals(5, intField(query, "rank_limit"));
+    assertEquals(false, Whitebox.getInternalState(query, "rank_bottom"));
+    assertSame(Aggregators.MAX, Whitebox.getInternalState(query, "ranker"));
+    query = parseQuery("sum:bottom3-last:1h-avg:rate:sys.cpu");
+    assertEquals(3, intField(query, "rank_limit"));
+    assertEquals(true, Whitebox.getInternalState(query, "rank_bottom"));
+    assertNull(Whitebox.getInternalState(query, "ranker"));
+    assertEquals(3600, intField(query, "sample_interval"));
+    // Rank by the maximum value by default.
+    query = parseQuery("sum:top2:sys.cpu");
+    assertSame(Aggregators.MAX, Whitebox.getInternalState(query, "ranker"));
+    // Not a ranking specifier.
+    query = parseQuery("sum:1h-avg:sys.cpu");
+    assertEquals(0, intField(query, "rank_limit"));
+  }
+
+  @Test
+  public void parseBadRankLimit() throws Exception {
+    assertBadRequest("sum:top0:sys.cpu");
+    assertBadRequest("sum:topx:sys.cpu");
+    assertBadRequest("sum:bottom:sys.cpu");
+    assertBadRequest("sum:top5-nosuchagg:sys.cpu");
+    // Not a valid downsampling specifier where one is expected.
+    assertBadRequest("sum:top5:1h:sys.cpu");
+    // The ranking specifier must come before the downsampling one.
+    assertBadRequest("sum:1h-avg:top5:sys.cpu");
+    assertBadRequest("sum:top5:1h-avg:rate:foo:sys.cpu");
+  }
+
+  private static int intField(final Query query, final String name) {
+    return Whitebox.<Integer>getInternalState(query, name);
+  }
+
+  private static void assertBadRequest(final String m) throws Exception {
+    try {
+      parseQuery(m);
+      fail("m=" + m + " should have been rejected");
+    } catch (BadRequestException e) {
+      // Expected.
+    }
+  }
+
+  /** Parses a single sub-query using a TSDB that only knows sys.cpu.  */
+  private static Query parseQuery(final String m) throws Exception {
+    final TSDB tsdb = new TSDB(new HBaseClient("localhost"),
+                               "tsdb", "tsdb-uid");
+    addUid(tsdb, "metrics", "sys.cpu");
+    final HttpQuery query = TestHttpQuery.newQuery("/q?start=1h-ago&m="
+                                                   + m);
+    final Query[] queries = Whitebox.<Query[]>invokeMethod(GraphHandler.class,
+      "parseQuery", tsdb, query, new QueryProfile());
+    assertEquals(1, queries.length);
+    return queries[0];
+  }
+
+  /** Puts a UID mapping in the caches of one of the UniqueIds of a TSDB. */
+  @SuppressWarnings("unchecked")
+  private static void addUid(final TSDB tsdb, final String kind,
+                             final String name) {
+    final UniqueId uid = Whitebox.getInternalState(tsdb, kind);
+    final byte[] id = new byte[uid.width()];
+    id[id.length - 1] = 1;
+    ((ConcurrentHashMap<String, byte[]>)
+     Whitebox.getInternalState(uid, "nameCache")).put(name, id);
+    ((ConcurrentHashMap<String, String>)
+     Whitebox.getInternalState(uid, "idCache"))
+      .put(new String(id, Charset.forName("ISO-8859-1")), name);
+  }
+
+  private static GraphHandler newGraphHandler() throws IOException {
+    final File cachedir = File.createTempFile("cachedir", "");
+    cachedir.delete();
+    cachedir.mkdir();
+    cachedir.deleteOnExit();
+    System.setProperty("tsd.http.cachedir", cachedir.getPath() + '/');
+    return new GraphHandler();
+  }
+
+  private static boolean lead(final GraphHandler handler,
+                              final HttpQuery query) throws Exception {
+    return Whitebox.<Boolean>invokeMethod(handler, "lead",
+                                          coalescingKey(query), query);
+  }
+
+  private static String coalescingKey(final HttpQuery query)
+    throws Exception {
+    return Whitebox.<String>invokeMethod(GraphHandler.class,
+                                         "getCoalescingKey", query);
+  }
+
+  /** Returns the status of the response sent to the given query.  */
+  private static HttpResponseStatus response(final HttpQuery query) {
+    return ((HttpResponse) TestHttpQuery.written(query).get(0)).getStatus();
+  }
+
   /**
    * Helper to call private static method.
    * There's one slight difference: the {@code end_time} parameter is in
@@ -174,7 +328,8 @@ public final class TestGraphHandler {
                                         final File cachedfile) throws Exception {
     return Whitebox.<Boolean>invokeMethod(GraphHandler.class, "staleCacheFile",
                                           query, end_time / 1000, max_age,
-                                          cachedfile);
+                                          cachedfile.getPath(),
+                                          cachedfile.lastModified());
   }
 
   private static HttpQuery fakeHttpQuery() {
@@ -0,0 +1,236 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+
+import com.stumbleupon.async.Callback;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.FileRegion;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class TestHttpQuery {
+
+  private final HttpQuery leader = newQuery("/q?start=1h-ago");
+  private final HttpQuery follower1 = newQuery("/q?start=1h-ago");
+  private final HttpQuery follower2 = newQuery("/q?start=1h-ago");
+
+  @Test
+  public void followersGetTheCachedResponse() {
+    follow();
+    final byte[] data = "some data".getBytes();
+    final MemoryCache.Entry entry =
+      new MemoryCache.Entry("/cache/foo.txt", data, false, 1000, 0);
+    leader.sendCached(entry, ChannelBuffers.wrappedBuffer(data), 60);
+    for (final HttpQuery query : all()) {
+      final HttpResponse response = (HttpResponse) written(query).get(0);
+      assertEquals(HttpResponseStatus.OK, response.getStatus());
+      assertEquals("some data", new String(response.getContent().array()));
+      assertTrue(isDone(query));
+    }
+  }
+
+  @Test
+  public void headersAreOnlyForTheirQuery() {
+    follow();
+    leader.setHeader("X-Foo", "bar");
+    final byte[] data = "some data".getBytes();
+    final MemoryCache.Entry entry =
+      new MemoryCache.Entry("/cache/foo.txt", data, false, 1000, 0);
+    leader.sendCached(entry, 60);
+    assertEquals("bar", ((HttpResponse) written(leader).get(0))
+                 .getHeader("X-Foo"));
+    assertNull(((HttpResponse) written(follower1).get(0))
+               .getHeader("X-Foo"));
+    final HttpQuery query = newQuery("/q?start=1h-ago&ascii");
+    query.setHeader("X-Foo", "baz");
+    query.sendReply("some data");
+    assertEquals("baz", ((HttpResponse) written(query).get(0))
+                 .getHeader("X-Foo"));
+  }
+
+  @Test
+  public void followersGetTheFile() throws IOException {
+    follow();
+    final File file = File.createTempFile("httpquery", ".txt");
+    try {
+      final FileOutputStream out = new FileOutputStream(file);
+      out.write("some data".getBytes());
+      out.close();
+      leader.sendFile(file.getPath(), 60);
+    } finally {
+      file.delete();
+    }
+    for (final HttpQuery query : all()) {
+      final ArrayList<Object> written = written(query);
+      assertEquals(HttpResponseStatus.OK,
+                   ((HttpResponse) written.get(0)).getStatus());
+      assertEquals(9, ((FileRegion) written.get(1)).getCount());
+      assertTrue(isDone(query));
+    }
+  }
+
+  @Test
+  public void gzippedFileOnlyForClientsThatAcceptIt() throws IOException {
+    follow();
+    leader.request().setHeader(HttpHeaders.Names.ACCEPT_ENCODING, "gzip");
+    final File file = File.createTempFile("httpquery", ".txt");
+    final File gzfile = new File(file.getPath() + ".gz");
+    try {
+      write(file, "some data");
+      write(gzfile, "gzip");
+      leader.sendFile(file.getPath(), gzfile.getPath(), 60);
+    } finally {
+      file.delete();
+      gzfile.delete();
+    }
+    for (final HttpQuery query : all()) {
+      final ArrayList<Object> written = written(query);
+      final HttpResponse response = (HttpResponse) written.get(0);
+      assertEquals(HttpHeaders.Names.ACCEPT_ENCODING,
+                   response.getHeader(HttpHeaders.Names.VARY));
+      assertEquals("text/plain",
+                   response.getHeader(HttpHeaders.Names.CONTENT_TYPE));
+      if (query == leader) {
+        assertEquals("gzip",
+                     response.getHeader(HttpHeaders.Names.CONTENT_ENCODING));
+        assertEquals(4, ((FileRegion) written.get(1)).getCount());
+      } else {
+        assertNull(response.getHeader(HttpHeaders.Names.CONTENT_ENCODING));
+        assertEquals(9, ((FileRegion) written.get(1)).getCount());
+      }
+    }
+  }
+
+  @Test
+  public void followersGetTheInternalError() {
+    follow();
+    leader.internalError(new Exception("boom"));
+    for (final HttpQuery query : all()) {
+      final HttpResponse response = (HttpResponse) written(query).get(0);
+      assertEquals(HttpResponseStatus.INTERNAL_SERVER_ERROR,
+                   response.getStatus());
+      assertTrue(isDone(query));
+    }
+  }
+
+  @Test
+  public void noFollowersOnceDone() {
+    assertTrue(leader.addFollower(follower1));
+    assertEquals(1, leader.detachFollowers().size());
+    assertFalse(leader.addFollower(follower2));
+    leader.badRequest("nope");
+    assertTrue(written(follower1).isEmpty());
+    assertTrue(written(follower2).isEmpty());
+    assertEquals(null, leader.detachFollowers());
+  }
+
+  private static void write(final File file,
+                            final String data) throws IOException {
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data.getBytes());
+    } finally {
+      out.close();
+    }
+  }
+
+  private void follow() {
+    assertTrue(leader.addFollower(follower1));
+    assertTrue(leader.addFollower(follower2));
+  }
+
+  private HttpQuery[] all() {
+    return new HttpQuery[] { leader, follower1, follower2 };
+  }
+
+  /** Returns whether or not we're done responding to the given query.  */
+  static boolean isDone(final HttpQuery query) {
+    final boolean[] done = { false };
+    query.getDeferred().addBoth(new Callback<Object, Object>() {
+      public Object call(final Object arg) {
+        done[0] = true;
+        return arg;
+      }
+    });
+    return done[0];
+  }
+
+  /** Returns what was written to the channel of a query from newQuery().  */
+  static ArrayList<Object> written(final HttpQuery query) {
+    return ((FakeChannel) Proxy.getInvocationHandler(query.channel())).written;
+  }
+
+  /**
+   * Returns a query on a channel that's always connected and whose writes
+   * all succeed immediately.
+   * @param uri The URI requested.
+   */
+  static HttpQuery newQuery(final String uri) {
+    final DefaultHttpRequest request =
+      new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    return new HttpQuery(request, fakeChannel());
+  }
+
+  /** What a fake channel does, which also records what's written to it.  */
+  private static final class FakeChannel implements InvocationHandler {
+
+    /** The messages written, in order.  */
+    final ArrayList<Object> written = new ArrayList<Object>();
+
+    public Object invoke(final Object proxy, final Method method,
+                         final Object[] args) {
+      final String name = method.getName();
+      if ("write".equals(name)) {
+        written.add(args[0]);
+        return Channels.succeededFuture((Channel) proxy);
+      } else if ("isConnected".equals(name)) {
+        return true;
+      } else if ("toString".equals(name)) {
+        return "[fake channel]";
+      } else if ("hashCode".equals(name)) {
+        return System.identityHashCode(proxy);
+      } else if ("equals".equals(name)) {
+        return proxy == args[0];
+      }
+      throw new UnsupportedOperationException(method.toString());
+    }
+  }
+
+  private static Channel fakeChannel() {
+    return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                                            new Class<?>[] { Channel.class },
+                                            new FakeChannel());
+  }
+
+}
@@ -0,0 +1,100 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.channel.Channel;
+
+import net.opentsdb.core.TSDB;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class TestIngestWorkers {
+
+  @Test
+  public void shardsBySeries() {
+    final int a = IngestWorkers.shard(
+      "put sys.cpu 1356998400 42 host=web01 cpu=0".split(" "), 8);
+    assertEquals(a, IngestWorkers.shard(
+      "put sys.cpu 1356998401 43 host=web01 cpu=0".split(" "), 8));
+    assertEquals(a, IngestWorkers.shard(
+      "put sys.cpu 1356998402 44 cpu=0 host=web01".split(" "), 8));
+    for (int i = 0; i < 100; i++) {
+      final int shard = IngestWorkers.shard(
+        ("put sys.cpu 1356998400 42 host=web" + i).split(" "), 8);
+      assertTrue(shard >= 0 && shard < 8);
+    }
+    assertEquals(0, IngestWorkers.shard(new String[] { "put" }, 8));
+  }
+
+  @Test
+  public void executesInOrder() {
+    final List<String> executed =
+      Collections.synchronizedList(new ArrayList<String>());
+    final TelnetRpc rpc = new TelnetRpc() {
+      public Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                                      final String[] cmd) {
+        if ("42".equals(cmd[2])) {
+          throw new RuntimeException("Simulated failure");
+        }
+        executed.add(cmd[2] + ' ' + Thread.currentThread().getName());
+        return Deferred.fromResult(null);
+      }
+    };
+    final IngestWorkers workers = new IngestWorkers(null, rpc, 4, 10);
+    final Channel chan = fakeChannel();
+    for (int i = 0; i < 100; i++) {
+      workers.execute(chan, ("put sys.cpu " + i + " 1 host=web01").split(" "));
+    }
+    assertTrue(workers.drain(10000));
+    assertEquals(99, executed.size());
+    final String thread = executed.get(0).split(" ")[1];
+    assertTrue(thread.startsWith("IngestWorker#"));
+    for (int i = 0, j = 0; i < 100; i++) {
+      if (i != 42) {
+        assertEquals(i + " " + thread, executed.get(j++));
+      }
+    }
+  }
+
+  /** Returns a channel that's not managed by the ConnectionManager.  */
+  private static Channel fakeChannel() {
+    final InvocationHandler handler = new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method,
+                           final Object[] args) {
+        if ("hashCode".equals(method.getName())) {
+          return System.identityHashCode(proxy);
+        } else if ("equals".equals(method.getName())) {
+          return proxy == args[0];
+        } else if ("toString".equals(method.getName())) {
+          return "fake channel";
+        }
+        throw new UnsupportedOperationException(method.toString());
+      }
+    };
+    return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                                            new Class<?>[] { Channel.class },
+                                            handler);
+  }
+
+}
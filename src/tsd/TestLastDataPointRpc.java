@@ -0,0 +1,46 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class TestLastDataPointRpc {
+
+  @Test
+  public void parseLookback() {
+    assertEquals(3600, LastDataPointRpc.parseLookback(null));
+    assertEquals(1, LastDataPointRpc.parseLookback("1"));
+    assertEquals(7 * 86400, LastDataPointRpc.parseLookback("604800"));
+  }
+
+  @Test
+  public void parseBadLookback() {
+    assertBadLookback("0");
+    assertBadLookback("-60");
+    assertBadLookback("604801");
+    assertBadLookback("99999999999");  // Would scan the whole history.
+    assertBadLookback("1h");
+  }
+
+  private static void assertBadLookback(final String back) {
+    try {
+      LastDataPointRpc.parseLookback(back);
+      fail("back=" + back + " should have been rejected");
+    } catch (BadRequestException e) {
+      // Expected.
+    }
+  }
+
+}
@@ -0,0 +1,123 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class TestMemoryCache {
+
+  private static final long MTIME = 1356998400000L;
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    final MemoryCache cache = new MemoryCache(800);
+    final MemoryCache.Entry a = cache.put("a", new byte[100], false, MTIME,
+                                          Long.MAX_VALUE);
+    cache.put("b", new byte[100], false, MTIME, Long.MAX_VALUE);
+    assertSame(a, cache.get("a"));  // a is now more recent.
+    for (int i = 0; i < 7; i++) {  // One more than what fits.
+      cache.put("c" + i, new byte[100], false, MTIME, Long.MAX_VALUE);
+    }
+    assertSame(a, cache.get("a"));
+    assertNull(cache.get("b"));
+  }
+
+  @Test
+  public void replacesEntries() {
+    final MemoryCache cache = new MemoryCache(800);
+    final MemoryCache.Entry a = cache.put("a", new byte[] { 1 }, false, MTIME,
+                                          Long.MAX_VALUE);
+    final MemoryCache.Entry b = cache.put("a", new byte[] { 2 }, false, MTIME,
+                                          Long.MAX_VALUE);
+    assertSame(b, cache.get("a"));
+    assertFalse(a.etag.equals(b.etag));
+    assertTrue(b.etag.startsWith("\"") && b.etag.endsWith("\""));
+  }
+
+  @Test
+  public void doesntCacheBigEntries() {
+    final MemoryCache cache = new MemoryCache(800);
+    assertNotNull(cache.put("a", new byte[101], false, MTIME, Long.MAX_VALUE));
+    assertNull(cache.get("a"));
+    assertNotNull(cache.put("b", new byte[100], false, MTIME, Long.MAX_VALUE));
+    assertNotNull(cache.get("b"));
+  }
+
+  @Test
+  public void dropsExpiredEntries() {
+    final MemoryCache cache = new MemoryCache(800);
+    cache.put("a", new byte[10], false, MTIME, 1);
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void disabled() {
+    final MemoryCache cache = new MemoryCache(0);
+    cache.put("a", new byte[0], false, MTIME, Long.MAX_VALUE);
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void ifNoneMatch() {
+    final String etag = "\"abc\"";
+    assertFalse(HttpQuery.isNotModified(request(null, null), etag, MTIME));
+    assertTrue(HttpQuery.isNotModified(request(etag, null), etag, MTIME));
+    assertTrue(HttpQuery.isNotModified(request("\"x\", W/\"abc\"", null),
+                                       etag, MTIME));
+    assertTrue(HttpQuery.isNotModified(request("*", null), etag, MTIME));
+    assertFalse(HttpQuery.isNotModified(request("\"x\"", null), etag, MTIME));
+    // If-Modified-Since is ignored when there's an If-None-Match.
+    assertFalse(HttpQuery.isNotModified(
+      request("\"x\"", HttpQuery.formatHttpDate(MTIME)), etag, MTIME));
+  }
+
+  @Test
+  public void ifModifiedSince() {
+    final String date = HttpQuery.formatHttpDate(MTIME);
+    assertEquals("Tue, 01 Jan 2013 00:00:00 GMT", date);
+    assertTrue(HttpQuery.isNotModified(request(null, date), null, MTIME));
+    assertTrue(HttpQuery.isNotModified(request(null, date), null,
+                                       MTIME + 999));
+    assertFalse(HttpQuery.isNotModified(request(null, date), null,
+                                        MTIME + 1000));
+    assertFalse(HttpQuery.isNotModified(request(null, "garbage"), null,
+                                        MTIME));
+  }
+
+  private static HttpRequest request(final String if_none_match,
+                                     final String if_modified_since) {
+    final HttpRequest request =
+      new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/q");
+    if (if_none_match != null) {
+      request.setHeader(HttpHeaders.Names.IF_NONE_MATCH, if_none_match);
+    }
+    if (if_modified_since != null) {
+      request.setHeader(HttpHeaders.Names.IF_MODIFIED_SINCE,
+                        if_modified_since);
+    }
+    return request;
+  }
+
+}
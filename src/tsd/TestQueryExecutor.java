@@ -0,0 +1,151 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class TestQueryExecutor {
+
+  @Test
+  public void resultsInSubmissionOrder() throws Exception {
+    final QueryExecutor executor = new QueryExecutor(4, 100);
+    final QueryExecutor.Batch batch = executor.newBatch("a", 0);
+    for (int i = 0; i < 10; i++) {
+      batch.submit(constant(i));
+    }
+    assertArrayEquals(new Object[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 },
+                      batch.await());
+    executor.shutdown();
+  }
+
+  @Test  // The first failure must be rethrown and cancel the other tasks.
+  public void failureCancelsBatch() throws Exception {
+    final QueryExecutor executor = new QueryExecutor(1, 100);
+    final CountDownLatch never = new CountDownLatch(1);
+    final QueryExecutor.Batch batch = executor.newBatch("a", 0);
+    batch.submit(new Callable<Object>() {
+      public Object call() {
+        throw new IllegalStateException("boom");
+      }
+    });
+    batch.submit(new Callable<Object>() {
+      public Object call() throws InterruptedException {
+        never.await();  // Would block forever if not cancelled.
+        return null;
+      }
+    });
+    try {
+      batch.await();
+      fail("Should have thrown");
+    } catch (IllegalStateException e) {
+      assertEquals("boom", e.getMessage());
+    }
+    executor.shutdown();
+  }
+
+  @Test(expected=TimeoutException.class)
+  public void deadline() throws Exception {
+    final QueryExecutor executor = new QueryExecutor(1, 100);
+    final CountDownLatch never = new CountDownLatch(1);
+    final QueryExecutor.Batch batch = executor.newBatch("a", 50);
+    batch.submit(new Callable<Object>() {
+      public Object call() throws InterruptedException {
+        never.await();
+        return null;
+      }
+    });
+    try {
+      batch.await();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(expected=RejectedExecutionException.class)
+  public void queueIsBounded() throws Exception {
+    final QueryExecutor executor = new QueryExecutor(1, 2);
+    final CountDownLatch release = new CountDownLatch(1);
+    final QueryExecutor.Batch batch = executor.newBatch("a", 0);
+    try {
+      batch.submit(blockUntil(release));  // Picked up by the worker.
+      Thread.sleep(50);
+      batch.submit(constant(1));
+      batch.submit(constant(2));
+      batch.submit(constant(3));  // Queue is full.
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test  // A tenant with lots of work can't starve another one.
+  public void roundRobinBetweenTenants() throws Exception {
+    final QueryExecutor executor = new QueryExecutor(1, 100);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Object> order =
+      Collections.synchronizedList(new ArrayList<Object>());
+    final QueryExecutor.Batch blocker = executor.newBatch("blocker", 0);
+    blocker.submit(blockUntil(release));
+    Thread.sleep(50);  // Let the single worker pick up the blocking task.
+    final QueryExecutor.Batch busy = executor.newBatch("busy", 0);
+    for (int i = 0; i < 3; i++) {
+      busy.submit(record(order, "busy" + i));
+    }
+    final QueryExecutor.Batch other = executor.newBatch("other", 0);
+    other.submit(record(order, "other"));
+    release.countDown();
+    busy.await();
+    other.await();
+    assertEquals("[busy0, other, busy1, busy2]", order.toString());
+    executor.shutdown();
+  }
+
+  private static Callable<Object> constant(final Object value) {
+    return new Callable<Object>() {
+      public Object call() {
+        return value;
+      }
+    };
+  }
+
+  private static Callable<Object> record(final List<Object> order,
+                                         final Object value) {
+    return new Callable<Object>() {
+      public Object call() {
+        order.add(value);
+        return value;
+      }
+    };
+  }
+
+  private static Callable<Object> blockUntil(final CountDownLatch latch) {
+    return new Callable<Object>() {
+      public Object call() throws InterruptedException {
+        latch.await();
+        return null;
+      }
+    };
+  }
+
+}
@@ -0,0 +1,113 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class TestStaticFileRpc {
+
+  private File root;
+  private String staticroot;
+
+  @Before
+  public void before() throws IOException {
+    root = File.createTempFile("staticroot", "");
+    root.delete();
+    root.mkdir();
+    new File(root, "gwt").mkdir();
+    staticroot = root.getPath() + '/';
+  }
+
+  @After
+  public void after() {
+    delete(root);
+  }
+
+  @Test
+  public void loadsEverything() throws IOException {
+    write("favicon.ico", sample(100));
+    write("gwt/queryui.nocache.js", sample(10000));
+    final StaticFileRpc rpc = new StaticFileRpc(staticroot, 1 << 20);
+    assertArrayEquals(sample(100),
+                      rpc.get(staticroot + "favicon.ico").data);
+    final MemoryCache.Entry js = rpc.get(staticroot + "gwt/queryui.nocache.js");
+    assertArrayEquals(sample(10000), js.data);
+    assertNotNull(js.gzipped);
+    assertNull(rpc.get(staticroot + "gwt"));
+  }
+
+  @Test
+  public void reloadsChanges() throws IOException {
+    write("a.html", sample(10));
+    write("b.html", sample(20));
+    final StaticFileRpc rpc = new StaticFileRpc(staticroot, 1 << 20);
+    write("a.html", sample(30));
+    new File(root, "a.html").setLastModified(1000);
+    new File(root, "b.html").delete();
+    write("c.html", sample(40));
+    rpc.reload();
+    assertArrayEquals(sample(30), rpc.get(staticroot + "a.html").data);
+    assertNull(rpc.get(staticroot + "b.html"));
+    assertArrayEquals(sample(40), rpc.get(staticroot + "c.html").data);
+  }
+
+  @Test
+  public void boundsMemoryUsage() throws IOException {
+    write("a.png", sample(600));
+    write("b.png", sample(600));
+    final StaticFileRpc rpc = new StaticFileRpc(staticroot, 1000);
+    // Only one of them fits.
+    assertTrue(rpc.get(staticroot + "a.png") == null
+               ^ rpc.get(staticroot + "b.png") == null);
+    assertNull(new StaticFileRpc(staticroot, 0).get(staticroot + "a.png"));
+  }
+
+  private void write(final String path, final byte[] data)
+    throws IOException {
+    final FileOutputStream out = new FileOutputStream(new File(root, path));
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] sample(final int size) {
+    final byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) ('a' + i % 7);
+    }
+    return data;
+  }
+
+  private static void delete(final File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (final File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+}
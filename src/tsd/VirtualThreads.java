@@ -0,0 +1,71 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2012  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads on JVMs that have them (JDK 21 and up).
+ * <p>
+ * We still compile for older JVMs, so everything is done by reflection.
+ * Note that until JDK 24, a virtual thread blocked inside a
+ * {@code synchronized} block (which is what {@code joinUninterruptibly}
+ * does) pins its carrier thread, so the benefits are much smaller there.
+ */
+final class VirtualThreads {
+
+  /** {@code Executors.newVirtualThreadPerTaskExecutor}, if available.  */
+  private static final Method NEW_EXECUTOR;
+  static {
+    Method m = null;
+    try {
+      m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      // Old JVM, no virtual threads.
+    }
+    NEW_EXECUTOR = m;
+  }
+
+  private VirtualThreads() {
+    // Can't create instances of this utility class.
+  }
+
+  /** Returns whether or not this JVM supports virtual threads.  */
+  public static boolean isSupported() {
+    return NEW_EXECUTOR != null;
+  }
+
+  /**
+   * Returns a new executor that starts a new virtual thread for each task.
+   * @throws UnsupportedOperationException if this JVM doesn't have virtual
+   * threads.
+   */
+  public static ExecutorService newThreadPerTaskExecutor() {
+    if (NEW_EXECUTOR == null) {
+      throw new UnsupportedOperationException("Virtual threads require JDK 21"
+        + " or above, this is " + System.getProperty("java.version"));
+    }
+    try {
+      return (ExecutorService) NEW_EXECUTOR.invoke(null);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Should never happen", e);
+    } catch (InvocationTargetException e) {
+      throw new IllegalStateException("Failed to create virtual threads",
+                                      e.getCause());
+    }
+  }
+
+}